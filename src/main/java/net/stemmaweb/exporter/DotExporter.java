@@ -24,7 +24,9 @@ import static net.stemmaweb.parser.Util.getExpander;
 import static org.apache.commons.text.StringEscapeUtils.escapeHtml4;
 
 import net.stemmaweb.services.DatabaseService;
+import net.stemmaweb.services.ParallelSections;
 import net.stemmaweb.services.VariantGraphService;
+import net.stemmaweb.services.WitnessSets;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.traversal.Uniqueness;
 
@@ -109,16 +111,18 @@ public class DotExporter
             HashSet<Node> writtenNodes = new HashSet<>();
             ArrayList<Relationship> relsToWrite = new ArrayList<>();
 
-            for (Node sectionNode: sections) {
-                // Get the number of witnesses we have
-                ArrayList<Node> sectionWits = new Section(tradId, String.valueOf(sectionNode.getId()))
-                        .collectSectionWitnesses();
-                int numWits = sectionWits.size();
-                if (dm.getExcludeWitnesses().size() > 0) {
-                    numWits -= dm.getExcludeWitnesses().size();
-                }
-                Node sectionStartNode = VariantGraphService.getStartNode(String.valueOf(sectionNode.getId()), db);
-                Node sectionEndNode = VariantGraphService.getEndNode(String.valueOf(sectionNode.getId()), db);
+            // Gather what we need from each section in parallel, unless we are normalising, which
+            // means writing to the graph; in that case each section is gathered in turn below.
+            List<SectionParts> gathered = dm.getNormaliseOn() == null
+                    ? ParallelSections.map(db, sections, x -> new SectionParts(tradId, x, dm))
+                    : null;
+
+            for (int i = 0; i < sections.size(); i++) {
+                Node sectionNode = sections.get(i);
+                SectionParts parts = gathered != null ? gathered.get(i) : new SectionParts(tradId, sectionNode, dm);
+                int numWits = parts.numWits;
+                Node sectionStartNode = parts.startNode;
+                Node sectionEndNode = parts.endNode;
                 // If we have requested a section, then that section's start and end are "the" start and end
                 // for the whole graph.
                 if (sectionId != null) {
@@ -134,22 +138,10 @@ public class DotExporter
                     subgraphWritten = true;
                 }
 
-                // Find our representative nodes, in case we are producing a normalised form of the graph
-                HashMap<Node, Node> representatives = getRepresentatives(sectionNode, dm.getNormaliseOn());
+                HashMap<Node, Node> representatives = parts.representatives;
+                HashMap<Node, Node> lemmaLinks = parts.lemmaLinks;
                 RelationshipType seqLabel = dm.getNormaliseOn() == null ? ERelations.SEQUENCE : ERelations.NSEQUENCE;
-
-                // Collect any lemma edge pairs
-                HashMap<Node, Node> lemmaLinks = new HashMap<>();
-                db.traversalDescription().breadthFirst()
-                        .relationships(ERelations.LEMMA_TEXT,Direction.OUTGOING)
-                        .uniqueness(Uniqueness.NODE_GLOBAL)
-                        .traverse(sectionStartNode).relationships()
-                        .forEach(r -> {
-                            // We don't display lemma edges to emendations, for now; emendations are not in
-                            // the representatives list.
-                            if (representatives.containsKey(r.getStartNode()) && representatives.containsKey(r.getEndNode()))
-                                lemmaLinks.put(representatives.get(r.getStartNode()), representatives.get(r.getEndNode()));
-                        });
+                WitnessSets.Dictionary dictionary = WitnessSets.dictionaryOfSection(sectionNode);
 
                 // Now start writing some dot.
                 for (Node node : new HashSet<>(representatives.values())) {
@@ -175,13 +167,14 @@ public class DotExporter
                             continue;
                         Node relStartNode = rel.getStartNode();
                         Long relStartNodeId = relStartNode.getId();
+                        Map<String, String[]> witnessInfo = dictionary.read(rel);
 
                         boolean witnessLink = false; // Does the witness filter need this sequence?
                         if (node.equals(sectionStartNode) || dm.getExcludeWitnesses().size() == 0)
                             witnessLink = true;
                         else
-                            for (Object v : rel.getAllProperties().values())
-                                for (String s : (String[]) v)
+                            for (String[] v : witnessInfo.values())
+                                for (String s : v)
                                     if (!dm.getExcludeWitnesses().contains(s))
                                         witnessLink = true;
 
@@ -201,10 +194,10 @@ public class DotExporter
                             lemmaLinks.remove(relStartNode);
                         }
                         // Get the label
-                        String label = sequenceLabel(convertProps(rel), numWits, dm);
+                        String label = sequenceLabel(witnessInfo, numWits, dm);
                         Long rankDiff = (Long) node.getProperty("rank") - (Long) relStartNode.getProperty("rank");
                         seqSpecs.add(relshipText(relStartNodeId, node.getId(), label, edgeId++,
-                                calcPenWidth(convertProps(rel)), rankDiff, edge_is_lemma));
+                                calcPenWidth(witnessInfo), rankDiff, edge_is_lemma));
 
                     }
 
@@ -287,6 +280,44 @@ public class DotExporter
      * Helper functions for variant graph production
      */
 
+    // What we need to know about a section before its nodes and edges can be written.
+    private static class SectionParts {
+        private final int numWits;
+        private final Node startNode;
+        private final Node endNode;
+        private final HashMap<Node, Node> representatives;
+        private final HashMap<Node, Node> lemmaLinks = new HashMap<>();
+
+        SectionParts(String tradId, Node sectionNode, DisplayOptionModel dm) throws Exception {
+            GraphDatabaseService db = sectionNode.getGraphDatabase();
+            String sectionId = String.valueOf(sectionNode.getId());
+            // Get the number of witnesses we have
+            ArrayList<Node> sectionWits = new Section(tradId, sectionId).collectSectionWitnesses();
+            int wits = sectionWits.size();
+            if (dm.getExcludeWitnesses().size() > 0) {
+                wits -= dm.getExcludeWitnesses().size();
+            }
+            numWits = wits;
+            startNode = VariantGraphService.getStartNode(sectionId, db);
+            endNode = VariantGraphService.getEndNode(sectionId, db);
+
+            // Find our representative nodes, in case we are producing a normalised form of the graph
+            representatives = getRepresentatives(sectionNode, dm.getNormaliseOn());
+
+            // Collect any lemma edge pairs
+            db.traversalDescription().breadthFirst()
+                    .relationships(ERelations.LEMMA_TEXT,Direction.OUTGOING)
+                    .uniqueness(Uniqueness.NODE_GLOBAL)
+                    .traverse(startNode).relationships()
+                    .forEach(r -> {
+                        // We don't display lemma edges to emendations, for now; emendations are not in
+                        // the representatives list.
+                        if (representatives.containsKey(r.getStartNode()) && representatives.containsKey(r.getEndNode()))
+                            lemmaLinks.put(representatives.get(r.getStartNode()), representatives.get(r.getEndNode()));
+                    });
+        }
+    }
+
     private static HashMap<Node, Node> getRepresentatives(Node sectionNode, String normaliseOn)
             throws Exception {
         if (normaliseOn == null) {
@@ -411,15 +442,6 @@ public class DotExporter
         return text;
     }
 
-    private static Map<String, String[]> convertProps(Relationship rel) {
-        Map<String, String[]> result = new HashMap<>();
-        for (String prop : rel.getPropertyKeys()) {
-            String[] witList = (String[]) rel.getProperty(prop);
-            result.put(prop, witList);
-        }
-        return result;
-    }
-
     /**
      *
      * Parses a Stemma of a tradition in a JSON string in DOT format
@@ -1,19 +1,24 @@
 package net.stemmaweb.exporter;
 
-import java.io.StringWriter;
+import java.io.OutputStream;
 import java.util.*;
+import java.util.zip.GZIPOutputStream;
 
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
 import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamWriter;
 
 import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.rest.Nodes;
 import net.stemmaweb.rest.Section;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
 import net.stemmaweb.services.VariantGraphService;
+import net.stemmaweb.services.WitnessSets;
 import org.neo4j.graphdb.*;
 
 import com.sun.xml.txw2.output.IndentingXMLStreamWriter;
@@ -29,6 +34,7 @@ public class GraphMLExporter {
 
     private HashMap<String,String[]> nodeMap;
     private HashMap<String,String[]> edgeMap;
+    private WitnessSets.Dictionary dictionary;
 
     private void writeKeys(XMLStreamWriter writer, HashMap<String, String[]> currentMap, String kind)
             throws XMLStreamException{
@@ -89,15 +95,16 @@ public class GraphMLExporter {
     private void writeProperties(XMLStreamWriter writer, PropertyContainer ent, HashMap<String, String[]> collection)
             throws XMLStreamException {
         String prefix = collection.equals(nodeMap) ? "dn" : "de";
-        for (String prop : ent.getPropertyKeys()) {
+        for (Map.Entry<String, Object> entry : propertiesOf(ent).entrySet()) {
+            String prop = entry.getKey();
             if (collection.containsKey(prop)) {
                 writer.writeStartElement("data");
                 writer.writeAttribute("key", prefix + collection.get(prop)[0]);
                 String propValue;
                 if (collection.get(prop)[1].equals("stringarray"))
-                    propValue = new ArrayList<>(Arrays.asList((String[]) ent.getProperty(prop))).toString();
+                    propValue = new ArrayList<>(Arrays.asList((String[]) entry.getValue())).toString();
                 else
-                    propValue = ent.getProperty(prop).toString();
+                    propValue = entry.getValue().toString();
                 writer.writeCharacters(propValue);
                 writer.writeEndElement();
             }
@@ -109,9 +116,10 @@ public class GraphMLExporter {
     // These datatypes need to be kept in sync with parser.GraphMLParser
     private void collectProperties (PropertyContainer ent, HashMap<String, String[]> collection) {
         int ctr = collection.size();
-        for (String p : ent.getPropertyKeys()) {
+        for (Map.Entry<String, Object> entry : propertiesOf(ent).entrySet()) {
+            String p = entry.getKey();
             String type = "string";
-            Object prop = ent.getProperty(p);
+            Object prop = entry.getValue();
             if (prop instanceof Long) type = "long";
             else if (prop instanceof Boolean) type = "boolean";
             else if (prop instanceof String[]) type = "stringarray";
@@ -121,26 +129,48 @@ public class GraphMLExporter {
         }
     }
 
+    // To be used inside a transaction
+    // Sequence links are given their witnesses per witness class, as they were once stored, and
+    // the tradition node is given without its witness dictionary.
+    private Map<String, Object> propertiesOf (PropertyContainer ent) {
+        if (ent instanceof Relationship) {
+            Relationship r = (Relationship) ent;
+            if (r.isType(ERelations.SEQUENCE) || r.isType(ERelations.NSEQUENCE))
+                return new LinkedHashMap<>(dictionary.read(r));
+        }
+        boolean isTradition = ent instanceof Node && ((Node) ent).hasLabel(Nodes.TRADITION);
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (String p : ent.getPropertyKeys())
+            if (!isTradition || !WitnessSets.isDictionaryProperty(p))
+                result.put(p, ent.getProperty(p));
+        return result;
+    }
+
     public Response writeNeo4J(String tradId) {
         return writeNeo4J(tradId, null, false);
     }
 
 
     public Response writeNeo4J(String tradId, String sectionId, Boolean includeWitnesses) {
+        return writeNeo4J(tradId, sectionId, includeWitnesses, false);
+    }
+
+    /**
+     * Export a tradition or one of its sections as GraphML. The XML is written straight to
+     * the response as the graph is traversed, rather than being assembled in memory first.
+     *
+     * @param tradId           - the tradition to export
+     * @param sectionId        - the section to export, or null for the whole tradition
+     * @param includeWitnesses - whether to include the witness nodes of a section
+     * @param gzip             - whether to compress the output with gzip content encoding
+     * @return a Response whose entity is a StreamingOutput
+     */
+    public Response writeNeo4J(String tradId, String sectionId, Boolean includeWitnesses, boolean gzip) {
         // Get the tradition node
         Node traditionNode = VariantGraphService.getTraditionNode(tradId, db);
         if (traditionNode == null)
             return Response.status(Status.NOT_FOUND).build();
 
-        StringWriter result = new StringWriter();
-        XMLOutputFactory output = XMLOutputFactory.newInstance();
-        XMLStreamWriter writer;
-        try {
-            writer = new IndentingXMLStreamWriter(output.createXMLStreamWriter(result));
-        } catch (XMLStreamException e) {
-            e.printStackTrace();
-            return Response.serverError().build();
-        }
         ResourceIterable<Node> traditionNodes = sectionId == null ?
                 VariantGraphService.returnEntireTradition(traditionNode).nodes() :
                 VariantGraphService.returnTraditionSection(sectionId, db).nodes();
@@ -185,91 +215,105 @@ public class GraphMLExporter {
         }
 
 
-        try (Transaction tx = db.beginTx()) {
-            // First we have to go through all nodes and edges in the tradition or section we want,
-            // compiling a list of node and edge attributes.
-            nodeMap = new HashMap<>();
-            nodeMap.put("neolabel", new String[]{"0", "string"});
-            edgeMap = new HashMap<>();
-            edgeMap.put("neolabel", new String[]{"0", "string"});
-            int nodeCount = 0;
-            int edgeCount = 0;
-            for (Node n : traditionNodes) {
-                collectProperties(n, nodeMap);
-                nodeCount++;
+        StreamingOutput stream = out -> {
+            OutputStream target = gzip ? new GZIPOutputStream(out) : out;
+            try (Transaction tx = db.beginTx()) {
+                XMLStreamWriter writer = new IndentingXMLStreamWriter(
+                        XMLOutputFactory.newInstance().createXMLStreamWriter(target, "UTF-8"));
+                writeGraph(writer, traditionNode, traditionNodes, traditionEdges, extraNodes, extraRels);
+                writer.flush();
+                tx.success();
+            } catch (XMLStreamException e) {
+                e.printStackTrace();
+                throw new WebApplicationException("Error: Tradition could not be exported!", e);
             }
+            if (gzip)
+                ((GZIPOutputStream) target).finish();
+        };
+        Response.ResponseBuilder rb = Response.ok(stream, MediaType.APPLICATION_XML);
+        if (gzip)
+            rb.header("Content-Encoding", "gzip");
+        return rb.build();
+    }
 
-            for (Relationship e : traditionEdges) {
-                collectProperties(e, edgeMap);
-                edgeCount++;
-            }
+    // To be used inside a transaction
+    private void writeGraph(XMLStreamWriter writer, Node traditionNode,
+                            ResourceIterable<Node> traditionNodes, ResourceIterable<Relationship> traditionEdges,
+                            List<Node> extraNodes, List<Relationship> extraRels) throws XMLStreamException {
+        // First we have to go through all nodes and edges in the tradition or section we want,
+        // compiling a list of node and edge attributes.
+        dictionary = WitnessSets.dictionaryFor(traditionNode);
+        nodeMap = new HashMap<>();
+        nodeMap.put("neolabel", new String[]{"0", "string"});
+        edgeMap = new HashMap<>();
+        edgeMap.put("neolabel", new String[]{"0", "string"});
+        int nodeCount = 0;
+        int edgeCount = 0;
+        for (Node n : traditionNodes) {
+            collectProperties(n, nodeMap);
+            nodeCount++;
+        }
 
-            for (Node n : extraNodes) {
-                collectProperties(n, nodeMap);
-                nodeCount++;
-            }
+        for (Relationship e : traditionEdges) {
+            collectProperties(e, edgeMap);
+            edgeCount++;
+        }
 
-            for (Relationship e : extraRels) {
-                collectProperties(e, edgeMap);
-                edgeCount++;
-            }
+        for (Node n : extraNodes) {
+            collectProperties(n, nodeMap);
+            nodeCount++;
+        }
 
-            writer.writeStartDocument();
-
-            writer.writeStartElement("graphml");
-            writer.writeAttribute("xmlns", "http://graphml.graphdrawing.org/xmlns");
-            writer.writeAttribute("xmlns:xsi", "http://www.w3.org/2001/XMLSchema-instance");
-            writer.writeAttribute("xsi:schemaLocation", "http://graphml.graphdrawing.org/xmlns " +
-                    "http://graphml.graphdrawing.org/xmlns/1.0/graphml.xsd");
-
-            // ####### KEYS START #######################################
-
-            writeKeys(writer, nodeMap, "node");
-            writeKeys(writer, edgeMap, "edge");
-
-            // ####### KEYS END #######################################
-
-            // Write out the <graph> opening tag
-            writer.writeStartElement("graph");
-            writer.writeAttribute("id", traditionNode.getProperty("name").toString());
-            writer.writeAttribute("edgedefault", "directed");
-            writer.writeAttribute("parse.edgeids", "canonical");
-            writer.writeAttribute("parse.edges", String.valueOf(edgeCount));
-            writer.writeAttribute("parse.nodeids", "canonical");
-            writer.writeAttribute("parse.nodes", String.valueOf(nodeCount));
-            writer.writeAttribute("parse.order", "nodesfirst");
-
-            // Now list out all the nodes, checking against duplicates in the traversal
-            HashSet<Long> addedNodes = new HashSet<>();
-            for (Node n : traditionNodes)
-                if (!addedNodes.contains(n.getId())) {
-                    writeNode(writer, n);
-                    addedNodes.add(n.getId());
-                }
+        for (Relationship e : extraRels) {
+            collectProperties(e, edgeMap);
+            edgeCount++;
+        }
 
-            for (Node n : extraNodes)
-                if (!addedNodes.contains(n.getId())) {
-                    writeNode(writer, n);
-                    addedNodes.add(n.getId());
-                }
+        writer.writeStartDocument("UTF-8", "1.0");
+
+        writer.writeStartElement("graphml");
+        writer.writeAttribute("xmlns", "http://graphml.graphdrawing.org/xmlns");
+        writer.writeAttribute("xmlns:xsi", "http://www.w3.org/2001/XMLSchema-instance");
+        writer.writeAttribute("xsi:schemaLocation", "http://graphml.graphdrawing.org/xmlns " +
+                "http://graphml.graphdrawing.org/xmlns/1.0/graphml.xsd");
+
+        // ####### KEYS START #######################################
+
+        writeKeys(writer, nodeMap, "node");
+        writeKeys(writer, edgeMap, "edge");
+
+        // ####### KEYS END #######################################
+
+        // Write out the <graph> opening tag
+        writer.writeStartElement("graph");
+        writer.writeAttribute("id", traditionNode.getProperty("name").toString());
+        writer.writeAttribute("edgedefault", "directed");
+        writer.writeAttribute("parse.edgeids", "canonical");
+        writer.writeAttribute("parse.edges", String.valueOf(edgeCount));
+        writer.writeAttribute("parse.nodeids", "canonical");
+        writer.writeAttribute("parse.nodes", String.valueOf(nodeCount));
+        writer.writeAttribute("parse.order", "nodesfirst");
+
+        // Now list out all the nodes, checking against duplicates in the traversal
+        HashSet<Long> addedNodes = new HashSet<>();
+        for (Node n : traditionNodes)
+            if (!addedNodes.contains(n.getId())) {
+                writeNode(writer, n);
+                addedNodes.add(n.getId());
+            }
 
-            // And list out all the edges, which should already be unique in the traversal
-            traditionEdges.forEach(x -> writeEdge(writer, x));
-            extraRels.forEach(x -> writeEdge(writer, x));
+        for (Node n : extraNodes)
+            if (!addedNodes.contains(n.getId())) {
+                writeNode(writer, n);
+                addedNodes.add(n.getId());
+            }
 
+        // And list out all the edges, which should already be unique in the traversal
+        traditionEdges.forEach(x -> writeEdge(writer, x));
+        extraRels.forEach(x -> writeEdge(writer, x));
 
-            writer.writeEndElement(); // graph
-            writer.writeEndElement(); // end graphml
-            writer.flush();
 
-            tx.success();
-        } catch (Exception e) {
-            e.printStackTrace();
-            return Response
-                    .status(Response.Status.INTERNAL_SERVER_ERROR)
-                    .entity("Error: Tradition could not be exported!")
-                    .build();
-        }
-        return Response.ok(result.toString(), MediaType.APPLICATION_XML).build();
+        writer.writeEndElement(); // graph
+        writer.writeEndElement(); // end graphml
     }
 }
\ No newline at end of file
@@ -1,34 +1,30 @@
 package net.stemmaweb.exporter;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import javax.ws.rs.core.StreamingOutput;
 import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamWriter;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 
 import net.stemmaweb.rest.ERelations;
 
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
 import net.stemmaweb.services.VariantGraphService;
+import net.stemmaweb.services.WitnessSets;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.Transaction;
 import org.neo4j.graphdb.traversal.Uniqueness;
-import org.w3c.dom.Document;
 
 import com.sun.xml.txw2.output.IndentingXMLStreamWriter;
 
@@ -114,12 +110,18 @@ public class StemmawebExporter {
     }
 
     public Response writeNeo4J(String tradId) {
+        return writeNeo4J(tradId, false);
+    }
 
-        int edgeCountGraph1 = 0;
-        int nodeCountGraph1 = 0;
-        int edgeCountGraph2 = 0;
-        int nodeCountGraph2 = 0;
-
+    /**
+     * Export a tradition in the legacy Stemmaweb GraphML format. The XML is written straight to
+     * the response as the graph is traversed, rather than being assembled in a temporary file.
+     *
+     * @param tradId - the tradition to export
+     * @param gzip   - whether to compress the output with gzip content encoding
+     * @return a Response whose entity is a StreamingOutput
+     */
+    public Response writeNeo4J(String tradId, boolean gzip) {
         Node traditionNode = VariantGraphService.getTraditionNode(tradId, db);
         if(traditionNode == null)
             return Response.status(Status.NOT_FOUND).entity("No tradition found for this ID").build();
@@ -127,242 +129,229 @@ public class StemmawebExporter {
         if(traditionStartNode == null)
             return Response.status(Status.NOT_FOUND).entity("No graph found for this tradition.").build();
 
-        File file;
-        try (Transaction tx = db.beginTx()) {
-
-            file = File.createTempFile("output", ".xml");
-            OutputStream out = new FileOutputStream(file);
-
-            XMLOutputFactory output = XMLOutputFactory.newInstance();
-            XMLStreamWriter writer = new IndentingXMLStreamWriter(output.createXMLStreamWriter(out));
-
-            writer.writeStartDocument();
-
-            writer.writeStartElement("graphml");
-            writer.writeAttribute("xmlns","http://graphml.graphdrawing.org/xmlns");
-            writer.writeAttribute("xmlns:xsi","http://www.w3.org/2001/XMLSchema-instance");
-            writer.writeAttribute("xsi:schemaLocation","http://graphml.graphdrawing.org/xmlns http://graphml.graphdrawing.org/xmlns/1.0/graphml.xsd");
-
-            // ####### KEYS START #######################################
-
-            writeKeys(writer, graphMap, "graph");
-            writeKeys(writer, nodeMap, "node");
-            writeKeys(writer, relationMap, "edge");
-
-            // ####### KEYS END #######################################
-            // graph 1
-
-            Iterable<String> props;
-
-            writer.writeStartElement("graph");
-            // TODO convert tradition name safely into XML Name
-            writer.writeAttribute("id", "Tradition");
-            writer.writeAttribute("edgedefault", "directed");
-            //writer.writeAttribute("id", traditionNode.getProperty("dg1").toString());
-            writer.writeAttribute("parse.edgeids", "canonical");
-            // THIS IS CHANGED AFTERWARDS
-            writer.writeAttribute("parse.edges", 0+"");
-            writer.writeAttribute("parse.nodeids", "canonical");
-            // THIS IS CHANGED AFTERWARDS
-            writer.writeAttribute("parse.nodes", 0+"");
-            writer.writeAttribute("parse.order", "nodesfirst");
-
-            props = traditionNode.getPropertyKeys();
-            for(String prop : props) {
-                if(prop !=null && !prop.equals("id") && !prop.equals("section_id")) {
-                    writer.writeStartElement("data");
-                    writer.writeAttribute("key", graphMap.get(prop)[0]);
-                    writer.writeCharacters(traditionNode.getProperty(prop).toString());
-                    writer.writeEndElement();
-                }
+        StreamingOutput stream = out -> {
+            OutputStream target = gzip ? new GZIPOutputStream(out) : out;
+            try (Transaction tx = db.beginTx()) {
+                XMLStreamWriter writer = new IndentingXMLStreamWriter(
+                        XMLOutputFactory.newInstance().createXMLStreamWriter(target, "UTF-8"));
+                writeGraphs(writer, tradId, traditionNode, traditionStartNode);
+                writer.flush();
+                tx.success();
+            } catch (XMLStreamException e) {
+                e.printStackTrace();
+                throw new WebApplicationException("Error: Tradition could not be exported!", e);
             }
-            // backwards compatibility: write layer label "a.c."
-            writer.writeStartElement("data");
-            writer.writeAttribute("key", "dg8");
-            writer.writeCharacters("a.c.");
-            writer.writeEndElement();
-
-            // extract stemmata
-            writer.writeStartElement("data");
-            writer.writeAttribute("key", graphMap.get("stemmata")[0]);
-
-            DotExporter parser = new DotExporter(db);
-
-            writer.writeCharacters(parser.getAllStemmataAsDot(tradId));
-            writer.writeEndElement();
+            if (gzip)
+                ((GZIPOutputStream) target).finish();
+        };
+        Response.ResponseBuilder rb = Response.ok(stream, MediaType.APPLICATION_XML);
+        if (gzip)
+            rb.header("Content-Encoding", "gzip");
+        return rb.build();
+    }
 
-            long nodeId = 0;
-            long edgeId = 0;
-            for (Node node : db.traversalDescription().depthFirst()
-                    .relationships(ERelations.SEQUENCE, Direction.OUTGOING)
-                    .uniqueness(Uniqueness.NODE_GLOBAL)
-                    .traverse(traditionStartNode).nodes()) {
-                nodeCountGraph1++;
-                props = node.getPropertyKeys();
-                writer.writeStartElement("node");
-                writer.writeAttribute("id", String.valueOf(node.getId()));
+    // To be used inside a transaction
+    private void writeGraphs(XMLStreamWriter writer, String tradId, Node traditionNode, Node traditionStartNode)
+            throws XMLStreamException {
+        // Count the nodes and edges first, since the counts are needed in the graph headers.
+        int edgeCountGraph1 = 0;
+        int nodeCountGraph1 = 0;
+        int edgeCountGraph2 = 0;
+        for (Node node : db.traversalDescription().depthFirst()
+                .relationships(ERelations.SEQUENCE, Direction.OUTGOING)
+                .uniqueness(Uniqueness.NODE_GLOBAL)
+                .traverse(traditionStartNode).nodes()) {
+            nodeCountGraph1++;
+            for (Relationship ignored : node.getRelationships(ERelations.RELATED, Direction.OUTGOING))
+                edgeCountGraph2++;
+        }
+        for (Relationship rel : db.traversalDescription()
+                .relationships(ERelations.SEQUENCE, Direction.OUTGOING)
+                .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL)
+                .traverse(traditionStartNode)
+                .relationships())
+            if (rel != null) edgeCountGraph1++;
+        int nodeCountGraph2 = nodeCountGraph1;
+
+        writer.writeStartDocument("UTF-8", "1.0");
+
+        writer.writeStartElement("graphml");
+        writer.writeAttribute("xmlns","http://graphml.graphdrawing.org/xmlns");
+        writer.writeAttribute("xmlns:xsi","http://www.w3.org/2001/XMLSchema-instance");
+        writer.writeAttribute("xsi:schemaLocation","http://graphml.graphdrawing.org/xmlns http://graphml.graphdrawing.org/xmlns/1.0/graphml.xsd");
+
+        // ####### KEYS START #######################################
+
+        writeKeys(writer, graphMap, "graph");
+        writeKeys(writer, nodeMap, "node");
+        writeKeys(writer, relationMap, "edge");
+
+        // ####### KEYS END #######################################
+        // graph 1
+
+        Iterable<String> props;
+
+        writer.writeStartElement("graph");
+        // TODO convert tradition name safely into XML Name
+        writer.writeAttribute("id", "Tradition");
+        writer.writeAttribute("edgedefault", "directed");
+        //writer.writeAttribute("id", traditionNode.getProperty("dg1").toString());
+        writer.writeAttribute("parse.edgeids", "canonical");
+        writer.writeAttribute("parse.edges", String.valueOf(edgeCountGraph1));
+        writer.writeAttribute("parse.nodeids", "canonical");
+        writer.writeAttribute("parse.nodes", String.valueOf(nodeCountGraph1));
+        writer.writeAttribute("parse.order", "nodesfirst");
+
+        props = traditionNode.getPropertyKeys();
+        for(String prop : props) {
+            if(prop !=null && !prop.equals("id") && !prop.equals("section_id")
+                    && !WitnessSets.isDictionaryProperty(prop)) {
                 writer.writeStartElement("data");
-                writer.writeAttribute("key", nodeMap.get("id")[0]);
-                writer.writeCharacters("n" + nodeId++);
+                writer.writeAttribute("key", graphMap.get(prop)[0]);
+                writer.writeCharacters(traditionNode.getProperty(prop).toString());
                 writer.writeEndElement();
+            }
+        }
+        // backwards compatibility: write layer label "a.c."
+        writer.writeStartElement("data");
+        writer.writeAttribute("key", "dg8");
+        writer.writeCharacters("a.c.");
+        writer.writeEndElement();
+
+        // extract stemmata
+        writer.writeStartElement("data");
+        writer.writeAttribute("key", graphMap.get("stemmata")[0]);
+
+        DotExporter parser = new DotExporter(db);
+
+        writer.writeCharacters(parser.getAllStemmataAsDot(tradId));
+        writer.writeEndElement();
+
+        long nodeId = 0;
+        long edgeId = 0;
+        for (Node node : db.traversalDescription().depthFirst()
+                .relationships(ERelations.SEQUENCE, Direction.OUTGOING)
+                .uniqueness(Uniqueness.NODE_GLOBAL)
+                .traverse(traditionStartNode).nodes()) {
+            props = node.getPropertyKeys();
+            writer.writeStartElement("node");
+            writer.writeAttribute("id", String.valueOf(node.getId()));
+            writer.writeStartElement("data");
+            writer.writeAttribute("key", nodeMap.get("id")[0]);
+            writer.writeCharacters("n" + nodeId++);
+            writer.writeEndElement();
 
-                for(String prop : props) {
-                    if(prop!=null && nodeMap.containsKey(prop)) {
-                        writer.writeStartElement("data");
-                        writer.writeAttribute("key",nodeMap.get(prop)[0]);
-                        writer.writeCharacters((prop.equals("a.c.")) ? "(a.c.)" :node.getProperty(prop).toString());
-                        writer.writeEndElement();
-                    }
+            for(String prop : props) {
+                if(prop!=null && nodeMap.containsKey(prop)) {
+                    writer.writeStartElement("data");
+                    writer.writeAttribute("key",nodeMap.get(prop)[0]);
+                    writer.writeCharacters((prop.equals("a.c.")) ? "(a.c.)" :node.getProperty(prop).toString());
+                    writer.writeEndElement();
                 }
-                writer.writeEndElement(); // end node
             }
+            writer.writeEndElement(); // end node
+        }
 
-            String startNode;
-            String endNode;
-            for ( Relationship rel : db.traversalDescription()
-                    .relationships(ERelations.SEQUENCE, Direction.OUTGOING)
-                    .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL)
-                    .traverse(traditionStartNode)
-                    .relationships() ) {
-                if(rel!=null) {
-                    edgeCountGraph1++;
-                    for (String property : rel.getPropertyKeys()) {
-                        String[] witnesses = (String[]) rel.getProperty(property);
-                        for (String witness : witnesses) {
-                            writer.writeStartElement("edge");
-
-                            writer.writeAttribute("source", rel.getStartNode().getId() + "");
-                            writer.writeAttribute("target", rel.getEndNode().getId() + "");
-                            writer.writeAttribute("id", "e" + edgeId++);
-
-                            if (!property.equals("witnesses") && relationMap.containsKey(property)) {
-                                writer.writeStartElement("data");
-                                writer.writeAttribute("key", relationMap.get(property)[0]);
-                                writer.writeCharacters(property);
-                                writer.writeEndElement();
-                            }
-
+        String startNode;
+        String endNode;
+        WitnessSets.Dictionary dictionary = WitnessSets.dictionaryFor(traditionNode);
+        for ( Relationship rel : db.traversalDescription()
+                .relationships(ERelations.SEQUENCE, Direction.OUTGOING)
+                .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL)
+                .traverse(traditionStartNode)
+                .relationships() ) {
+            if(rel!=null) {
+                for (Map.Entry<String, String[]> witClass : dictionary.read(rel).entrySet()) {
+                    String property = witClass.getKey();
+                    String[] witnesses = witClass.getValue();
+                    for (String witness : witnesses) {
+                        writer.writeStartElement("edge");
+
+                        writer.writeAttribute("source", rel.getStartNode().getId() + "");
+                        writer.writeAttribute("target", rel.getEndNode().getId() + "");
+                        writer.writeAttribute("id", "e" + edgeId++);
+
+                        if (!property.equals("witnesses") && relationMap.containsKey(property)) {
                             writer.writeStartElement("data");
-                            writer.writeAttribute("key", relationMap.get("witness")[0]);
-                            writer.writeCharacters(witness);
-                            writer.writeEndElement(); // end data key
-                            writer.writeEndElement(); // end edge
+                            writer.writeAttribute("key", relationMap.get(property)[0]);
+                            writer.writeCharacters(property);
+                            writer.writeEndElement();
                         }
 
+                        writer.writeStartElement("data");
+                        writer.writeAttribute("key", relationMap.get("witness")[0]);
+                        writer.writeCharacters(witness);
+                        writer.writeEndElement(); // end data key
+                        writer.writeEndElement(); // end edge
                     }
+
                 }
             }
-            writer.writeEndElement(); // graph
-
-            // graph 2
-            // get the same nodes again, but this time we will later also search for reading relations
-
-            writer.writeStartElement("graph");
-            writer.writeAttribute("edgedefault", "directed");
-            writer.writeAttribute("id", "relationships");
-            writer.writeAttribute("parse.edgeids", "canonical");
-            // THIS IS CHANGED AFTERWARDS
-            writer.writeAttribute("parse.edges", 0 + "");
-            writer.writeAttribute("parse.nodeids", "canonical");
-            // THIS IS CHANGED AFTERWARDS
-            writer.writeAttribute("parse.nodes", 0 + "");
-            writer.writeAttribute("parse.order", "nodesfirst");
-
-            nodeId = 0;
-            edgeId = 0;
-            for (Node node : db.traversalDescription().depthFirst()
-                    .relationships(ERelations.SEQUENCE, Direction.OUTGOING)
-                    .uniqueness(Uniqueness.NODE_GLOBAL)
-                    .traverse(traditionStartNode)
-                    .nodes()) {
-                nodeCountGraph2++;
-                writer.writeStartElement("node");
-                writer.writeAttribute("id", node.getId() + "");
-                writer.writeStartElement("data");
-                writer.writeAttribute("key", nodeMap.get("id")[0]);
-                writer.writeCharacters("n" + nodeId++);
-                writer.writeEndElement();
-                writer.writeEndElement(); // end node
-            }
+        }
+        writer.writeEndElement(); // graph
+
+        // graph 2
+        // get the same nodes again, but this time we will later also search for reading relations
+
+        writer.writeStartElement("graph");
+        writer.writeAttribute("edgedefault", "directed");
+        writer.writeAttribute("id", "relationships");
+        writer.writeAttribute("parse.edgeids", "canonical");
+        writer.writeAttribute("parse.edges", String.valueOf(edgeCountGraph2));
+        writer.writeAttribute("parse.nodeids", "canonical");
+        writer.writeAttribute("parse.nodes", String.valueOf(nodeCountGraph2));
+        writer.writeAttribute("parse.order", "nodesfirst");
+
+        nodeId = 0;
+        edgeId = 0;
+        for (Node node : db.traversalDescription().depthFirst()
+                .relationships(ERelations.SEQUENCE, Direction.OUTGOING)
+                .uniqueness(Uniqueness.NODE_GLOBAL)
+                .traverse(traditionStartNode)
+                .nodes()) {
+            writer.writeStartElement("node");
+            writer.writeAttribute("id", node.getId() + "");
+            writer.writeStartElement("data");
+            writer.writeAttribute("key", nodeMap.get("id")[0]);
+            writer.writeCharacters("n" + nodeId++);
+            writer.writeEndElement();
+            writer.writeEndElement(); // end node
+        }
 
-            for (Node node : db.traversalDescription()
-                    .depthFirst()
-                    .relationships(ERelations.SEQUENCE, Direction.OUTGOING)
-                    .uniqueness(Uniqueness.NODE_GLOBAL)
-                    .traverse(traditionStartNode)
-                    .nodes()) {
-
-                Iterable<Relationship> rels;
-                rels = node.getRelationships(ERelations.RELATED, Direction.OUTGOING);
-                for(Relationship rel : rels) {
-                    edgeCountGraph2++;
-                    props = rel.getPropertyKeys();
-                    writer.writeStartElement("edge");
-                    startNode = rel.getStartNode().getId() + "";
-                    endNode = rel.getEndNode().getId() + "";
-                    writer.writeAttribute("source", startNode);
-                    writer.writeAttribute("target", endNode);
-                    writer.writeAttribute("id", "e" + edgeId++);
-                    for(String prop : props) {
-                        // Skip internal properties like "colocation" on RELATED links
-                        if (rel.hasProperty(prop) && relationMap.containsKey(prop)) {
-                            String value = rel.getProperty(prop).toString();
-                            if (!value.equals("")) {
-                                writer.writeStartElement("data");
-                                String keyId = relationMap.get(prop)[0];
-                                writer.writeAttribute("key", keyId);
-                                writer.writeCharacters(value);
-                                writer.writeEndElement();
-                            }
+        for (Node node : db.traversalDescription()
+                .depthFirst()
+                .relationships(ERelations.SEQUENCE, Direction.OUTGOING)
+                .uniqueness(Uniqueness.NODE_GLOBAL)
+                .traverse(traditionStartNode)
+                .nodes()) {
+
+            Iterable<Relationship> rels;
+            rels = node.getRelationships(ERelations.RELATED, Direction.OUTGOING);
+            for(Relationship rel : rels) {
+                props = rel.getPropertyKeys();
+                writer.writeStartElement("edge");
+                startNode = rel.getStartNode().getId() + "";
+                endNode = rel.getEndNode().getId() + "";
+                writer.writeAttribute("source", startNode);
+                writer.writeAttribute("target", endNode);
+                writer.writeAttribute("id", "e" + edgeId++);
+                for(String prop : props) {
+                    // Skip internal properties like "colocation" on RELATED links
+                    if (rel.hasProperty(prop) && relationMap.containsKey(prop)) {
+                        String value = rel.getProperty(prop).toString();
+                        if (!value.equals("")) {
+                            writer.writeStartElement("data");
+                            String keyId = relationMap.get(prop)[0];
+                            writer.writeAttribute("key", keyId);
+                            writer.writeCharacters(value);
+                            writer.writeEndElement();
                         }
                     }
-                    writer.writeEndElement(); // end edge
                 }
+                writer.writeEndElement(); // end edge
             }
-            writer.writeEndElement(); // end graph
-            writer.writeEndElement(); // end graphml
-            writer.flush();
-            out.close();
-
-            // Add edge and node count to graphs:
-
-            DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder docBuilder = docFactory.newDocumentBuilder();
-            Document doc = docBuilder.parse(file.getAbsolutePath());
-
-            // Get the staff element by tag name directly
-            org.w3c.dom.Node graph0 = doc.getElementsByTagName("graph").item(0);
-
-            org.w3c.dom.Node graph1 = doc.getElementsByTagName("graph").item(1);
-
-            org.w3c.dom.NamedNodeMap attr = graph0.getAttributes();
-            org.w3c.dom.Node edgesCount = attr.getNamedItem("parse.edges");
-            edgesCount.setTextContent(edgeCountGraph1 + "");
-            org.w3c.dom.Node nodesCount = attr.getNamedItem("parse.nodes");
-            nodesCount.setTextContent(nodeCountGraph1+"");
-
-            attr = graph1.getAttributes();
-            edgesCount = attr.getNamedItem("parse.edges");
-            edgesCount.setTextContent(edgeCountGraph2 + "");
-            nodesCount = attr.getNamedItem("parse.nodes");
-            nodesCount.setTextContent(nodeCountGraph2 + "");
-
-            // TODO What is the point of this transformer call?
-            TransformerFactory transformerFactory = TransformerFactory.newInstance();
-            Transformer transformer = transformerFactory.newTransformer();
-            DOMSource source = new DOMSource(doc);
-            StreamResult resultFile = new StreamResult(file);
-            transformer.transform(source, resultFile);
-            tx.success();
-        } catch(Exception e) {
-            e.printStackTrace();
-
-            return Response
-                    .status(Response.Status.INTERNAL_SERVER_ERROR)
-                    .entity("Error: Tradition could not be exported!")
-                    .build();
         }
-
-        return Response.ok(file.toString(), MediaType.APPLICATION_XML).build();
+        writer.writeEndElement(); // end graph
+        writer.writeEndElement(); // end graphml
     }
-}
\ No newline at end of file
+}
@@ -1,186 +1,213 @@
 package net.stemmaweb.exporter;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.opencsv.CSVWriterBuilder;
 import com.opencsv.ICSVWriter;
 import net.stemmaweb.model.AlignmentModel;
 import net.stemmaweb.model.WitnessTokensModel;
 import net.stemmaweb.model.ReadingModel;
+import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.rest.Nodes;
+import net.stemmaweb.services.AlignmentCache;
+import net.stemmaweb.services.CharacterMatrix;
+import net.stemmaweb.services.DatabaseService;
+import net.stemmaweb.services.NormalizationOverlay;
+import net.stemmaweb.services.ParallelSections;
 import net.stemmaweb.services.VariantGraphService;
-import org.neo4j.graphdb.GraphDatabaseService;
-import org.neo4j.graphdb.Node;
-import org.neo4j.graphdb.NotFoundException;
-import org.neo4j.graphdb.Transaction;
+import net.stemmaweb.services.WitnessSets;
+import org.neo4j.graphdb.*;
 
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
-import java.io.IOException;
-import java.io.StringWriter;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
 
 /**
  * A class for writing a graph out to various forms of table: JSON, CSV, Excel, etc.
  */
 public class TabularExporter {
 
+    private static final byte[] NULL_TOKEN = "null".getBytes(StandardCharsets.UTF_8);
+
     private final GraphDatabaseService db;
     public TabularExporter(GraphDatabaseService db){
         this.db = db;
     }
 
+    /**
+     * Export the alignment of the requested sections as JSON. The witness columns are worked out
+     * first from the sections' sequence links, so that any errors are reported with a status code.
+     * The sections are then aligned a few at a time as the response is written; since the JSON
+     * runs witness by witness, each section's tokens are spooled to a temporary file, witness by
+     * witness, and the file is read back in witness order once all the sections are done. No more
+     * section tables are held at once than there are export workers.
+     *
+     * @param tradId        - the tradition to export
+     * @param conflate      - the relation type on which to normalize, if any
+     * @param sectionList   - the sections to export, or an empty list for all of them
+     * @param excludeLayers - whether to leave out witness layers
+     * @return a Response whose entity is a StreamingOutput
+     */
     public Response exportAsJSON(String tradId, String conflate, List<String> sectionList, boolean excludeLayers) {
         ArrayList<Node> traditionSections;
+        List<String> sigla;
         try {
             traditionSections = getSections(tradId, sectionList);
             if(traditionSections==null) {
                 return Response.status(Response.Status.NOT_FOUND).build();
             }
-
-            return Response.ok(getTraditionAlignment(traditionSections, conflate, excludeLayers),
-                    MediaType.APPLICATION_JSON_TYPE).build();
+            sigla = sortedSigla(ParallelSections.map(db, traditionSections, x -> sectionSigla(x, excludeLayers)));
         } catch (TabularExporterException e) {
             return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
         } catch (Exception e) {
             return Response.serverError().entity(e.getMessage()).build();
         }
-    }
 
+        StreamingOutput stream = out -> {
+            ObjectMapper mapper = new ObjectMapper();
+            File spool = File.createTempFile("alignment_", ".json.tmp");
+            try {
+                // Spool the tokens of each witness in each section, and note where each run of
+                // tokens starts; the run for a section's last witness ends where the next section's
+                // runs start.
+                long[][] runStart = new long[traditionSections.size()][sigla.size() + 1];
+                long length = 0;
+                try (OutputStream spooled = new BufferedOutputStream(new FileOutputStream(spool))) {
+                    long written = 0;
+                    int s = 0;
+                    for (AlignmentModel aSection : new SectionTables(traditionSections, conflate, excludeLayers)) {
+                        length += aSection.getLength();
+                        List<List<ReadingModel>> columns = columnsFor(aSection, sigla);
+                        // A reading is shared between the witnesses that pass through it, so
+                        // write out its JSON only once.
+                        IdentityHashMap<ReadingModel, byte[]> asJson = new IdentityHashMap<>();
+                        for (int w = 0; w < sigla.size(); w++) {
+                            runStart[s][w] = written;
+                            List<ReadingModel> column = columns.get(w);
+                            for (int i = 0; i < aSection.getLength(); i++) {
+                                ReadingModel rm = column == null ? null : column.get(i);
+                                byte[] token = rm == null ? NULL_TOKEN : asJson.get(rm);
+                                if (token == null) {
+                                    token = mapper.writeValueAsBytes(rm);
+                                    asJson.put(rm, token);
+                                }
+                                if (i > 0) {
+                                    spooled.write(',');
+                                    written++;
+                                }
+                                spooled.write(token);
+                                written += token.length;
+                            }
+                        }
+                        runStart[s++][sigla.size()] = written;
+                    }
+                }
 
+                // Now write out the table, copying each witness's runs from the spool.
+                JsonGenerator json = mapper.getFactory().createGenerator(out);
+                json.writeStartObject();
+                json.writeNumberField("length", length);
+                json.writeArrayFieldStart("alignment");
+                try (RandomAccessFile runs = new RandomAccessFile(spool, "r")) {
+                    for (int w = 0; w < sigla.size(); w++) {
+                        String[] parsed = WitnessTokensModel.parseSigil(sigla.get(w));
+                        json.writeStartObject();
+                        json.writeStringField("witness", parsed[0]);
+                        if (parsed[1] != null) json.writeStringField("layer", parsed[1]);
+                        json.writeArrayFieldStart("tokens");
+                        boolean first = true;
+                        for (long[] sectionRuns : runStart) {
+                            byte[] run = new byte[(int) (sectionRuns[w + 1] - sectionRuns[w])];
+                            if (run.length == 0) continue;
+                            runs.seek(sectionRuns[w]);
+                            runs.readFully(run);
+                            if (!first) json.writeRaw(',');
+                            json.writeRaw(new String(run, StandardCharsets.UTF_8));
+                            first = false;
+                        }
+                        json.writeEndArray();
+                        json.writeEndObject();
+                    }
+                }
+                json.writeEndArray();
+                json.writeEndObject();
+                json.flush();
+            } finally {
+                if (!spool.delete())
+                    spool.deleteOnExit();
+            }
+        };
+        return Response.ok(stream, MediaType.APPLICATION_JSON_TYPE).build();
+    }
+
+    /**
+     * Export the alignment of the requested sections as CSV or TSV. The witness columns are worked
+     * out first from the sections' sequence links, so that any errors are reported with a status
+     * code. The sections are then aligned a few at a time as the rows are written straight to the
+     * response, and no more section tables are held at once than there are export workers.
+     *
+     * @param tradId        - the tradition to export
+     * @param separator     - the field separator
+     * @param conflate      - the relation type on which to normalize, if any
+     * @param sectionList   - the sections to export, or an empty list for all of them
+     * @param excludeLayers - whether to leave out witness layers
+     * @return a Response whose entity is a StreamingOutput
+     */
     public Response exportAsCSV(String tradId, char separator, String conflate, List<String> sectionList,
                                 boolean excludeLayers) {
-        AlignmentModel wholeTradition;
+        ArrayList<Node> traditionSections;
+        List<String> sigla;
         try {
-            wholeTradition = returnFullAlignment(tradId, conflate, sectionList, excludeLayers);
+            traditionSections = getSections(tradId, sectionList);
+            if (traditionSections == null) return Response.status(Response.Status.NOT_FOUND).build();
+            sigla = sortedSigla(ParallelSections.map(db, traditionSections, x -> sectionSigla(x, excludeLayers)));
         } catch (TabularExporterException e) {
             return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
         } catch (Exception e) {
             return Response.serverError().entity(e.getMessage()).build();
         }
-        if (wholeTradition == null) return Response.status(Response.Status.NOT_FOUND).build();
 
-        // Got this far? Turn it into CSV.
-        // The CSV will go into a string that we can return.
-        StringWriter sw = new StringWriter();
-        ICSVWriter writer = new CSVWriterBuilder(sw)
-                .withSeparator(separator)
-                .build();
+        // Got this far? Stream it out as CSV.
+        StreamingOutput stream = out -> {
+            ICSVWriter writer = new CSVWriterBuilder(new OutputStreamWriter(out, StandardCharsets.UTF_8))
+                    .withSeparator(separator)
+                    .build();
 
-        // First write out the witness list
-        writer.writeNext(wholeTradition.getAlignment().stream()
-                .map(WitnessTokensModel::constructSigil).toArray(String[]::new));
+            // First write out the witness list
+            writer.writeNext(sigla.toArray(new String[0]));
 
-        // Now write out the normal_form or text for the reading in each "row"
-        for (int i = 0; i < wholeTradition.getLength(); i++) {
-            AtomicInteger ai = new AtomicInteger(i);
-            writer.writeNext(wholeTradition.getAlignment().stream()
-                    .map(x -> {
-                        ReadingModel rm = x.getTokens().get(ai.get());
-                        return rm == null ? null : rm.normalized();
-                    }).toArray(String[]::new));
-        }
-
-        // Close off the CSV writer and return
-        try {
-            writer.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-            return Response.serverError().entity(e.getMessage()).build();
-        }
-        return Response.ok(sw.toString(), MediaType.TEXT_PLAIN_TYPE).build();
+            // Now write out the normal_form or text for the reading in each "row", a section at a time.
+            String[] row = new String[sigla.size()];
+            for (AlignmentModel aSection : new SectionTables(traditionSections, conflate, excludeLayers)) {
+                List<List<ReadingModel>> columns = columnsFor(aSection, sigla);
+                for (int i = 0; i < aSection.getLength(); i++) {
+                    for (int w = 0; w < row.length; w++) {
+                        ReadingModel rm = columns.get(w) == null ? null : columns.get(w).get(i);
+                        row[w] = rm == null ? null : rm.normalized();
+                    }
+                    writer.writeNext(row);
+                }
+            }
+            writer.flush();
+        };
+        return Response.ok(stream, MediaType.TEXT_PLAIN_TYPE).build();
     }
 
-
     public Response exportAsCharMatrix(String tradId, int maxVars, String conflate, List<String> sectionList,
                                        boolean excludeLayers) {
-        AlignmentModel wholeTradition;
         try {
-            wholeTradition = returnFullAlignment(tradId, conflate, sectionList, excludeLayers);
-            if (wholeTradition==null) return Response.status(Response.Status.NOT_FOUND).build();
+            ArrayList<Node> traditionSections = getSections(tradId, sectionList);
+            if (traditionSections == null) return Response.status(Response.Status.NOT_FOUND).build();
+            return Response.ok(CharacterMatrix.build(db, traditionSections, conflate, excludeLayers, maxVars)).build();
         } catch (TabularExporterException e) {
             return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
         } catch (Exception e) {
             return Response.serverError().entity(e.getMessage()).build();
         }
-
-        // We will count on the order of the witness columns remaining constant.
-        List<String> witnessSigla = wholeTradition.getAlignment().stream()
-                .map(WitnessTokensModel::constructSigil).collect(Collectors.toList());
-        // Collect the character rows as they are built for each witness.
-        HashMap<String, StringBuilder> witnessRows = new HashMap<>();
-        for (String sigil : witnessSigla) witnessRows.put(sigil, new StringBuilder());
-        // Go rank by rank through all the lists of tokens, converting them into chars
-        int totalLength = 0;
-        for (int i = 0; i < wholeTradition.getLength(); i++) {
-            AtomicInteger ai = new AtomicInteger(i);
-            List<ReadingModel> row = wholeTradition.getAlignment().stream()
-                    .map(x -> x.getTokens().get(ai.get())).collect(Collectors.toList());
-            // Make reading-to-character lookup
-            HashMap<String, Character> charMap = new HashMap<>();
-            char curr = 'A';
-            boolean row_has_null = false;
-            boolean row_has_lacuna = false;
-            for (ReadingModel rm : row) {
-                if (rm == null) {
-                    row_has_null = true;
-                    continue;
-                } else if (rm.getIs_lacuna()) {
-                    row_has_lacuna = true;
-                    continue;
-                }
-                if (!charMap.containsKey(rm.getId())) {
-                    charMap.put(rm.getId(), curr);
-                    curr++;
-                }
-            }
-            // Skip rows that don't diverge
-            if (curr == 'B' && !row_has_null && !row_has_lacuna)
-                continue;
-            // Check that we aren't over the max-character limit
-            if (curr > 'A' + maxVars || row_has_null && curr > 'A' + (maxVars - 1))
-                continue;
-
-            // Employ it
-            totalLength++;
-            for (int w = 0; w < witnessSigla.size(); w++) {
-                StringBuilder ourRow = witnessRows.get(witnessSigla.get(w));
-                ReadingModel ourReading = row.get(w);
-                if (ourReading == null) {
-                    ourRow.append('X');
-                    curr++; // Count this in our maximum of eight characters
-                }
-                else if (ourReading.getIs_lacuna())
-                    ourRow.append('?');
-                else
-                    ourRow.append(charMap.get(row.get(w).getId()));
-            }
-        }
-        // Now let's build the whole matrix.
-        StringBuilder charMatrix = new StringBuilder();
-        charMatrix.append(String.format("\t%d\t%d\n", wholeTradition.getAlignment().size(), totalLength));
-        for (String sigil : witnessSigla) {
-            charMatrix.append(String.format("%-10s", shortenSigil(sigil)));
-            charMatrix.append(witnessRows.get(sigil));
-            charMatrix.append("\n");
-        }
-
-        return Response.ok(charMatrix.toString()).build();
-    }
-
-    private AlignmentModel returnFullAlignment(String tradId, String conflate, List<String> sectionList,
-                                               boolean excludeLayers)
-            throws Exception {
-        ArrayList<Node> traditionSections = getSections(tradId, sectionList);
-        if(traditionSections==null) return null;
-        return getTraditionAlignment(traditionSections, conflate, excludeLayers);
-    }
-
-    private static String shortenSigil (String sigil) {
-        String shortened = sigil.replaceAll("\\s+", "_")
-                .replaceAll("\\W+", "");
-        if (shortened.length() > 10)
-            shortened = shortened.substring(0, 10);
-        return shortened;
     }
 
     private ArrayList<Node> getSections(String tradId, List<String> sectionList)
@@ -205,67 +232,119 @@ public class TabularExporter {
         return collectedSections;
     }
 
-    private AlignmentModel getTraditionAlignment(ArrayList<Node> traditionSections, String collapseRelated, boolean excludeLayers)
+    private static AlignmentModel sectionAlignment(Node sectionNode, String collapseRelated, boolean excludeLayers)
             throws Exception {
-        // Make a new alignment model that has a column for every witness layer across the requested sections.
+        return collapseRelated != null
+                ? NormalizationOverlay.build(sectionNode, collapseRelated).getAlignment(excludeLayers)
+                : AlignmentCache.getAlignment(sectionNode, excludeLayers);
+    }
 
-        // For each section, get the model. Keep track of which layers in which witnesses we have
-        // seen with a set.
-        HashSet<String> allWitnesses = new HashSet<>();
-        ArrayList<AlignmentModel> tables = new ArrayList<>();
-        int length = 0;
-        for (Node sectionNode : traditionSections) {
-            if (collapseRelated != null) VariantGraphService.normalizeGraph(sectionNode, collapseRelated);
-            AlignmentModel asJson = new AlignmentModel(sectionNode, excludeLayers);
-            if (collapseRelated != null) VariantGraphService.clearNormalization(sectionNode);
-            // Save the alignment to our tables list
-            tables.add(asJson);
-            length += asJson.getLength();
-            // Save the witness -> column mapping to our map
-            for (WitnessTokensModel witRecord : asJson.getAlignment()) {
-                allWitnesses.add(witRecord.constructSigil());
-            }
-        }
+    // The witness columns that a section's table will have: one for each witness of the tradition,
+    // and unless layers are left out, each of its layers, that passes through a reading of the
+    // section. A layer that normalization folds back into its base witness keeps its column, which
+    // is then filled from the base witness as it is in sections where the layer doesn't appear.
+    // NOTE: For use within a transaction
+    private static List<String> sectionSigla(Node sectionNode, boolean excludeLayers) {
+        GraphDatabaseService db = sectionNode.getGraphDatabase();
+        Node traditionNode = VariantGraphService.getTraditionNode(sectionNode);
+        HashSet<String> witnesses = new HashSet<>();
+        for (Node w : DatabaseService.getRelated(traditionNode, ERelations.HAS_WITNESS))
+            witnesses.add(w.getProperty("sigil").toString());
 
-        // Now make an alignment model containing all witness layers present in allWitnesses, filling in
-        // if necessary either nulls or the base witness per witness layer, per section.
-        AlignmentModel wholeTradition = new AlignmentModel();
+        Node startNode = VariantGraphService.getStartNode(String.valueOf(sectionNode.getId()), db);
+        RelationshipType seqType = startNode.hasRelationship(ERelations.NSEQUENCE, Direction.OUTGOING)
+                ? ERelations.NSEQUENCE : ERelations.SEQUENCE;
+        WitnessSets.Dictionary dictionary = WitnessSets.dictionaryFor(traditionNode);
+        HashSet<String> found = new HashSet<>();
+        // A witness layer has a row in the table if any of its links touch a reading, i.e. if it
+        // doesn't go straight from the start node to the end node.
+        db.findNodes(Nodes.READING, "section_id", sectionNode.getId()).forEachRemaining(n -> {
+            if (n.equals(startNode) || n.hasProperty("is_end")) return;
+            for (Relationship r : n.getRelationships(seqType, Direction.BOTH))
+                for (Map.Entry<String, String[]> witClass : dictionary.read(r).entrySet()) {
+                    boolean isBase = witClass.getKey().equals("witnesses");
+                    if (excludeLayers && !isBase) continue;
+                    for (String sigil : witClass.getValue())
+                        if (witnesses.contains(sigil))
+                            found.add(isBase ? sigil : sigil + " (" + witClass.getKey() + ")");
+                }
+        });
+        return new ArrayList<>(found);
+    }
+
+    // The witness layers present in any of the sections, in sorted order
+    private static List<String> sortedSigla(List<List<String>> sectionSigla) {
+        HashSet<String> allWitnesses = new HashSet<>();
+        sectionSigla.forEach(allWitnesses::addAll);
         List<String> sortedWits = new ArrayList<>(allWitnesses);
         Collections.sort(sortedWits);
-        for (String sigil : sortedWits) {
-            String[] parsed = WitnessTokensModel.parseSigil(sigil);
+        return sortedWits;
+    }
+
+    // For each of the given witness layers, the tokens of the section that belong in its column:
+    // those of the layer itself, or failing that those of its base witness, or null if the
+    // witness isn't in the section at all.
+    private static List<List<ReadingModel>> columnsFor(AlignmentModel aSection, List<String> sigla) {
+        HashMap<String, WitnessTokensModel> bySigil = new HashMap<>();
+        for (WitnessTokensModel wtm : aSection.getAlignment())
+            bySigil.put(wtm.constructSigil(), wtm);
+        List<List<ReadingModel>> result = new ArrayList<>();
+        for (String sigil : sigla) {
+            WitnessTokensModel thisWitness = bySigil.get(sigil);
+            if (thisWitness == null)
+                // Try again for the base witness
+                thisWitness = bySigil.get(WitnessTokensModel.parseSigil(sigil)[0]);
+            if (thisWitness != null)
+                assert(thisWitness.getTokens().size() == aSection.getLength());
+            result.add(thisWitness == null ? null : thisWitness.getTokens());
+        }
+        return result;
+    }
+
+    // The tables of a list of sections, in order. The sections are aligned as the tables are asked
+    // for, as many at a time as there are export workers, and each table is let go once it has been
+    // handed out.
+    private class SectionTables implements Iterable<AlignmentModel> {
+        private final List<Node> sections;
+        private final String conflate;
+        private final boolean excludeLayers;
+
+        SectionTables(List<Node> sections, String conflate, boolean excludeLayers) {
+            this.sections = sections;
+            this.conflate = conflate;
+            this.excludeLayers = excludeLayers;
+        }
+
+        @Override
+        public Iterator<AlignmentModel> iterator() {
+            return new Iterator<AlignmentModel>() {
+                private final ArrayDeque<AlignmentModel> aligned = new ArrayDeque<>();
+                private int next = 0;
 
-            // Set up the tradition-spanning witness token model for this witness
-            WitnessTokensModel wholeWitness = new WitnessTokensModel();
-            wholeWitness.setWitness(parsed[0]);
-            if (parsed[1] != null) wholeWitness.setLayer(parsed[1]);
-            wholeWitness.setTokens(new ArrayList<>());
-            // Now fill in tokens from each section in turn.
-            for (AlignmentModel aSection : tables) {
-                // Find the WitnessTokensModel corresponding to wit, if it exists
-                Optional<WitnessTokensModel> thisWitness = aSection.getAlignment().stream()
-                        .filter(x -> x.constructSigil().equals(sigil)).findFirst();
-                if (!thisWitness.isPresent()) {
-                    // Try again for the base witness
-                    thisWitness = aSection.getAlignment().stream()
-                            .filter(x -> x.getWitness().equals(parsed[0]) && !x.hasLayer()).findFirst();
+                @Override
+                public boolean hasNext() {
+                    return !aligned.isEmpty() || next < sections.size();
                 }
 
-                if (thisWitness.isPresent()) {
-                    WitnessTokensModel witcolumn = thisWitness.get();
-                    wholeWitness.getTokens().addAll(witcolumn.getTokens());
-                    assert(witcolumn.getTokens().size() == aSection.getLength());
-                } else {
-                    // Add a bunch of nulls
-                    wholeWitness.getTokens().addAll(new ArrayList<>(Collections.nCopies((int) aSection.getLength(), null)));
+                @Override
+                public AlignmentModel next() {
+                    if (aligned.isEmpty()) {
+                        if (next >= sections.size()) throw new NoSuchElementException();
+                        List<Node> someSections = sections.subList(next,
+                                Math.min(next + ParallelSections.getParallelism(), sections.size()));
+                        next += someSections.size();
+                        try {
+                            aligned.addAll(ParallelSections.map(db, someSections,
+                                    x -> sectionAlignment(x, conflate, excludeLayers)));
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                            throw new WebApplicationException("Error: Alignment could not be exported!", e);
+                        }
+                    }
+                    return aligned.poll();
                 }
-            }
-            // Add the WitnessTokensModel to the new AlignmentModel.
-            wholeTradition.addWitness(wholeWitness);
+            };
         }
-        // Record the length of the whole alignment
-        wholeTradition.setLength(length);
-        return wholeTradition;
     }
 
     private static class TabularExporterException extends Exception {
@@ -3,10 +3,10 @@ package net.stemmaweb.model;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import net.stemmaweb.rest.ERelations;
 import net.stemmaweb.services.DatabaseService;
+import net.stemmaweb.services.NormalizationOverlay;
 import net.stemmaweb.services.VariantGraphService;
-import net.stemmaweb.services.WitnessPath;
+import net.stemmaweb.services.WitnessSets;
 import org.neo4j.graphdb.*;
-import org.neo4j.graphdb.traversal.*;
 
 import javax.xml.bind.annotation.XmlRootElement;
 import java.util.*;
@@ -38,8 +38,14 @@ public class AlignmentModel {
         this(sectionNode, false);
     }
 
-    // Get an alignment table
     public AlignmentModel(Node sectionNode, boolean excludeLayers) {
+        this(sectionNode, excludeLayers, null);
+    }
+
+    // Get an alignment table. This is done in a single sweep through the section's sequence graph,
+    // in topological order, carrying along the set of witness layer rows that arrive at each reading.
+    // If a normalization overlay is given, the sweep follows its normalized sequences instead.
+    public AlignmentModel(Node sectionNode, boolean excludeLayers, NormalizationOverlay overlay) {
         GraphDatabaseService db = sectionNode.getGraphDatabase();
 
         try (Transaction tx = db.beginTx()) {
@@ -56,93 +62,197 @@ public class AlignmentModel {
             if (startNode.hasRelationship(ERelations.NSEQUENCE, Direction.OUTGOING))
                 seqType = ERelations.NSEQUENCE;
 
-            // Get the traverser for the tradition readings
-            Traverser traversedTradition = db.traversalDescription().depthFirst()
-                    .relationships(seqType, Direction.OUTGOING)
-                    .evaluator(Evaluators.all())
-                    .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL).traverse(startNode);
-
-            // Now make the alignment.
-            alignment = new ArrayList<>();
-            // For each witness, we make a 'tokens' array of the length of the tradition
-            // Get the witnesses in the database
-            ArrayList<Node> witnesses = DatabaseService.getRelated(traditionNode, ERelations.HAS_WITNESS);
-            for (Node w : witnesses) {
+            // Get the witnesses in the database; each of them has a base row in the table.
+            HashMap<String, Integer> witnessIndex = new HashMap<>();
+            ArrayList<String> rowWitness = new ArrayList<>();
+            ArrayList<String> rowLayer = new ArrayList<>();
+            HashMap<String, Integer> rowIndex = new HashMap<>();
+            ArrayList<BitSet> rowsOfWitness = new ArrayList<>();
+            for (Node w : DatabaseService.getRelated(traditionNode, ERelations.HAS_WITNESS)) {
                 String sigil = w.getProperty("sigil").toString();
-                // Find out which witness layers we need to deal with
-                HashSet<String> layers = new HashSet<>();
-                layers.add("base");
-                if (!excludeLayers) {
-                    for (Relationship seq : traversedTradition.relationships()) {
-                        for (String layer : seq.getPropertyKeys()) {
-                            if (!layer.equals("witnesses")) {
-                                ArrayList<String> layerwits = new ArrayList<>(Arrays.asList((String[]) seq.getProperty(layer)));
-                                if (layerwits.contains(sigil)) layers.add(layer);
+                if (witnessIndex.containsKey(sigil)) continue;
+                witnessIndex.put(sigil, witnessIndex.size());
+                rowsOfWitness.add(new BitSet());
+                addRow(sigil, null, rowWitness, rowLayer, rowIndex, rowsOfWitness.get(witnessIndex.get(sigil)));
+            }
+
+            // Collect the sequence links of the section, reading their witness properties only once,
+            // and add a row for each witness layer that we find along the way.
+            WitnessSets.Dictionary dictionary = WitnessSets.dictionaryFor(traditionNode);
+            HashMap<Long, ArrayList<SweepEdge>> outgoing = new HashMap<>();
+            HashMap<Long, Integer> inDegree = new HashMap<>();
+            HashMap<Long, Node> sectionReadings = new HashMap<>();
+            ArrayList<SweepEdge> allEdges = new ArrayList<>();
+            ArrayDeque<Node> toVisit = new ArrayDeque<>();
+            toVisit.add(startNode);
+            sectionReadings.put(startNode.getId(), startNode);
+            while (!toVisit.isEmpty()) {
+                Node n = toVisit.pop();
+                ArrayList<SweepEdge> ourEdges = new ArrayList<>();
+                List<Map<String, String[]>> linkWitnesses = new ArrayList<>();
+                List<Node> linkTargets = new ArrayList<>();
+                if (overlay != null) {
+                    for (NormalizationOverlay.Link l : overlay.getOutgoing(n)) {
+                        linkWitnesses.add(l.getWitnesses());
+                        linkTargets.add(l.getEndNode());
+                    }
+                } else {
+                    for (Relationship r : n.getRelationships(seqType, Direction.OUTGOING)) {
+                        linkWitnesses.add(dictionary.read(r));
+                        linkTargets.add(r.getEndNode());
+                    }
+                }
+                for (int li = 0; li < linkTargets.size(); li++) {
+                    Node next = linkTargets.get(li);
+                    SweepEdge e = new SweepEdge(next.getId());
+                    for (Map.Entry<String, String[]> prop : linkWitnesses.get(li).entrySet()) {
+                        String layer = prop.getKey();
+                        if (excludeLayers && !layer.equals("witnesses")) continue;
+                        for (String sigil : prop.getValue()) {
+                            Integer wi = witnessIndex.get(sigil);
+                            if (wi == null) continue;
+                            if (layer.equals("witnesses"))
+                                e.baseWitnesses.set(wi);
+                            else {
+                                String rowKey = sigil + "\t" + layer;
+                                if (!rowIndex.containsKey(rowKey))
+                                    addRow(sigil, layer, rowWitness, rowLayer, rowIndex, rowsOfWitness.get(wi));
+                                e.layerRows.set(rowIndex.get(rowKey));
                             }
                         }
                     }
+                    ourEdges.add(e);
+                    allEdges.add(e);
+                    inDegree.merge(next.getId(), 1, Integer::sum);
+                    if (!sectionReadings.containsKey(next.getId())) {
+                        sectionReadings.put(next.getId(), next);
+                        toVisit.push(next);
+                    }
                 }
+                outgoing.put(n.getId(), ourEdges);
+            }
 
-                // Now for each layer iteration, produce a set of tokens.
-                for (String layer : layers) {
-                    WitnessTokensModel witnessRow = new WitnessTokensModel();
-                    witnessRow.setWitness(sigil);
-                    if (!layer.equals("base")) {
-                        witnessRow.setLayer(layer);
-                    }
+            // Now that all rows are known, work out which rows each link can carry on the base text.
+            for (SweepEdge e : allEdges)
+                e.baseWitnesses.stream().forEach(wi -> e.baseRows.or(rowsOfWitness.get(wi)));
 
-                    // Make the object for the JSON token array
-                    ArrayList<ReadingModel> tokens = new ArrayList<>();
-
-                    // Get the witness readings for the given layer
-                    ArrayList<String> alternatives = new ArrayList<>();
-                    if (!layer.equals("base")) alternatives.add(layer);
-                    Evaluator e = new WitnessPath(sigil, alternatives, seqType).getEvalForWitness();
-                    ReadingModel filler;
-                    for (Node r : db.traversalDescription().depthFirst()
-                            .relationships(seqType, Direction.OUTGOING)
-                            .evaluator(e)
-                            .uniqueness(Uniqueness.NODE_PATH)
-                            .traverse(startNode)
-                            .nodes()) {
-                        if (r.hasProperty("is_end"))
-                            continue;
-
-                        // Make the reading token
-                        ReadingModel readingToken = new ReadingModel(r);
-                        // Check whether it was a lacuna
-                        if (readingToken.getIs_lacuna())
-                            filler = readingToken;
-                        else filler = null;
-
-                        // Put it at its proper rank, filling null bzw. lacuna tokens into the gap
-                        long currRankIndex = (long) r.getProperty("rank") - 1;
-                        for (int i = tokens.size(); i < currRankIndex; i++)
-                            tokens.add(filler);
-                        tokens.add(readingToken);
-                    }
-                    // Skip this witness if it is empty
-                    if (tokens.size() == 0) continue;
+            // Sweep through the graph in topological order, passing each row along the link it follows.
+            // A layer row follows its own layer if it has exactly one link for that layer out of a
+            // reading, stops if it has more than one, and follows the base witness otherwise.
+            int numRows = rowWitness.size();
+            long[][] columns = new long[numRows][(int) length];
+            for (long[] column : columns) Arrays.fill(column, -1);
+            int[] filled = new int[numRows];
+            boolean[] nonEmpty = new boolean[numRows];
+            HashMap<Long, BitSet> arriving = new HashMap<>();
+            BitSet allRows = new BitSet();
+            allRows.set(0, numRows);
+            arriving.put(startNode.getId(), allRows);
+            ArrayDeque<Long> ready = new ArrayDeque<>();
+            ready.add(startNode.getId());
+            while (!ready.isEmpty()) {
+                Long nid = ready.pop();
+                BitSet active = arriving.remove(nid);
+                if (active == null) active = new BitSet();
+                Node n = sectionReadings.get(nid);
 
-                    // Fill in any empty ranks at the end
-                    for (int i = tokens.size(); i < length; i++)
-                        tokens.add(null);
+                // Put the reading into the rows that arrived here
+                if (!n.equals(startNode) && !n.hasProperty("is_end") && !active.isEmpty()) {
+                    int rankIndex = (int) ((long) n.getProperty("rank") - 1);
+                    boolean isLacuna = n.getProperty("is_lacuna", false).equals(true);
+                    if (rankIndex >= 0 && rankIndex < length) {
+                        for (int row = active.nextSetBit(0); row >= 0; row = active.nextSetBit(row + 1)) {
+                            // Fill the gap with the lacuna, if we are one; otherwise it stays empty
+                            if (isLacuna)
+                                for (int i = filled[row]; i < rankIndex; i++)
+                                    columns[row][i] = nid;
+                            columns[row][rankIndex] = nid;
+                            filled[row] = rankIndex + 1;
+                            nonEmpty[row] = true;
+                        }
+                    }
+                }
 
-                    // Store the witness row and add it to the alignment
-                    witnessRow.setTokens(tokens);
-                    alignment.add(witnessRow);
+                // Pass the rows on to the next readings
+                ArrayList<SweepEdge> ourEdges = outgoing.getOrDefault(nid, new ArrayList<>());
+                BitSet seenLayer = new BitSet();
+                BitSet multiLayer = new BitSet();
+                for (SweepEdge e : ourEdges) {
+                    BitSet twice = (BitSet) e.layerRows.clone();
+                    twice.and(seenLayer);
+                    multiLayer.or(twice);
+                    seenLayer.or(e.layerRows);
+                }
+                BitSet assigned = new BitSet();
+                for (SweepEdge e : ourEdges) {
+                    BitSet carried = (BitSet) e.layerRows.clone();
+                    carried.andNot(multiLayer);
+                    BitSet viaBase = (BitSet) e.baseRows.clone();
+                    viaBase.andNot(seenLayer);
+                    carried.or(viaBase);
+                    carried.and(active);
+                    carried.andNot(assigned);
+                    assigned.or(carried);
+                    if (!carried.isEmpty())
+                        arriving.computeIfAbsent(e.target, x -> new BitSet()).or(carried);
+                    if (inDegree.merge(e.target, -1, Integer::sum) == 0)
+                        ready.push(e.target);
                 }
             }
+
+            // Now make the alignment. Each reading gets a single model, shared between
+            // all the witnesses that pass through it.
+            alignment = new ArrayList<>();
+            HashMap<Long, ReadingModel> readingModels = new HashMap<>();
+            for (int row = 0; row < numRows; row++) {
+                // Skip this witness if it is empty
+                if (!nonEmpty[row]) continue;
+                WitnessTokensModel witnessRow = new WitnessTokensModel();
+                witnessRow.setWitness(rowWitness.get(row));
+                if (rowLayer.get(row) != null)
+                    witnessRow.setLayer(rowLayer.get(row));
+                ArrayList<ReadingModel> tokens = new ArrayList<>(columns[row].length);
+                for (long rid : columns[row])
+                    tokens.add(rid < 0 ? null
+                            : readingModels.computeIfAbsent(rid, x -> new ReadingModel(sectionReadings.get(x), overlay)));
+                witnessRow.setTokens(tokens);
+                alignment.add(witnessRow);
+            }
             Comparator<WitnessTokensModel> bySigil = Comparator.comparing(WitnessTokensModel::constructSigil);
             alignment.sort(bySigil);
             tx.success();
         }
     }
 
+    // A sequence link as seen by the alignment sweep
+    private static class SweepEdge {
+        private final long target;
+        private final BitSet baseWitnesses = new BitSet();
+        private final BitSet baseRows = new BitSet();
+        private final BitSet layerRows = new BitSet();
+
+        SweepEdge(long target) {
+            this.target = target;
+        }
+    }
+
+    private static void addRow(String sigil, String layer, ArrayList<String> rowWitness, ArrayList<String> rowLayer,
+                               HashMap<String, Integer> rowIndex, BitSet witnessRows) {
+        int idx = rowWitness.size();
+        rowWitness.add(sigil);
+        rowLayer.add(layer);
+        rowIndex.put(layer == null ? sigil : sigil + "\t" + layer, idx);
+        witnessRows.set(idx);
+    }
+
     public ArrayList<WitnessTokensModel> getAlignment () {
         return alignment;
     }
 
+    public void setAlignment (ArrayList<WitnessTokensModel> alignment) {
+        this.alignment = alignment;
+    }
+
     public void addWitness (WitnessTokensModel wtm) {
         if (alignment == null) alignment = new ArrayList<>();
         alignment.add(wtm);
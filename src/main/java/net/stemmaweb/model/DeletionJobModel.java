@@ -0,0 +1,67 @@
+package net.stemmaweb.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * This model describes the progress of a tradition or section deletion. The deletion runs in
+ * batches, possibly in the background, so its state is updated as it goes; all access to it is
+ * synchronized, so that the thread that reports on a job sees it as the worker left it.
+ */
+@XmlRootElement
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class DeletionJobModel {
+    private String id;
+    private String type;
+    private String target;
+    private String status;
+    private Long deleted = 0L;
+    private String error;
+
+    public DeletionJobModel() {}
+
+    public synchronized String getId() {
+        return id;
+    }
+    public synchronized void setId(String id) {
+        this.id = id;
+    }
+    public synchronized String getType() {
+        return type;
+    }
+    public synchronized void setType(String type) {
+        this.type = type;
+    }
+    public synchronized String getTarget() {
+        return target;
+    }
+    public synchronized void setTarget(String target) {
+        this.target = target;
+    }
+    public synchronized String getStatus() {
+        return status;
+    }
+    public synchronized void setStatus(String status) {
+        this.status = status;
+    }
+    public synchronized Long getDeleted() {
+        return deleted;
+    }
+    public synchronized void setDeleted(Long deleted) {
+        this.deleted = deleted;
+    }
+    public synchronized void addDeleted(long count) {
+        this.deleted += count;
+    }
+    public synchronized String getError() {
+        return error;
+    }
+    public synchronized void setError(String error) {
+        this.error = error;
+    }
+    public synchronized void fail(String error) {
+        this.error = error;
+        this.status = "failed";
+    }
+}
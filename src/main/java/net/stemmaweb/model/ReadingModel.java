@@ -3,6 +3,8 @@ package net.stemmaweb.model;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import net.stemmaweb.rest.ERelations;
 import net.stemmaweb.rest.Nodes;
+import net.stemmaweb.services.NormalizationOverlay;
+import net.stemmaweb.services.WitnessSets;
 import org.checkerframework.checker.nullness.qual.NonNull;
 import javax.xml.bind.annotation.XmlRootElement;
 
@@ -17,9 +19,9 @@ import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.Transaction;
 
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
 
 /**
  * Provides a model for a reading outside of the database. Can be parsed into a
@@ -129,91 +131,136 @@ public class ReadingModel implements Comparable<ReadingModel> {
      * @param node - The node with label READING from which the model should take its values
      */
     public ReadingModel(Node node) {
+        this(node, null);
+    }
+
+    /**
+     * Generates a model from a Neo4j Node, as seen in a normalized view of its section
+     * @param node    - The node with label READING from which the model should take its values
+     * @param overlay - The normalization overlay, if any, in which the reading is seen
+     */
+    public ReadingModel(Node node, NormalizationOverlay overlay) {
         try (Transaction tx = node.getGraphDatabase().beginTx()) {
-            if (node.hasProperty("grammar_invalid"))
-                this.setGrammar_invalid((Boolean) node.getProperty("grammar_invalid"));
-            this.setId(String.valueOf(node.getId()));
-            this.setSection(node.getProperty("section_id").toString());
             // If there is an "ncommon" property, use this in preference to "is_common"
             // because it means we are in normalized mode
-            this.setIs_common(node.getProperty("ncommon", node.getProperty("is_common", false)).equals(true));
-            if (node.hasProperty("is_end"))
-                this.setIs_end((Boolean) node.getProperty("is_end"));
-            if (node.hasProperty("is_lacuna"))
-                this.setIs_lacuna((Boolean) node.getProperty("is_lacuna"));
-            if (node.hasProperty("is_lemma"))
-                this.setIs_lemma((Boolean) node.getProperty("is_lemma"));
-            if (node.hasProperty("is_nonsense"))
-                this.setIs_nonsense((Boolean) node.getProperty("is_nonsense"));
-            if (node.hasProperty("is_ph"))
-                this.setIs_ph((Boolean) node.getProperty("is_ph"));
-            if (node.hasProperty("is_start"))
-                this.setIs_start((Boolean) node.getProperty("is_start"));
-            if (node.hasProperty("join_next"))
-                this.setJoin_next((Boolean) node.getProperty("join_next"));
-            if (node.hasProperty("join_prior"))
-                this.setJoin_prior((Boolean) node.getProperty("join_prior"));
-            if (node.hasProperty("language"))
-                this.setLanguage(node.getProperty("language").toString());
-            if (node.hasProperty("lexemes"))
-                this.setLexemes(node.getProperty("lexemes").toString());
-            if (node.hasProperty("normal_form"))
-                this.setNormal_form(node.getProperty("normal_form").toString());
-            if (node.hasProperty("rank"))
-                this.setRank(Long.parseLong(node.getProperty("rank").toString()));
-            if (node.hasProperty("text"))
-                this.setText(node.getProperty("text").toString());
-            if (node.hasProperty("display"))
-                this.setDisplay(node.getProperty("display").toString());
-            if (node.hasProperty("annotation"))
-                this.setAnnotation(node.getProperty("annotation").toString());
-            if (node.hasProperty("extra")) {
-                String jsonData = node.getProperty("extra").toString();
-                try {
-                    // Try to parse it, before we actually attempt to use it
-                    new JSONObject(jsonData);
-                    this.setExtra(jsonData);
-                } catch (JSONException e) {
-                    // Emit a warning, but carry on
-                    System.err.println("Invalid JSON string in reading extra parameter: " + jsonData);
-                }
-            }
-            if (node.hasLabel(Nodes.EMENDATION)) {
-                this.setIs_emendation(true);
-                // We don't check whether this property exists, because it darn well should
-                this.setAuthority(node.getProperty("authority").toString());
-            }
+            this.setProperties(node, node.getAllProperties(), overlay == null ? null : overlay.isCommon(node));
             // Get the witnesses
-            HashSet<String> collectedWits = new HashSet<>();
+            TreeSet<String> collectedWits = new TreeSet<>();
             List<Relationship> seq = new ArrayList<>();
             // If we are operating under normalization, we need to look at the NSEQUENCE links rather than
             // the SEQUENCE links, but in this case the SEQUENCE links will be redundant so there is no
             // harm in looking at them anyway.
             node.getRelationships(ERelations.SEQUENCE, Direction.BOTH).forEach(seq::add);
             node.getRelationships(ERelations.NSEQUENCE, Direction.BOTH).forEach(seq::add);
+            WitnessSets.Dictionary dictionary = null;
             for (Relationship r : seq) {
-                for (String prop : r.getPropertyKeys()) {
-                    String[] sigla = (String[]) r.getProperty(prop);
-                    if (prop.equals("witnesses")) {
-                        collectedWits.addAll(Arrays.asList(sigla));
-                    } else {
-                        Arrays.stream(sigla).forEach(x -> collectedWits.add(String.format("%s (%s)", x, prop)));
+                if (dictionary == null)
+                    dictionary = WitnessSets.dictionaryOf(r);
+                for (Map.Entry<String, String[]> wc : dictionary.read(r).entrySet()) {
+                    String prop = wc.getKey();
+                    String[] sigla = wc.getValue();
+                    boolean isBase = prop.equals("witnesses");
+                    for (String x : sigla)
+                        collectedWits.add(isBase ? x : x + " (" + prop + ")");
+                }
+            }
+            if (overlay != null) {
+                List<NormalizationOverlay.Link> links = new ArrayList<>(overlay.getOutgoing(node));
+                links.addAll(overlay.getIncoming(node));
+                for (NormalizationOverlay.Link l : links) {
+                    for (Map.Entry<String, String[]> prop : l.getWitnesses().entrySet()) {
+                        boolean isBase = prop.getKey().equals("witnesses");
+                        for (String x : prop.getValue())
+                            collectedWits.add(isBase ? x : x + " (" + prop.getKey() + ")");
                     }
                 }
             }
             this.witnesses = new ArrayList<>(collectedWits);
-            this.witnesses.sort(String::compareTo);
             // Get any represented readings
             for (Relationship r : node.getRelationships(ERelations.REPRESENTS, Direction.OUTGOING)) {
                 this.addRepresented(new ReadingModel(r.getEndNode()));
             }
+            if (overlay != null)
+                for (Node n : overlay.representedBy(node))
+                    this.addRepresented(new ReadingModel(n));
             tx.success();
         }
     }
 
+    /**
+     * Generates a model from a Neo4j Node whose properties and witnesses have already been read,
+     * e.g. by the {@link net.stemmaweb.services.ReadingLoader}. Represented readings are not
+     * looked up. NOTE: For use within a transaction
+     *
+     * @param node       - The node with label READING from which the model should take its values
+     * @param properties - The properties of the node
+     * @param witnesses  - The witnesses of the reading, sorted
+     */
+    public ReadingModel(Node node, Map<String, Object> properties, TreeSet<String> witnesses) {
+        this.setProperties(node, properties, null);
+        this.witnesses = new ArrayList<>(witnesses);
+    }
+
     public ReadingModel() {
     }
 
+    private void setProperties(Node node, Map<String, Object> properties, Boolean normalCommon) {
+        if (properties.containsKey("grammar_invalid"))
+            this.setGrammar_invalid((Boolean) properties.get("grammar_invalid"));
+        this.setId(String.valueOf(node.getId()));
+        this.setSection(properties.get("section_id").toString());
+        if (normalCommon != null)
+            this.setIs_common(normalCommon);
+        else
+            this.setIs_common(properties.getOrDefault("ncommon", properties.getOrDefault("is_common", false)).equals(true));
+        if (properties.containsKey("is_end"))
+            this.setIs_end((Boolean) properties.get("is_end"));
+        if (properties.containsKey("is_lacuna"))
+            this.setIs_lacuna((Boolean) properties.get("is_lacuna"));
+        if (properties.containsKey("is_lemma"))
+            this.setIs_lemma((Boolean) properties.get("is_lemma"));
+        if (properties.containsKey("is_nonsense"))
+            this.setIs_nonsense((Boolean) properties.get("is_nonsense"));
+        if (properties.containsKey("is_ph"))
+            this.setIs_ph((Boolean) properties.get("is_ph"));
+        if (properties.containsKey("is_start"))
+            this.setIs_start((Boolean) properties.get("is_start"));
+        if (properties.containsKey("join_next"))
+            this.setJoin_next((Boolean) properties.get("join_next"));
+        if (properties.containsKey("join_prior"))
+            this.setJoin_prior((Boolean) properties.get("join_prior"));
+        if (properties.containsKey("language"))
+            this.setLanguage(properties.get("language").toString());
+        if (properties.containsKey("lexemes"))
+            this.setLexemes(properties.get("lexemes").toString());
+        if (properties.containsKey("normal_form"))
+            this.setNormal_form(properties.get("normal_form").toString());
+        if (properties.containsKey("rank"))
+            this.setRank(Long.parseLong(properties.get("rank").toString()));
+        if (properties.containsKey("text"))
+            this.setText(properties.get("text").toString());
+        if (properties.containsKey("display"))
+            this.setDisplay(properties.get("display").toString());
+        if (properties.containsKey("annotation"))
+            this.setAnnotation(properties.get("annotation").toString());
+        if (properties.containsKey("extra")) {
+            String jsonData = properties.get("extra").toString();
+            try {
+                // Try to parse it, before we actually attempt to use it
+                new JSONObject(jsonData);
+                this.setExtra(jsonData);
+            } catch (JSONException e) {
+                // Emit a warning, but carry on
+                System.err.println("Invalid JSON string in reading extra parameter: " + jsonData);
+            }
+        }
+        if (node.hasLabel(Nodes.EMENDATION)) {
+            this.setIs_emendation(true);
+            // We don't check whether this property exists, because it darn well should
+            this.setAuthority(properties.get("authority").toString());
+        }
+    }
+
     public Boolean getGrammar_invalid() {
         return grammar_invalid;
     }
@@ -420,7 +467,7 @@ public class ReadingModel implements Comparable<ReadingModel> {
 
     public List<ReadingModel> getRepresented() { return represented; }
 
-    private void addRepresented(ReadingModel rm) {
+    public void addRepresented(ReadingModel rm) {
         if (represented == null) represented = new ArrayList<>();
         represented.add(rm);
     }
@@ -0,0 +1,80 @@
+package net.stemmaweb.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import org.neo4j.graphdb.schema.IndexDefinition;
+import org.neo4j.graphdb.schema.Schema;
+
+import javax.xml.bind.annotation.XmlRootElement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This model describes a database index and the state of its population.
+ */
+@XmlRootElement
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class SchemaIndexModel {
+    private String label;
+    private List<String> properties;
+    private Boolean unique;
+    private String state;
+    private Float progress;
+    private String failure;
+
+    public SchemaIndexModel() {}
+
+    /**
+     * Note: must be called within a transaction!
+     *
+     * @param schema - the schema of the database the index belongs to
+     * @param index  - the index to describe
+     */
+    public SchemaIndexModel(Schema schema, IndexDefinition index) {
+        this.label = index.getLabel().name();
+        this.properties = new ArrayList<>();
+        index.getPropertyKeys().forEach(this.properties::add);
+        this.unique = index.isConstraintIndex();
+        Schema.IndexState indexState = schema.getIndexState(index);
+        this.state = indexState.toString();
+        this.progress = schema.getIndexPopulationProgress(index).getCompletedPercentage();
+        if (indexState == Schema.IndexState.FAILED)
+            this.failure = schema.getIndexFailure(index);
+    }
+
+    public String getLabel() {
+        return label;
+    }
+    public void setLabel(String label) {
+        this.label = label;
+    }
+    public List<String> getProperties() {
+        return properties;
+    }
+    public void setProperties(List<String> properties) {
+        this.properties = properties;
+    }
+    public Boolean getUnique() {
+        return unique;
+    }
+    public void setUnique(Boolean unique) {
+        this.unique = unique;
+    }
+    public String getState() {
+        return state;
+    }
+    public void setState(String state) {
+        this.state = state;
+    }
+    public Float getProgress() {
+        return progress;
+    }
+    public void setProgress(Float progress) {
+        this.progress = progress;
+    }
+    public String getFailure() {
+        return failure;
+    }
+    public void setFailure(String failure) {
+        this.failure = failure;
+    }
+}
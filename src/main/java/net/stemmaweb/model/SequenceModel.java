@@ -1,6 +1,7 @@
 package net.stemmaweb.model;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
+import net.stemmaweb.services.WitnessSets;
 import org.neo4j.graphdb.Relationship;
 
 import javax.xml.bind.annotation.XmlRootElement;
@@ -50,19 +51,32 @@ public class SequenceModel {
      * @param rel - the sequence relationship to initialize from
      */
     public SequenceModel(Relationship rel) {
+        this(rel, null);
+    }
+
+    /**
+     * Generates a model from a Neo4j Relationship, using an already resolved witness dictionary
+     * @param rel - the sequence relationship to initialize from
+     * @param dictionary - the witness dictionary of the relationship's tradition, or null to look it up
+     */
+    public SequenceModel(Relationship rel, WitnessSets.Dictionary dictionary) {
         this();
         type = rel.getType().toString();
         source = rel.getStartNode().getId() + "";
         target = rel.getEndNode().getId() + "";
         id = Long.toString(rel.getId());
 
-        for (String p : rel.getPropertyKeys()) {
-            if (p.equals("witnesses"))
-                setWitnesses(Arrays.asList((String[]) rel.getProperty("witnesses")));
+        if (WitnessSets.isEmpty(rel))
+            return;
+        if (dictionary == null)
+            dictionary = WitnessSets.dictionaryOf(rel);
+        for (Map.Entry<String, String[]> p : dictionary.read(rel).entrySet()) {
+            if (p.getKey().equals("witnesses"))
+                setWitnesses(Arrays.asList(p.getValue()));
             else {
                 if (layers == null)
                     setLayers(new HashMap<>());
-                layers.put(p, Arrays.asList((String[]) rel.getProperty(p)));
+                layers.put(p.getKey(), Arrays.asList(p.getValue()));
             }
         }
     }
@@ -2,13 +2,12 @@ package net.stemmaweb.model;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
 import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.services.NormalizationOverlay;
 import net.stemmaweb.services.RelationService;
 import net.stemmaweb.services.VariantCrawler;
 import net.stemmaweb.services.VariantGraphService;
-import net.stemmaweb.services.WitnessPath;
+import net.stemmaweb.services.WitnessSets;
 import org.neo4j.graphdb.*;
-import org.neo4j.graphdb.traversal.TraversalDescription;
-import org.neo4j.graphdb.traversal.Uniqueness;
 
 import javax.xml.bind.annotation.XmlRootElement;
 import java.util.*;
@@ -95,11 +94,11 @@ public class VariantListModel {
         if (conflate == null) conflate = "";
         GraphDatabaseService db = sectionNode.getGraphDatabase();
         try (Transaction tx = db.beginTx()) {
-            RelationshipType follow = ERelations.SEQUENCE;
-            if (!conflate.equals("")) {
-                VariantGraphService.normalizeGraph(sectionNode, conflate);
-                follow = ERelations.NSEQUENCE;
-            }
+            // If we are normalizing, we work on a normalized view of the section that is held in memory.
+            NormalizationOverlay overlay = null;
+            if (!conflate.equals(""))
+                overlay = NormalizationOverlay.build(sectionNode, conflate);
+            WitnessSets.Dictionary dictionary = WitnessSets.dictionaryOfSection(sectionNode);
 
             // Figure out which types are dislocation types in this tradition
             this.dislocationTypes = new ArrayList<>();
@@ -110,42 +109,51 @@ public class VariantListModel {
 
             // See which list of readings will serve as our base text
             Node startNode = VariantGraphService.getStartNode(String.valueOf(sectionNode.getId()), db);
-            TraversalDescription baseWalker = db.traversalDescription().depthFirst();
-            List<Relationship> baseText;
+            List<NormalizationOverlay.Link> baseText = new ArrayList<>();
             if (baseWitness != null) {
-                // We use the requested witness text, which is connected via SEQUENCE or NSEQUENCE
-                // links and so unproblematic.
-                baseWalker = baseWalker.evaluator(new WitnessPath(baseWitness, follow).getEvalForWitness());
-                baseText = baseWalker.traverse(startNode).relationships().stream().collect(Collectors.toList());
+                // We use the requested witness text, following its sequence links from the start.
+                Node current = startNode;
+                while (current != null) {
+                    Node next = null;
+                    for (NormalizationOverlay.Link l : NormalizationOverlay.outgoingLinks(current, overlay, dictionary)) {
+                        if (WitnessSets.contains(l.getProperty("witnesses", new String[0]), baseWitness)) {
+                            baseText.add(l);
+                            next = l.getEndNode();
+                            break;
+                        }
+                    }
+                    current = next;
+                }
                 this.basisText = baseWitness;
             } else {
-                // We collect the readings, but count their SEQUENCE or NSEQUENCE links in the base text.
+                // We collect the readings, but count their sequence links in the base text.
                 List<Node> baseReadings;
                 if (startNode.hasRelationship(ERelations.LEMMA_TEXT, Direction.OUTGOING)) {
                     // We traverse the lemma text
-                    baseWalker = baseWalker.relationships(ERelations.LEMMA_TEXT);
-                    baseReadings = baseWalker.traverse(startNode).nodes().stream().collect(Collectors.toList());
+                    baseReadings = db.traversalDescription().depthFirst().relationships(ERelations.LEMMA_TEXT)
+                            .traverse(startNode).nodes().stream().collect(Collectors.toList());
                     this.basisText = "lemma";
                 } else {
                     // We calculate and use the majority text
-                    baseReadings = VariantGraphService.calculateMajorityText(sectionNode);
+                    baseReadings = VariantGraphService.calculateMajorityText(sectionNode, overlay);
                     this.basisText = "majority";
                 }
-                baseText = new ArrayList<>();
                 Node prior = baseReadings.remove(0);
                 for (Node curr : baseReadings) {
-                    prior.getRelationships(follow, Direction.OUTGOING).forEach(x -> {
+                    NormalizationOverlay.outgoingLinks(prior, overlay, dictionary).forEach(x -> {
                         if (x.getEndNode().equals(curr)) baseText.add(x);});
                     prior = curr;
                 }
             }
 
-            this.findVariants(db, baseText, excludeWitnesses, follow);
+            this.findVariants(db, baseText, excludeWitnesses, overlay, dictionary);
 
             // Filter readings by regex / nonsense flag as needed. Pass the base text in case
             // any before/after reading settings need to be altered.
-            List<ReadingModel> baseChain = baseText.stream().map(x -> new ReadingModel(x.getEndNode())).collect(Collectors.toList());
-            baseChain.add(0, new ReadingModel(baseText.get(0).getStartNode()));
+            final NormalizationOverlay normalized = overlay;
+            List<ReadingModel> baseChain = baseText.stream().map(x -> new ReadingModel(x.getEndNode(), normalized))
+                    .collect(Collectors.toList());
+            baseChain.add(0, new ReadingModel(baseText.get(0).getStartNode(), overlay));
             this.filterReadings(baseChain);
 
             // Filter for type1 variants
@@ -159,36 +167,38 @@ public class VariantListModel {
             // Combine dislocations if we were asked to
             if (combine) this.combineDisplacements();
 
-            // Clean up if we normalised
-            if (!conflate.equals(""))
-                VariantGraphService.clearNormalization(sectionNode);
-
             tx.success();
         }
     }
 
-    private void findVariants (GraphDatabaseService db, List<Relationship> sequence, List<String> excludeWitnesses,
-                               RelationshipType follow) {
-        // Create the evaluator we need
-        VariantCrawler crawler = new VariantCrawler(sequence, follow, excludeWitnesses);
-        // Set up the traversal for the path segments we want
+    private void findVariants (GraphDatabaseService db, List<NormalizationOverlay.Link> sequence,
+                               List<String> excludeWitnesses, NormalizationOverlay overlay,
+                               WitnessSets.Dictionary dictionary) {
+        // Create the crawler we need
+        VariantCrawler crawler = new VariantCrawler(sequence, overlay, dictionary, excludeWitnesses);
         try (Transaction tx = db.beginTx()) {
-            TraversalDescription traverser = db.traversalDescription().depthFirst()
-                    .uniqueness(Uniqueness.RELATIONSHIP_PATH)
-                    .expand(crawler.variantListExpander())
-                    .evaluator(crawler.variantListEvaluator());
             // Get our base chain of nodes
-            List<Node> baseChain = sequence.stream().map(Relationship::getEndNode).collect(Collectors.toList());
+            List<Node> baseChain = sequence.stream().map(NormalizationOverlay.Link::getEndNode).collect(Collectors.toList());
             baseChain.add(0, sequence.get(0).getStartNode());
-            // We have to run the traverser from each node in the base chain, to get any variants that start there.
+            // Index the base chain positions by node ID, and the variant locations by the positions
+            // of their start and end nodes.
+            HashMap<Long, Integer> basePosition = new HashMap<>();
+            for (int i = 0; i < baseChain.size(); i++)
+                basePosition.putIfAbsent(baseChain.get(i).getId(), i);
+            HashMap<Long, VariantLocationModel> locationIndex = new HashMap<>();
+            // We have to run the crawler from each node in the base chain, to get any variants that start there.
             for (Node n : baseChain) {
-                for (org.neo4j.graphdb.Path v : traverser.traverse(n)) {
-                    VariantModel vm = new VariantModel(v, crawler.getWitnessesForPath(v));
-                    // Sanity check
-                    // if (!baseChain.contains(v.startNode()) || !baseChain.contains(v.endNode()))
-                    //     throw new Exception("Variant chain disconnected from base chain");
+                for (VariantCrawler.Variant v : crawler.variantsFrom(n)) {
+                    VariantModel vm = new VariantModel(v, overlay);
                     if (!vm.isEmpty()) {
-                        VariantLocationModel vloc = this.getVLM(baseChain, v.startNode(), v.endNode());
+                        List<Node> vNodes = v.getNodes();
+                        int from = basePosition.get(vNodes.get(0).getId());
+                        int to = basePosition.get(vNodes.get(vNodes.size() - 1).getId());
+                        VariantLocationModel vloc = locationIndex.get((long) from * baseChain.size() + to);
+                        if (vloc == null) {
+                            vloc = this.makeVLM(baseChain.subList(from, to + 1), overlay);
+                            locationIndex.put((long) from * baseChain.size() + to, vloc);
+                        }
                         vloc.addVariant(vm);
                     }
                 }
@@ -196,43 +206,29 @@ public class VariantListModel {
             tx.success();
         }
 
-        // Add relation information to each variant location. This will also notice displaced variants.
-        for (VariantLocationModel vlm : this.getVariantlist())
-            vlm.collectRelationsInLocation(db, this.dislocationTypes);
+        // Add relation information to the variant locations. This will also notice displaced variants.
+        VariantLocationModel.collectRelations(db, this.getVariantlist(), this.dislocationTypes);
         // Sort the result by rank index and base text length, and return
         this.getVariantlist().sort(Comparator.comparingInt(x -> x.getBase().size()));
         this.getVariantlist().sort(Comparator.comparingLong(VariantLocationModel::getRankIndex));
     }
 
-    private VariantLocationModel getVLM(List<Node> baseChain,
-                                        Node vStart,
-                                        Node vEnd) {
-        // Retrieve any existing VariantLocationModel, or create a new one
+    private VariantLocationModel makeVLM(List<Node> baseSegment, NormalizationOverlay overlay) {
+        // Turn our sub-chain into reading models
         VariantLocationModel vlm = new VariantLocationModel();
-        String key = String.format("%d -- %d", vStart.getId(), vEnd.getId());
-        Optional<VariantLocationModel> ovlm = this.getVariantlist().stream()
-                .filter(x -> key.equals(x.lookupKey())).findFirst();
-        if (ovlm.isPresent()) {
-            vlm = ovlm.get();
-        }
-        // Initialize the VLModel if it is new.
-        if (vlm.getRankIndex() == 0) {
-            // Turn our sub-chain into reading models
-            List<ReadingModel> baseReadings = baseChain
-                    .subList(baseChain.indexOf(vStart), baseChain.indexOf(vEnd)+1)
-                    .stream().map(ReadingModel::new).collect(Collectors.toList());
-            // Set the reading models in place in the VLM
-            vlm.setBefore(baseReadings.remove(0));
-            vlm.setAfter(baseReadings.remove(baseReadings.size() - 1));
-            vlm.setBase(baseReadings);
-            // Set the rank index to the rank of the first base reading
-            if (baseReadings.size() > 0)
-                vlm.setRankIndex(baseReadings.get(0).getRank());
-            else
-                vlm.setRankIndex(vlm.getBefore().getRank() + 1);
-            vlm.setNormalised(vStart.hasRelationship(ERelations.NSEQUENCE, Direction.OUTGOING));
-            this.variantlist.add(vlm);
-        }
+        List<ReadingModel> baseReadings = baseSegment.stream()
+                .map(x -> new ReadingModel(x, overlay)).collect(Collectors.toList());
+        // Set the reading models in place in the VLM
+        vlm.setBefore(baseReadings.remove(0));
+        vlm.setAfter(baseReadings.remove(baseReadings.size() - 1));
+        vlm.setBase(baseReadings);
+        // Set the rank index to the rank of the first base reading
+        if (baseReadings.size() > 0)
+            vlm.setRankIndex(baseReadings.get(0).getRank());
+        else
+            vlm.setRankIndex(vlm.getBefore().getRank() + 1);
+        vlm.setNormalised(overlay != null);
+        this.variantlist.add(vlm);
         return vlm;
     }
 
@@ -286,7 +282,7 @@ public class VariantListModel {
     // Deal with non-colocated variants
     private void combineDisplacements() {
         // Make an index of our base reading sequences and the VLMs they appear in.
-        // (getVLM needs the node chain, which we no longer have at this point.)
+        // (The location index needs the node chain, which we no longer have at this point.)
         HashMap<String,VariantLocationModel> lemmaIndex = new HashMap<>();
         List<VariantLocationModel> vlmlist = this.getVariantlist();
         for (VariantLocationModel vlm : vlmlist) {
@@ -63,45 +63,67 @@ public class VariantLocationModel {
     }
 
     /**
-     * Looks for all RELATED links between nodes involved in a VariantLocationModel, and adds the
-     * corresponding RelationModels to the VariantLocationModel in question.
+     * Looks for all RELATED links between nodes involved in each of the given VariantLocationModels,
+     * and adds the corresponding RelationModels to the VariantLocationModel in question. The
+     * relations of each reading are read only once, however many locations the reading is in.
      *
      * @param db - the GraphDatabaseService we are using
+     * @param locations - the variant locations to fill in
      * @param dislocationTypes - the list of relation types that are non-colocated in this tradition
      */
-    void collectRelationsInLocation(GraphDatabaseService db, List<String> dislocationTypes) {
-        Set<Relationship> relations = new HashSet<>();
-        // Gather all the nodes we need
-        Set<Node> clusterNodes = new HashSet<>();
-        try (Transaction tx = db.beginTx()) {
-            for (ReadingModel rm : this.getBase())
-                clusterNodes.add(db.getNodeById(Long.parseLong(rm.getId())));
-            HashMap<Node, VariantModel> vModelForReading = new HashMap<>();
-            for (VariantModel vm : this.getVariants())
+    static void collectRelations(GraphDatabaseService db, List<VariantLocationModel> locations,
+                                 List<String> dislocationTypes) {
+        int size = locations.size();
+        List<Set<Long>> clusterNodes = new ArrayList<>(size);
+        List<HashMap<Long, VariantModel>> vModelForReading = new ArrayList<>(size);
+        List<Set<Relationship>> relations = new ArrayList<>(size);
+        // Gather all the nodes we need, and note which locations each one belongs to
+        LinkedHashMap<Long, List<Integer>> locationsOf = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++) {
+            VariantLocationModel vlm = locations.get(i);
+            Set<Long> nodes = new HashSet<>();
+            for (ReadingModel rm : vlm.getBase())
+                nodes.add(Long.valueOf(rm.getId()));
+            HashMap<Long, VariantModel> variantOf = new HashMap<>();
+            for (VariantModel vm : vlm.getVariants())
                 for (ReadingModel rm : vm.getReadings()) {
-                    Node vrdg = db.getNodeById(Long.parseLong(rm.getId()));
-                    clusterNodes.add(vrdg);
+                    Long vrdg = Long.valueOf(rm.getId());
+                    nodes.add(vrdg);
                     // As long as we're here, make a map of variant node -> VariantModel
-                    vModelForReading.put(vrdg, vm);
+                    variantOf.put(vrdg, vm);
                 }
-            for (Node n : clusterNodes) {
-                for (Relationship rel : n.getRelationships(ERelations.RELATED, Direction.OUTGOING))
-                    // Add any relation we find that links to another node in this variant location
-                    if (clusterNodes.contains(rel.getEndNode()))
-                        relations.add(rel);
-                        // Add the relation anyway, if it signifies a displaced variant reading.
-                        // Also mark the variant as being displaced.
-                    else if (vModelForReading.containsKey(n)){
-                        if (dislocationTypes.contains(rel.getProperty("type").toString())) {
-                            relations.add(rel);
-                            vModelForReading.get(n).setDisplaced(true);
-                            // this.setDisplacement(true);
+            for (Long n : nodes)
+                locationsOf.computeIfAbsent(n, x -> new ArrayList<>()).add(i);
+            clusterNodes.add(nodes);
+            vModelForReading.add(variantOf);
+            relations.add(new HashSet<>());
+        }
+
+        try (Transaction tx = db.beginTx()) {
+            for (Map.Entry<Long, List<Integer>> entry : locationsOf.entrySet()) {
+                Long n = entry.getKey();
+                for (Relationship rel : db.getNodeById(n).getRelationships(ERelations.RELATED, Direction.OUTGOING)) {
+                    Long other = rel.getEndNode().getId();
+                    for (Integer i : entry.getValue()) {
+                        // Add any relation we find that links to another node in this variant location
+                        if (clusterNodes.get(i).contains(other))
+                            relations.get(i).add(rel);
+                            // Add the relation anyway, if it signifies a displaced variant reading.
+                            // Also mark the variant as being displaced.
+                        else if (vModelForReading.get(i).containsKey(n)) {
+                            if (dislocationTypes.contains(rel.getProperty("type").toString())) {
+                                relations.get(i).add(rel);
+                                vModelForReading.get(i).get(n).setDisplaced(true);
+                            }
                         }
                     }
+                }
+            }
+            for (int i = 0; i < size; i++) {
+                VariantLocationModel vlm = locations.get(i);
+                vlm.setRelations(relations.get(i).stream().map(RelationModel::new).collect(Collectors.toList()));
+                vlm.isEmpty = false;
             }
-            List<RelationModel> rml = relations.stream().map(RelationModel::new).collect(Collectors.toList());
-            this.setRelations(rml);
-            this.isEmpty = false;
             tx.success();
         }
     }
@@ -2,10 +2,9 @@ package net.stemmaweb.model;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
-import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.services.NormalizationOverlay;
 import net.stemmaweb.services.ReadingService;
-import org.neo4j.graphdb.Direction;
-import org.neo4j.graphdb.Path;
+import net.stemmaweb.services.VariantCrawler;
 
 import javax.xml.bind.annotation.XmlRootElement;
 import java.util.*;
@@ -32,21 +31,23 @@ public class VariantModel {
     }
 
     /**
-     * Initialize a variant model from a given Neo4J path, assumed to be a valid variant path.
-     * @param p - the Neo4J path to initialize from
+     * Initialize a variant model from a path found by the variant crawler, assumed to be a valid variant path.
+     * @param p       - the crawled path to initialize from
+     * @param overlay - the normalization overlay that the path was found in, if any
      */
-    VariantModel (Path p, Map<String,Set<String>> vWits) {
+    VariantModel (VariantCrawler.Variant p, NormalizationOverlay overlay) {
         // Get the readings
         List<ReadingModel> vReadings = new ArrayList<>();
-        p.nodes().forEach(x -> vReadings.add(new ReadingModel(x)));
+        p.getNodes().forEach(x -> vReadings.add(new ReadingModel(x, overlay)));
         // Remove the first and last (common) readings
         vReadings.remove(0);
         vReadings.remove(vReadings.size()-1);
         this.setReadings(vReadings);
 
         // Set the "normal" flag appropriately
-        this.setNormal(p.startNode().hasRelationship(ERelations.NSEQUENCE, Direction.OUTGOING));
+        this.setNormal(overlay != null);
 
+        Map<String,Set<String>> vWits = p.getWitnesses();
         // Now add the witnesses / layers that belong to the path, making sure to keep the sigla sorted.
         Map<String, List<String>> endWitnesses = new HashMap<>();
         for (String layer : vWits.keySet()) {
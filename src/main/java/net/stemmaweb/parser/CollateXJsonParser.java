@@ -5,6 +5,7 @@ import net.stemmaweb.rest.Nodes;
 import net.stemmaweb.services.VariantGraphService;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
 import net.stemmaweb.services.ReadingService;
+import net.stemmaweb.services.WitnessSets;
 import org.apache.commons.io.IOUtils;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -113,6 +114,7 @@ public class CollateXJsonParser {
         // Now we have the data in our own model classes; proceed.
         Node traditionNode = VariantGraphService.getTraditionNode(parentNode);
         try (Transaction tx = db.beginTx()) {
+            WitnessSets.Dictionary dictionary = WitnessSets.dictionaryFor(traditionNode);
             // Check that we have all the witnesses
             for (String witString : collationWitnesses) {
                 List<String> wit = parseWitnessSigil(witString);
@@ -168,7 +170,7 @@ public class CollateXJsonParser {
                         distinct++;
                     }
                     Node lastReading = lastWitnessReading.get(thisWitness);
-                    ReadingService.addWitnessLink(lastReading, thisReading, witParts.get(0), witParts.get(1));
+                    ReadingService.addWitnessLink(lastReading, thisReading, witParts.get(0), witParts.get(1), dictionary);
                     lastWitnessReading.put(thisWitness, thisReading);
                 }
                 if (createdReadings.size() > 0) {
@@ -185,7 +187,7 @@ public class CollateXJsonParser {
             for (String witString : collationWitnesses) {
                 List<String> witParts = parseWitnessSigil(witString);
                 Node lastReading = lastWitnessReading.get(witString);
-                ReadingService.addWitnessLink(lastReading, endNode, witParts.get(0), witParts.get(1));
+                ReadingService.addWitnessLink(lastReading, endNode, witParts.get(0), witParts.get(1), dictionary);
             }
             tx.success();
             return Response.status(Response.Status.CREATED).entity(Util.jsonresp("parentId", parentNode.getId())).build();
@@ -5,6 +5,7 @@ import net.stemmaweb.rest.Nodes;
 import net.stemmaweb.rest.RelationType;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
 import net.stemmaweb.services.VariantGraphService;
+import net.stemmaweb.services.WitnessSets;
 import org.neo4j.graphdb.*;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -15,6 +16,7 @@ import javax.ws.rs.core.Response;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -51,6 +53,7 @@ public class CollateXParser {
         }
         Node traditionNode = VariantGraphService.getTraditionNode(parentNode);
         try (Transaction tx = db.beginTx()) {
+            WitnessSets.Dictionary dictionary = WitnessSets.dictionaryFor(traditionNode);
             // Create all the nodes from the graphml nodes
             NodeList readingNodes = rootEl.getElementsByTagName("node");
             HashMap<String,Node> createdReadings = new HashMap<>();
@@ -127,7 +130,7 @@ public class CollateXParser {
                     relation.setProperty("reading_a", source.getProperty("text"));
                     relation.setProperty("reading_b", target.getProperty("text"));
                 } else {
-                    relation.setProperty("witnesses", witnessList);
+                    dictionary.set(relation, "witnesses", Arrays.asList(witnessList));
                 }
 
 
@@ -7,11 +7,15 @@ import net.stemmaweb.rest.*;
 import net.stemmaweb.services.DatabaseService;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
 import net.stemmaweb.services.VariantGraphService;
+import net.stemmaweb.services.WitnessSets;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.Node;
-import org.w3c.dom.*;
 
 import javax.ws.rs.core.Response;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import java.io.InputStream;
 import java.util.*;
 import java.util.stream.Collectors;
@@ -24,10 +28,24 @@ import java.util.stream.Collectors;
 public class GraphMLParser {
     private final GraphDatabaseServiceProvider dbServiceProvider = new GraphDatabaseServiceProvider();
     private final GraphDatabaseService db = dbServiceProvider.getDatabase();
+    private final int batchSize;
+
+    public GraphMLParser() {
+        this(Util.importBatchSize());
+    }
+
+    /**
+     * @param batchSize - the number of entities to create before the transaction is committed
+     */
+    public GraphMLParser(int batchSize) {
+        this.batchSize = batchSize;
+    }
 
     /**
      * Parses a GraphML file representing either an entire tradition, or a single tradition
      * section. Returns the ID of the object (either tradition or section) that was created.
+     * The file is read as a stream and committed in batches; if the import fails, whatever
+     * was already committed is removed again.
      *
      * @param filestream - an InputStream with the XML data
      * @param traditionNode - a Node to represent the tradition this data belongs to
@@ -36,294 +54,327 @@ public class GraphMLParser {
 
     public Response parseGraphML(InputStream filestream, Node traditionNode)
     {
-        // We will use a DOM parser for this
-        Document doc = Util.openFileStream(filestream);
-        if (doc == null)
+        XMLStreamReader reader;
+        try {
+            reader = XMLInputFactory.newInstance().createXMLStreamReader(filestream);
+        } catch (XMLStreamException e) {
+            e.printStackTrace();
             return Response.serverError().entity(Util.jsonerror("No document found")).build();
+        }
 
-        Element rootEl = doc.getDocumentElement();
-        rootEl.normalize();
+        ImportBatch batch = new ImportBatch(db, traditionNode, batchSize);
+        Response result;
+        try {
+            result = importGraph(reader, traditionNode, batch);
+            if (result.getStatus() == Response.Status.CREATED.getStatusCode())
+                batch.finish();
+        } catch (IllegalArgumentException e) {
+            result = Response.status(Response.Status.BAD_REQUEST).entity(Util.jsonerror(e.getMessage())).build();
+        } catch (Exception e) {
+            e.printStackTrace();
+            result = Response.serverError().build();
+        }
+        if (result.getStatus() != Response.Status.CREATED.getStatusCode())
+            batch.rollback();
+        return result;
+    }
 
-        // Get the data keys and their types; the map entries are e.g.
+    private Response importGraph(XMLStreamReader reader, Node traditionNode, ImportBatch batch)
+            throws XMLStreamException {
+        // The data keys and their types; the map entries are e.g.
         // "dn0" -> ["neolabel", "string"]
         HashMap<String, String[]> dataKeys = new HashMap<>();
-        NodeList keyNodes = rootEl.getElementsByTagName("key");
-        for (int i = 0; i < keyNodes.getLength(); i++) {
-            NamedNodeMap keyAttrs = keyNodes.item(i).getAttributes();
-            String[] dataInfo = new String[]{keyAttrs.getNamedItem("attr.name").getNodeValue(),
-                    keyAttrs.getNamedItem("attr.type").getNodeValue()};
-            dataKeys.put(keyAttrs.getNamedItem("id").getNodeValue(), dataInfo);
-        }
 
         String parentId = null;
         String parentLabel = null;
         ArrayList<Node> sectionNodes = new ArrayList<>();
-        ArrayList<Node> witnessNodes = new ArrayList<>();
-        ArrayList<Node> annoLabelNodes = new ArrayList<>();
+        ArrayList<Long> witnessNodes = new ArrayList<>();
+        ArrayList<Long> annoLabelNodes = new ArrayList<>();
         HashSet<String> sigla = new HashSet<>();
-        // Keep track of XML ID to Neo4J ID mapping for all nodes
-        HashMap<String, Node> entityMap = new HashMap<>();
-
-        // Now get to work with node and relationship creation.
-        try (Transaction tx = db.beginTx()) {
-            // The UUID of the tradition that was passed in for parsing
-            String tradId = traditionNode.getProperty("id").toString();
-            NodeList entityNodes = rootEl.getElementsByTagName("node");
-            // Hold back nodes that were labeled by the user rather than the system, such as annotations,
-            // so that we can add them to the graph with the existing verification / sanity checks.
-            ArrayList<org.w3c.dom.Node> userLabeledNodes = new ArrayList<>();
-            ArrayList<org.w3c.dom.Node> userLabeledEdges = new ArrayList<>();
-            for (int i = 0; i < entityNodes.getLength(); i++) {
-                org.w3c.dom.Node entityXML = entityNodes.item(i);
-                NamedNodeMap entityAttrs = entityXML.getAttributes();
-                String xmlId = entityAttrs.getNamedItem("id").getNodeValue();
-                NodeList dataNodes = ((Element) entityXML).getElementsByTagName("data");
-                HashMap<String, Object> nodeProperties = returnProperties(dataNodes, dataKeys);
-                if (!nodeProperties.containsKey("neolabel"))
-                    return Response.status(Response.Status.BAD_REQUEST).entity(Util.jsonerror("Node without label found")).build();
-                String neolabel = nodeProperties.remove("neolabel").toString();
-                String[] entityLabel = neolabel.replace("[", "").replace("]", "").split(",\\s+");
-
-                if (neolabel.contains("TRADITION")) {
-                    // We are apparently parsing a whole tradition.
-                    // If there is already a different tradition with this tradition ID, we are making a
-                    // duplicate and the real ID of this one was set in Root.java; if not, fix our tradition
-                    // node to match the one in the GraphML.
-                    if (parentLabel != null) {
-                        // We apparently have two TRADITION nodes. Abort.
-                        return Response.status(Response.Status.BAD_REQUEST)
-                                .entity(Util.jsonerror("Multiple TRADITION nodes in input")).build();
+        HashSet<String> seenRelationTypes = new HashSet<>();
+        // Readings whose section node hasn't been created yet, with the XML ID of that section
+        HashMap<Long, String> unplacedReadings = new HashMap<>();
+        // Hold back nodes that were labeled by the user rather than the system, such as annotations,
+        // so that we can add them to the graph with the existing verification / sanity checks.
+        ArrayList<DeferredEntity> userLabeledNodes = new ArrayList<>();
+        HashMap<String, List<DeferredEntity>> userLabeledEdges = new HashMap<>();
+        // The witnesses of the sequences are stored through the dictionary of the tradition
+        // we are importing into, since the readings may not be placed in a section yet.
+        WitnessSets.Dictionary dictionary = WitnessSets.dictionaryFor(traditionNode);
+
+        // The UUID of the tradition that was passed in for parsing
+        String tradId = traditionNode.getProperty("id").toString();
+        while (reader.hasNext()) {
+            if (reader.next() != XMLStreamConstants.START_ELEMENT) continue;
+            switch (reader.getLocalName()) {
+                case "key":
+                    String[] dataInfo = new String[]{reader.getAttributeValue("", "attr.name"),
+                            reader.getAttributeValue("", "attr.type")};
+                    dataKeys.put(reader.getAttributeValue("", "id"), dataInfo);
+                    break;
+
+                case "node":
+                    String xmlId = reader.getAttributeValue("", "id");
+                    HashMap<String, Object> nodeProperties = readProperties(reader, "node", dataKeys);
+                    if (!nodeProperties.containsKey("neolabel"))
+                        return Response.status(Response.Status.BAD_REQUEST).entity(Util.jsonerror("Node without label found")).build();
+                    String neolabel = nodeProperties.remove("neolabel").toString();
+                    String[] entityLabel = neolabel.replace("[", "").replace("]", "").split(",\\s+");
+
+                    if (neolabel.contains("TRADITION")) {
+                        // We are apparently parsing a whole tradition.
+                        // If there is already a different tradition with this tradition ID, we are making a
+                        // duplicate and the real ID of this one was set in Root.java; if not, fix our tradition
+                        // node to match the one in the GraphML.
+                        if (parentLabel != null) {
+                            // We apparently have two TRADITION nodes. Abort.
+                            return Response.status(Response.Status.BAD_REQUEST)
+                                    .entity(Util.jsonerror("Multiple TRADITION nodes in input")).build();
+                        }
+
+                        String fileTraditionId = nodeProperties.get("id").toString();
+                        Node existingTradition = db.findNode(Nodes.TRADITION, "id", fileTraditionId);
+                        if (existingTradition == null) {
+                            // Set the ID of the new tradition node to match the old ID.
+                            traditionNode.setProperty("id", fileTraditionId);
+                            tradId = fileTraditionId;
+                        } // else there is another tradition with the original ID, so this is a duplicate
+                        // and needs its new ID.
+
+                        // This node is already created, but we need to reset its properties according to
+                        // what is in the GraphML file. We also save this ID as the parent ID that was created.
+                        for (String p : nodeProperties.keySet())
+                            if (!p.equals("id") && !WitnessSets.isDictionaryProperty(p))
+                                traditionNode.setProperty(p, nodeProperties.get(p));
+                        parentId = tradId;
+                        parentLabel = "tradition";
+                        batch.mapId(xmlId, traditionNode.getId());
+                        break;
                     }
 
-                    String fileTraditionId = nodeProperties.get("id").toString();
-                    Node existingTradition = db.findNode(Nodes.TRADITION, "id", fileTraditionId);
-                    if (existingTradition == null) {
-                        // Set the ID of the new tradition node to match the old ID.
-                        traditionNode.setProperty("id", fileTraditionId);
-                        tradId = fileTraditionId;
-                    } // else there is another tradition with the original ID, so this is a duplicate
-                    // and needs its new ID.
-
-                    // This node is already created, but we need to reset its properties according to
-                    // what is in the GraphML file. We also save this ID as the parent ID that was created.
-                    for (String p : nodeProperties.keySet())
-                        if (!p.equals("id"))
-                            traditionNode.setProperty(p, nodeProperties.get(p));
-                    parentId = tradId;
-                    parentLabel = "tradition";
-                    entityMap.put(xmlId, traditionNode);
-                } else {
+                    Label[] labels = new Label[entityLabel.length];
+                    try {
+                        for (int i = 0; i < entityLabel.length; i++)
+                            labels[i] = Nodes.valueOf(entityLabel[i]);
+                    } catch (IllegalArgumentException e) {
+                        // This is an annotation node, which we will deal with in a separate pass.
+                        userLabeledNodes.add(new DeferredEntity(xmlId, null, null, neolabel, nodeProperties));
+                        break;
+                    }
                     // Now we have the information of the XML, we can create the node.
-                    Node entity = db.createNode();
-                    for (String l : entityLabel) {
-                        try {
-                            entity.addLabel(Nodes.valueOf(l));
-                            nodeProperties.forEach(entity::setProperty);
-                            entityMap.put(xmlId, entity);
-                            // Save section node(s), in case we are uploading individual sections and need to connect
-                            // them to our tradition node
-                            if (neolabel.contains("[SECTION]")) sectionNodes.add(entity);
-                            if (neolabel.contains("[WITNESS]")) witnessNodes.add(entity);
-                            if (neolabel.contains("[ANNOTATIONLABEL]")) annoLabelNodes.add(entity);
-                        } catch (IllegalArgumentException e) {
-                            // This is an annotation node, which we will deal with in a separate pass.
-                            userLabeledNodes.add(entityXML);
-                            entity.delete();
+                    Node entity = batch.createNode(labels);
+                    nodeProperties.forEach(entity::setProperty);
+                    batch.mapId(xmlId, entity.getId());
+                    // Save section node(s), in case we are uploading individual sections and need to connect
+                    // them to our tradition node
+                    if (neolabel.contains("[SECTION]")) sectionNodes.add(entity);
+                    if (neolabel.contains("[WITNESS]")) witnessNodes.add(entity.getId());
+                    if (neolabel.contains("[ANNOTATIONLABEL]")) annoLabelNodes.add(entity.getId());
+                    // Reset the section ID stored on each reading to the ID of the newly created node,
+                    // or remember to do so if the section hasn't been seen yet
+                    if (entity.hasLabel(Nodes.READING)) {
+                        String rSectId = entity.getProperty("section_id").toString();
+                        Node rSection = batch.lookup(rSectId);
+                        if (rSection != null)
+                            entity.setProperty("section_id", rSection.getId());
+                        else
+                            unplacedReadings.put(entity.getId(), rSectId);
+                    }
+                    batch.tick();
+                    break;
+
+                case "edge":
+                    // Create the edges between the nodes. Keep track of the relation types we have seen.
+                    String sourceXmlId = reader.getAttributeValue("", "source");
+                    String targetXmlId = reader.getAttributeValue("", "target");
+                    HashMap<String, Object> edgeProperties = readProperties(reader, "edge", dataKeys);
+                    if (!edgeProperties.containsKey("neolabel"))
+                        return Response.serverError().entity(Util.jsonerror("Node without label found")).build();
+                    String edgeLabel = edgeProperties.remove("neolabel").toString();
+                    // If this is a SEQUENCE relation, track the sigla so we can be sure the witnesses
+                    // exist (they are not exported for sections.)
+                    if (edgeLabel.equals("SEQUENCE")) {
+                        for (String layer : edgeProperties.keySet()) {
+                            sigla.addAll(Arrays.asList((String[]) edgeProperties.get(layer)));
                         }
+                    } else if (edgeLabel.equals("RELATED")) {
+                        if (!edgeProperties.containsKey("type"))
+                            return Response.status(Response.Status.BAD_REQUEST)
+                                    .entity(Util.jsonerror("Relation defined without a type")).build();
+                        seenRelationTypes.add(edgeProperties.get("type").toString());
                     }
-                }
+                    Node source = batch.lookup(sourceXmlId);
+                    Node target = batch.lookup(targetXmlId);
+                    ERelations relType = null;
+                    try {
+                        relType = ERelations.valueOf(edgeLabel);
+                    } catch (IllegalArgumentException e) {
+                        // It is a user-defined relationship label, used in the context of an annotation.
+                    }
+                    if (relType != null && source != null && target != null) {
+                        Relationship newRel = source.createRelationshipTo(target, relType);
+                        if (relType.equals(ERelations.SEQUENCE) || relType.equals(ERelations.NSEQUENCE)) {
+                            Map<String, String[]> witnesses = new HashMap<>();
+                            edgeProperties.forEach((k, v) -> witnesses.put(k, (String[]) v));
+                            dictionary.write(newRel, witnesses);
+                        } else
+                            edgeProperties.forEach(newRel::setProperty);
+                        batch.tick();
+                    } else if (!edgeLabel.equals("HAS_ANNOTATION")) {
+                        // We are here either because we tried to link an annotation (which doesn't yet exist)
+                        // to the tradition via a HAS_ANNOTATION link, which we ignore as we will add these links
+                        // later, or because of a user-defined relationship label, which should be dealt with
+                        // along with its annotation.
+                        userLabeledEdges.computeIfAbsent(sourceXmlId, k -> new ArrayList<>())
+                                .add(new DeferredEntity(null, sourceXmlId, targetXmlId, edgeLabel, edgeProperties));
+                    }
+                    break;
             }
+        }
+        reader.close();
 
-            // Check the parent type
-            if (parentLabel == null) // i.e. if it hasn't been set to "tradition"
-                if (sectionNodes.size() == 0)
-                    return Response.status(Response.Status.BAD_REQUEST)
-                            .entity(Util.jsonerror("Neither TRADITION nor SECTION found in input")).build();
-                else
-                    parentLabel = "section";
-
-            // If we have seen multiple sections but no tradition, error out.
-            if (sectionNodes.size() > 1 && parentLabel.equals("section"))
+        // Check the parent type
+        if (parentLabel == null) // i.e. if it hasn't been set to "tradition"
+            if (sectionNodes.size() == 0)
                 return Response.status(Response.Status.BAD_REQUEST)
-                        .entity(Util.jsonerror("Multiple SECTION nodes but no TRADITION in input")).build();
-
-
-            // Next go through all the edges and create them between the nodes. Keep track of the
-            // relation types we have seen.
-            NodeList edgeNodes = rootEl.getElementsByTagName("edge");
-            HashSet<String> seenRelationTypes = new HashSet<>();
-            for (int i = 0; i < edgeNodes.getLength(); i++) {
-                NamedNodeMap edgeAttrs = edgeNodes.item(i).getAttributes();
-                String sourceXmlId = edgeAttrs.getNamedItem("source").getNodeValue();
-                String targetXmlId = edgeAttrs.getNamedItem("target").getNodeValue();
-                Node source = entityMap.get(sourceXmlId);
-                Node target = entityMap.get(targetXmlId);
-                NodeList dataNodes = ((Element) edgeNodes.item(i)).getElementsByTagName("data");
-                HashMap<String, Object> edgeProperties = returnProperties(dataNodes, dataKeys);
-                if (!edgeProperties.containsKey("neolabel"))
-                    return Response.serverError().entity(Util.jsonerror("Node without label found")).build();
-                String neolabel = edgeProperties.remove("neolabel").toString();
-                // If this is a SEQUENCE relation, track the sigla so we can be sure the witnesses
-                // exist (they are not exported for sections.)
-                if (neolabel.equals("SEQUENCE")) {
-                    for (String layer : edgeProperties.keySet()) {
-                        sigla.addAll(Arrays.asList((String[]) edgeProperties.get(layer)));
-                    }
-                } else if (neolabel.equals("RELATED")) {
-                    if (!edgeProperties.containsKey("type"))
-                        return Response.status(Response.Status.BAD_REQUEST)
-                                .entity(Util.jsonerror("Relation defined without a type")).build();
-                    seenRelationTypes.add(edgeProperties.get("type").toString());
-                }
-                Relationship newRel;
-                try {
-                    newRel = source.createRelationshipTo(target, ERelations.valueOf(neolabel));
-                    edgeProperties.forEach(newRel::setProperty);
-                } catch (IllegalArgumentException e) {
-                    // We are either here because we tried to link an annotation (which doesn't yet exist)
-                    // to the tradition via a HAS_ANNOTATION link, or because we tried to use a user-defined
-                    // relationship label in the context of an annotation.
-                    // If the former, ignore it (we will add these links later); if the latter, add it to
-                    // our list of user-defined entities that should be dealt with later.
-                    if (!neolabel.equals("HAS_ANNOTATION")) userLabeledEdges.add(edgeNodes.item(i));
-                }
+                        .entity(Util.jsonerror("Neither TRADITION nor SECTION found in input")).build();
+            else
+                parentLabel = "section";
+
+        // If we have seen multiple sections but no tradition, error out.
+        if (sectionNodes.size() > 1 && parentLabel.equals("section"))
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(Util.jsonerror("Multiple SECTION nodes but no TRADITION in input")).build();
+
+        // Connect our new section to an existing tradition node, and to the last existing section,
+        // if this is a section-only upload.
+        if (parentLabel.equals("section")) {
+            Node newSection = sectionNodes.get(0);
+            ArrayList<Node> existingSections = VariantGraphService.getSectionNodes(tradId, db);
+            assert (existingSections != null); // We should have already errored if this will be null.
+            if (existingSections.size() > 0) {
+                Node lastExisting = existingSections.get(existingSections.size() - 1);
+                lastExisting.createRelationshipTo(newSection, ERelations.NEXT);
             }
+            traditionNode.createRelationshipTo(newSection, ERelations.PART);
+            parentId = String.valueOf(newSection.getId());
+        }
 
-            // Connect our new section to an existing tradition node, and to the last existing section,
-            // if this is a section-only upload.
-            if (parentLabel.equals("section")) {
-                Node newSection = sectionNodes.get(0);
-                ArrayList<Node> existingSections = VariantGraphService.getSectionNodes(tradId, db);
-                assert (existingSections != null); // We should have already errored if this will be null.
-                if (existingSections.size() > 0) {
-                    Node lastExisting = existingSections.get(existingSections.size() - 1);
-                    lastExisting.createRelationshipTo(newSection, ERelations.NEXT);
-                }
-                traditionNode.createRelationshipTo(newSection, ERelations.PART);
-                parentId = String.valueOf(newSection.getId());
-            }
+        // Check any witness nodes we created and connect them to the tradition node if they wouldn't
+        // be duplicates
+        for (Long wId : witnessNodes) {
+            Node w = db.getNodeById(wId);
+            if (!witnessExists(traditionNode, w) && w.getProperty("hypothetical").equals(false))
+                traditionNode.createRelationshipTo(w, ERelations.HAS_WITNESS);
+        }
 
-            // Check any witness nodes we created and connect them to the tradition node if they wouldn't
-            // be duplicates
-            for (Node w : witnessNodes) {
-                if (!witnessExists(traditionNode, w) && w.getProperty("hypothetical").equals(false))
-                    traditionNode.createRelationshipTo(w, ERelations.HAS_WITNESS);
+        // Check any annotation label nodes & associates we created and connect them to the tradition
+        // node if they wouldn't be duplicates
+        for (Long alId : annoLabelNodes) {
+            Node al = db.getNodeById(alId);
+            if (!annoLabelExists(traditionNode, al)) {
+                traditionNode.createRelationshipTo(al, ERelations.HAS_ANNOTATION_TYPE);
+            } else {
+                // This is a redundant annotation label, so delete it as well as its links and properties.
+                al.getRelationships(Direction.OUTGOING).forEach(x -> {
+                    batch.delete(x.getEndNode());
+                    x.delete();
+                });
+                batch.delete(al);
             }
+        }
 
-            // Check any annotation label nodes & associates we created and connect them to the tradition
-            // node if they wouldn't be duplicates
-            for (Node al : annoLabelNodes) {
-                if (!annoLabelExists(traditionNode, al)) {
-                    traditionNode.createRelationshipTo(al, ERelations.HAS_ANNOTATION_TYPE);
-                } else {
-                    // This is a redundant annotation label, so delete it as well as its links and properties.
-                    al.getRelationships(Direction.OUTGOING).forEach(x -> {
-                        x.getEndNode().delete();
-                        x.delete();
-                    });
-                    al.delete();
-                }
-            }
+        // Set the section IDs on any readings that came before their section in the file
+        for (Map.Entry<Long, String> unplaced : unplacedReadings.entrySet()) {
+            Node rSection = batch.lookup(unplaced.getValue());
+            if (rSection == null)
+                return Response.status(Response.Status.BAD_REQUEST)
+                        .entity(Util.jsonerror("Reading found for nonexistent section " + unplaced.getValue())).build();
+            db.getNodeById(unplaced.getKey()).setProperty("section_id", rSection.getId());
+            batch.tick();
+        }
 
-            // Reset the section IDs stored on each reading to the ID of the newly created node
-            for (Node r : entityMap.values().stream().filter(x -> x.hasLabel(Nodes.READING)).collect(Collectors.toList())) {
-                String rSectId = r.getProperty("section_id").toString();
-                r.setProperty("section_id", entityMap.get(rSectId).getId());
-            }
+        // Ensure that all witnesses we have encountered actually exist.
+        for (String sigil : sigla) {
+            batch.extant(sigil);
+        }
 
-            // Ensure that all witnesses we have encountered actually exist.
-            for (String sigil : sigla) {
-                Util.findOrCreateExtant(traditionNode, sigil);
+        // Ensure that all the relation types we have encountered actually exist.
+        ArrayList<String> existingTypes = new ArrayList<>();
+        traditionNode.getRelationships(ERelations.HAS_RELATION_TYPE, Direction.OUTGOING)
+                .forEach(x -> existingTypes.add(x.getEndNode().getProperty("name").toString()));
+        for (String rtype : seenRelationTypes) {
+            if (!existingTypes.contains(rtype)) {
+                Response rtResult = new RelationType(tradId, rtype).makeDefaultType();
+                if (rtResult.getStatus() == Response.Status.INTERNAL_SERVER_ERROR.getStatusCode())
+                    return rtResult;
+                if (rtResult.getStatus() == Response.Status.CREATED.getStatusCode())
+                    batch.recordRelationType(rtype);
             }
+        }
 
-            // Ensure that all the relation types we have encountered actually exist.
-            ArrayList<String> existingTypes = new ArrayList<>();
-            traditionNode.getRelationships(ERelations.HAS_RELATION_TYPE, Direction.OUTGOING)
-                    .forEach(x -> existingTypes.add(x.getEndNode().getProperty("name").toString()));
-            for (String rtype : seenRelationTypes) {
-                if (!existingTypes.contains(rtype)) {
-                    Response rtResult = new RelationType(tradId, rtype).makeDefaultType();
-                    if (rtResult.getStatus() == Response.Status.INTERNAL_SERVER_ERROR.getStatusCode())
-                        return rtResult;
-                }
+        // Now add user-labeled nodes separately, via the existing validation infrastructure.
+        List<AnnotationModel> annotationsToAdd = new ArrayList<>();
+        for (DeferredEntity xn : userLabeledNodes) {
+            AnnotationModel am = new AnnotationModel();
+            HashMap<String,Object> props = xn.properties;
+            // We already know from the first pass that this label exists
+            String annLabel = xn.label.substring(1, xn.label.length() - 1);
+            // Is it marked as a primary annotation?
+            boolean isPrimary = props.containsKey("__primary")
+                    && props.remove("__primary").toString().equals("true");
+            // Fill out the annotation model
+            am.setLabel(annLabel);
+            am.setPrimary(isPrimary);
+            am.setProperties(props);
+            // Add the links, from our collected edges
+            for (DeferredEntity xe : userLabeledEdges.getOrDefault(xn.id, Collections.emptyList())) {
+                // It is a link that belongs to this source. For now set the XML element ID as the
+                // target; this will need to be converted progressively into real node IDs.
+                AnnotationLinkModel alm = new AnnotationLinkModel();
+                alm.setTarget(Long.valueOf(xe.target));
+                alm.setType(xe.label);
+                if (xe.properties.containsKey("follow")) alm.setFollow(xe.properties.get("follow").toString());
+                am.addLink(alm);
             }
-
-            // Now add user-labeled nodes separately, via the existing validation infrastructure.
-            List<AnnotationModel> annotationsToAdd = new ArrayList<>();
-            for (org.w3c.dom.Node xn : userLabeledNodes) {
-                AnnotationModel am = new AnnotationModel();
-                // Get the properties on this annotation node.
-                HashMap<String,Object> props = returnProperties(((Element) xn).getElementsByTagName("data"), dataKeys);
-                // We already know from the first pass that this label exists
-                String annLabel = props.remove("neolabel").toString();
-                annLabel = annLabel.substring(1, annLabel.length() - 1);
-                // Is it marked as a primary annotation?
-                boolean isPrimary = props.containsKey("__primary")
-                        && props.remove("__primary").toString().equals("true");
-                // Fill out the annotation model
-                am.setLabel(annLabel);
-                am.setPrimary(isPrimary);
-                am.setProperties(props);
-                // Add the links, from our collected edges
-                for (org.w3c.dom.Node xe : userLabeledEdges) {
-                    NamedNodeMap edgeAttrs = xe.getAttributes();
-                    String sourceXmlId = edgeAttrs.getNamedItem("source").getNodeValue();
-                    String targetXmlId = edgeAttrs.getNamedItem("target").getNodeValue();
-                    HashMap<String,Object> edgeProps = returnProperties(((Element) xe).getElementsByTagName("data"), dataKeys);
-                    if (sourceXmlId.equals(((Element) xn).getAttribute("id"))) {
-                        // It is a link that belongs to this source. For now set the XML element ID as the
-                        // target; this will need to be converted progressively into real node IDs.
-                        AnnotationLinkModel alm = new AnnotationLinkModel();
-                        alm.setTarget(Long.valueOf(targetXmlId));
-                        alm.setType(edgeProps.get("neolabel").toString());
-                        if (edgeProps.containsKey("follow")) alm.setFollow(edgeProps.get("follow").toString());
-                        am.addLink(alm);
-                    }
+            annotationsToAdd.add(am);
+        }
+        while (annotationsToAdd.size() > 0) {
+            Tradition tradService = new Tradition(tradId);
+            List<AnnotationModel> toRemove = new ArrayList<>();
+            for (AnnotationModel am : annotationsToAdd) {
+                // Look at the links and see if the targets exist yet
+                boolean targetsExist = true;
+                for (Long target : am.getLinks().stream().map(AnnotationLinkModel::getTarget).collect(Collectors.toList())) {
+                    targetsExist = targetsExist && batch.hasId(target.toString());
                 }
-                annotationsToAdd.add(am);
-            }
-            while (annotationsToAdd.size() > 0) {
-                Tradition tradService = new Tradition(tradId);
-                List<AnnotationModel> toRemove = new ArrayList<>();
-                for (AnnotationModel am : annotationsToAdd) {
-                    // Look at the links and see if the targets exist yet
-                    boolean targetsExist = true;
-                    for (Long target : am.getLinks().stream().map(AnnotationLinkModel::getTarget).collect(Collectors.toList())) {
-                        targetsExist = targetsExist && entityMap.containsKey(target.toString());
+                if (targetsExist) {
+                    // We can update the links with the "real" nodes and create the annotation.
+                    for (AnnotationLinkModel alm : am.getLinks()) {
+                        Node nodeTarget = batch.lookup(alm.getTarget().toString());
+                        alm.setTarget(nodeTarget.getId());
                     }
-                    if (targetsExist) {
-                        // We can update the links with the "real" nodes and create the annotation.
-                        for (AnnotationLinkModel alm : am.getLinks()) {
-                            Node nodeTarget = entityMap.get(alm.getTarget().toString());
-                            alm.setTarget(nodeTarget.getId());
-                        }
-                        Response result = tradService.addAnnotation(am);
-                        if (result.getStatus() != Response.Status.CREATED.getStatusCode()) {
-                            throw new UnsupportedOperationException(String.format(
-                                    "Error on adding user annotation %s/%s: %s",
-                                    am.getId(), am.getLabel(), result.getEntity()));
-                        }
-                        toRemove.add(am);
+                    Response result = tradService.addAnnotation(am);
+                    if (result.getStatus() != Response.Status.CREATED.getStatusCode()) {
+                        throw new UnsupportedOperationException(String.format(
+                                "Error on adding user annotation %s/%s: %s",
+                                am.getId(), am.getLabel(), result.getEntity()));
                     }
+                    batch.record(db.getNodeById(Long.valueOf(((AnnotationModel) result.getEntity()).getId())));
+                    toRemove.add(am);
+                    batch.tick();
                 }
-                // Guard against infinite loops
-                if (toRemove.isEmpty())
-                    return Response.status(Response.Status.BAD_REQUEST)
-                            .entity(Util.jsonerror("Annotations in XML could not all be resolved")).build();
-                annotationsToAdd.removeAll(toRemove);
             }
-
-            // Sanity check: if we created any relationship-less nodes, delete them again.
-            entityMap.values().stream().filter(n -> !n.hasRelationship()).forEach(Node::delete);
-
-            tx.success();
-        } catch (IllegalArgumentException e) {
-            return Response.status(Response.Status.BAD_REQUEST).entity(Util.jsonerror(e.getMessage())).build();
-        } catch (Exception e) {
-            e.printStackTrace();
-            return Response.serverError().build();
+            // Guard against infinite loops
+            if (toRemove.isEmpty())
+                return Response.status(Response.Status.BAD_REQUEST)
+                        .entity(Util.jsonerror("Annotations in XML could not all be resolved")).build();
+            annotationsToAdd.removeAll(toRemove);
         }
 
+        // Sanity check: if we created any relationship-less nodes, delete them again.
+        batch.removeUnlinked();
+
         String response = String.format("{\"parentId\":\"%s\",\"parentLabel\":\"%s\"}", parentId, parentLabel);
         return Response.status(Response.Status.CREATED).entity(response).build();
     }
@@ -367,12 +418,18 @@ public class GraphMLParser {
         // If we didn't throw any errors then we can continue.
         return true;
     }
-    private HashMap<String, Object> returnProperties (NodeList dataNodes, HashMap<String, String[]> dataKeys) {
+    // Read the data elements of the current node or edge, up to its end tag.
+    private HashMap<String, Object> readProperties (XMLStreamReader reader, String element,
+                                                    HashMap<String, String[]> dataKeys) throws XMLStreamException {
         HashMap<String, Object> nodeProperties = new HashMap<>();
-        for (int j = 0; j < dataNodes.getLength(); j++) {
-            org.w3c.dom.Node datumXML = dataNodes.item(j);
-            String keyCode = datumXML.getAttributes().getNamedItem("key").getNodeValue();
-            String keyVal = datumXML.getTextContent();
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals(element))
+                break;
+            if (event != XMLStreamConstants.START_ELEMENT || !reader.getLocalName().equals("data"))
+                continue;
+            String keyCode = reader.getAttributeValue("", "key");
+            String keyVal = reader.getElementText();
             String[] keyInfo = dataKeys.get(keyCode);
             Object propValue;
             // These datatypes need to be kept in sync with exporter.GraphMLExporter
@@ -395,4 +452,22 @@ public class GraphMLParser {
         return nodeProperties;
     }
 
+    // A node or edge that can only be created once the rest of the graph exists
+    private static class DeferredEntity {
+        private final String id;
+        private final String source;
+        private final String target;
+        private final String label;
+        private final HashMap<String, Object> properties;
+
+        private DeferredEntity(String id, String source, String target, String label,
+                               HashMap<String, Object> properties) {
+            this.id = id;
+            this.source = source;
+            this.target = target;
+            this.label = label;
+            this.properties = properties;
+        }
+    }
+
 }
@@ -0,0 +1,249 @@
+package net.stemmaweb.parser;
+
+import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.services.DatabaseService;
+import net.stemmaweb.services.LongLongMap;
+import net.stemmaweb.services.WitnessSets;
+import org.neo4j.graphdb.*;
+
+import java.util.*;
+
+/**
+ * Keeps the transaction state for a streaming import. The transaction is committed and
+ * renewed every time the given number of entities has been created, so that a large file
+ * never needs to be held in a single transaction. Since this means that a failed import
+ * can no longer simply be rolled back, the nodes that are created along the way are
+ * recorded, so that they can be removed again. Removing a node takes its relationships
+ * with it, so anything else in the tradition is left alone.
+ */
+class ImportBatch {
+    private final GraphDatabaseService db;
+    private final int batchSize;
+    private final Node traditionNode;
+    private Transaction tx;
+    private int pending = 0;
+
+    // The nodes created in the course of the import, and those of them that the import
+    // itself has since removed
+    private long[] created = new long[1024];
+    private int createdCount = 0;
+    private final Set<Long> discarded = new HashSet<>();
+    // The mapping of XML IDs to node IDs. Our own exports use numeric IDs; anything else
+    // goes into the fallback map.
+    private final LongLongMap numericIds = new LongLongMap(1024);
+    private final HashMap<String, Long> otherIds = new HashMap<>();
+    // The state of the tradition before the import, to restore on failure
+    private final Map<String, Object> traditionProperties;
+    private final Set<Long> existingWitnesses = new HashSet<>();
+
+    /**
+     * Starts the first transaction of the import.
+     *
+     * @param db            - the GraphDatabaseService to import into
+     * @param traditionNode - the tradition that is being imported into
+     * @param batchSize     - the number of entities to create per transaction
+     */
+    ImportBatch(GraphDatabaseService db, Node traditionNode, int batchSize) {
+        this.db = db;
+        this.batchSize = batchSize;
+        this.traditionNode = traditionNode;
+        tx = db.beginTx();
+        traditionProperties = traditionNode.getAllProperties();
+        DatabaseService.getRelated(traditionNode, ERelations.HAS_WITNESS)
+                .forEach(x -> existingWitnesses.add(x.getId()));
+    }
+
+    /**
+     * Creates a node and records it for removal, in case the import fails.
+     *
+     * @param labels - the labels of the node
+     * @return the new node
+     */
+    Node createNode(Label... labels) {
+        Node n = db.createNode(labels);
+        record(n);
+        return n;
+    }
+
+    /**
+     * Records a node that was created elsewhere for removal, in case the import fails.
+     *
+     * @param n - the node
+     */
+    void record(Node n) {
+        if (createdCount == created.length)
+            created = Arrays.copyOf(created, createdCount * 2);
+        created[createdCount++] = n.getId();
+    }
+
+    /**
+     * Finds or creates the extant witness with the given sigil, and records it for removal
+     * if it is new.
+     *
+     * @param sigil - the witness sigil
+     * @return the witness node
+     */
+    Node extant(String sigil) {
+        Node w = Util.findOrCreateExtant(traditionNode, sigil);
+        if (!existingWitnesses.contains(w.getId())) {
+            existingWitnesses.add(w.getId());
+            record(w);
+        }
+        return w;
+    }
+
+    /**
+     * Records the relation type of the given name for removal; to be called when the import
+     * has just created it.
+     *
+     * @param name - the name of the relation type
+     */
+    void recordRelationType(String name) {
+        for (Relationship r : traditionNode.getRelationships(ERelations.HAS_RELATION_TYPE, Direction.OUTGOING))
+            if (r.getEndNode().getProperty("name").equals(name))
+                record(r.getEndNode());
+    }
+
+    /**
+     * Notes that a created node has been removed again by the import, so that its ID, which
+     * might by now belong to someone else's node, is left alone on rollback.
+     *
+     * @param n - the node, which may already have been deleted
+     */
+    void discard(Node n) {
+        discarded.add(n.getId());
+    }
+
+    /**
+     * Deletes a created node, and forgets it.
+     *
+     * @param n - the node
+     */
+    void delete(Node n) {
+        discard(n);
+        n.delete();
+    }
+
+    void mapId(String xmlId, long nodeId) {
+        Long numeric = asNumber(xmlId);
+        if (numeric != null)
+            numericIds.put(numeric, nodeId);
+        else
+            otherIds.put(xmlId, nodeId);
+    }
+
+    /**
+     * Looks up the node that was created for the given XML ID.
+     *
+     * @param xmlId - the ID in the import file
+     * @return the node, or null if none has been created
+     */
+    Node lookup(String xmlId) {
+        Long numeric = asNumber(xmlId);
+        long nodeId = numeric != null ? numericIds.get(numeric, -1L) : otherIds.getOrDefault(xmlId, -1L);
+        return nodeId < 0 ? null : db.getNodeById(nodeId);
+    }
+
+    boolean hasId(String xmlId) {
+        Long numeric = asNumber(xmlId);
+        return numeric != null ? numericIds.containsKey(numeric) : otherIds.containsKey(xmlId);
+    }
+
+    /**
+     * Notes that an entity has been created, and commits the transaction if the batch is full.
+     * Must not be called while a nested transaction is open.
+     */
+    void tick() {
+        if (++pending >= batchSize) {
+            tx.success();
+            tx.close();
+            tx = db.beginTx();
+            pending = 0;
+        }
+    }
+
+    /**
+     * Deletes any of the created nodes that didn't end up linked to anything.
+     */
+    void removeUnlinked() {
+        for (int i = 0; i < createdCount; i++) {
+            try {
+                Node n = db.getNodeById(created[i]);
+                if (!n.hasRelationship()) delete(n);
+            } catch (NotFoundException e) {
+                // It was already removed in the course of the import.
+            }
+            tick();
+        }
+    }
+
+    /**
+     * Commits the last batch of the import.
+     */
+    void finish() {
+        try {
+            tx.success();
+            tx.close();
+        } finally {
+            tx = null;
+        }
+    }
+
+    /**
+     * Discards the current batch and removes everything that earlier batches committed:
+     * the nodes that were created, along with all their relationships. The tradition
+     * properties are set back to what they were, apart from the witness dictionary, which
+     * only ever grows and may by now be in use by other links.
+     */
+    void rollback() {
+        if (tx != null) {
+            try {
+                tx.failure();
+                tx.close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            tx = null;
+        }
+
+        try (Transaction cleanup = db.beginTx()) {
+            for (String p : traditionNode.getPropertyKeys())
+                if (!traditionProperties.containsKey(p) && !WitnessSets.isDictionaryProperty(p))
+                    traditionNode.removeProperty(p);
+            traditionProperties.forEach((k, v) -> {
+                if (!WitnessSets.isDictionaryProperty(k))
+                    traditionNode.setProperty(k, v);
+            });
+            cleanup.success();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        int i = 0;
+        while (i < createdCount) {
+            try (Transaction cleanup = db.beginTx()) {
+                for (int j = 0; j < batchSize && i < createdCount; i++) {
+                    if (discarded.contains(created[i])) continue;
+                    try {
+                        Node n = db.getNodeById(created[i]);
+                        n.getRelationships().forEach(Relationship::delete);
+                        n.delete();
+                        j++;
+                    } catch (NotFoundException e) {
+                        // It was already removed in the course of the rollback.
+                    }
+                }
+                cleanup.success();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static Long asNumber(String xmlId) {
+        if (xmlId == null || xmlId.isEmpty() || xmlId.length() > 18) return null;
+        for (int i = 0; i < xmlId.length(); i++)
+            if (!Character.isDigit(xmlId.charAt(i))) return null;
+        return Long.valueOf(xmlId);
+    }
+}
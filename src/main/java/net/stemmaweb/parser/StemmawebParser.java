@@ -18,6 +18,7 @@ import net.stemmaweb.rest.RelationType;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
 import net.stemmaweb.services.ReadingService;
 import net.stemmaweb.services.VariantGraphService;
+import net.stemmaweb.services.WitnessSets;
 import org.neo4j.graphdb.*;
 
 /**
@@ -28,6 +29,18 @@ import org.neo4j.graphdb.*;
 public class StemmawebParser {
     private final GraphDatabaseServiceProvider dbServiceProvider = new GraphDatabaseServiceProvider();
     private final GraphDatabaseService db = dbServiceProvider.getDatabase();
+    private final int batchSize;
+
+    public StemmawebParser() {
+        this(Util.importBatchSize());
+    }
+
+    /**
+     * @param batchSize - the number of entities to create before the transaction is committed
+     */
+    public StemmawebParser(int batchSize) {
+        this.batchSize = batchSize;
+    }
 
     /* public Response parseGraphML(String filename, Node parentNode)
         throws FileNotFoundException {
@@ -39,6 +52,8 @@ public class StemmawebParser {
     /**
      * Reads xml file input stream and imports it into Neo4J Database. This method assumes
      * that the GraphML describes a valid graph as exported from the legacy Stemmaweb.
+     * The import is committed in batches; if it fails, whatever was already committed
+     * is removed again.
      *
      * @param xmldata - the GraphML file stream
      * @param parentNode - the node to which the collation should be attached
@@ -61,7 +76,6 @@ public class StemmawebParser {
         String tradId;
 
         // Some variables to collect information
-        HashMap<String, Long> idToNeo4jId = new HashMap<>();
         HashMap<String, String> keymap = new HashMap<>();   // to store data key mappings
         HashMap<String, String> keytypes = new HashMap<>(); // to store data key value types
         HashMap<String, Boolean> witnesses = new HashMap<>();  // to store witnesses found
@@ -75,8 +89,10 @@ public class StemmawebParser {
         String edgeWitness = null;
         String witnessClass = "witnesses";
 
-        try (Transaction tx = db.beginTx()) {
+        ImportBatch batch = new ImportBatch(db, traditionNode, batchSize);
+        try {
             tradId = traditionNode.getProperty("id").toString();
+            WitnessSets.Dictionary dictionary = WitnessSets.dictionaryFor(traditionNode);
             outer:
             while (true) {
                 // START READING THE GRAPHML FILE
@@ -91,12 +107,14 @@ public class StemmawebParser {
                                 break;
                             case "node":
                                 // Finished working on currentNode
+                                if (currentNode != null && !currentNode.equals(traditionNode))
+                                    batch.tick();
                                 currentNode = null;
                                 break;
                             case "edge":
                                 assert currentRelModel != null;
-                                Node from = db.getNodeById(idToNeo4jId.get(currentRelModel.getSource()));
-                                Node to = db.getNodeById(idToNeo4jId.get(currentRelModel.getTarget()));
+                                Node from = batch.lookup(currentRelModel.getSource());
+                                Node to = batch.lookup(currentRelModel.getTarget());
 
                                 ERelations relKind = (currentRelModel.getType() != null) ?
                                         ERelations.RELATED : ERelations.SEQUENCE;
@@ -107,12 +125,14 @@ public class StemmawebParser {
                                     for (Relationship qr : from.getRelationships(relKind, Direction.BOTH)) {
                                         if (qr.getStartNode().equals(to) || qr.getEndNode().equals(to)) {
                                             // If a RELATED link already exists, we have a problem.
-                                            if (relKind.equals(ERelations.RELATED))
+                                            if (relKind.equals(ERelations.RELATED)) {
+                                                batch.rollback();
                                                 return Response.status(Response.Status.BAD_REQUEST)
                                                         .entity(Util.jsonerror("Error: Tradition specifies the reading relation " +
                                                                 currentRelModel.getScope() + " -- " + currentRelModel.getTarget() +
                                                                 "twice"))
                                                         .build();
+                                            }
                                             // It's a SEQUENCE link, so we are good.
                                             relship = qr;
                                             break;
@@ -131,9 +151,13 @@ public class StemmawebParser {
                                         // Make sure this relationship type exists
                                         if (!relationtypes.contains(typeName)) {
                                             Response rtResult = new RelationType(tradId, typeName).makeDefaultType();
-                                            if (rtResult.getStatus() == Response.Status.INTERNAL_SERVER_ERROR.getStatusCode())
+                                            if (rtResult.getStatus() == Response.Status.INTERNAL_SERVER_ERROR.getStatusCode()) {
+                                                batch.rollback();
                                                 return rtResult;
-                                            else relationtypes.add(typeName);
+                                            }
+                                            if (rtResult.getStatus() == Response.Status.CREATED.getStatusCode())
+                                                batch.recordRelationType(typeName);
+                                            relationtypes.add(typeName);
                                         }
                                     }
                                     if (currentRelModel.getA_derivable_from_b() != null)
@@ -154,16 +178,12 @@ public class StemmawebParser {
                                     // If this is an edge relationship, record the witness information
                                     // either in "witnesses" or in the field indicated by "extra"
 
-                                    String[] witList = {};
-                                    if (relship.hasProperty(witnessClass))
-                                        witList = (String[]) relship.getProperty(witnessClass);
-                                    ArrayList<String> currentWits = new ArrayList<>(Arrays.asList(witList));
-                                    currentWits.add(edgeWitness);
-                                    relship.setProperty(witnessClass, currentWits.toArray(new String[0]));
+                                    dictionary.add(relship, edgeWitness, witnessClass);
                                 }
                                 // Finished working on currentRel
                                 witnessClass = "witnesses";
                                 currentRelModel = null;
+                                batch.tick();
                                 break;
                         }
                         break;
@@ -287,10 +307,10 @@ public class StemmawebParser {
                                 assert(currentGraph != null);
                                 if (!currentGraph.equals("relationships")) {
                                     // only store nodes for the sequence graph
-                                    currentNode = db.createNode(Nodes.READING);
+                                    currentNode = batch.createNode(Nodes.READING);
                                     currentNode.setProperty("section_id", parentNode.getId());
                                     String nodeId = reader.getAttributeValue("", "id");
-                                    idToNeo4jId.put(nodeId, currentNode.getId());
+                                    batch.mapId(nodeId, currentNode.getId());
                                 }
                                 break;
                             case "key":
@@ -316,14 +336,16 @@ public class StemmawebParser {
             VariantGraphService.calculateCommon(parentNode);
 
             // Create the witness nodes.
-            witnesses.keySet().forEach(x -> Util.findOrCreateExtant(traditionNode, x));
+            witnesses.keySet().forEach(batch::extant);
             // Set colocation information on relation types
             Util.setColocationFlags(traditionNode);
-            tx.success();
+            batch.finish();
         } catch (IllegalArgumentException e) {
+            batch.rollback();
             return Response.status(Response.Status.BAD_REQUEST).entity(Util.jsonerror(e.getMessage())).build();
         } catch(Exception e) {
             e.printStackTrace();
+            batch.rollback();
 
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
                     .entity(Util.jsonerror("Error: Tradition could not be imported!"))
@@ -5,6 +5,7 @@ import net.stemmaweb.rest.*;
 import net.stemmaweb.services.DatabaseService;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
 import net.stemmaweb.services.VariantGraphService;
+import net.stemmaweb.services.WitnessSets;
 import org.neo4j.graphdb.*;
 
 import javax.ws.rs.core.Response;
@@ -26,6 +27,10 @@ import static net.stemmaweb.services.ReadingService.removePlaceholder;
 public class TEIParallelSegParser {
     private GraphDatabaseServiceProvider dbServiceProvider = new GraphDatabaseServiceProvider();
     private GraphDatabaseService db = dbServiceProvider.getDatabase();
+    private final int batchSize;
+    // The transaction state of the import
+    private ImportBatch batch;
+    private WitnessSets.Dictionary dictionary;
 
     // Global variables needed for the parsing
     // Keep track of which witnesses are "active" at any given time
@@ -36,6 +41,26 @@ public class TEIParallelSegParser {
     private Boolean appSiglorumPresent = false;
     private Boolean spaceSignificant = false;
 
+    public TEIParallelSegParser() {
+        this(Util.importBatchSize());
+    }
+
+    /**
+     * @param batchSize - the number of entities to create before the transaction is committed
+     */
+    public TEIParallelSegParser(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Parses a TEI parallel-segmentation file into the given section. The readings are
+     * committed in batches; if the import fails, whatever was already committed is removed
+     * again.
+     *
+     * @param xmldata - an InputStream with the XML data
+     * @param parentNode - the section node the readings belong to
+     * @return a Response object carrying a JSON dictionary {"parentId": <ID>}
+     */
     public Response parseTEIParallelSeg(InputStream xmldata, Node parentNode) {
         XMLInputFactory factory;
         XMLStreamReader reader;
@@ -55,11 +80,14 @@ public class TEIParallelSegParser {
         String parentId;
         Node startNode;
         Node endNode = null;
-        try (Transaction tx = db.beginTx()) {
+        batch = new ImportBatch(db, traditionNode, batchSize);
+        dictionary = WitnessSets.dictionaryFor(traditionNode);
+        try {
             parentId = String.valueOf(parentNode.getId());
             tradId = traditionNode.getProperty("id").toString();
             // Set up the start node
             startNode = Util.createStartNode(parentNode);
+            batch.record(startNode);
 
             // State variables
             boolean inHeader = false;
@@ -89,11 +117,15 @@ public class TEIParallelSegParser {
                             case "text":
                                 // End of the text; add the end node.
                                 endNode = Util.createEndNode(parentNode);
+                                batch.record(endNode);
                                 // endNode.setProperty("rank", 0L);
                                 Relationship endLink = documentPrior.createRelationshipTo(endNode, ERelations.SEQUENCE);
                                 setAllWitnesses(endLink);
                                 // Now go through and clean out all the placeholder nodes, linking the tradition.
-                                for (Node n : placeholderNodes) removePlaceholder(n);
+                                for (Node n : placeholderNodes) {
+                                    batch.discard(n);
+                                    removePlaceholder(n, dictionary);
+                                }
                                 break;
 
                         }
@@ -110,7 +142,7 @@ public class TEIParallelSegParser {
                             case "witness":
                                 if(inHeader) {
                                     String sigil = reader.getAttributeValue(reader.getNamespaceURI("xml"), "id");
-                                    Util.findOrCreateExtant(traditionNode, sigil);
+                                    batch.extant(sigil);
                                     // All witnesses start active by default; if we encounter a witStart
                                     // we will start to use an explicit app siglorum.
                                     activeWitnesses.put(sigil, true);
@@ -135,6 +167,7 @@ public class TEIParallelSegParser {
 
                             case "app":
                                 documentPrior = parseApp(reader, parentNode.getId(), documentPrior, false);
+                                batch.tick();
                                 break;
 
                             case "note":
@@ -158,19 +191,20 @@ public class TEIParallelSegParser {
                                 Node chainEnd = createPlaceholderNode("chainEnd");
                                 Relationship ceRel = chain.get(chain.size()-1)
                                         .createRelationshipTo(chainEnd, ERelations.SEQUENCE);
-                                ceRel.setProperty("witnesses", readingWitnesses.toArray(new String[0]));
+                                dictionary.set(ceRel, "witnesses", readingWitnesses);
                                 // Link inactive witnesses straight from placeholder to placeholder
                                 ArrayList<String> inactiveWitnesses = activeWitnesses.keySet().stream()
                                         .filter(x -> !activeWitnesses.get(x)).collect(Collectors.toCollection(ArrayList::new));
                                 for (String w : inactiveWitnesses)
-                                    addWitnessLink(documentPrior, chainEnd, w, "witnesses");
+                                    addWitnessLink(documentPrior, chainEnd, w, "witnesses", dictionary);
 
                                 // Link the beginning of the chain to the documentPrior
                                 Relationship link = documentPrior.createRelationshipTo(chain.get(0), ERelations.SEQUENCE);
-                                link.setProperty("witnesses", readingWitnesses.toArray(new String[0]));
+                                dictionary.set(link, "witnesses", readingWitnesses);
 
                                 // The end of the chain is the new documentPrior
                                 documentPrior = chainEnd;
+                                batch.tick();
                             }
                         }
                         break;
@@ -181,14 +215,16 @@ public class TEIParallelSegParser {
             recalculateRank(startNode);
             // Calculate which nodes are common
             VariantGraphService.calculateCommon(parentNode);
-            tx.success();
+            batch.finish();
         } catch (IllegalArgumentException e) {
+            batch.rollback();
             return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
         } catch (Exception e) {
             System.out.println(String.format("Error encountered in XML line %d column %d: ",
                     reader.getLocation().getLineNumber(),
                     reader.getLocation().getColumnNumber()));
             e.printStackTrace();
+            batch.rollback();
             return Response.serverError().build();
         }
 
@@ -257,11 +293,11 @@ public class TEIParallelSegParser {
                                     ArrayList<String> inactiveWitnesses = activeWitnesses.keySet().stream()
                                             .filter(x -> !activeWitnesses.get(x)).collect(Collectors.toCollection(ArrayList::new));
                                     for (String w : inactiveWitnesses)
-                                        addWitnessLink(appStart, appEnd, w, "witnesses");
+                                        addWitnessLink(appStart, appEnd, w, "witnesses", dictionary);
                                 } else {
                                     // Connect only the current active witnesses from the enclosing app to this one
-                                    r.setProperty("witnesses", activeWitnesses.keySet().stream()
-                                            .filter(activeWitnesses::get).toArray(String[]::new));
+                                    dictionary.set(r, "witnesses", activeWitnesses.keySet().stream()
+                                            .filter(activeWitnesses::get).collect(Collectors.toList()));
                                     // and app start-to-end should be entirely via the readings.
                                 }
 
@@ -273,12 +309,11 @@ public class TEIParallelSegParser {
                                         ERelations.SEQUENCE, Direction.OUTGOING);
                                 // Note the witness links that already exist in this app
                                 for (Relationship rel : outgoing)
-                                    if (rel.hasProperty("witnesses"))
-                                        Collections.addAll(hasWitnesses, (String[]) rel.getProperty("witnesses"));
+                                    Collections.addAll(hasWitnesses, dictionary.get(rel, "witnesses"));
                                 // Add any active wits that are missing in this app
                                 activeWitnesses.keySet().stream().filter(activeWitnesses::get)
                                         .filter(x -> !hasWitnesses.contains(x))
-                                        .forEach(x -> addWitnessLink(appStart, appEnd, x, "witnesses"));
+                                        .forEach(x -> addWitnessLink(appStart, appEnd, x, "witnesses", dictionary));
 
                                 // Promote our new end node and get out of here.
                                 contextPrior = appEnd;
@@ -289,7 +324,7 @@ public class TEIParallelSegParser {
                                 // Hook up the end of the reading to the end of the app
                                 assert(readingEnd != null);
                                 Relationship el = readingEnd.createRelationshipTo(appEnd, ERelations.SEQUENCE);
-                                el.setProperty(witClass, readingWitnesses.toArray(new String[0]));
+                                dictionary.set(el, witClass, readingWitnesses);
                                 // Clear some state variables
                                 readingEnd = null;
                                 readingWitnesses.clear();
@@ -322,7 +357,7 @@ public class TEIParallelSegParser {
                                 if (variantClass != null)
                                     witClass = variantClass;
                                 Relationship link = appStart.createRelationshipTo(readingEnd, ERelations.SEQUENCE);
-                                link.setProperty(witClass, readingWitnesses.toArray(new String[0]));
+                                dictionary.set(link, witClass, readingWitnesses);
                                 break;
 
                             case "witStart":
@@ -357,7 +392,7 @@ public class TEIParallelSegParser {
                                 // Attach the chain to the reading start; error if there is no reading start
                                 assert(readingEnd != null);
                                 Relationship link = readingEnd.createRelationshipTo(chain.get(0), ERelations.SEQUENCE);
-                                link.setProperty(witClass, readingWitnesses.toArray(new String[0]));
+                                dictionary.set(link, witClass, readingWitnesses);
                                 // Set the reading end to be the end of the chain
                                 readingEnd = chain.get(chain.size()-1);
                             }
@@ -386,7 +421,7 @@ public class TEIParallelSegParser {
         for (String word : words) {
             if (word.matches("^\\s*$"))
                 continue;
-            Node wordNode = db.createNode(Nodes.READING);
+            Node wordNode = batch.createNode(Nodes.READING);
             wordNode.setProperty("text", word);
             wordNode.setProperty("section_id", sectId);
             // wordNode.setProperty("rank", 0L);
@@ -397,7 +432,7 @@ public class TEIParallelSegParser {
             if (!chain.isEmpty()) {
                 Node lastNode = chain.get(chain.size() - 1);
                 Relationship seq = lastNode.createRelationshipTo(wordNode, ERelations.SEQUENCE);
-                seq.setProperty(witClass, readingWitnesses.toArray(new String[0]));
+                dictionary.set(seq, witClass, readingWitnesses);
             }
             chain.add(wordNode);
         }
@@ -412,7 +447,7 @@ public class TEIParallelSegParser {
     }
 
     private Node createPlaceholderNode (String name) {
-        Node ph = db.createNode(Nodes.READING);
+        Node ph = batch.createNode(Nodes.READING);
         ph.setProperty("is_placeholder", true);
         if (name != null) ph.setProperty("text", name);
         placeholderNodes.add(ph);
@@ -428,8 +463,7 @@ public class TEIParallelSegParser {
     }
 
     private void setAllWitnesses(Relationship r) {
-        String[] activewits = activeWitnesses.keySet().toArray(new String[0]);
-        r.setProperty("witnesses", activewits);
+        dictionary.set(r, "witnesses", activeWitnesses.keySet());
     }
 
 }
\ No newline at end of file
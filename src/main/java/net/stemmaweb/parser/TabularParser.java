@@ -8,6 +8,7 @@ import net.stemmaweb.rest.ERelations;
 import net.stemmaweb.rest.Nodes;
 import net.stemmaweb.services.DatabaseService;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.WitnessSets;
 import org.apache.poi.hssf.usermodel.HSSFWorkbook;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.apache.poi.ss.usermodel.Row;
@@ -109,6 +110,7 @@ public class TabularParser {
         Node traditionNode = DatabaseService.getRelated(parentNode, ERelations.PART).get(0);
 
         try (Transaction tx = db.beginTx()) {
+            WitnessSets.Dictionary dictionary = WitnessSets.dictionaryFor(traditionNode);
             // Make the start node
             Node startNode = Util.createStartNode(parentNode);
             Node endNode = Util.createEndNode(parentNode);
@@ -207,7 +209,7 @@ public class TabularParser {
                             layerMap.get(layerLabel).add(baseWit);
                         } else layerMap.get("witnesses").add(w);
                     // Finally, set the properties for each layer label
-                    layerMap.forEach((x, y) -> r.setProperty(x, y.toArray(new String[0])));
+                    layerMap.forEach((x, y) -> dictionary.set(r, x, y));
                 }
             }
 
@@ -221,7 +223,7 @@ public class TabularParser {
                         if (lastReading.get(x).equals(readingNode))
                             readingWits.add(x);
                     });
-                    endRelation.setProperty("witnesses", readingWits.toArray(new String[0]));
+                    dictionary.set(endRelation, "witnesses", readingWits);
                 } // else we've already connected this reading.
             }
 
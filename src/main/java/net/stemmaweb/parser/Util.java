@@ -21,6 +21,22 @@ import java.util.stream.Collectors;
  */
 public class Util {
 
+    // The number of entities a streaming import creates per transaction
+    private static final int DEFAULT_IMPORT_BATCH = 50000;
+
+    static int importBatchSize() {
+        String configured = System.getenv("STEMMAREST_IMPORT_BATCH");
+        if (configured != null) {
+            try {
+                int size = Integer.parseInt(configured.trim());
+                if (size > 0) return size;
+            } catch (NumberFormatException e) {
+                e.printStackTrace();
+            }
+        }
+        return DEFAULT_IMPORT_BATCH;
+    }
+
     // Start and end node creation
     static Node createStartNode(Node parentNode) {
         GraphDatabaseService db = parentNode.getGraphDatabase();
@@ -40,6 +40,10 @@ public class Reading {
      */
     private final Long readId;
 
+    // The reading properties that the alignment of a section depends on
+    private static final Set<String> alignmentProperties = new HashSet<>(
+            Arrays.asList("rank", "is_lacuna", "is_start", "is_end", "section_id"));
+
     public Reading(String requestedId) {
         GraphDatabaseServiceProvider dbServiceProvider = new GraphDatabaseServiceProvider();
         db = dbServiceProvider.getDatabase();
@@ -96,6 +100,7 @@ public class Reading {
         ReadingModel modelToReturn = new ReadingModel();
         Node reading;
         String currentKey = "";
+        boolean alignmentChanged = false;
         try (Transaction tx = db.beginTx()) {
             reading = db.getNodeById(readId);
             for (KeyPropertyModel keyPropertyModel : changeModels.getProperties()) {
@@ -110,6 +115,7 @@ public class Reading {
                 }
                 // Check that this field actually exists in our model
                 Field ourField = modelToReturn.getClass().getDeclaredField(currentKey);
+                if (alignmentProperties.contains(currentKey)) alignmentChanged = true;
                 // Then set the property.
                 // Convert types not native to JSON
                 if (ourField.getType().equals(Long.class))
@@ -133,6 +139,10 @@ public class Reading {
             errorMessage = e.getMessage();
             return errorResponse(Status.INTERNAL_SERVER_ERROR);
         }
+        if (alignmentChanged)
+            SectionStamp.touch(db, modelToReturn.getSection());
+        else
+            SectionStamp.touchReadings(db, modelToReturn.getSection());
         return Response.status(Response.Status.OK).entity(modelToReturn).build();
     }
 
@@ -152,6 +162,7 @@ public class Reading {
     @ReturnType(clazz = GraphModel.class)
     public Response deleteUserReading() {
         GraphModel deletedElements = new GraphModel();
+        Object sectionId;
         try (Transaction tx = db.beginTx()) {
             Node reading = db.getNodeById(readId);
             // Can we delete the reading?
@@ -179,6 +190,7 @@ public class Reading {
             }
             deletedElements.setSequences(deletedSeqs);
             deletedElements.setReadings(Collections.singletonList(new ReadingModel(reading)));
+            sectionId = reading.getProperty("section_id");
             reading.delete();
             tx.success();
         } catch (NotFoundException e) {
@@ -189,6 +201,7 @@ public class Reading {
             errorMessage = e.getMessage();
             return errorResponse(Status.INTERNAL_SERVER_ERROR);
         }
+        SectionStamp.touch(db, sectionId);
         return Response.ok(deletedElements).build();
     }
 
@@ -208,8 +221,10 @@ public class Reading {
     @ReturnType("java.util.List<net.stemmaweb.model.ReadingModel>")
     public Response setReadingAsLemma(@FormParam("value") @DefaultValue("false") String value) {
         List<ReadingModel> changed = new ArrayList<>();
+        Object sectionId;
         try (Transaction tx = db.beginTx()) {
             Node reading = db.getNodeById(readId);
+            sectionId = reading.getProperty("section_id");
             if (value.equals("true")) {
                 if (!reading.hasProperty("is_lemma") || !reading.getProperty("is_lemma").equals(true)) {
                     Map<String, Object> criteria = new HashMap<>();
@@ -236,6 +251,7 @@ public class Reading {
             errorMessage = e.getMessage();
             return errorResponse(Status.INTERNAL_SERVER_ERROR);
         }
+        if (!changed.isEmpty()) SectionStamp.touchReadings(db, sectionId);
         return Response.ok(changed).build();
     }
 
@@ -258,10 +274,12 @@ public class Reading {
     @ReturnType("net.stemmaweb.model.GraphModel")
     public Response addLacuna (@QueryParam("witness") List<String> forWitnesses) {
         GraphModel result = new GraphModel();
+        ReadingModel thisReading;
         try (Transaction tx = db.beginTx()) {
             // Get a reading model so we can easily check the witnesses
             Node us = db.getNodeById(readId);
-            ReadingModel thisReading = new ReadingModel(us);
+            thisReading = new ReadingModel(us);
+            WitnessSets.Dictionary dictionary = WitnessSets.dictionaryOfReading(us);
             // Make our lacuna node
             Node lacuna = db.createNode(Nodes.READING);
             lacuna.setProperty("is_lacuna", true);
@@ -270,6 +288,8 @@ public class Reading {
             lacuna.setProperty("text", "#LACUNA#");
             HashSet<Relationship> newSeqs = new HashSet<>();
             HashSet<Node> pushedReadings = new HashSet<>();
+            HashSet<Node> threaded = new HashSet<>();
+            threaded.add(us);
             Set<Node> changedReadings = new HashSet<>();
             changedReadings.add(lacuna);
             for (String sigil : forWitnesses) {
@@ -288,14 +308,17 @@ public class Reading {
                 // Are we going to need to re-rank it?
                 if (next.getProperty("rank", 0L).equals((Long) us.getProperty("rank") + 1))
                     pushedReadings.add(next);
+                threaded.add(next);
                 // Thread the lacuna between them
-                ReadingService.removeWitnessLink(us, next, wit.get("sigil"), wit.get("layer"), "none");
-                newSeqs.add(ReadingService.addWitnessLink(us, lacuna, wit.get("sigil"), wit.get("layer")));
-                newSeqs.add(ReadingService.addWitnessLink(lacuna, next, wit.get("sigil"), wit.get("layer")));
+                ReadingService.removeWitnessLink(us, next, wit.get("sigil"), wit.get("layer"), "none", dictionary);
+                newSeqs.add(ReadingService.addWitnessLink(us, lacuna, wit.get("sigil"), wit.get("layer"), dictionary));
+                newSeqs.add(ReadingService.addWitnessLink(lacuna, next, wit.get("sigil"), wit.get("layer"), dictionary));
             }
             for (Node pushed : pushedReadings) {
-                changedReadings.addAll(ReadingService.recalculateRank(pushed));
+                changedReadings.addAll(ReadingService.recalculateRank(pushed, false, true));
             }
+            // The witnesses no longer skip over the ranks up to their next readings
+            CommonReadings.recalculateAround(threaded);
             result.setReadings(changedReadings.stream().map(ReadingModel::new).collect(Collectors.toList()));
             result.setSequences(newSeqs.stream().map(SequenceModel::new).collect(Collectors.toList()));
             tx.success();
@@ -307,6 +330,7 @@ public class Reading {
             errorMessage = e.getMessage();
             return errorResponse(Status.INTERNAL_SERVER_ERROR);
         }
+        SectionStamp.touch(db, thisReading.getSection());
         return Response.ok(result).build();
     }
 
@@ -356,9 +380,11 @@ public class Reading {
     @ReturnType("java.util.List<net.stemmaweb.model.ReadingModel>")
     public Response normaliseRelated(@PathParam("reltype") String onRelationType) {
         List<ReadingModel> changed = new ArrayList<>();
+        Object sectionId;
         try (Transaction tx = db.beginTx()) {
             List<Node> related = collectRelatedReadings(Collections.singletonList(onRelationType));
             Node us = db.getNodeById(readId);
+            sectionId = us.getProperty("section_id");
             String key = us.hasProperty("normal_form") ? "normal_form" : "text";
             Object ourNormalForm = db.getNodeById(readId).getProperty(key);
             // Set the normal form on this reading if it wasn't already there
@@ -381,6 +407,7 @@ public class Reading {
             errorMessage = e.getMessage();
             return errorResponse(Status.INTERNAL_SERVER_ERROR);
         }
+        SectionStamp.touchReadings(db, sectionId);
         return Response.ok(changed).build();
     }
 
@@ -420,8 +447,10 @@ public class Reading {
     @ReturnType("java.util.List<net.stemmaweb.model.RelationModel")
     public Response deleteAllRelations() {
         ArrayList<RelationModel> deleted = new ArrayList<>();
+        Object sectionId;
         try (Transaction tx = db.beginTx()) {
             Node reading = db.getNodeById(readId);
+            sectionId = reading.getProperty("section_id");
             for (Relationship rel : reading.getRelationships(ERelations.RELATED)) {
                 deleted.add(new RelationModel(rel));
                 rel.delete();
@@ -435,6 +464,7 @@ public class Reading {
             errorMessage = e.getMessage();
             return errorResponse(Status.INTERNAL_SERVER_ERROR);
         }
+        SectionStamp.touchReadings(db, sectionId);
         return Response.ok(deleted).build();
     }
 
@@ -470,17 +500,20 @@ public class Reading {
         // Look at all incoming SEQUENCE relationships to the reading
         try (Transaction tx = db.beginTx()) {
             Node reading = db.getNodeById(readId);
+            WitnessSets.Dictionary dictionary = WitnessSets.dictionaryOfReading(reading);
             // First get the "normal" witnesses
-            Iterable<Relationship> readingSeqs = reading.getRelationships(Direction.BOTH, ERelations.SEQUENCE);
-            for (Relationship r : readingSeqs)
-                if (r.hasProperty("witnesses"))
-                    Collections.addAll(normalWitnesses, (String[]) r.getProperty("witnesses"));
+            List<Map<String, String[]>> readingSeqs = new ArrayList<>();
+            reading.getRelationships(Direction.BOTH, ERelations.SEQUENCE)
+                    .forEach(x -> readingSeqs.add(dictionary.read(x)));
+            for (Map<String, String[]> r : readingSeqs)
+                if (r.containsKey("witnesses"))
+                    Collections.addAll(normalWitnesses, r.get("witnesses"));
             // Now look for the specials, and add them if they are not in the normal witnesses
-            for (Relationship r : readingSeqs) {
-                for (String prop : r.getPropertyKeys()) {
+            for (Map<String, String[]> r : readingSeqs) {
+                for (String prop : r.keySet()) {
                     if (prop.equals("witnesses"))
                         continue;
-                    String[] specialWits = (String[]) r.getProperty(prop);
+                    String[] specialWits = r.get(prop);
                     for (String w : specialWits) {
                         if (normalWitnesses.contains(w) && !includeAllLayers)
                             continue;
@@ -535,6 +568,7 @@ public class Reading {
 
                 Node newNode = db.createNode();
                 GraphModel localResult = duplicate(newWitnesses, originalReading, newNode);
+                CommonReadings.recalculateAround(Collections.singletonList(originalReading));
                 tempDeleted.addAll(localResult.getRelations());
                 newSequences.addAll(localResult.getSequences());
                 ReadingModel newModel = new ReadingModel(newNode);
@@ -572,6 +606,7 @@ public class Reading {
                 deletedRelations.add(rm);
         }
 
+        createdReadings.stream().map(ReadingModel::getSection).distinct().forEach(x -> SectionStamp.touch(db, x));
         GraphModel readingsAndRelations = new GraphModel(createdReadings, deletedRelations, newSequences);
         return Response.ok(readingsAndRelations).build();
     }
@@ -630,6 +665,7 @@ public class Reading {
         Reading rdgRest = new Reading(String.valueOf(originalReading.getId()));
 
         // add witnesses to the correct sequence links
+        WitnessSets.Dictionary dictionary = WitnessSets.dictionaryOfReading(originalReading);
         HashSet<Relationship> newSequences = new HashSet<>();
         for (String wit : newWitnesses) {
             HashMap<String, String> witness = parseSigil(wit);
@@ -640,10 +676,10 @@ public class Reading {
             }
             try (Transaction tx = db.beginTx()) {
                 // Store the added/changed SEQUENCE links, so that they go into the new GraphModel
-                newSequences.add(ReadingService.addWitnessLink(prior, addedReading, witness.get("sigil"), witness.get("layer")));
-                newSequences.add(ReadingService.addWitnessLink(addedReading, next, witness.get("sigil"), witness.get("layer")));
-                ReadingService.removeWitnessLink(prior, originalReading, witness.get("sigil"), witness.get("layer"), "end");
-                ReadingService.removeWitnessLink(originalReading, next, witness.get("sigil"), witness.get("layer"), "start");
+                newSequences.add(ReadingService.addWitnessLink(prior, addedReading, witness.get("sigil"), witness.get("layer"), dictionary));
+                newSequences.add(ReadingService.addWitnessLink(addedReading, next, witness.get("sigil"), witness.get("layer"), dictionary));
+                ReadingService.removeWitnessLink(prior, originalReading, witness.get("sigil"), witness.get("layer"), "end", dictionary);
+                ReadingService.removeWitnessLink(originalReading, next, witness.get("sigil"), witness.get("layer"), "start", dictionary);
                 tx.success();
             }
         }
@@ -705,13 +741,12 @@ public class Reading {
 
         Node stayingReading;
         Node deletingReading;
+        Object sectionId;
 
         try (Transaction tx = db.beginTx()) {
             stayingReading = db.getNodeById(readId);
             deletingReading = db.getNodeById(secondReadId);
-
-            // TEMPORARY sanity check: Find all witnesses of the reading to be merged.
-            ReadingModel drm = new ReadingModel(deletingReading);
+            sectionId = stayingReading.getProperty("section_id");
 
             if (!canBeMerged(stayingReading, deletingReading)) {
                 return errorResponse(Status.CONFLICT);
@@ -719,6 +754,8 @@ public class Reading {
             // See if they are on the same rank; if not, we will have to re-rank the graph
             // from the node before the one removed.
             boolean samerank = stayingReading.getProperty("rank").equals(deletingReading.getProperty("rank"));
+            long stayingRank = (Long) stayingReading.getProperty("rank");
+            long deletingRank = (Long) deletingReading.getProperty("rank");
             Iterable<Relationship> priorRels = deletingReading.getRelationships(
                     Direction.INCOMING, ERelations.LEMMA_TEXT, ERelations.SEQUENCE);
             Node aPriorNode = null;
@@ -729,29 +766,55 @@ public class Reading {
                 return errorResponse(Status.INTERNAL_SERVER_ERROR);
             }
 
+            // Note which witnesses enter and leave each reading, so that we can check afterward
+            // that all of them still pass through the merged reading.
+            WitnessSets.Dictionary dictionary = WitnessSets.dictionaryOfReading(stayingReading);
+            Set<String> expectedIn = sequenceWitnesses(stayingReading, Direction.INCOMING, dictionary);
+            Set<String> expectedOut = sequenceWitnesses(stayingReading, Direction.OUTGOING, dictionary);
+            Set<String> mergedIn = sequenceWitnesses(deletingReading, Direction.INCOMING, dictionary);
+            Set<String> mergedOut = sequenceWitnesses(deletingReading, Direction.OUTGOING, dictionary);
+            expectedIn.addAll(mergedIn);
+            expectedOut.addAll(mergedOut);
+
             // Do the deed
             merge(stayingReading, deletingReading);
 
-            // TEMPORARY: Check that all affected witnesses still have paths to the end node
-            for (String sig : drm.getWitnesses()) {
-                HashMap<String, String> parts = parseSigil(sig);
-                Witness w = new Witness(getTraditionId(), stayingReading.getProperty("section_id").toString(), parts.get("sigil"));
-                Response r;
-                if (parts.get("layer").equals("witnesses"))
-                    r = w.getWitnessAsText();
-                else {
-                    ArrayList<String> layers = new ArrayList<>();
-                    layers.add(parts.get("layer"));
-                    r = w.getWitnessAsTextWithLayer(layers, "0", "E");
-                }
-                if (r.getStatus() != Status.OK.getStatusCode()) {
-                    throw new Exception ("Merge broke path for witness " + sig);
+            // Check that no witness lost its way into or out of the merged reading
+            TreeSet<String> lost = missingWitnesses(expectedIn,
+                    sequenceWitnesses(stayingReading, Direction.INCOMING, dictionary));
+            lost.addAll(missingWitnesses(expectedOut,
+                    sequenceWitnesses(stayingReading, Direction.OUTGOING, dictionary)));
+            if (!lost.isEmpty())
+                throw new Exception ("Merge broke path for witness " + lost.first());
+
+            // If we are debugging, check that all affected witnesses still have paths to the end node
+            if (DebugChecks.enabled()) {
+                TreeSet<String> affected = new TreeSet<>(mergedIn);
+                affected.addAll(mergedOut);
+                for (String sig : affected) {
+                    HashMap<String, String> parts = parseSigil(sig);
+                    Witness w = new Witness(getTraditionId(), stayingReading.getProperty("section_id").toString(), parts.get("sigil"));
+                    Response r;
+                    if (parts.get("layer").equals("witnesses"))
+                        r = w.getWitnessAsText();
+                    else {
+                        ArrayList<String> layers = new ArrayList<>();
+                        layers.add(parts.get("layer"));
+                        r = w.getWitnessAsTextWithLayer(layers, "0", "E");
+                    }
+                    if (r.getStatus() != Status.OK.getStatusCode()) {
+                        throw new Exception ("Merge broke path for witness " + sig);
+                    }
                 }
             }
             // Re-rank nodes if necessary
             if (!samerank) {
-                ReadingService.recalculateRank(aPriorNode);
+                ReadingService.recalculateRank(aPriorNode, false, true);
             }
+            // Both of the old ranks, and the new one, may have changed their commonality
+            long mergedRank = (Long) stayingReading.getProperty("rank");
+            CommonReadings.recalculate(db, sectionId, Math.min(Math.min(stayingRank, deletingRank), mergedRank),
+                    Math.max(Math.max(stayingRank, deletingRank), mergedRank));
 
             tx.success();
         } catch (NotFoundException e) {
@@ -762,6 +825,7 @@ public class Reading {
             errorMessage = e.getMessage();
             return errorResponse(Status.INTERNAL_SERVER_ERROR);
         }
+        SectionStamp.touch(db, sectionId);
         return Response.ok().build();
     }
 
@@ -842,12 +906,13 @@ public class Reading {
         // Remove any existing relations between the readings
         deleteRelationBetweenReadings(stayingReading, deletingReading);
         // Transfer the witnesses of the to-be-deleted reading to the staying reading
+        WitnessSets.Dictionary dictionary = WitnessSets.dictionaryOfReading(stayingReading);
         for (Relationship r : deletingReading.getRelationships(ERelations.SEQUENCE, Direction.INCOMING)) {
-            ReadingService.transferWitnesses(r.getStartNode(), stayingReading, r);
+            ReadingService.transferWitnesses(r.getStartNode(), stayingReading, r, dictionary);
             r.delete();
         }
         for (Relationship r : deletingReading.getRelationships(ERelations.SEQUENCE, Direction.OUTGOING)) {
-            ReadingService.transferWitnesses(stayingReading, r.getEndNode(), r);
+            ReadingService.transferWitnesses(stayingReading, r.getEndNode(), r, dictionary);
             r.delete();
         }
         // Transfer any existing reading relations to the node that will remain
@@ -933,8 +998,10 @@ public class Reading {
         assert (model != null);
         GraphModel readingsAndRelations;
         Node originalReading;
+        Object sectionId;
         try (Transaction tx = db.beginTx()) {
             originalReading = db.getNodeById(readId);
+            sectionId = originalReading.getProperty("section_id");
             String originalText = originalReading.getProperty("text").toString();
             if (splitIndex >= originalText.length())
                 errorMessage = "The index must be smaller than the text length";
@@ -964,7 +1031,10 @@ public class Reading {
                 return errorResponse(Status.INTERNAL_SERVER_ERROR);
 
             readingsAndRelations = split(originalReading, splitIndex, model);
-            ReadingService.recalculateRank(originalReading, true);
+            ReadingService.recalculateRank(originalReading, true, true);
+            // The new readings took their flags from the original; work them out for their own ranks.
+            CommonReadings.recalculateAround(readingsAndRelations.getReadings().stream()
+                    .map(x -> db.getNodeById(Long.valueOf(x.getId()))).collect(Collectors.toList()));
 
             tx.success();
         } catch (NotFoundException e) {
@@ -975,6 +1045,7 @@ public class Reading {
             errorMessage = e.getMessage();
             return errorResponse(Status.INTERNAL_SERVER_ERROR);
         }
+        SectionStamp.touch(db, sectionId);
         return Response.ok(readingsAndRelations).build();
     }
 
@@ -1036,6 +1107,7 @@ public class Reading {
         createdOrChangedReadings.add(new ReadingModel(originalReading));
 
         // Add the new readings
+        WitnessSets.Dictionary dictionary = WitnessSets.dictionaryOfReading(originalReading);
         Node lastReading = originalReading;
 
         for (int i = 1; i < splitWords.length; i++) {
@@ -1055,7 +1127,7 @@ public class Reading {
             Relationship newSeq = lastReading.createRelationshipTo(newReading, ERelations.SEQUENCE);
             // This will pick up the relationship we just made
             for (Relationship r : originalOutgoingRels)
-                ReadingService.transferWitnesses(lastReading, newReading, r);
+                ReadingService.transferWitnesses(lastReading, newReading, r, dictionary);
 
             // Add the newly created objects to our eventual GraphModel
             createdOrChangedReadings.add(new ReadingModel(newReading));
@@ -1145,6 +1217,7 @@ public class Reading {
             // Sanity check: does the requested witness+layer actually exist in this node in
             // either direction?
             ReadingModel rm = new ReadingModel(read);
+            WitnessSets.Dictionary dictionary = WitnessSets.dictionaryOfReading(read);
             if (!layer.equals("witnesses")) { // if the base witness isn't here we will error below anyway
                 String wholesigil = String.format("%s (%s)", witnessId, layer);
                 if (!rm.getWitnesses().contains(wholesigil)) {
@@ -1157,12 +1230,12 @@ public class Reading {
             Iterable<Relationship> seqs = read.getRelationships(ERelations.SEQUENCE, dir);
             // Get the list of relations matching the given layer
             Collection<Relationship> matching = StreamSupport.stream(seqs.spliterator(), false)
-                    .filter(x -> isPathFor(x, witnessId, layer))
+                    .filter(x -> dictionary.has(x, witnessId, layer))
                     .collect(Collectors.toList());
             // If none and we are looking for a layer, re-fetch the list of relations matching the base layer
             if (matching.size() == 0 && !layer.equals("witnesses")) {
                 matching = StreamSupport.stream(seqs.spliterator(), false)
-                        .filter(x -> isPathFor(x, witnessId, "witnesses"))
+                        .filter(x -> dictionary.has(x, witnessId, "witnesses"))
                         .collect(Collectors.toList());
             }
             // We should now have exactly one matching sequence.
@@ -1183,17 +1256,30 @@ public class Reading {
         return neighbour;
     }
 
-    // Assumes that we are already in a transaction!
-    // Returns true if the sequence contains the given witness layer.
-    private Boolean isPathFor(Relationship sequence, String sigil, String layer) {
-        if (sequence.hasProperty(layer)) {
-            String[] wits = (String []) sequence.getProperty(layer);
-            for (String wit : wits) {
-                if (wit.equals(sigil))
-                    return true;
-            }
+    // Return the witnesses, with their layers, on the SEQUENCE links of a reading in the given direction
+    // NOTE: For use within a transaction
+    private static Set<String> sequenceWitnesses(Node reading, Direction direction,
+                                                 WitnessSets.Dictionary dictionary) {
+        HashSet<String> witnesses = new HashSet<>();
+        for (Relationship r : reading.getRelationships(ERelations.SEQUENCE, direction))
+            for (Map.Entry<String, String[]> prop : dictionary.read(r).entrySet())
+                for (String sigil : prop.getValue())
+                    witnesses.add(prop.getKey().equals("witnesses") ? sigil : sigil + " (" + prop.getKey() + ")");
+        return witnesses;
+    }
+
+    // Return the expected witnesses that are not among those found. A layer is only recorded on
+    // the links where it departs from its base witness, so a layer witness is also found wherever
+    // its base witness is.
+    private static TreeSet<String> missingWitnesses(Set<String> expected, Set<String> found) {
+        TreeSet<String> missing = new TreeSet<>();
+        for (String sig : expected) {
+            if (found.contains(sig)) continue;
+            HashMap<String, String> parts = parseSigil(sig);
+            if (!parts.get("layer").equals("witnesses") && found.contains(parts.get("sigil"))) continue;
+            missing.add(sig);
         }
-        return false;
+        return missing;
     }
 
     // Small utility function for parsing witness sigla
@@ -1238,6 +1324,7 @@ public class Reading {
     public Response compressReadings(@PathParam("read2Id") long readId2, ReadingBoundaryModel boundary) {
 
         Node read1, read2;
+        Object sectionId = null;
         errorMessage = "problem with a reading. could not compress";
 
         try (Transaction tx = db.beginTx()) {
@@ -1249,10 +1336,12 @@ public class Reading {
                 return errorResponse(Status.CONFLICT);
             }
             if (canBeCompressed(read1, read2)) {
+                long read2Rank = (Long) read2.getProperty("rank");
                 compress(read1, read2, boundary);
-                ReadingService.recalculateRank(read1);
-                tx.success();
-                return Response.ok().build();
+                ReadingService.recalculateRank(read1, false, true);
+                sectionId = read1.getProperty("section_id");
+                // The rank of the second reading has lost it, even if nothing was moved
+                CommonReadings.recalculate(db, sectionId, (Long) read1.getProperty("rank"), read2Rank);
             }
             tx.success();
         } catch (NotFoundException e) {
@@ -1263,6 +1352,10 @@ public class Reading {
             errorMessage = e.getMessage();
             return errorResponse(Status.INTERNAL_SERVER_ERROR);
         }
+        if (sectionId != null) {
+            SectionStamp.touch(db, sectionId);
+            return Response.ok().build();
+        }
         return errorResponse(Status.CONFLICT);
     }
 
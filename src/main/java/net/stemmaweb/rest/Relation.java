@@ -1,8 +1,8 @@
 package net.stemmaweb.rest;
 
 import java.util.*;
-import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import javax.ws.rs.*;
 import javax.ws.rs.Path;
@@ -15,9 +15,12 @@ import net.stemmaweb.model.GraphModel;
 import net.stemmaweb.model.ReadingModel;
 import net.stemmaweb.model.RelationModel;
 import net.stemmaweb.model.RelationTypeModel;
+import net.stemmaweb.services.CommonReadings;
 import net.stemmaweb.services.DatabaseService;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
 import net.stemmaweb.services.ReadingService;
+import net.stemmaweb.services.ReadingTextIndex;
+import net.stemmaweb.services.SectionStamp;
 
 import net.stemmaweb.services.VariantGraphService;
 import org.neo4j.graphdb.*;
@@ -81,179 +84,345 @@ public class Relation {
             GraphModel createResult = (GraphModel)response.getEntity();
             relationChanges.addReadings(createResult.getReadings());
             relationChanges.addRelations(createResult.getRelations());
-            // Fish out the ID of the relationship that we explicitly created
-            Optional<RelationModel> orm = createResult.getRelations().stream()
-                    .filter(x -> x.getTarget().equals(relationModel.getTarget())
-                            && x.getSource().equals(relationModel.getSource())).findFirst();
-            assert(orm.isPresent());
-            String thisRelId = orm.get().getId();
+            String thisRelId = createdRelationId(createResult, relationModel);
             if (!scope.equals(SCOPE_LOCAL)) {
-                Boolean use_normal = returnRelationType(tradId, relationModel.getType()).getUse_regular();
                 try (Transaction tx = db.beginTx()) {
-                    Node readingA = db.getNodeById(Long.parseLong(relationModel.getSource()));
-                    Node readingB = db.getNodeById(Long.parseLong(relationModel.getTarget()));
-                    Node startingPoint = VariantGraphService.getTraditionNode(tradId, db);
-                    if (scope.equals(SCOPE_SECTION))
-                        startingPoint = db.getNodeById((Long) readingA.getProperty("section_id"));
-                    Relationship thisRelation = db.getRelationshipById(Long.valueOf(thisRelId));
-
-                    // Get all the readings that belong to our tradition or section
-                    ResourceIterable<Node> tradReadings = VariantGraphService.returnEntireTradition(startingPoint).nodes();
-                    // Pick out the ones that share the readingA text
-                    Function<Node, Object> nodefilter = (n) -> use_normal && n.hasProperty("normal_form")
-                            ? n.getProperty("normal_form") : (n.hasProperty("text") ? n.getProperty("text"): "");
-                    HashSet<Node> ourA = tradReadings.stream()
-                            .filter(x -> nodefilter.apply(x).equals(nodefilter.apply(readingA)) && !x.equals(readingA))
-                            .collect(Collectors.toCollection(HashSet::new));
-                    HashMap<String, HashSet<Long>> ranks = new HashMap<>();
-                    for (Node cur_node : ourA) {
-                        long node_id = cur_node.getId();
-                        long node_rank = (Long) cur_node.getProperty("rank");
-                        String node_section = cur_node.getProperty("section_id").toString();
-                        String key = node_section + "/" + node_rank;
-                        HashSet<Long> cur_set = ranks.getOrDefault(node_rank, new HashSet<>());
-                        cur_set.add(node_id);
-                        ranks.putIfAbsent(key, cur_set);
-                    }
-
-                    // Pick out the ones that share the readingB text
-                    HashSet<Node> ourB = tradReadings.stream().filter(x -> x.hasProperty("text")
-                            && nodefilter.apply(x).equals(nodefilter.apply(readingB)) && !x.equals(readingB))
-                            .collect(Collectors.toCollection(HashSet::new));
-                    RelationModel userel;
-                    for (Node cur_node : ourB) {
-                        long node_id = cur_node.getId();
-                        long node_rank = (Long) cur_node.getProperty("rank");
-                        String node_section = cur_node.getProperty("section_id").toString();
-                        String key = node_section + "/" + node_rank;
-
-                        HashSet cur_set = ranks.get(key);
-                        if (cur_set != null) {
-                            for (Object id : cur_set) {
-                                userel = new RelationModel(thisRelation);
-                                userel.setSource(Long.toString((Long) id));
-                                userel.setTarget(Long.toString(node_id));
-                                response = this.create_local(userel);
-                                if (Status.NOT_MODIFIED.getStatusCode() != response.getStatus()) {
-                                    if (Status.CREATED.getStatusCode() == response.getStatus()) {
-                                        createResult = (GraphModel) response.getEntity();
-                                        relationChanges.addReadings(createResult.getReadings());
-                                        relationChanges.addRelations(createResult.getRelations());
-                                    }  // This is a best-effort operation, so ignore failures
-                                }
-                            }
-                        }
-                    }
+                    applyScope(relationModel, thisRelId, relationChanges, null);
                     tx.success();
                 } catch (Exception e) {
                     e.printStackTrace();
                     return Response.serverError().build();
                 }
+                // Now that the changes are committed, mark all the sections we touched
+                relationChanges.getReadings().stream().map(ReadingModel::getSection).distinct()
+                        .forEach(x -> SectionStamp.touch(db, x));
             }
             return Response.status(Status.CREATED).entity(relationChanges).build();
         }
         return Response.status(Status.BAD_REQUEST).entity("Undefined Scope").build();
     }
 
+    /**
+     * Creates a list of relations in a single transaction. Each relation is checked and created
+     * as it would be by the single create call, in the order given, but the graph is only re-ranked
+     * once at the end, from all the readings that the relations have moved; the ranks are only
+     * worked out earlier if a later relation needs them for its own check. If any relation cannot
+     * be created, none of them are. Relations that already exist are skipped. Where a relation
+     * with a wider scope cannot be made between some pair of readings, any weak relations that
+     * were cleared away for it are put back, but under new IDs.
+     *
+     * @summary Create several relations
+     * @param relationModels - JSON list of the relations to create
+     * @return The relations created, as well as any other readings in the graph that
+     * had a relation set between them, or whose rank changed.
+     * @statuscode 201 - on success
+     * @statuscode 400 - if any of the relations has an invalid scope
+     * @statuscode 409 - if any of the relations cannot legally be created
+     * @statuscode 500 - on failure, with JSON error message
+     */
+    @POST
+    @Path("/batch")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON + "; charset=utf-8")
+    @ReturnType(clazz = GraphModel.class)
+    public Response createBatch(List<RelationModel> relationModels) {
+        // Check the scopes before anything is written
+        for (RelationModel relationModel : relationModels) {
+            if (relationModel.getScope() == null) relationModel.setScope(SCOPE_LOCAL);
+            String scope = relationModel.getScope();
+            if (!(scope.equals(SCOPE_TRADITION) || scope.equals(SCOPE_SECTION) || scope.equals(SCOPE_LOCAL)))
+                return Response.status(Status.BAD_REQUEST).entity("Undefined Scope").build();
+        }
+
+        GraphModel relationChanges = new GraphModel();
+        BatchRanking batch = new BatchRanking();
+        HashSet<Long> changedReadings = new HashSet<>();
+        HashSet<Object> sections = new HashSet<>();
+        try (Transaction tx = db.beginTx()) {
+            for (RelationModel relationModel : relationModels) {
+                Response response = createInTransaction(relationModel, null, batch);
+                if (Status.NOT_MODIFIED.getStatusCode() == response.getStatus())
+                    continue;
+                if (Status.CREATED.getStatusCode() != response.getStatus()) {
+                    tx.failure();
+                    return response;
+                }
+                GraphModel createResult = (GraphModel) response.getEntity();
+                if (!relationModel.getScope().equals(SCOPE_LOCAL))
+                    applyScope(relationModel, createdRelationId(createResult, relationModel), createResult, batch);
+                relationChanges.addRelations(createResult.getRelations());
+                createResult.getReadings().forEach(x -> changedReadings.add(Long.valueOf(x.getId())));
+                sections.add(db.getNodeById(Long.parseLong(relationModel.getSource())).getProperty("section_id"));
+            }
+            // Now re-rank the graph, and report the changed readings as they finally stand.
+            batch.flush();
+            batch.changed.forEach(x -> changedReadings.add(x.getId()));
+            for (Long id : changedReadings) {
+                ReadingModel rm = new ReadingModel(db.getNodeById(id));
+                relationChanges.getReadings().add(rm);
+                sections.add(rm.getSection());
+            }
+            tx.success();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Response.serverError().entity(jsonerror(e.getMessage())).build();
+        }
+        sections.forEach(x -> SectionStamp.touch(db, x));
+        return Response.status(Status.CREATED).entity(relationChanges).build();
+    }
+
+    // Fish out the ID of the relationship that we explicitly created
+    private static String createdRelationId(GraphModel createResult, RelationModel relationModel) {
+        Optional<RelationModel> orm = createResult.getRelations().stream()
+                .filter(x -> x.getTarget().equals(relationModel.getTarget())
+                        && x.getSource().equals(relationModel.getSource())).findFirst();
+        assert(orm.isPresent());
+        return orm.get().getId();
+    }
+
+    // A weak relation that was deleted to make way for a new relation, kept so that it can
+    // be put back if the new relation is refused. Neo4j can't recreate a relationship under
+    // its old ID, so the restored relation gets a new one.
+    private static class RemovedRelation {
+        private final Node start;
+        private final Node end;
+        private final Map<String, Object> properties;
+
+        // NOTE - To be used inside a transaction; deletes the relation
+        RemovedRelation(Relationship r) {
+            start = r.getStartNode();
+            end = r.getEndNode();
+            properties = r.getAllProperties();
+            r.delete();
+        }
+
+        void restore() {
+            Relationship r = start.createRelationshipTo(end, ERelations.RELATED);
+            properties.forEach(r::setProperty);
+        }
+    }
+
+    // The readings that relations in a batch have moved to a higher rank, along with the ranks
+    // they had beforehand, waiting for the graph after them to be re-ranked.
+    private static class BatchRanking {
+        private final HashMap<Node, Long> promoted = new HashMap<>();
+        private final HashSet<Node> changed = new HashSet<>();
+
+        void promote(Node reading, Long rank) {
+            promoted.putIfAbsent(reading, (Long) reading.getProperty("rank"));
+            reading.setProperty("rank", rank);
+            changed.add(reading);
+        }
+
+        // Re-rank each section once from all of its promoted readings, and recalculate the
+        // common readings once, from the lowest rank that a promoted reading left to the highest
+        // rank that any reading moved to; readings only ever move up, so this covers every rank
+        // that changed. If the section has any layer sequences, CommonReadings recalculates the
+        // whole section instead.
+        void flush() throws Exception {
+            if (promoted.isEmpty()) return;
+            Map<Object, List<Node>> bySection = promoted.keySet().stream()
+                    .collect(Collectors.groupingBy(x -> x.getProperty("section_id")));
+            for (Map.Entry<Object, List<Node>> e : bySection.entrySet()) {
+                List<Node> startNodes = e.getValue();
+                Set<Node> moved = ReadingService.recalculateRank(startNodes, false, false);
+                changed.addAll(moved);
+                long fromRank = startNodes.stream().mapToLong(promoted::get).min().orElse(0);
+                long toRank = Stream.concat(startNodes.stream(), moved.stream())
+                        .mapToLong(x -> (Long) x.getProperty("rank")).max().orElse(0);
+                CommonReadings.recalculate(startNodes.get(0).getGraphDatabase(), e.getKey(), fromRank, toRank);
+            }
+            promoted.clear();
+        }
+    }
+
+    /**
+     * Creates the relation given, which has already been made between its own readings, between
+     * all the other pairs of readings in its section or tradition that share their texts.
+     * NOTE - To be used inside a transaction
+     *
+     * @param relationModel   - the relation that was requested
+     * @param thisRelId       - the ID of the relation that was created from it
+     * @param relationChanges - the GraphModel to which any new relations and changed readings are added
+     * @param batch           - the batch whose rank recalculation is deferred, or null
+     */
+    private void applyScope(RelationModel relationModel, String thisRelId, GraphModel relationChanges,
+                            BatchRanking batch) throws Exception {
+        String scope = relationModel.getScope();
+        Boolean use_normal = returnRelationType(tradId, relationModel.getType()).getUse_regular();
+        Node readingA = db.getNodeById(Long.parseLong(relationModel.getSource()));
+        Node readingB = db.getNodeById(Long.parseLong(relationModel.getTarget()));
+        Relationship thisRelation = db.getRelationshipById(Long.valueOf(thisRelId));
+        List<Object> sectionIds = new ArrayList<>();
+        if (scope.equals(SCOPE_SECTION))
+            sectionIds.add(readingA.getProperty("section_id"));
+        else
+            VariantGraphService.getSectionNodes(tradId, db).forEach(x -> sectionIds.add(x.getId()));
+
+        // Look up the readings that share the readingA text, and those that share the readingB
+        // text, in each section, and relate those that are at the same rank.
+        Object keyA = ReadingTextIndex.keyOf(readingA, use_normal);
+        Object keyB = ReadingTextIndex.keyOf(readingB, use_normal);
+        for (Object sectionId : sectionIds) {
+            HashMap<Object, List<Node>> ranks = new HashMap<>();
+            for (Node cur_node : ReadingTextIndex.readingsMatching(db, sectionId, keyA, use_normal))
+                if (!cur_node.equals(readingA))
+                    ranks.computeIfAbsent(cur_node.getProperty("rank"), x -> new ArrayList<>()).add(cur_node);
+            if (ranks.isEmpty()) continue;
+
+            for (Node cur_node : ReadingTextIndex.readingsMatching(db, sectionId, keyB, use_normal)) {
+                if (cur_node.equals(readingB) || !cur_node.hasProperty("text")) continue;
+                List<Node> cur_set = ranks.get(cur_node.getProperty("rank"));
+                if (cur_set == null) continue;
+                for (Node other : cur_set) {
+                    RelationModel userel = new RelationModel(thisRelation);
+                    userel.setSource(String.valueOf(other.getId()));
+                    userel.setTarget(String.valueOf(cur_node.getId()));
+                    Response response = batch == null
+                            ? this.create_local(userel)
+                            : this.createInTransaction(userel, null, batch);
+                    if (Status.CREATED.getStatusCode() == response.getStatus()) {
+                        GraphModel createResult = (GraphModel) response.getEntity();
+                        relationChanges.addReadings(createResult.getReadings());
+                        relationChanges.addRelations(createResult.getRelations());
+                    }  // This is a best-effort operation, so ignore failures
+                }
+            }
+        }
+    }
+
     // Create a relation; return the relation created as well as any reading nodes whose
     // properties (e.g. rank) have changed.
     private Response create_local(RelationModel relationModel) {
-        GraphModel readingsAndRelationModel;
+        Response response;
+        Object sectionId;
         try (Transaction tx = db.beginTx()) {
-            /*
-             * Currently search by id search, because is much faster by measurement. Because
-             * the id search is O(n) just go through all ids without care. And the
-             *
-             */
-            Node readingA = db.getNodeById(Long.parseLong(relationModel.getSource()));
-            Node readingB = db.getNodeById(Long.parseLong(relationModel.getTarget()));
+            sectionId = db.getNodeById(Long.parseLong(relationModel.getSource())).getProperty("section_id");
+            response = createInTransaction(relationModel, tx, null);
+            if (Status.CREATED.getStatusCode() == response.getStatus())
+                tx.success();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Response.serverError().entity(jsonerror(e.getMessage())).build();
+        }
+        if (Status.CREATED.getStatusCode() == response.getStatus())
+            SectionStamp.touch(db, sectionId);
+        return response;
+    }
 
-            Node ourSection = db.getNodeById(Long.valueOf(readingA.getProperty("section_id").toString()));
-            Node ourTradition = ourSection.getSingleRelationship(ERelations.PART, Direction.INCOMING).getStartNode();
-            if (!ourTradition.getProperty("id").equals(tradId))
-                return Response.status(Status.CONFLICT)
-                    .entity(jsonerror("The specified readings do not belong to the specified tradition"))
+    /**
+     * Checks and creates a relation, returning a response as create_local would.
+     * NOTE - To be used inside a transaction
+     *
+     * @param relationModel - the relation to create
+     * @param tx            - the transaction, to be marked successful where a request is refused
+     *                        without undoing any changes, or null
+     * @param batch         - the batch whose rank recalculation is deferred, or null to
+     *                        recalculate ranks straight away
+     * @return the response, with the relations created and the readings changed if successful
+     */
+    private Response createInTransaction(RelationModel relationModel, Transaction tx, BatchRanking batch)
+            throws Exception {
+        /*
+         * Currently search by id search, because is much faster by measurement. Because
+         * the id search is O(n) just go through all ids without care. And the
+         *
+         */
+        Node readingA = db.getNodeById(Long.parseLong(relationModel.getSource()));
+        Node readingB = db.getNodeById(Long.parseLong(relationModel.getTarget()));
+
+        Object sectionId = readingA.getProperty("section_id");
+        Node ourSection = db.getNodeById(Long.valueOf(sectionId.toString()));
+        Node ourTradition = ourSection.getSingleRelationship(ERelations.PART, Direction.INCOMING).getStartNode();
+        if (!ourTradition.getProperty("id").equals(tradId))
+            return Response.status(Status.CONFLICT)
+                .entity(jsonerror("The specified readings do not belong to the specified tradition"))
+                .build();
+
+
+        if (!readingA.getProperty("section_id").equals(readingB.getProperty("section_id")))
+            return Response.status(Status.CONFLICT)
+                    .entity(jsonerror("Cannot create relation across tradition sections"))
                     .build();
 
+        if (isMetaReading(readingA) || isMetaReading(readingB))
+            return Response.status(Status.CONFLICT)
+                .entity(jsonerror("Cannot set relation on a meta reading"))
+                .build();
 
-            if (!readingA.getProperty("section_id").equals(readingB.getProperty("section_id")))
-                return Response.status(Status.CONFLICT)
-                        .entity(jsonerror("Cannot create relation across tradition sections"))
-                        .build();
+        // Get, or create implicitly, the relation type node for the given type.
+        RelationTypeModel rmodel = returnRelationType(tradId, relationModel.getType());
 
-            if (isMetaReading(readingA) || isMetaReading(readingB))
-                return Response.status(Status.CONFLICT)
-                    .entity(jsonerror("Cannot set relation on a meta reading"))
+        // Check that the relation type is compatible with the passed relation model
+        if (!relationModel.getScope().equals("local") && !rmodel.getIs_generalizable())
+            return Response.status(Status.CONFLICT)
+                    .entity(jsonerror("Relation type " + rmodel.getName() + " cannot be made outside a local scope"))
                     .build();
 
-            // Get, or create implicitly, the relation type node for the given type.
-            RelationTypeModel rmodel = returnRelationType(tradId, relationModel.getType());
-
-            // Check that the relation type is compatible with the passed relation model
-            if (!relationModel.getScope().equals("local") && !rmodel.getIs_generalizable())
-                return Response.status(Status.CONFLICT)
-                        .entity(jsonerror("Relation type " + rmodel.getName() + " cannot be made outside a local scope"))
-                        .build();
-
-            // Remove any weak relations that might conflict
-            // LATER better idea: write a traverser that will disregard weak relations
-            Boolean colocation = rmodel.getIs_colocation();
-            if (colocation) {
-                Iterable<Relationship> relsA = readingA.getRelationships(ERelations.RELATED);
-                for (Relationship r : relsA) {
-                    RelationTypeModel rm = returnRelationType(tradId, r.getProperty("type").toString());
-                    if (rm.getIs_weak())
-                        r.delete();
-                }
-                Iterable<Relationship> relsB = readingB.getRelationships(ERelations.RELATED);
-                for (Relationship r : relsB) {
-                    RelationTypeModel rm = returnRelationType(tradId, r.getProperty("type").toString());
-                    if (rm.getIs_weak())
-                        r.delete();
-                }
+        // Remove any weak relations that might conflict, remembering them in case we are in a
+        // batch and have to put them back.
+        // LATER better idea: write a traverser that will disregard weak relations
+        Boolean colocation = rmodel.getIs_colocation();
+        List<RemovedRelation> removed = new ArrayList<>();
+        if (colocation) {
+            Iterable<Relationship> relsA = readingA.getRelationships(ERelations.RELATED);
+            for (Relationship r : relsA) {
+                RelationTypeModel rm = returnRelationType(tradId, r.getProperty("type").toString());
+                if (rm.getIs_weak())
+                    removed.add(new RemovedRelation(r));
+            }
+            Iterable<Relationship> relsB = readingB.getRelationships(ERelations.RELATED);
+            for (Relationship r : relsB) {
+                RelationTypeModel rm = returnRelationType(tradId, r.getProperty("type").toString());
+                if (rm.getIs_weak())
+                    removed.add(new RemovedRelation(r));
             }
+        }
 
-            Boolean isCyclic = ReadingService.wouldGetCyclic(readingA, readingB);
-            if (isCyclic && colocation) {
-                    return Response
-                            .status(Status.CONFLICT)
-                            .entity(jsonerror("This relation creation is not allowed, it would result in a cyclic graph."))
-                            .build();
-            } else if (!isCyclic && !colocation) {
-                return Response
-                        .status(Status.CONFLICT)
-                        .entity(jsonerror("This relation creation is not allowed. The two readings can be co-located."))
-                        .build();
-            } // TODO add constraints about witness uniqueness or lack thereof
-
-            // Check if relation already exists
-            Iterable<Relationship> relationships = readingA.getRelationships(ERelations.RELATED);
-            for (Relationship relationship : relationships) {
-                if (relationship.getOtherNode(readingA).equals(readingB)) {
-                    RelationModel thisRel = new RelationModel(relationship);
-                    RelationTypeModel rtm = returnRelationType(tradId, thisRel.getType());
-                    if (thisRel.getType().equals(relationModel.getType())) {
-                        // TODO allow for update of existing relation
-                        tx.success();
-                        return Response.status(Status.NOT_MODIFIED).type(MediaType.TEXT_PLAIN_TYPE).build();
-                    } else if (!rtm.getIs_weak()) {
-                        tx.success();
-                        String msg = String.format("Relation of type %s already exists between readings %s and %s",
-                                relationModel.getType(), relationModel.getSource(), relationModel.getTarget());
-                        return Response.status(Status.CONFLICT).entity(jsonerror(msg)).build();
-                    }
+        // The cycle check goes by rank, so any ranks left over from earlier in a batch need
+        // to be worked out first.
+        if (batch != null) batch.flush();
+        Boolean isCyclic = ReadingService.wouldGetCyclic(readingA, readingB);
+        // Outside a batch, a refusal here rolls back the transaction; but a batch carries on
+        // after a refused scoped relation, so the weak relations have to go back by hand.
+        boolean refused = isCyclic ? colocation : !colocation;
+        if (refused && batch != null)
+            removed.forEach(RemovedRelation::restore);
+        if (isCyclic && colocation) {
+            return Response
+                    .status(Status.CONFLICT)
+                    .entity(jsonerror("This relation creation is not allowed, it would result in a cyclic graph."))
+                    .build();
+        } else if (!isCyclic && !colocation) {
+            return Response
+                    .status(Status.CONFLICT)
+                    .entity(jsonerror("This relation creation is not allowed. The two readings can be co-located."))
+                    .build();
+        } // TODO add constraints about witness uniqueness or lack thereof
+
+        // Check if relation already exists
+        Iterable<Relationship> relationships = readingA.getRelationships(ERelations.RELATED);
+        for (Relationship relationship : relationships) {
+            if (relationship.getOtherNode(readingA).equals(readingB)) {
+                RelationModel thisRel = new RelationModel(relationship);
+                RelationTypeModel rtm = returnRelationType(tradId, thisRel.getType());
+                if (thisRel.getType().equals(relationModel.getType())) {
+                    // TODO allow for update of existing relation
+                    if (tx != null) tx.success();
+                    return Response.status(Status.NOT_MODIFIED).type(MediaType.TEXT_PLAIN_TYPE).build();
+                } else if (!rtm.getIs_weak()) {
+                    if (tx != null) tx.success();
+                    String msg = String.format("Relation of type %s already exists between readings %s and %s",
+                            relationModel.getType(), relationModel.getSource(), relationModel.getTarget());
+                    return Response.status(Status.CONFLICT).entity(jsonerror(msg)).build();
                 }
             }
-
-            // We are finally ready to write a relation.
-            readingsAndRelationModel = createSingleRelation(readingA, readingB, relationModel, rmodel);
-            // We can also write any transitive relationships.
-            propagateRelation(readingsAndRelationModel, rmodel);
-            tx.success();
-        } catch (Exception e) {
-            e.printStackTrace();
-            return Response.serverError().entity(jsonerror(e.getMessage())).build();
         }
+
+        // We are finally ready to write a relation.
+        GraphModel readingsAndRelationModel = createSingleRelation(readingA, readingB, relationModel, rmodel, batch);
+        // We can also write any transitive relationships.
+        propagateRelation(readingsAndRelationModel, rmodel, batch);
         return Response.status(Response.Status.CREATED).entity(readingsAndRelationModel).build();
     }
 
@@ -264,10 +433,11 @@ public class Relation {
      * @param readingB - the target reading
      * @param relModel - the RelationModel to set
      * @param rtm      - the RelationTypeModel describing what sort of relation this is
+     * @param batch    - the batch whose rank recalculation is deferred, or null
      * @return a GraphModel containing the single n4j relationship plus whatever readings were re-ranked
      */
-    private GraphModel createSingleRelation(Node readingA, Node readingB,
-                                            RelationModel relModel, RelationTypeModel rtm) throws Exception {
+    private GraphModel createSingleRelation(Node readingA, Node readingB, RelationModel relModel,
+                                            RelationTypeModel rtm, BatchRanking batch) throws Exception {
         ArrayList<ReadingModel> changedReadings = new ArrayList<>();
         ArrayList<RelationModel> createdRelations = new ArrayList<>();
 
@@ -294,10 +464,20 @@ public class Relation {
         if (!rankA.equals(rankB) && colocation) {
             // Which one is the lower-ranked reading? Promote it, and recalculate from that point
             Long higherRank = rankA < rankB ? rankB : rankA;
+            Long lowerRank = rankA < rankB ? rankA : rankB;
             Node lowerRanked = rankA < rankB ? readingA : readingB;
+            if (batch != null) {
+                // Leave the recalculation until the batch is done.
+                batch.promote(lowerRanked, higherRank);
+                changedReadings.add(new ReadingModel(lowerRanked));
+                createdRelations.add(new RelationModel(relationAtoB));
+                return new GraphModel(changedReadings, createdRelations, new ArrayList<>());
+            }
             lowerRanked.setProperty("rank", higherRank);
+            Set<Node> changedRank = ReadingService.recalculateRank(lowerRanked, false, true);
+            // The promoted reading has left its old rank too
+            CommonReadings.recalculate(db, lowerRanked.getProperty("section_id"), lowerRank, higherRank);
             changedReadings.add(new ReadingModel(lowerRanked));
-            Set<Node> changedRank = ReadingService.recalculateRank(lowerRanked);
             for (Node cr : changedRank)
                 if (!cr.equals(lowerRanked))
                     changedReadings.add(new ReadingModel(cr));
@@ -329,8 +509,10 @@ public class Relation {
      *
      * @param newRelationResult - the GraphModel that contains a relation just created
      * @param rtm - the relation type specification
+     * @param batch - the batch whose rank recalculation is deferred, or null
      */
-    private void propagateRelation(GraphModel newRelationResult, RelationTypeModel rtm) throws Exception {
+    private void propagateRelation(GraphModel newRelationResult, RelationTypeModel rtm, BatchRanking batch)
+            throws Exception {
         // First see if this relation type should be propagated.
         if (!rtm.getIs_transitive()) return;
         // Now go through all the relations that have been created, and make sure that any
@@ -356,7 +538,7 @@ public class Relation {
                 for (Node readingB : iterateNodes) {
                     if (!alreadyRelated.contains(readingB)) {
                         // System.out.println(String.format("...making relation %s to node %d / %s", rm.getType(), readingB.getId(), readingB.getProperty("text")));
-                        GraphModel interim = createSingleRelation(readingA, readingB, rm, rtm);
+                        GraphModel interim = createSingleRelation(readingA, readingB, rm, rtm, batch);
                         newRelationResult.addReadings(interim.getReadings());
                         newRelationResult.addRelations(interim.getRelations());
                     }
@@ -383,7 +565,7 @@ public class Relation {
                         ArrayList<Relationship> priorLinks = DatabaseService.getRelationshipTo(n, c, ERelations.RELATED);
                         if (priorLinks.size() == 0) {
                             // Create a relation based on the looser link
-                            GraphModel interim = createSingleRelation(n, c, newmodel, newtm);
+                            GraphModel interim = createSingleRelation(n, c, newmodel, newtm, batch);
                             newRelationResult.addReadings(interim.getReadings());
                             newRelationResult.addRelations(interim.getRelations());
                         }
@@ -413,6 +595,7 @@ public class Relation {
     @ReturnType("java.util.List<net.stemmaweb.model.RelationModel>")
     public Response deleteByData(RelationModel relationModel) {
         ArrayList<RelationModel> deleted = new ArrayList<>();
+        HashSet<Object> changedSections = new HashSet<>();
 
         try (Transaction tx = db.beginTx()) {
             Node readingA = db.getNodeById(Long.parseLong(relationModel.getSource()));
@@ -426,6 +609,7 @@ public class Relation {
                     } else {
                         Relationship theRel = findRel.get(0);
                         RelationModel relInfo = new RelationModel(theRel);
+                        changedSections.add(readingA.getProperty("section_id"));
                         theRel.delete();
                         deleted.add(relInfo);
                     }
@@ -447,6 +631,7 @@ public class Relation {
                                     && (rel.getStartNode().getProperty("text").equals(rb.getProperty("text"))
                                     || rel.getEndNode().getProperty("text").equals(rb.getProperty("text")))) {
                                 RelationModel relInfo = new RelationModel(rel);
+                                changedSections.add(rel.getStartNode().getProperty("section_id"));
                                 rel.delete();
                                 deleted.add(relInfo);
                             }
@@ -459,6 +644,7 @@ public class Relation {
             }
             tx.success();
         }
+        changedSections.forEach(x -> SectionStamp.touchReadings(db, x));
         return Response.status(Response.Status.OK).entity(deleted).build();
     }
     
@@ -478,11 +664,13 @@ public class Relation {
     @ReturnType(clazz = RelationModel.class)
     public Response deleteById(@PathParam("relationId") String relationId) {
         RelationModel relationModel;
+        Object sectionId;
 
         try (Transaction tx = db.beginTx()) {
             Relationship relationship = db.getRelationshipById(Long.parseLong(relationId));
             if(relationship.getType().name().equals("RELATED")) {
                 relationModel = new RelationModel(relationship);
+                sectionId = relationship.getStartNode().getProperty("section_id");
                 relationship.delete();
             } else {
                 return Response.status(Status.FORBIDDEN).entity(jsonerror("This is not a relation link")).build();
@@ -491,6 +679,7 @@ public class Relation {
         } catch (Exception e) {
             return Response.serverError().entity(jsonerror(e.getMessage())).build();
         }
+        SectionStamp.touchReadings(db, sectionId);
         return Response.ok(relationModel).build();
     }
     
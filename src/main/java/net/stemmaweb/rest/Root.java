@@ -6,10 +6,15 @@ package net.stemmaweb.rest;
 
 
 import com.qmino.miredot.annotations.ReturnType;
+import net.stemmaweb.model.DeletionJobModel;
+import net.stemmaweb.model.SchemaIndexModel;
 import net.stemmaweb.model.TraditionModel;
 import net.stemmaweb.model.UserModel;
 import net.stemmaweb.services.DatabaseService;
+import net.stemmaweb.services.DeletionService;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.RankIndex;
+import net.stemmaweb.services.SchemaService;
 
 import org.apache.tika.Tika;
 import org.glassfish.jersey.media.multipart.FormDataContentDisposition;
@@ -28,7 +33,9 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import static net.stemmaweb.rest.Util.jsonerror;
@@ -164,7 +171,7 @@ public class Root {
         try {
             this.linkUserToTradition(userId, tradId);
         } catch (Exception e) {
-            new Tradition(tradId).deleteTraditionById();
+            new Tradition(tradId).deleteTraditionById(false);
             return Response.serverError().entity(jsonerror(e.getMessage())).build();
         }
 
@@ -176,7 +183,7 @@ public class Root {
                     filetype, uploadedInputStream);
             if (dataResult.getStatus() != Response.Status.CREATED.getStatusCode()) {
                 // If something went wrong, delete the new tradition immediately and return the error.
-                traditionService.deleteTraditionById();
+                traditionService.deleteTraditionById(false);
                 return dataResult;
             }
             // If we just parsed GraphML (the only format that can preserve prior tradition IDs),
@@ -262,6 +269,74 @@ public class Root {
         return Response.ok(userList).build();
     }
 
+    /**
+     * Gets the indexes that the database maintains, along with their population status.
+     *
+     * @summary List database indexes
+     *
+     * @return A list, one item per index, with its label, properties, state, and population progress.
+     * @statuscode 200 on success
+     * @statuscode 500 on failure, with an error report in JSON format
+     */
+    @GET
+    @Path("/admin/indexes")
+    @Produces("application/json; charset=utf-8")
+    @ReturnType("java.util.List<net.stemmaweb.model.SchemaIndexModel>")
+    public Response getIndexStatus() {
+        List<SchemaIndexModel> indexList;
+        try {
+            indexList = SchemaService.getIndexStatus(db);
+        } catch (Exception e) {
+            return Response.serverError().entity(jsonerror(e.getMessage())).build();
+        }
+        return Response.ok(indexList).build();
+    }
+
+    /**
+     * Gets the size of the in-memory rank indices, which are used to find the readings of a
+     * section within a range of ranks.
+     *
+     * @summary Show rank index usage
+     *
+     * @return A JSON object with the number of sections indexed, the number of readings held,
+     *         and the approximate memory footprint in bytes.
+     * @statuscode 200 on success
+     */
+    @GET
+    @Path("/admin/rankindex")
+    @Produces("application/json; charset=utf-8")
+    @ReturnType("java.util.Map<java.lang.String,java.lang.Long>")
+    public Response getRankIndexStatus() {
+        Map<String, Long> status = new LinkedHashMap<>();
+        status.put("sections", RankIndex.getSectionCount(db));
+        status.put("readings", RankIndex.getEntryCount(db));
+        status.put("bytes", RankIndex.getMemoryFootprint(db));
+        return Response.ok(status).build();
+    }
+
+    /**
+     * Gets the progress of a tradition or section deletion.
+     *
+     * @summary Show deletion progress
+     *
+     * @param jobId - the ID of the deletion job, as returned when the deletion was requested
+     * @return A description of the deletion job, with its status ("pending", "running", "done" or
+     *         "failed") and the number of nodes and relationships deleted so far.
+     * @statuscode 200 on success
+     * @statuscode 404 if no such deletion job is known
+     */
+    @GET
+    @Path("/deletion/{jobId}")
+    @Produces("application/json; charset=utf-8")
+    @ReturnType(clazz = DeletionJobModel.class)
+    public Response getDeletionStatus(@PathParam("jobId") String jobId) {
+        DeletionJobModel job = DeletionService.getJob(jobId);
+        if (job == null)
+            return Response.status(Response.Status.NOT_FOUND)
+                    .entity(jsonerror("No deletion job with this ID was found")).build();
+        return Response.ok(job).build();
+    }
+
     private String createTradition(String name, String direction, String language, String isPublic) {
         String tradId = UUID.randomUUID().toString();
         try (Transaction tx = db.beginTx()) {
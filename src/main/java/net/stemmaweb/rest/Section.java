@@ -1,5 +1,8 @@
 package net.stemmaweb.rest;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import com.qmino.miredot.annotations.MireDotIgnore;
 import com.qmino.miredot.annotations.ReturnType;
 import net.stemmaweb.exporter.DotExporter;
@@ -7,17 +10,22 @@ import net.stemmaweb.exporter.GraphMLExporter;
 import net.stemmaweb.exporter.TabularExporter;
 import net.stemmaweb.model.*;
 import net.stemmaweb.services.*;
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.traversal.*;
 
 import javax.ws.rs.*;
 import javax.ws.rs.Path;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import java.text.Normalizer;
 import java.util.*;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
 import static net.stemmaweb.rest.Util.jsonerror;
@@ -116,50 +124,62 @@ public class Section {
 
     /**
      * Delete the specified section, and update the tradition's sequence of sections to
-     * account for any resulting gap. Returns a JSON response on error with key 'error'.
+     * account for any resulting gap. The section is unlinked from the tradition at once, and
+     * is then deleted a batch at a time; if requested, this happens in the background, and the
+     * progress of the deletion can be followed at /deletion/{jobId}. Returns a JSON response on
+     * error with key 'error'.
      *
      * @summary Delete section
+     * @param background - If "true", return as soon as the section is unlinked, and delete it in the background.
+     * @return on a background deletion, a description of the deletion job
      * @statuscode 200 - on success
+     * @statuscode 202 - if the section is being deleted in the background
      * @statuscode 404 - if no such tradition or section exists
      * @statuscode 500 - on failure, with an error message
      */
     @DELETE
-    @ReturnType("java.lang.Void")
-    public Response deleteSection() {
+    @ReturnType(clazz = DeletionJobModel.class)
+    public Response deleteSection(@DefaultValue("false") @QueryParam("background") Boolean background) {
         if (!sectionInTradition())
             return Response.status(Response.Status.NOT_FOUND).type(MediaType.APPLICATION_JSON_TYPE)
                     .entity(jsonerror("Tradition and/or section not found")).build();
+        Node foundSection;
         try (Transaction tx = db.beginTx()) {
-            Node foundSection = db.getNodeById(Long.parseLong(sectId));
-            if (foundSection != null) {
-                // Find the section either side of this one and connect them if necessary.
-                removeFromSequence(foundSection);
-                // Collect all nodes and relationships that belong to this section.
-                Set<Relationship> removableRelations = new HashSet<>();
-                Set<Node> removableNodes = new HashSet<>();
-                VariantGraphService.returnTraditionSection(foundSection).nodes()
-                        .forEach(x -> {
-                            removableNodes.add(x);
-                            x.getRelationships(Direction.BOTH).forEach(removableRelations::add);
-                        });
-
-                // Remove said nodes and relationships.
-                removableRelations.forEach(Relationship::delete);
-                removableNodes.forEach(Node::delete);
-                // Clean up any annotations that need it.
-                Tradition tService = new Tradition(tradId);
-                Response pruned = tService.pruneAnnotations();
-                if (pruned.getStatus() > 299) {
-                    return pruned;
-                }
-            }
+            foundSection = db.getNodeById(Long.parseLong(sectId));
+            // Find the section either side of this one and connect them if necessary.
+            removeFromSequence(foundSection);
+            // Unlink it from the tradition, so that it can no longer be found.
+            foundSection.getRelationships(ERelations.PART, Direction.INCOMING).forEach(Relationship::delete);
+            DeletionService.markPending(foundSection, tradId);
             tx.success();
         } catch (Exception e) {
             e.printStackTrace();
             return Response.serverError().type(MediaType.APPLICATION_JSON_TYPE)
                     .entity(jsonerror(e.getMessage())).build();
         }
-
+        SectionStamp.touch(db, sectId);
+
+        // Delete all nodes and relationships that belong to this section, and then clean up
+        // any annotations that need it.
+        DeletionJobModel job = DeletionService.deleteSection(db, foundSection, () -> {
+            Response pruned = new Tradition(tradId).pruneAnnotations();
+            if (pruned.getStatus() > 299) {
+                // Fail the job with the error message that the prune gave us
+                String error = pruned.getEntity().toString();
+                try {
+                    error = new JSONObject(error).optString("error", error);
+                } catch (JSONException e) {
+                    // It wasn't JSON, so use it as it is
+                }
+                throw new RuntimeException(error);
+            }
+        }, background);
+        if (background)
+            return Response.status(Response.Status.ACCEPTED).type(MediaType.APPLICATION_JSON_TYPE)
+                    .entity(job).build();
+        if (job.getStatus().equals("failed"))
+            return Response.serverError().type(MediaType.APPLICATION_JSON_TYPE)
+                    .entity(jsonerror(job.getError())).build();
         return Response.ok().build();
     }
 
@@ -209,9 +229,10 @@ public class Section {
         Node sectionStart = VariantGraphService.getStartNode(sectId, db);
         ArrayList<Node> traditionWitnesses = DatabaseService.getRelated(traditionNode, ERelations.HAS_WITNESS);
         try (Transaction tx = db.beginTx()) {
+            WitnessSets.Dictionary dictionary = WitnessSets.dictionaryFor(traditionNode);
             for (Relationship relationship : sectionStart.getRelationships(ERelations.SEQUENCE)) {
-                for (String witClass : relationship.getPropertyKeys()) {
-                    for (String sigil : (String[]) relationship.getProperty(witClass)) {
+                for (String[] witClass : dictionary.read(relationship).values()) {
+                    for (String sigil : witClass) {
                         for (Node curWitness : traditionWitnesses) {
                             if (sigil.equals(curWitness.getProperty("sigil"))) {
                                 witnessList.add(curWitness);
@@ -271,6 +292,7 @@ public class Section {
 
     List<ReadingModel> sectionReadings() {
         ArrayList<ReadingModel> readingModels = new ArrayList<>();
+        ArrayList<Node> readingNodes = new ArrayList<>();
         try (Transaction tx = db.beginTx()) {
             Node startNode = VariantGraphService.getStartNode(sectId, db);
             if (startNode == null) throw new Exception("Section " + sectId + " has no start node");
@@ -279,7 +301,8 @@ public class Section {
                     .relationships(ERelations.EMENDED, Direction.OUTGOING)
                     .evaluator(Evaluators.all())
                     .uniqueness(Uniqueness.NODE_GLOBAL).traverse(startNode)
-                    .nodes().forEach(node -> readingModels.add(new ReadingModel(node)));
+                    .nodes().forEach(readingNodes::add);
+            readingModels.addAll(ReadingLoader.load(readingNodes));
             tx.success();
         } catch (Exception e) {
             e.printStackTrace();
@@ -775,17 +798,18 @@ public class Section {
             }
 
             // Reattach the readings to their respective new end/start nodes
+            WitnessSets.Dictionary dictionary = WitnessSets.dictionaryOfSection(thisSection);
             for (Relationship crossed : linksToSplit) {
                 Node lastInOld = crossed.getStartNode();
                 Node firstInNew = crossed.getEndNode();
                 if (lastInOld.hasProperty("is_lacuna") && lastInOld.getProperty("is_lacuna").equals(true)
                         && (Long) firstInNew.getProperty("rank") > rank) {
-                    ReadingService.transferWitnesses(newStart, newLacuna, crossed);
-                    ReadingService.transferWitnesses(newLacuna, firstInNew, crossed);
+                    ReadingService.transferWitnesses(newStart, newLacuna, crossed, dictionary);
+                    ReadingService.transferWitnesses(newLacuna, firstInNew, crossed, dictionary);
                 } else if (!firstInNew.equals(sectionEnd))
-                    ReadingService.transferWitnesses(newStart, firstInNew, crossed);
+                    ReadingService.transferWitnesses(newStart, firstInNew, crossed, dictionary);
                 if (!lastInOld.equals(startNode))
-                    ReadingService.transferWitnesses(lastInOld, newEnd, crossed);
+                    ReadingService.transferWitnesses(lastInOld, newEnd, crossed, dictionary);
 
             }
             linksToSplit.forEach(Relationship::delete);
@@ -819,19 +843,23 @@ public class Section {
             e.printStackTrace();
             return Response.serverError().entity(jsonerror(e.getMessage())).build();
         }
+        SectionStamp.touch(db, sectId);
+        SectionStamp.touch(db, newSectionId);
         return Response.ok().entity(jsonresp("sectionId", newSectionId)).build();
     }
 
 
+    // Look for the links that cross the rank among the readings that are close enough
+    // before it for their outgoing links to reach it.
     @SuppressWarnings("SameParameterValue")
     private List<Relationship> sequencesCrossingRank(Long rank, Boolean leftfencepost) {
-        Node startNode = VariantGraphService.getStartNode(sectId, db);
-        return db.traversalDescription().depthFirst()
-                .relationships(ERelations.SEQUENCE, Direction.OUTGOING)
-                .evaluator(Evaluators.all())
-                .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL).traverse(startNode)
-                .relationships().stream().filter(x -> crossesRank(x, rank, leftfencepost))
-                .collect(Collectors.toList());
+        long lookback = RankIndex.maxSequenceSpan(db, sectId);
+        List<Relationship> result = new ArrayList<>();
+        for (Node n : RankIndex.readingsBetween(db, sectId, rank - lookback, leftfencepost ? rank : rank - 1))
+            for (Relationship r : n.getRelationships(Direction.OUTGOING, ERelations.SEQUENCE))
+                if (crossesRank(r, rank, leftfencepost))
+                    result.add(r);
+        return result;
     }
 
     private static boolean crossesRank (Relationship r, Long rank, boolean leftfencepost) {
@@ -911,21 +939,22 @@ public class Section {
             oldEnd.getSingleRelationship(ERelations.HAS_END, Direction.INCOMING).delete();
             oldEnd.setProperty("is_placeholder", true);
             oldStart.setProperty("is_placeholder", true);
+            WitnessSets.Dictionary dictionary = WitnessSets.dictionaryOfSection(firstSection);
             HashSet<String> oldWitnesses = new HashSet<>();
             HashSet<String> newWitnesses = new HashSet<>();
             for (Relationship r : oldEnd.getRelationships(ERelations.SEQUENCE))
-                for (String key : r.getPropertyKeys())
-                    oldWitnesses.addAll(Arrays.asList((String[]) r.getProperty(key)));
+                for (String[] wits : dictionary.read(r).values())
+                    oldWitnesses.addAll(Arrays.asList(wits));
             for (Relationship r : oldStart.getRelationships(ERelations.SEQUENCE))
-                for (String key : r.getPropertyKeys())
-                    newWitnesses.addAll(Arrays.asList((String[]) r.getProperty(key)));
+                for (String[] wits : dictionary.read(r).values())
+                    newWitnesses.addAll(Arrays.asList(wits));
             newWitnesses.stream().filter(x -> !oldWitnesses.contains(x))
-                    .forEach(x -> addWitnessLink(trueStart, oldEnd, x, "witnesses"));
+                    .forEach(x -> addWitnessLink(trueStart, oldEnd, x, "witnesses", dictionary));
             oldWitnesses.stream().filter(x -> !newWitnesses.contains(x))
-                    .forEach(x -> addWitnessLink(oldStart, trueEnd, x, "witnesses"));
+                    .forEach(x -> addWitnessLink(oldStart, trueEnd, x, "witnesses", dictionary));
             oldWitnesses.addAll(newWitnesses);
             Relationship link = oldEnd.createRelationshipTo(oldStart, ERelations.SEQUENCE);
-            link.setProperty("witnesses", oldWitnesses.toArray(new String[0]));
+            dictionary.set(link, "witnesses", oldWitnesses);
 
             // Reconfigure the lemma text link, if there is one
             Relationship plr = oldEnd.getSingleRelationship(ERelations.LEMMA_TEXT, Direction.INCOMING);
@@ -936,8 +965,8 @@ public class Section {
             if (nlr != null) nlr.delete();
 
             // Remove each placeholder in turn
-            removePlaceholder(oldEnd);
-            removePlaceholder(oldStart);
+            removePlaceholder(oldEnd, dictionary);
+            removePlaceholder(oldStart, dictionary);
 
             // TODO Look for any lacuna nodes in a row that can be merged
 
@@ -952,21 +981,24 @@ public class Section {
 
             // Re-initialize the ranks starting from the final readings of the first section.
             for (Node n : firstSectionEnd)
-                recalculateRank(n);
+                recalculateRank(n, false, true);
 
             tx.success();
         } catch (Exception e) {
             e.printStackTrace();
             return Response.serverError().entity(e.getMessage()).build();
         }
+        SectionStamp.touch(db, sectId);
+        SectionStamp.touch(db, otherId);
         return Response.ok().build();
     }
 
     /**
-     * Resets ranks within the given section
+     * Resets ranks within the given section, and then recalculates the common readings of
+     * the whole section from its alignment.
      *
      * This does not belong to the official API!
-     * It is a secret hack to fix ranks if we find they are broken or missing.
+     * It is a secret hack to fix ranks and common reading flags if we find they are broken or missing.
      */
     @GET
     @Path("/initRanks")
@@ -975,12 +1007,16 @@ public class Section {
     public Response initRanks() {
         if (!sectionInTradition())
             return Response.status(Response.Status.NOT_FOUND).entity("Tradition and/or section not found").build();
+        Node sectionNode;
         try (Transaction tx = db.beginTx()) {
+            sectionNode = db.getNodeById(Long.parseLong(sectId));
             ReadingService.recalculateRank(VariantGraphService.getStartNode(sectId, db), true);
             tx.success();
         } catch (Exception e) {
             return Response.serverError().entity(jsonerror(e.getMessage())).build();
         }
+        SectionStamp.touch(db, sectId);
+        VariantGraphService.calculateCommon(sectionNode);
         return Response.ok(jsonresp("result", "success")).build();
 
     }
@@ -1023,10 +1059,10 @@ public class Section {
 
         List<List<ReadingModel>> couldBeIdenticalReadings;
         try (Transaction tx = db.beginTx()) {
-            List<Node> questionedReadings = getReadingsBetweenRanks(
-                    startRank, endRank, startNode, limitText);
+            List<Node> questionedReadings = getReadingsBetweenRanks(startRank, endRank, limitText);
 
-            couldBeIdenticalReadings = getCouldBeIdenticalAsList(questionedReadings, threshold);
+            couldBeIdenticalReadings = MergeableReadings.find(
+                    db.getNodeById(Long.parseLong(sectId)), questionedReadings, threshold);
             tx.success();
         } catch (Exception e) {
             e.printStackTrace();
@@ -1035,67 +1071,15 @@ public class Section {
         return Response.ok(couldBeIdenticalReadings).build();
     }
 
-    /**
-     * Makes separate lists for every group of readings with identical text and
-     * different ranks and send the list for further test
-     *
-     * @param questionedReadings -
-     * @return list of lists of identical readings
-     */
-    private List<List<ReadingModel>> getCouldBeIdenticalAsList (
-            List<Node> questionedReadings, long threshold) throws Exception {
-
-        List<List<ReadingModel>> couldBeIdenticalReadings = new ArrayList<>();
-        HashSet<Long> processed = new HashSet<>();
-
-        for (Node nodeA : questionedReadings) {
-            if (processed.contains(nodeA.getId()))
-                continue;
-            long aRank = Long.parseLong(nodeA.getProperty("rank").toString());
-            List<Node> sameText = questionedReadings.stream().filter(x -> !x.equals(nodeA)
-                && x.getProperty("text").equals(nodeA.getProperty("text"))
-                && Math.abs(Long.parseLong(x.getProperty("rank").toString()) - aRank) < threshold)
-                    .collect(Collectors.toList());
-            for (Node n : sameText) {
-                if (processed.contains(n.getId()))
-                    continue;
-                if (!wouldGetCyclic(nodeA, n)) {
-                    // Get the reading models
-                    ReadingModel rma = new ReadingModel(nodeA);
-                    ReadingModel rmn = new ReadingModel(n);
-                    // Order them by descending number of witnesses
-                    ArrayList<ReadingModel> pair = new ArrayList<>(Arrays.asList(rma, rmn));
-                    pair.sort((a, b) -> b.getWitnesses().size() - a.getWitnesses().size());
-                    couldBeIdenticalReadings.add(pair);
-                }
+    // Retrieve all readings of a section between two ranks as Nodes
+    private List<Node> getReadingsBetweenRanks(long startRank, long endRank, String limitText) {
+        List<Node> readings = RankIndex.readingsBetween(db, sectId, startRank, endRank);
+        if (!limitText.equals("")) {
+            try (Transaction tx = db.beginTx()) {
+                readings = readings.stream().filter(x -> x.getProperty("text").toString().equals(limitText))
+                        .collect(Collectors.toList());
+                tx.success();
             }
-            processed.add(nodeA.getId());
-        }
-        return couldBeIdenticalReadings.stream()
-                .sorted(Comparator.comparingLong(this::rankDifference))
-                .collect(Collectors.toList());
-    }
-
-    // Return the difference in ranks between the given pair of readings.
-    private long rankDifference(List<ReadingModel> pair) {
-        return Math.abs(pair.get(1).getRank() - pair.get(0).getRank());
-    }
-
-    // Retrieve all readings of a tradition between two ranks as Nodes
-    @SuppressWarnings("rawtypes")
-    private List<Node> getReadingsBetweenRanks(long startRank, long endRank, Node startNode, String limitText) throws Exception {
-        List<Node> readings;
-        PathExpander e = new AlignmentTraverse(startNode);
-        try (Transaction tx = db.beginTx()) {
-            Stream<Node> readingStream = db.traversalDescription().depthFirst()
-                    .expand(e).uniqueness(Uniqueness.NODE_GLOBAL)
-                    .traverse(startNode).nodes().stream()
-                    .filter(x -> startRank <= Long.parseLong(x.getProperty("rank").toString()) &&
-                            endRank >= Long.parseLong(x.getProperty("rank").toString()));
-            if (!limitText.equals(""))
-                readingStream = readingStream.filter(x -> x.getProperty("text").toString().equals(limitText));
-            readings = readingStream.collect(Collectors.toList());
-            tx.success();
         }
         return readings;
     }
@@ -1134,7 +1118,7 @@ public class Section {
         ArrayList<List<ReadingModel>> identicalReadings;
         try {
             ArrayList<ReadingModel> readingModels =
-                    getAllReadingsFromSectionBetweenRanks(startNode, startRank, endRank);
+                    getAllReadingsFromSectionBetweenRanks(startRank, endRank);
             identicalReadings = identifyIdenticalReadings(readingModels, startRank, endRank);
         } catch (Exception e) {
             e.printStackTrace();
@@ -1148,10 +1132,9 @@ public class Section {
     }
 
     // Retrieve all readings of a tradition between two ranks as ReadingModels
-    private ArrayList<ReadingModel> getAllReadingsFromSectionBetweenRanks(
-            Node startNode, long startRank, long endRank) throws Exception {
+    private ArrayList<ReadingModel> getAllReadingsFromSectionBetweenRanks(long startRank, long endRank) {
         ArrayList<ReadingModel> readingModels = new ArrayList<>();
-        getReadingsBetweenRanks(startRank, endRank, startNode, "")
+        getReadingsBetweenRanks(startRank, endRank, "")
                 .forEach(x -> readingModels.add(new ReadingModel(x)));
         readingModels.sort(Comparator.comparing(ReadingModel::getRank));
         return readingModels;
@@ -1256,6 +1239,7 @@ public class Section {
                 e.printStackTrace();
             return Response.serverError().entity(jsonerror(e.getMessage())).build();
         }
+        SectionStamp.touch(db, sectId);
         return Response.ok(jsonresp("result", "success")).build();
     }
 
@@ -1352,12 +1336,13 @@ public class Section {
             for (Node n : atOrAfter) newLinks.add(new SequenceModel(emendation.createRelationshipTo(n, ERelations.EMENDED)));
             result.setSequences(newLinks);
             // If it is a zero-width emendation, re-rank the graph
-            ReadingService.recalculateRank(emendation);
+            ReadingService.recalculateRank(emendation, false, true);
             tx.success();
         } catch (Exception e) {
             e.printStackTrace();
             return Response.serverError().entity(jsonerror(e.getMessage())).build();
         }
+        SectionStamp.touch(db, sectId);
         return Response.ok(result).build();
     }
 
@@ -1368,45 +1353,87 @@ public class Section {
 
     /**
      * Returns a JSON GraphModel (readings, relations, sequences incl. lemma & emendation) for the section.
+     * The section is crawled once before the response starts, and its readings are loaded in bulk
+     * as the response is written. The response carries an ETag that changes whenever the section is
+     * modified, so that a client which sends it back in an If-None-Match header gets a 304 if the
+     * section hasn't changed.
      *
      * @summary Download JSON description of graph nodes & edges
+     * @param request - the request, whose preconditions are checked against the section's ETag
      * @return GraphModel of the section subgraph, excluding annotations
      * @statuscode 200 - on success
+     * @statuscode 304 - if the section hasn't changed since the client's copy
      * @statuscode 404 - if no such tradition or section exists
-     * @statuscode 500 - on failure, with an error message
+     * @statuscode 500 - if the section could not be crawled, with an error message; a failure
+     *                   while the response is being written cuts the response short instead
      */
     @GET
     @Path("/graph")
     @Produces("application/json; charset=utf-8")
     @ReturnType(clazz = GraphModel.class)
-    public Response getGraphModel() {
+    public Response getGraphModel(@Context Request request) {
         // TODO does this check make sense, or does the not-found happen already in Tradition.java?
         if (VariantGraphService.getTraditionNode(tradId, db) == null)
             return Response.status(Response.Status.NOT_FOUND).type(MediaType.TEXT_PLAIN_TYPE)
                     .entity("No such tradition found").build();
 
-        GraphModel thisSection = new GraphModel();
-        try (Transaction tx = db.beginTx()) {
-            // Add the readings
-            thisSection.addReadings(StreamSupport.stream(VariantGraphService.returnTraditionSection(sectId, db)
-                    .nodes().spliterator(), false).filter(x -> x.hasLabel(Nodes.READING))
-                    .map(ReadingModel::new).collect(Collectors.toSet()));
-            // Add the relations
-            thisSection.addRelations(StreamSupport.stream(VariantGraphService.returnTraditionSection(sectId, db)
-                    .relationships().spliterator(), false).filter(x -> x.isType(ERelations.RELATED))
-                    .map(RelationModel::new).collect(Collectors.toSet()));
-            // Add the sequences
-            thisSection.addSequences(StreamSupport.stream(VariantGraphService.returnTraditionSection(sectId, db)
-                    .relationships().spliterator(), false)
-                    .filter(x -> x.isType(ERelations.SEQUENCE) || x.isType(ERelations.LEMMA_TEXT) || x.isType(ERelations.EMENDED))
-                    .map(SequenceModel::new).collect(Collectors.toSet()));
+        // Take the stamp before we crawl, so that a change made meanwhile can only make the tag stale.
+        EntityTag etag = new EntityTag(sectId + "-" + SectionStamp.current(db, sectId));
+        if (request != null) {
+            Response.ResponseBuilder unchanged = request.evaluatePreconditions(etag);
+            if (unchanged != null)
+                return unchanged.tag(etag).build();
+        }
 
+        // Crawl the section and sort out its readings and relationships before we answer, so
+        // that a failure here can still be reported as such.
+        LinkedHashSet<Node> readings = new LinkedHashSet<>();
+        ArrayList<Relationship> relations = new ArrayList<>();
+        ArrayList<Relationship> sequences = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            for (org.neo4j.graphdb.Path p : VariantGraphService.returnTraditionSection(sectId, db)) {
+                Node n = p.endNode();
+                if (n.hasLabel(Nodes.READING))
+                    readings.add(n);
+                Relationship r = p.lastRelationship();
+                if (r == null) continue;
+                if (r.isType(ERelations.RELATED))
+                    relations.add(r);
+                else if (r.isType(ERelations.SEQUENCE) || r.isType(ERelations.LEMMA_TEXT)
+                        || r.isType(ERelations.EMENDED))
+                    sequences.add(r);
+            }
             tx.success();
         } catch (Exception e) {
             e.printStackTrace();
             return Response.serverError().entity(jsonerror(e.getMessage())).build();
         }
-        return Response.ok(thisSection).build();
+
+        StreamingOutput stream = out -> {
+            ObjectMapper mapper = new ObjectMapper().disable(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+            JsonGenerator json = mapper.getFactory().createGenerator(out);
+            try (Transaction tx = db.beginTx()) {
+                json.writeStartObject();
+                json.writeArrayFieldStart("readings");
+                ReadingLoader.forEach(new ArrayList<>(readings), x -> mapper.writeValue(json, x));
+                json.writeEndArray();
+                json.writeArrayFieldStart("relations");
+                for (Relationship r : relations)
+                    mapper.writeValue(json, new RelationModel(r));
+                json.writeEndArray();
+                json.writeArrayFieldStart("sequences");
+                for (Relationship r : sequences)
+                    mapper.writeValue(json, new SequenceModel(r));
+                json.writeEndArray();
+                json.writeEndObject();
+                json.flush();
+                tx.success();
+            } catch (Exception e) {
+                e.printStackTrace();
+                throw new WebApplicationException("Error: Section graph could not be exported!", e);
+            }
+        };
+        return Response.ok(stream).tag(etag).build();
     }
 
     // Export the dot / SVG for a particular section
@@ -1415,6 +1442,7 @@ public class Section {
      *
      * @summary Download GraphML XML description of section
      * @param includeWitnesses - Whether or not to include witness information in the XML
+     * @param acceptEncoding - the client's Accept-Encoding header; the output is gzip-compressed if it allows
      * @return GraphML description of the section subgraph
      * @statuscode 200 - on success
      * @statuscode 404 - if no such tradition or section exists
@@ -1424,13 +1452,14 @@ public class Section {
     @Path("/graphml")
     @Produces("application/xml; charset=utf-8")
     @ReturnType("java.lang.Void")
-    public Response getGraphML(@DefaultValue("false") @QueryParam("include_witnesses") Boolean includeWitnesses) {
+    public Response getGraphML(@DefaultValue("false") @QueryParam("include_witnesses") Boolean includeWitnesses,
+                               @HeaderParam("Accept-Encoding") String acceptEncoding) {
         if (VariantGraphService.getTraditionNode(tradId, db) == null)
             return Response.status(Response.Status.NOT_FOUND).type(MediaType.TEXT_PLAIN_TYPE)
                     .entity("No such tradition found").build();
 
         GraphMLExporter exporter = new GraphMLExporter();
-        return exporter.writeNeo4J(tradId, sectId, includeWitnesses);
+        return exporter.writeNeo4J(tradId, sectId, includeWitnesses, Util.acceptsGzip(acceptEncoding));
     }
 
     // Export the dot / SVG for a particular section
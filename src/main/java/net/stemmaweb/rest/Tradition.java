@@ -265,7 +265,7 @@ public class Tradition {
         if (result.getStatus() > 201) {
             // If the result wasn't a success, delete the section node before returning the result.
             Section restSect = new Section(traditionId, String.valueOf(sectionNode.getId()));
-            restSect.deleteSection();
+            restSect.deleteSection(false);
         } else if (!filetype.equals("graphml")){
             // Otherwise, if we haven't already, link this section behind the last of the prior sections.
             if (existingSections != null && existingSections.size() > 0) {
@@ -345,6 +345,7 @@ public class Tradition {
         } catch (Exception e) {
             return Response.serverError().entity(jsonerror(e.getMessage())).build();
         }
+        smlist.forEach(x -> SectionStamp.touch(db, x.getId()));
         return Response.ok(jsonresp("result", "success")).build();
 
     }
@@ -525,14 +526,20 @@ public class Tradition {
             return Response.serverError()
                     .entity(jsonerror("Tradition has no sections")).build();
 
+        // Collect the readings of all sections in parallel, keeping them in section order
         ArrayList<ReadingModel> readingModels = new ArrayList<>();
-        for (SectionModel sm : allSections) {
-            Section sectRest = new Section(traditionId, sm.getId());
-            List<ReadingModel> sectionReadings = sectRest.sectionReadings();
-            if (sectionReadings == null)
-                return Response.serverError().entity(jsonerror("section lookup failed")).build();
-            readingModels.addAll(sectionReadings);
-
+        try {
+            ArrayList<Node> sectionNodes = VariantGraphService.getSectionNodes(traditionId, db);
+            List<List<ReadingModel>> bySection = ParallelSections.map(db, sectionNodes,
+                    x -> new Section(traditionId, String.valueOf(x.getId())).sectionReadings());
+            for (List<ReadingModel> sectionReadings : bySection) {
+                if (sectionReadings == null)
+                    return Response.serverError().entity(jsonerror("section lookup failed")).build();
+                readingModels.addAll(sectionReadings);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Response.serverError().entity(jsonerror(e.getMessage())).build();
         }
         return Response.ok(readingModels).build();
     }
@@ -685,41 +692,46 @@ public class Tradition {
 
     /**
      * Removes an entire tradition, including all witnesses, stemmata, sections, readings,
-     * and relationships.
+     * and relationships. The tradition is detached from its owner at once, and is then deleted
+     * a batch at a time; if requested, this happens in the background, and the progress of the
+     * deletion can be followed at /deletion/{jobId}.
      *
      * @summary Delete tradition
      *
+     * @param background - If "true", return as soon as the tradition is detached, and delete it in the background.
+     * @return on a background deletion, a description of the deletion job
      * @statuscode 200 - on success
+     * @statuscode 202 - if the tradition is being deleted in the background
      * @statuscode 404 - if tradition does not exist
      * @statuscode 500 - on error, with an error message
      */
     @DELETE
-    @ReturnType("java.lang.Void")
-    public Response deleteTraditionById() {
+    @ReturnType(clazz = DeletionJobModel.class)
+    public Response deleteTraditionById(@DefaultValue("false") @QueryParam("background") Boolean background) {
         Node foundTradition = VariantGraphService.getTraditionNode(traditionId, db);
         if (foundTradition != null) {
+            ArrayList<Node> sections = VariantGraphService.getSectionNodes(traditionId, db);
+            List<Long> sectionIds = new ArrayList<>();
+            if (sections != null) sections.forEach(x -> sectionIds.add(x.getId()));
             try (Transaction tx = db.beginTx()) {
-                /*
-                 * Find all the nodes and relations to remove
-                 */
-                Set<Relationship> removableRelations = new HashSet<>();
-                Set<Node> removableNodes = new HashSet<>();
-                VariantGraphService.returnEntireTradition(foundTradition)
-                        .nodes().forEach(x -> {
-                    x.getRelationships().forEach(removableRelations::add);
-                    removableNodes.add(x);
-                });
-
-                /*
-                 * Remove the nodes and relations
-                 */
-                removableRelations.forEach(Relationship::delete);
-                removableNodes.forEach(Node::delete);
+                // Detach the tradition from its owner, so that it can no longer be found
+                foundTradition.getRelationships(ERelations.OWNS_TRADITION, Direction.INCOMING)
+                        .forEach(Relationship::delete);
+                foundTradition.removeLabel(Nodes.TRADITION);
+                DeletionService.markPending(foundTradition);
                 tx.success();
             } catch (Exception e) {
                 e.printStackTrace();
                 return Response.serverError().entity(jsonerror(e.getMessage())).build();
             }
+            sectionIds.forEach(x -> SectionStamp.touch(db, x));
+
+            DeletionJobModel job = DeletionService.deleteTradition(db, traditionId, foundTradition,
+                    sectionIds, background);
+            if (background)
+                return Response.status(Status.ACCEPTED).type(MediaType.APPLICATION_JSON_TYPE).entity(job).build();
+            if (job.getStatus().equals("failed"))
+                return Response.serverError().entity(jsonerror(job.getError())).build();
         } else {
             return Response.status(Response.Status.NOT_FOUND)
                     .type(MediaType.APPLICATION_JSON)
@@ -744,16 +756,9 @@ public class Tradition {
         Node traditionNode = VariantGraphService.getTraditionNode(traditionId, db);
         if (traditionNode == null)
             return Response.status(Status.NOT_FOUND).entity(jsonerror("No such tradition found")).build();
-        List<AnnotationModel> deleted = new ArrayList<>();
+        List<AnnotationModel> deleted;
         try (Transaction tx = db.beginTx()) {
-            for (Node a : DatabaseService.getRelated(traditionNode, ERelations.HAS_ANNOTATION)) {
-                boolean isPrimary = a.getProperty("primary", false).equals(true);
-                if (!a.hasRelationship(Direction.OUTGOING) && !isPrimary) {
-                    deleted.add(new AnnotationModel(a));
-                    a.getRelationships(Direction.INCOMING).forEach(Relationship::delete);
-                    a.delete();
-                }
-            }
+            deleted = DeletionService.pruneAnnotations(traditionNode);
             tx.success();
         } catch (Exception e) {
             e.printStackTrace();
@@ -788,37 +793,41 @@ public class Tradition {
     }
 
     /**
-     * Returns a GraphML file that describes the specified tradition and its data.
+     * Returns a GraphML file that describes the specified tradition and its data. The file is
+     * streamed as it is generated, and is gzip-compressed if the client accepts that encoding.
      * @summary Download GraphML
      *
+     * @param acceptEncoding - the client's Accept-Encoding header
      * @return XML data
      */
     @GET
     @Path("/graphml")
     @Produces(MediaType.APPLICATION_XML)
     @ReturnType("java.lang.Void")
-    public Response getGraphML() {
+    public Response getGraphML(@HeaderParam("Accept-Encoding") String acceptEncoding) {
         if (VariantGraphService.getTraditionNode(traditionId, db) == null)
             return Response.status(Status.NOT_FOUND).type(MediaType.TEXT_PLAIN).entity("No such tradition found").build();
         GraphMLExporter exporter = new GraphMLExporter();
-        return exporter.writeNeo4J(traditionId);
+        return exporter.writeNeo4J(traditionId, null, false, Util.acceptsGzip(acceptEncoding));
     }
 
     /**
      * Returns a legacy Stemmaweb-compatible GraphML file that describes the specified tradition and its data.
+     * The file is streamed as it is generated, and is gzip-compressed if the client accepts that encoding.
      * @summary Download legacy GraphML
      *
+     * @param acceptEncoding - the client's Accept-Encoding header
      * @return XML data
      */
     @GET
     @Path("/stemmaweb")
     @Produces(MediaType.APPLICATION_XML)
     @ReturnType("java.lang.Void")
-    public Response getGraphMLStemmaweb() {
+    public Response getGraphMLStemmaweb(@HeaderParam("Accept-Encoding") String acceptEncoding) {
         if (VariantGraphService.getTraditionNode(traditionId, db) == null)
             return Response.status(Status.NOT_FOUND).type(MediaType.TEXT_PLAIN).entity("No such tradition found").build();
         StemmawebExporter parser = new StemmawebExporter();
-        return parser.writeNeo4J(traditionId);
+        return parser.writeNeo4J(traditionId, Util.acceptsGzip(acceptEncoding));
     }
 
     /**
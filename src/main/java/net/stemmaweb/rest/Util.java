@@ -19,4 +19,25 @@ public class Util {
     static String jsonresp (String key, Long value) {
         return String.format("{\"%s\": %d}", key, value);
     }
+
+    // Whether the client has said, in its Accept-Encoding header, that it takes gzip-compressed content
+    static boolean acceptsGzip (String acceptEncoding) {
+        if (acceptEncoding == null) return false;
+        for (String enc : acceptEncoding.split(",")) {
+            String[] parts = enc.split(";");
+            if (!parts[0].trim().equalsIgnoreCase("gzip")) continue;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(param.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
 }
@@ -1,8 +1,6 @@
 package net.stemmaweb.rest;
 
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
+import java.util.*;
 import java.util.stream.Collectors;
 
 import javax.ws.rs.*;
@@ -128,19 +126,30 @@ public class Witness {
     public Response deleteWitness() {
         if (sectId != null)
             return Response.status(Status.BAD_REQUEST).entity("Cannot delete a witness from a single section").build();
+        ArrayList<Node> sections = VariantGraphService.getSectionNodes(tradId, db);
+        if (sections == null) return Response.status(Status.NOT_FOUND).build();
+        // The sections that the witness is in
+        ArrayList<Node> affected = new ArrayList<>();
         try (Transaction tx = db.beginTx()) {
             // Find the node in question
             Node witnessNode = getWitnessBySigil();
             if (witnessNode == null) return Response.status(Status.NOT_FOUND).build();
-            // Find all references to the witness throughout the tradition, and delete them
+            WitnessSets.Dictionary dictionary = WitnessSets.dictionaryFor(VariantGraphService.getTraditionNode(tradId, db));
+            // Follow the witness through each section, in all its layers, and remove it from
+            // every link it travels along
+            WitnessPath witnessPath = new WitnessPath(sigil);
             HashSet<Node> orphanReadings = new HashSet<>();
-            for (Relationship r : VariantGraphService.returnEntireTradition(tradId, db).relationships()) {
-                if (r.isType(ERelations.SEQUENCE)) {
+            for (Node sectionNode : sections) {
+                Node sectionStart = VariantGraphService.getStartNode(String.valueOf(sectionNode.getId()), db);
+                List<Relationship> links = witnessPath.collectLinks(sectionStart);
+                if (links.isEmpty()) continue;
+                affected.add(sectionNode);
+                for (Relationship r : links) {
                     Node start = r.getStartNode();
                     Node end = r.getEndNode();
-                    for (String layer : r.getPropertyKeys()) {
-                        ReadingService.removeWitnessLink(start, end, sigil, layer, "none");
-                    }
+                    for (Map.Entry<String, String[]> layer : dictionary.read(r).entrySet())
+                        if (WitnessSets.contains(layer.getValue(), sigil))
+                            ReadingService.removeWitnessLink(start, end, sigil, layer.getKey(), "none", dictionary);
                     // Was this the last outgoing for the start, or the last incoming for the end?
                     if (!start.getRelationships(Direction.OUTGOING, ERelations.SEQUENCE, ERelations.LEMMA_TEXT).iterator().hasNext())
                         orphanReadings.add(start);
@@ -189,6 +198,11 @@ public class Witness {
             e.printStackTrace();
             return Response.serverError().build();
         }
+        // The witness is gone from every section it was in
+        affected.forEach(x -> SectionStamp.touch(db, x.getId()));
+        // Every rank where the witness was present may have changed its commonality. Its layers
+        // may have skipped ranks that the base text doesn't, so recalculate the whole section.
+        affected.forEach(VariantGraphService::calculateCommon);
         return Response.ok().build();
     }
 
@@ -265,6 +279,33 @@ public class Witness {
                 endRank = tempRank;
             }
 
+            // For a stretch of the base text, we can go straight to the readings in range
+            // and pick out those that the witness reaches. If the witness path doesn't run
+            // cleanly through them, leave it to the traversal to say what is wrong with it.
+            if (layer.isEmpty() && (!end.equals("E") || startRank != 0)) {
+                ArrayList<Node> inRange = new ArrayList<>();
+                boolean unbroken = true;
+                try (Transaction tx = db.beginTx()) {
+                    WitnessSets.Dictionary dictionary = WitnessSets.dictionaryOfSection(currentSection);
+                    HashSet<Object> ranksSeen = new HashSet<>();
+                    for (Node n : RankIndex.readingsBetween(db, currentSection.getId(), startRank, endRank)) {
+                        long in = witnessLinks(n, Direction.INCOMING, dictionary);
+                        if (in == 0) continue;
+                        inRange.add(n);
+                        unbroken = unbroken && in <= 1 && ranksSeen.add(n.getProperty("rank"))
+                                && (n.hasProperty("is_end") || witnessLinks(n, Direction.OUTGOING, dictionary) == 1);
+                    }
+                    tx.success();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    return Response.serverError().entity(jsonerror(e.getMessage())).build();
+                }
+                if (unbroken) {
+                    witnessReadings.addAll(inRange);
+                    continue;
+                }
+            }
+
             Node startNode = VariantGraphService.getStartNode(String.valueOf(currentSection.getId()), db);
             try (Transaction tx = db.beginTx()) {
                 final long sr = startRank;
@@ -364,6 +405,16 @@ public class Witness {
         return result;
     }
 
+    // For use within a transaction. Counts the links in the given direction by which the base
+    // text of the witness passes through the given reading.
+    private long witnessLinks(Node reading, Direction direction, WitnessSets.Dictionary dictionary) {
+        long count = 0;
+        for (Relationship r : reading.getRelationships(direction, ERelations.SEQUENCE))
+            if (dictionary.has(r, sigil, "witnesses"))
+                count++;
+        return count;
+    }
+
     private ArrayList<Node> sectionsRequested() {
         Node traditionNode = VariantGraphService.getTraditionNode(tradId, db);
         if (traditionNode == null) {
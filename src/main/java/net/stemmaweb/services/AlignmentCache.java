@@ -0,0 +1,165 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.model.AlignmentModel;
+import net.stemmaweb.model.ReadingModel;
+import net.stemmaweb.model.WitnessTokensModel;
+import net.stemmaweb.rest.ERelations;
+import org.neo4j.graphdb.*;
+import org.neo4j.kernel.impl.core.ThreadToStatementContextBridge;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory cache of section alignment tables. The table for a section is kept in columnar
+ * form, i.e. one array of reading IDs per witness layer, with a single ReadingModel per reading
+ * shared between all the witnesses that pass through it. A cached table is valid for as long as
+ * the {@link SectionStamp} of its section doesn't change.
+ *
+ * Normalized alignments (i.e. those built while a section has an NSEQUENCE shadow graph) are
+ * never cached, and neither are tables built within a caller's transaction, since these may
+ * reflect changes that have not been committed (and so have not touched the section stamp).
+ */
+public class AlignmentCache {
+
+    // The number of section tables to keep per database
+    private static final int MAX_SECTIONS = 256;
+
+    private static final Map<GraphDatabaseService, Map<Long, CachedAlignment>> cache =
+            Collections.synchronizedMap(new WeakHashMap<>());
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    private static class CachedAlignment {
+        private final long stamp;
+        private final long length;
+        private final String[] witnesses;
+        private final String[] layers;
+        private final long[][] columns;
+        private final HashMap<Long, ReadingModel> readings = new HashMap<>();
+
+        CachedAlignment(AlignmentModel am, long stamp) {
+            this.stamp = stamp;
+            this.length = am.getLength();
+            int rows = am.getAlignment().size();
+            witnesses = new String[rows];
+            layers = new String[rows];
+            columns = new long[rows][];
+            for (int i = 0; i < rows; i++) {
+                WitnessTokensModel wtm = am.getAlignment().get(i);
+                witnesses[i] = wtm.getWitness();
+                layers[i] = wtm.getLayer();
+                long[] column = new long[wtm.getTokens().size()];
+                for (int j = 0; j < column.length; j++) {
+                    ReadingModel rm = wtm.getTokens().get(j);
+                    if (rm == null)
+                        column[j] = -1;
+                    else {
+                        column[j] = Long.valueOf(rm.getId());
+                        readings.putIfAbsent(column[j], rm);
+                    }
+                }
+                columns[i] = column;
+            }
+        }
+
+        // Make a fresh alignment model out of the cached table; the reading models are shared.
+        AlignmentModel toModel(boolean excludeLayers) {
+            AlignmentModel am = new AlignmentModel();
+            am.setLength(length);
+            for (int i = 0; i < columns.length; i++) {
+                if (excludeLayers && layers[i] != null) continue;
+                WitnessTokensModel wtm = new WitnessTokensModel();
+                wtm.setWitness(witnesses[i]);
+                if (layers[i] != null) wtm.setLayer(layers[i]);
+                ArrayList<ReadingModel> tokens = new ArrayList<>(columns[i].length);
+                for (long rid : columns[i])
+                    tokens.add(rid < 0 ? null : readings.get(rid));
+                wtm.setTokens(tokens);
+                am.addWitness(wtm);
+            }
+            if (am.getAlignment() == null) am.setAlignment(new ArrayList<>());
+            return am;
+        }
+    }
+
+    /**
+     * Return the alignment table for the given section, from the cache if possible.
+     *
+     * @param sectionNode   - the section whose alignment we want
+     * @param excludeLayers - if true, leave out the rows for witness layers
+     * @return an AlignmentModel; the caller may rearrange its rows and token lists, but should
+     *         not alter the ReadingModels within.
+     */
+    public static AlignmentModel getAlignment(Node sectionNode, boolean excludeLayers) {
+        GraphDatabaseService db = sectionNode.getGraphDatabase();
+        Long sectionId = sectionNode.getId();
+        boolean normalized;
+        try (Transaction tx = db.beginTx()) {
+            Node startNode = VariantGraphService.getStartNode(String.valueOf(sectionId), db);
+            normalized = startNode.hasRelationship(ERelations.NSEQUENCE, Direction.OUTGOING);
+            tx.success();
+        }
+        if (normalized)
+            return new AlignmentModel(sectionNode, excludeLayers);
+
+        Map<Long, CachedAlignment> ourCache = cacheFor(db);
+        long stamp = SectionStamp.current(db, sectionId);
+        CachedAlignment found;
+        synchronized (ourCache) {
+            found = ourCache.get(sectionId);
+        }
+        if (found != null && found.stamp == stamp) {
+            hits.incrementAndGet();
+            return found.toModel(excludeLayers);
+        }
+
+        // We have to build it. We always cache the table with its layers, since the
+        // layer-free version is a subset of it.
+        misses.incrementAndGet();
+        boolean inTransaction = inTransaction(db);
+        CachedAlignment built = new CachedAlignment(new AlignmentModel(sectionNode, false), stamp);
+        // Only keep it if it was built from committed data, and the section wasn't changed
+        // in the meantime.
+        if (!inTransaction && SectionStamp.current(db, sectionId) == stamp) {
+            synchronized (ourCache) {
+                ourCache.put(sectionId, built);
+            }
+        }
+        return built.toModel(excludeLayers);
+    }
+
+    /**
+     * Return the number of alignment requests that were answered from the cache.
+     *
+     * @return the hit count
+     */
+    public static long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Return the number of alignment requests that had to build the table from the graph.
+     *
+     * @return the miss count
+     */
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    // Does the current thread have an open transaction, whose changes we might be seeing?
+    private static boolean inTransaction(GraphDatabaseService db) {
+        return ((GraphDatabaseAPI) db).getDependencyResolver()
+                .resolveDependency(ThreadToStatementContextBridge.class).hasTransaction();
+    }
+
+    private static Map<Long, CachedAlignment> cacheFor(GraphDatabaseService db) {
+        return cache.computeIfAbsent(db, x -> new LinkedHashMap<Long, CachedAlignment>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, CachedAlignment> eldest) {
+                return size() > MAX_SECTIONS;
+            }
+        });
+    }
+}
@@ -46,6 +46,8 @@ public class ApplicationContextListener implements ServletContextListener {
         try {
             GraphDatabaseService db = new GraphDatabaseServiceProvider(DB_PATH).getDatabase();
             DatabaseService.createRootNode(db);
+            // Finish any deletions that were cut short when we last stopped
+            DeletionService.resumePending(db);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -0,0 +1,230 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.model.AlignmentModel;
+import net.stemmaweb.model.ReadingModel;
+import net.stemmaweb.model.WitnessTokensModel;
+import net.stemmaweb.rest.ERelations;
+import org.neo4j.graphdb.*;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Builds character matrices, e.g. for Phylip Pars, out of per-section character columns. The
+ * columns of a section give each witness layer of the section a character per rank: a letter
+ * for each distinct reading, in order of first appearance, '?' for a lacuna and 'X' where the
+ * witness has no reading. They are worked out once and cached for as long as the section's
+ * {@link SectionStamp} doesn't change, and they don't depend on the maximum number of variants;
+ * a matrix is assembled by picking out the ranks that qualify from each section in turn.
+ *
+ * As with the alignment cache, the columns of normalized sections, and of sections seen
+ * through a {@link NormalizationOverlay}, are never cached.
+ */
+public class CharacterMatrix {
+
+    // The number of sections to keep per database
+    private static final int MAX_SECTIONS = 256;
+
+    private static final Map<GraphDatabaseService, Map<String, SectionColumns>> cache =
+            Collections.synchronizedMap(new WeakHashMap<>());
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    private static class SectionColumns {
+        private final long stamp;
+        // The witness layers of the section, in sorted order, and their characters by rank
+        private final String[] sigla;
+        private final char[][] rows;
+        // For each rank, the number of distinct readings, and whether any witness layer of the
+        // section has no reading, or a lacuna
+        private final int[] distinct;
+        private final boolean[] hasNull;
+        private final boolean[] hasLacuna;
+
+        SectionColumns(AlignmentModel am, long stamp) {
+            this.stamp = stamp;
+            int length = (int) am.getLength();
+            int numRows = am.getAlignment().size();
+            sigla = new String[numRows];
+            rows = new char[numRows][length];
+            distinct = new int[length];
+            hasNull = new boolean[length];
+            hasLacuna = new boolean[length];
+            for (int r = 0; r < numRows; r++)
+                sigla[r] = am.getAlignment().get(r).constructSigil();
+            for (int i = 0; i < length; i++) {
+                // Make reading-to-character lookup
+                HashMap<String, Character> charMap = new HashMap<>();
+                char curr = 'A';
+                for (int r = 0; r < numRows; r++) {
+                    ReadingModel rm = am.getAlignment().get(r).getTokens().get(i);
+                    if (rm == null) {
+                        hasNull[i] = true;
+                        rows[r][i] = 'X';
+                    } else if (rm.getIs_lacuna()) {
+                        hasLacuna[i] = true;
+                        rows[r][i] = '?';
+                    } else {
+                        Character c = charMap.get(rm.getId());
+                        if (c == null) {
+                            c = curr++;
+                            charMap.put(rm.getId(), c);
+                        }
+                        rows[r][i] = c;
+                    }
+                }
+                distinct[i] = curr - 'A';
+            }
+        }
+    }
+
+    /**
+     * Build a character matrix of the given sections, with a row for each witness layer that
+     * appears in any of them. Ranks at which all witnesses agree are left out, as are ranks with
+     * more than the given number of variants, where a missing reading counts as a variant.
+     *
+     * @param db            - the GraphDatabaseService where the sections live
+     * @param sections      - the sections, in order
+     * @param conflate      - the relation type on which to normalize the sections, or null
+     * @param excludeLayers - if true, leave out the rows for witness layers
+     * @param maxVars       - the greatest number of variants a rank may have
+     * @return the matrix, as text
+     * @throws Exception if a section could not be aligned
+     */
+    public static String build(GraphDatabaseService db, List<Node> sections, String conflate,
+                               boolean excludeLayers, int maxVars) throws Exception {
+        List<SectionColumns> columns = ParallelSections.map(db, sections,
+                x -> getColumns(x, conflate, excludeLayers));
+        TreeSet<String> allSigla = new TreeSet<>();
+        for (SectionColumns sc : columns)
+            allSigla.addAll(Arrays.asList(sc.sigla));
+        List<String> witnessSigla = new ArrayList<>(allSigla);
+
+        // Work out which row of each section goes into each witness row of the matrix, and
+        // which ranks of each section qualify, without looking at the rows themselves.
+        List<int[]> rowsUsed = new ArrayList<>();
+        List<int[]> ranksUsed = new ArrayList<>();
+        int totalLength = 0;
+        for (SectionColumns sc : columns) {
+            HashMap<String, Integer> rowOf = new HashMap<>();
+            for (int r = 0; r < sc.sigla.length; r++)
+                rowOf.put(sc.sigla[r], r);
+            int[] used = new int[witnessSigla.size()];
+            boolean missing = false;
+            for (int w = 0; w < used.length; w++) {
+                String sigil = witnessSigla.get(w);
+                // Use the witness layer if the section has it, or else its base witness
+                Integer r = rowOf.getOrDefault(sigil, rowOf.get(WitnessTokensModel.parseSigil(sigil)[0]));
+                used[w] = r == null ? -1 : r;
+                if (r == null) missing = true;
+            }
+            rowsUsed.add(used);
+
+            int[] ranks = new int[sc.distinct.length];
+            int numRanks = 0;
+            for (int i = 0; i < sc.distinct.length; i++) {
+                boolean rowHasNull = missing || sc.hasNull[i];
+                // Skip rows that don't diverge
+                if (sc.distinct[i] == 1 && !rowHasNull && !sc.hasLacuna[i])
+                    continue;
+                // Check that we aren't over the max-character limit
+                if (sc.distinct[i] > maxVars || rowHasNull && sc.distinct[i] > maxVars - 1)
+                    continue;
+                ranks[numRanks++] = i;
+            }
+            ranksUsed.add(Arrays.copyOf(ranks, numRanks));
+            totalLength += numRanks;
+        }
+
+        // Now let's build the whole matrix.
+        StringBuilder charMatrix = new StringBuilder();
+        charMatrix.append(String.format("\t%d\t%d\n", witnessSigla.size(), totalLength));
+        for (int w = 0; w < witnessSigla.size(); w++) {
+            charMatrix.append(String.format("%-10s", shortenSigil(witnessSigla.get(w))));
+            for (int s = 0; s < columns.size(); s++) {
+                int r = rowsUsed.get(s)[w];
+                for (int i : ranksUsed.get(s))
+                    charMatrix.append(r < 0 ? 'X' : columns.get(s).rows[r][i]);
+            }
+            charMatrix.append("\n");
+        }
+        return charMatrix.toString();
+    }
+
+    /**
+     * Return the number of sections whose columns were taken from the cache.
+     *
+     * @return the hit count
+     */
+    public static long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Return the number of sections whose columns had to be worked out from their alignment.
+     *
+     * @return the miss count
+     */
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    private static SectionColumns getColumns(Node sectionNode, String conflate, boolean excludeLayers)
+            throws Exception {
+        GraphDatabaseService db = sectionNode.getGraphDatabase();
+        Long sectionId = sectionNode.getId();
+        if (conflate != null) {
+            misses.incrementAndGet();
+            return new SectionColumns(NormalizationOverlay.build(sectionNode, conflate).getAlignment(excludeLayers), 0);
+        }
+        boolean normalized;
+        try (Transaction tx = db.beginTx()) {
+            Node startNode = VariantGraphService.getStartNode(String.valueOf(sectionId), db);
+            normalized = startNode.hasRelationship(ERelations.NSEQUENCE, Direction.OUTGOING);
+            tx.success();
+        }
+        if (normalized) {
+            misses.incrementAndGet();
+            return new SectionColumns(AlignmentCache.getAlignment(sectionNode, excludeLayers), 0);
+        }
+
+        Map<String, SectionColumns> ourCache = cacheFor(db);
+        String key = sectionId + (excludeLayers ? "/base" : "/all");
+        long stamp = SectionStamp.current(db, sectionId);
+        SectionColumns found;
+        synchronized (ourCache) {
+            found = ourCache.get(key);
+        }
+        if (found != null && found.stamp == stamp) {
+            hits.incrementAndGet();
+            return found;
+        }
+
+        misses.incrementAndGet();
+        SectionColumns built = new SectionColumns(AlignmentCache.getAlignment(sectionNode, excludeLayers), stamp);
+        // Only keep it if the section wasn't changed in the meantime.
+        if (SectionStamp.current(db, sectionId) == stamp) {
+            synchronized (ourCache) {
+                ourCache.put(key, built);
+            }
+        }
+        return built;
+    }
+
+    private static String shortenSigil (String sigil) {
+        String shortened = sigil.replaceAll("\\s+", "_")
+                .replaceAll("\\W+", "");
+        if (shortened.length() > 10)
+            shortened = shortened.substring(0, 10);
+        return shortened;
+    }
+
+    private static Map<String, SectionColumns> cacheFor(GraphDatabaseService db) {
+        return cache.computeIfAbsent(db, x -> new LinkedHashMap<String, SectionColumns>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SectionColumns> eldest) {
+                return size() > MAX_SECTIONS;
+            }
+        });
+    }
+}
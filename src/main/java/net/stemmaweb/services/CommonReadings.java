@@ -0,0 +1,156 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.rest.Nodes;
+import org.neo4j.graphdb.*;
+
+import java.util.*;
+
+/**
+ * Keeps the is_common flags of a section up to date for a range of ranks, without building the
+ * alignment of the whole section. A reading is common if it is the only reading at its rank,
+ * apart from lacunae, and no witness skips over the rank; that is, if it is the only non-lacuna
+ * reading at its rank that is reached by a sequence, and no sequence that crosses the rank
+ * ends anywhere but at a lacuna.
+ *
+ * The sequences that cross the given ranks are found by looking back from the lowest of them
+ * to the nearest rank at which every witness of the section has a reading. A layer sequence
+ * that leaves the base text before that rank, and only rejoins it after the given ranks, would
+ * not be seen; nor would a layer whose path stops for being ambiguous. So if the section has
+ * any layer sequences at all, the flags of the whole section are recalculated from its
+ * alignment with {@link VariantGraphService#calculateCommon} instead.
+ */
+public class CommonReadings {
+
+    private static final String BASE = "witnesses";
+
+    /**
+     * Recalculate the is_common flags of the readings between the given ranks, inclusive,
+     * writing only those that have changed. The caller is responsible for touching the section.
+     * NOTE: For use within a transaction
+     *
+     * @param db        - the GraphDatabaseService where the section lives
+     * @param sectionId - the ID of the section, either as a Long or as a String
+     * @param fromRank  - the lowest rank to recalculate
+     * @param toRank    - the highest rank to recalculate
+     * @return the readings whose flag was changed, or none if the whole section was recalculated
+     */
+    public static Set<Node> recalculate(GraphDatabaseService db, Object sectionId, long fromRank, long toRank) {
+        Set<Node> changed = new HashSet<>();
+        Long sid = Long.valueOf(sectionId.toString());
+        Node startNode = VariantGraphService.getStartNode(sid.toString(), db);
+        Node endNode = VariantGraphService.getEndNode(sid.toString(), db);
+        // The start and end nodes are never flagged, and a normalized section is flagged
+        // by normalizeGraph.
+        fromRank = Math.max(fromRank, 1);
+        toRank = Math.min(toRank, (Long) endNode.getProperty("rank") - 1);
+        if (fromRank > toRank || startNode.hasRelationship(ERelations.NSEQUENCE, Direction.OUTGOING))
+            return changed;
+
+        Node sectionNode = db.getNodeById(sid);
+        WitnessSets.Dictionary dictionary = WitnessSets.dictionaryOfSection(sectionNode);
+        if (hasLayers(db, sid, dictionary)) {
+            VariantGraphService.calculateCommon(sectionNode);
+            return changed;
+        }
+        Set<String> allWitnesses = new HashSet<>();
+        for (Relationship r : startNode.getRelationships(Direction.OUTGOING, ERelations.SEQUENCE))
+            allWitnesses.addAll(Arrays.asList(dictionary.get(r, BASE)));
+
+        // Collect the sequences that skip a rank, from the nearest fully attested rank below
+        // the range to the top of the range, as {start rank, end rank} pairs. Sequences that
+        // end at a lacuna don't leave a gap, so they are left out.
+        List<long[]> gaps = new ArrayList<>();
+        HashMap<Long, List<Node>> inRange = new HashMap<>();
+        for (long rank = toRank; rank >= 0; rank--) {
+            List<Node> atRank = rank == 0 ? Collections.singletonList(startNode) : readingsAt(db, sid, rank);
+            if (rank >= fromRank)
+                inRange.put(rank, atRank);
+            for (Node n : atRank)
+                for (Relationship r : n.getRelationships(Direction.OUTGOING, ERelations.SEQUENCE)) {
+                    Node next = r.getEndNode();
+                    long nextRank = (Long) next.getProperty("rank");
+                    if (nextRank > rank + 1 && nextRank > fromRank && !next.getProperty("is_lacuna", false).equals(true))
+                        gaps.add(new long[]{rank, nextRank});
+                }
+            if (rank < fromRank && isFullyAttested(atRank, allWitnesses, dictionary))
+                break;
+        }
+
+        for (long rank = fromRank; rank <= toRank; rank++) {
+            List<Node> candidates = new ArrayList<>();
+            for (Node n : inRange.get(rank))
+                if (!n.getProperty("is_lacuna", false).equals(true)
+                        && n.hasRelationship(Direction.INCOMING, ERelations.SEQUENCE))
+                    candidates.add(n);
+            boolean skipped = false;
+            for (long[] g : gaps)
+                if (g[0] < rank && rank < g[1]) {
+                    skipped = true;
+                    break;
+                }
+            Boolean isCommon = candidates.size() == 1 && !skipped;
+            for (Node n : candidates)
+                if (!isCommon.equals(n.getProperty("is_common", null))) {
+                    n.setProperty("is_common", isCommon);
+                    changed.add(n);
+                }
+        }
+        return changed;
+    }
+
+    /**
+     * Recalculate the is_common flags over the span of ranks that the given readings cover,
+     * e.g. the readings at either end of a sequence whose witnesses have changed.
+     * NOTE: For use within a transaction
+     *
+     * @param readings - readings of a single section
+     * @return the readings whose flag was changed
+     */
+    public static Set<Node> recalculateAround(Collection<Node> readings) {
+        if (readings.isEmpty()) return new HashSet<>();
+        Node first = readings.iterator().next();
+        long fromRank = Long.MAX_VALUE;
+        long toRank = Long.MIN_VALUE;
+        for (Node n : readings) {
+            long rank = (Long) n.getProperty("rank");
+            fromRank = Math.min(fromRank, rank);
+            toRank = Math.max(toRank, rank);
+        }
+        return recalculate(first.getGraphDatabase(), first.getProperty("section_id"), fromRank, toRank);
+    }
+
+    private static List<Node> readingsAt(GraphDatabaseService db, Long sectionId, long rank) {
+        List<Node> result = new ArrayList<>();
+        Map<String, Object> criteria = new HashMap<>();
+        criteria.put("section_id", sectionId);
+        criteria.put("rank", rank);
+        db.findNodes(Nodes.READING, criteria).forEachRemaining(result::add);
+        return result;
+    }
+
+    // Whether any sequence of the section carries a layer witness; the dictionary can tell us
+    // for most traditions without looking at the section.
+    private static boolean hasLayers(GraphDatabaseService db, Long sectionId, WitnessSets.Dictionary dictionary) {
+        if (!dictionary.hasLayers()) return false;
+        try (ResourceIterator<Node> readings = db.findNodes(Nodes.READING, "section_id", sectionId)) {
+            while (readings.hasNext())
+                for (Relationship r : readings.next().getRelationships(Direction.OUTGOING, ERelations.SEQUENCE))
+                    for (String witClass : dictionary.classes(r))
+                        if (!witClass.equals(BASE)) return true;
+        }
+        return false;
+    }
+
+    // No base sequence can pass over a rank at which every witness arrives at a reading.
+    private static boolean isFullyAttested(List<Node> atRank, Set<String> allWitnesses,
+                                           WitnessSets.Dictionary dictionary) {
+        Set<String> found = new HashSet<>();
+        for (Node n : atRank) {
+            if (n.hasProperty("is_start")) return true;
+            for (Relationship r : n.getRelationships(Direction.INCOMING, ERelations.SEQUENCE))
+                found.addAll(Arrays.asList(dictionary.get(r, BASE)));
+        }
+        return found.containsAll(allWitnesses);
+    }
+}
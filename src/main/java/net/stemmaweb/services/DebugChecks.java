@@ -0,0 +1,23 @@
+package net.stemmaweb.services;
+
+/**
+ * Switches the expensive consistency checks on or off, e.g. the verification of a whole
+ * section after its ranks have been recalculated, or of the whole path of each witness
+ * through two readings that have been merged. They are off unless STEMMAREST_DEBUG is
+ * set to "true" in the environment, or the system property stemmarest.debug is set.
+ */
+public class DebugChecks {
+
+    private static volatile Boolean enabled = null;
+
+    public static boolean enabled() {
+        if (enabled == null)
+            enabled = "true".equalsIgnoreCase(System.getenv("STEMMAREST_DEBUG"))
+                    || Boolean.getBoolean("stemmarest.debug");
+        return enabled;
+    }
+
+    public static void setEnabled(boolean value) {
+        enabled = value;
+    }
+}
@@ -0,0 +1,291 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.model.AnnotationModel;
+import net.stemmaweb.model.DeletionJobModel;
+import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.rest.Nodes;
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.traversal.Traverser;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * Deletes a tradition or a section that has already been detached from its owner, in batches of
+ * a bounded number of nodes and relationships per transaction, so that the transaction state
+ * stays small however large the graph is. The readings of each section are found through the
+ * section_id index and deleted first; what is left (the section and tradition nodes, witnesses,
+ * stemmata, annotations and so on) is then crawled and deleted in the same way.
+ *
+ * A deletion can run either in the calling thread or on a background worker; in either case its
+ * progress can be looked up by its job ID. The batch size is 10000 entities, unless
+ * STEMMAREST_DELETE_BATCH is set in the environment.
+ *
+ * A tradition or section is marked as pending deletion in the same transaction that detaches it,
+ * and the mark only goes with the node itself, which is deleted last. A deletion that was cut
+ * short, e.g. by a restart, is picked up again by {@link #resumePending}.
+ */
+public class DeletionService {
+
+    private static final int DEFAULT_DELETE_BATCH = 10000;
+    // The number of jobs whose state is remembered
+    private static final int MAX_JOBS = 1000;
+    // Marks a detached tradition or section that is still to be deleted
+    private static final Label PENDING = Label.label("DELETION_PENDING");
+    // The ID of the tradition that a pending section was detached from
+    private static final String PENDING_FROM = "deletion_from";
+
+    private static volatile Integer batchSize = null;
+    private static final Map<String, DeletionJobModel> jobs = Collections.synchronizedMap(
+            new LinkedHashMap<String, DeletionJobModel>(16, 0.75f, false) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, DeletionJobModel> eldest) {
+                    return size() > MAX_JOBS;
+                }
+            });
+    private static final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "deletion-worker");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Return the number of entities that are deleted per transaction.
+     *
+     * @return the batch size
+     */
+    public static int getBatchSize() {
+        if (batchSize == null) {
+            int size = DEFAULT_DELETE_BATCH;
+            String configured = System.getenv("STEMMAREST_DELETE_BATCH");
+            if (configured != null) {
+                try {
+                    size = Integer.parseInt(configured.trim());
+                } catch (NumberFormatException e) {
+                    e.printStackTrace();
+                }
+            }
+            batchSize = Math.max(size, 1);
+        }
+        return batchSize;
+    }
+
+    public static void setBatchSize(int value) {
+        batchSize = Math.max(value, 1);
+    }
+
+    /**
+     * Mark a tradition as pending deletion. This should be done in the transaction that
+     * detaches it from its user.
+     * NOTE: For use within a transaction
+     *
+     * @param traditionNode - the tradition node
+     */
+    public static void markPending(Node traditionNode) {
+        traditionNode.addLabel(PENDING);
+    }
+
+    /**
+     * Mark a section as pending deletion. This should be done in the transaction that unlinks
+     * it from its tradition.
+     * NOTE: For use within a transaction
+     *
+     * @param sectionNode - the section node
+     * @param tradId      - the ID of the tradition that the section belonged to
+     */
+    public static void markPending(Node sectionNode, String tradId) {
+        sectionNode.addLabel(PENDING);
+        sectionNode.setProperty(PENDING_FROM, tradId);
+    }
+
+    /**
+     * Start deleting, on the background worker, every tradition and section that was marked
+     * as pending deletion but never finished, e.g. because the server was stopped. Annotations
+     * of a section's tradition that lose their referents are pruned as usual.
+     *
+     * @param db - the GraphDatabaseService to look in
+     * @return the models of the deletion jobs that were started
+     */
+    public static List<DeletionJobModel> resumePending(GraphDatabaseService db) {
+        List<DeletionJobModel> resumed = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            List<Node> pending = new ArrayList<>();
+            db.findNodes(PENDING).forEachRemaining(pending::add);
+            for (Node n : pending) {
+                if (n.hasLabel(Nodes.SECTION)) {
+                    String tradId = n.getProperty(PENDING_FROM).toString();
+                    resumed.add(deleteSection(db, n, () -> {
+                        try (Transaction ptx = db.beginTx()) {
+                            Node traditionNode = db.findNode(Nodes.TRADITION, "id", tradId);
+                            if (traditionNode != null)
+                                pruneAnnotations(traditionNode);
+                            ptx.success();
+                        }
+                    }, true));
+                } else {
+                    List<Long> sectionIds = new ArrayList<>();
+                    DatabaseService.getRelated(n, ERelations.PART).forEach(x -> sectionIds.add(x.getId()));
+                    resumed.add(deleteTradition(db, n.getProperty("id").toString(), n, sectionIds, true));
+                }
+            }
+            tx.success();
+        }
+        return resumed;
+    }
+
+    /**
+     * Delete any annotations on a tradition that lack referents, unless the annotation is
+     * marked as "primary".
+     * NOTE: For use within a transaction
+     *
+     * @param traditionNode - the tradition node
+     * @return models of the annotations that were deleted
+     */
+    public static List<AnnotationModel> pruneAnnotations(Node traditionNode) {
+        List<AnnotationModel> deleted = new ArrayList<>();
+        for (Node a : DatabaseService.getRelated(traditionNode, ERelations.HAS_ANNOTATION)) {
+            boolean isPrimary = a.getProperty("primary", false).equals(true);
+            if (!a.hasRelationship(Direction.OUTGOING) && !isPrimary) {
+                deleted.add(new AnnotationModel(a));
+                a.getRelationships(Direction.INCOMING).forEach(Relationship::delete);
+                a.delete();
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Delete a tradition whose node has already been detached from its user, so that it can
+     * no longer be found by its ID.
+     *
+     * @param db            - the GraphDatabaseService where the tradition lives
+     * @param tradId        - the ID the tradition had
+     * @param traditionNode - the tradition node
+     * @param sectionIds    - the IDs of the tradition's sections
+     * @param background    - if true, return at once and do the deletion on the background worker
+     * @return the model of the deletion job
+     */
+    public static DeletionJobModel deleteTradition(GraphDatabaseService db, String tradId, Node traditionNode,
+                                                   List<Long> sectionIds, boolean background) {
+        DeletionJobModel job = newJob("tradition", tradId);
+        Runnable work = () -> run(db, job, traditionNode.getId(), sectionIds,
+                VariantGraphService::returnEntireTradition, null);
+        return start(job, work, background);
+    }
+
+    /**
+     * Delete a section that has already been unlinked from its tradition and from the
+     * sequence of sections.
+     *
+     * @param db          - the GraphDatabaseService where the section lives
+     * @param sectionNode - the section node
+     * @param afterwards  - something to do once the section is gone, e.g. cleaning up annotations
+     * @param background  - if true, return at once and do the deletion on the background worker
+     * @return the model of the deletion job
+     */
+    public static DeletionJobModel deleteSection(GraphDatabaseService db, Node sectionNode,
+                                                 Runnable afterwards, boolean background) {
+        DeletionJobModel job = newJob("section", String.valueOf(sectionNode.getId()));
+        Runnable work = () -> run(db, job, sectionNode.getId(), Collections.singletonList(sectionNode.getId()),
+                VariantGraphService::returnTraditionSection, afterwards);
+        return start(job, work, background);
+    }
+
+    /**
+     * Return the state of a deletion job.
+     *
+     * @param jobId - the ID of the job
+     * @return the model of the job, or null if there is no such job
+     */
+    public static DeletionJobModel getJob(String jobId) {
+        return jobs.get(jobId);
+    }
+
+    private static DeletionJobModel newJob(String type, String target) {
+        DeletionJobModel job = new DeletionJobModel();
+        job.setId(UUID.randomUUID().toString());
+        job.setType(type);
+        job.setTarget(target);
+        job.setStatus("pending");
+        jobs.put(job.getId(), job);
+        return job;
+    }
+
+    private static DeletionJobModel start(DeletionJobModel job, Runnable work, boolean background) {
+        if (background)
+            worker.submit(work);
+        else
+            work.run();
+        return job;
+    }
+
+    private static void run(GraphDatabaseService db, DeletionJobModel job, long rootId, List<Long> sectionIds,
+                            Function<Node, Traverser> crawler, Runnable afterwards) {
+        job.setStatus("running");
+        int batch = getBatchSize();
+        try {
+            // Delete the readings of each section through the index, a batch at a time.
+            for (Long sectionId : sectionIds) {
+                boolean more = true;
+                while (more) {
+                    try (Transaction tx = db.beginTx()) {
+                        long count = 0;
+                        ResourceIterator<Node> readings = db.findNodes(Nodes.READING, "section_id", sectionId);
+                        while (count < batch && readings.hasNext())
+                            count += deleteWithRelationships(readings.next());
+                        more = count > 0 && readings.hasNext();
+                        readings.close();
+                        tx.success();
+                        job.addDeleted(count);
+                    }
+                }
+            }
+
+            // Now crawl whatever is left, and delete that a batch at a time. This goes in the
+            // reverse of the order in which the crawl found things, so that whatever is still
+            // there if we are cut short can be reached from the root, which goes last.
+            ArrayList<Long> remaining = new ArrayList<>();
+            try (Transaction tx = db.beginTx()) {
+                crawler.apply(db.getNodeById(rootId)).nodes().forEach(x -> remaining.add(x.getId()));
+                tx.success();
+            }
+            Collections.reverse(remaining);
+            Iterator<Long> toDelete = remaining.iterator();
+            while (toDelete.hasNext()) {
+                try (Transaction tx = db.beginTx()) {
+                    long count = 0;
+                    while (count < batch && toDelete.hasNext()) {
+                        try {
+                            count += deleteWithRelationships(db.getNodeById(toDelete.next()));
+                        } catch (NotFoundException e) {
+                            // It was deleted along with something else; skip it.
+                        }
+                    }
+                    tx.success();
+                    job.addDeleted(count);
+                }
+            }
+
+            if (afterwards != null)
+                afterwards.run();
+            job.setStatus("done");
+        } catch (Exception e) {
+            e.printStackTrace();
+            job.fail(e.getMessage() == null ? e.toString() : e.getMessage());
+        }
+        sectionIds.forEach(x -> SectionStamp.touch(db, x));
+    }
+
+    // NOTE: For use within a transaction
+    private static long deleteWithRelationships(Node n) {
+        long count = 1;
+        for (Relationship r : n.getRelationships()) {
+            r.delete();
+            count++;
+        }
+        n.delete();
+        return count;
+    }
+}
@@ -37,6 +37,8 @@ public class GraphDatabaseServiceProvider {
         else
             db = dbbuilder.newGraphDatabase();
         registerExtensions();
+        SchemaService.ensureSchema(db);
+        WitnessSets.migrate(db);
 
     }
 
@@ -44,6 +46,8 @@ public class GraphDatabaseServiceProvider {
     public GraphDatabaseServiceProvider(GraphDatabaseService existingdb) throws KernelException {
         db = existingdb;
         registerExtensions();
+        SchemaService.ensureSchema(db);
+        WitnessSets.migrate(db);
     }
 
     public GraphDatabaseService getDatabase(){
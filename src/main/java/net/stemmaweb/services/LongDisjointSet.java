@@ -0,0 +1,145 @@
+package net.stemmaweb.services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A disjoint-set (union-find) structure over long keys, e.g. node IDs. Keys are kept in an
+ * open-addressing hash table and the sets in plain int arrays, so that no boxing is needed.
+ * Uses path halving and union by size.
+ */
+public class LongDisjointSet {
+
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private long[] slotKeys;
+    private int[] slotIndex;
+    private long[] keys;
+    private int[] parent;
+    private int[] size;
+    private int count;
+
+    public LongDisjointSet(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize) * 2 - 1) << 1;
+        slotKeys = new long[capacity];
+        Arrays.fill(slotKeys, EMPTY);
+        slotIndex = new int[capacity];
+        keys = new long[Math.max(4, expectedSize)];
+        parent = new int[keys.length];
+        size = new int[keys.length];
+    }
+
+    /**
+     * Adds a key as a singleton set, if it isn't already present.
+     *
+     * @param key - the key to add
+     * @return the internal index of the key
+     */
+    public int add(long key) {
+        int slot = findSlot(key);
+        if (slotKeys[slot] == key)
+            return slotIndex[slot];
+        if (count == keys.length) {
+            keys = Arrays.copyOf(keys, count * 2);
+            parent = Arrays.copyOf(parent, count * 2);
+            size = Arrays.copyOf(size, count * 2);
+        }
+        keys[count] = key;
+        parent[count] = count;
+        size[count] = 1;
+        slotKeys[slot] = key;
+        slotIndex[slot] = count;
+        count++;
+        if (count * 2 > slotKeys.length)
+            rehash();
+        return count - 1;
+    }
+
+    /**
+     * Tests whether a key has been added.
+     *
+     * @param key - the key to look for
+     * @return true if it is present
+     */
+    public boolean contains(long key) {
+        return slotKeys[findSlot(key)] == key;
+    }
+
+    /**
+     * Merges the sets containing the two keys. Keys that were never added are ignored.
+     *
+     * @param a - the first key
+     * @param b - the second key
+     */
+    public void union(long a, long b) {
+        int sa = findSlot(a);
+        int sb = findSlot(b);
+        if (slotKeys[sa] != a || slotKeys[sb] != b) return;
+        int ra = root(slotIndex[sa]);
+        int rb = root(slotIndex[sb]);
+        if (ra == rb) return;
+        if (size[ra] < size[rb]) {
+            int t = ra; ra = rb; rb = t;
+        }
+        parent[rb] = ra;
+        size[ra] += size[rb];
+    }
+
+    /**
+     * Returns the sets that have more than one member.
+     *
+     * @return a list of key arrays, one per set
+     */
+    public List<long[]> nonTrivialSets() {
+        int[] setOf = new int[count];
+        int[] fill = new int[count];
+        List<long[]> result = new ArrayList<>();
+        Arrays.fill(setOf, -1);
+        for (int i = 0; i < count; i++) {
+            int r = root(i);
+            if (size[r] < 2) continue;
+            if (setOf[r] < 0) {
+                setOf[r] = result.size();
+                result.add(new long[size[r]]);
+            }
+            result.get(setOf[r])[fill[r]++] = keys[i];
+        }
+        return result;
+    }
+
+    private int root(int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private int findSlot(long key) {
+        int mask = slotKeys.length - 1;
+        int slot = (int) (mix(key) & mask);
+        while (slotKeys[slot] != EMPTY && slotKeys[slot] != key)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private void rehash() {
+        long[] oldKeys = slotKeys;
+        int[] oldIndex = slotIndex;
+        slotKeys = new long[oldKeys.length * 2];
+        Arrays.fill(slotKeys, EMPTY);
+        slotIndex = new int[slotKeys.length];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == EMPTY) continue;
+            int slot = findSlot(oldKeys[i]);
+            slotKeys[slot] = oldKeys[i];
+            slotIndex[slot] = oldIndex[i];
+        }
+    }
+
+    private static long mix(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return key ^ (key >>> 32);
+    }
+}
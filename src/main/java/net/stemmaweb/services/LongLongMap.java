@@ -0,0 +1,104 @@
+package net.stemmaweb.services;
+
+import java.util.Arrays;
+
+/**
+ * A map from long keys to long values, e.g. from the node IDs in an import file to the IDs
+ * of the nodes created for them. Keys and values are kept in open-addressing arrays, so that
+ * no boxing is needed. Long.MIN_VALUE may not be used as a key.
+ */
+public class LongLongMap {
+
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private long[] keys;
+    private long[] values;
+    private int size;
+
+    public LongLongMap() {
+        this(16);
+    }
+
+    public LongLongMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize) * 2 - 1) << 1;
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        values = new long[capacity];
+    }
+
+    /**
+     * Sets the value for a key, replacing any earlier value.
+     *
+     * @param key   - the key
+     * @param value - the value
+     */
+    public void put(long key, long value) {
+        if (key == EMPTY)
+            throw new IllegalArgumentException("Key out of range");
+        int slot = findSlot(key);
+        if (keys[slot] != key) {
+            keys[slot] = key;
+            size++;
+        }
+        values[slot] = value;
+        if (size * 2 > keys.length)
+            rehash();
+    }
+
+    /**
+     * Returns the value for a key.
+     *
+     * @param key          - the key
+     * @param defaultValue - the value to return if the key isn't present
+     * @return the value for the key, or the default
+     */
+    public long get(long key, long defaultValue) {
+        int slot = findSlot(key);
+        return keys[slot] == key ? values[slot] : defaultValue;
+    }
+
+    public boolean containsKey(long key) {
+        return keys[findSlot(key)] == key;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns all the values in the map, in no particular order.
+     *
+     * @return an array of values
+     */
+    public long[] values() {
+        long[] result = new long[size];
+        int i = 0;
+        for (int slot = 0; slot < keys.length; slot++)
+            if (keys[slot] != EMPTY)
+                result[i++] = values[slot];
+        return result;
+    }
+
+    private int findSlot(long key) {
+        int mask = keys.length - 1;
+        long h = key * 0x9E3779B97F4A7C15L;
+        int slot = (int) ((h ^ (h >>> 32)) & mask);
+        while (keys[slot] != EMPTY && keys[slot] != key)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        Arrays.fill(keys, EMPTY);
+        values = new long[keys.length];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == EMPTY) continue;
+            int slot = findSlot(oldKeys[i]);
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.model.AlignmentModel;
+import net.stemmaweb.model.ReadingModel;
+import net.stemmaweb.model.WitnessTokensModel;
+import net.stemmaweb.rest.ERelations;
+import org.neo4j.graphdb.*;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory cache of the majority text of each section, kept as the array of the winning
+ * reading IDs by rank. A cached majority text carries the {@link SectionStamp} under which it
+ * was worked out. When the section has changed since then, but only in the properties of its
+ * readings (see {@link SectionStamp#onlyReadingsChangedSince}), the majority text is carried
+ * over; any other change means working it out again from the alignment of the whole section.
+ *
+ * As with the alignment cache, majority texts of normalized sections are never cached.
+ */
+public class MajorityText {
+
+    // The number of sections to keep per database
+    private static final int MAX_SECTIONS = 256;
+
+    private static final Map<GraphDatabaseService, Map<Long, Majority>> cache =
+            Collections.synchronizedMap(new WeakHashMap<>());
+    private static final AtomicLong rebuilt = new AtomicLong();
+
+    private static class Majority {
+        private final long stamp;
+        // The winning reading ID at each rank, or -1 where the majority of witnesses has no reading
+        private final long[] winners;
+
+        Majority(long stamp, long[] winners) {
+            this.stamp = stamp;
+            this.winners = winners;
+        }
+    }
+
+    /**
+     * Return the majority text of a section, from the cache if possible.
+     *
+     * @param sectionNode - the section in question
+     * @return an ordered List of READING nodes that make up the majority text, from the start
+     *         node to the end node
+     */
+    public static List<Node> getMajorityText(Node sectionNode) {
+        GraphDatabaseService db = sectionNode.getGraphDatabase();
+        Long sectionId = sectionNode.getId();
+        boolean normalized;
+        try (Transaction tx = db.beginTx()) {
+            Node startNode = VariantGraphService.getStartNode(String.valueOf(sectionId), db);
+            normalized = startNode.hasRelationship(ERelations.NSEQUENCE, Direction.OUTGOING);
+            tx.success();
+        }
+        if (normalized)
+            return fromAlignment(sectionNode, AlignmentCache.getAlignment(sectionNode, false));
+
+        Map<Long, Majority> ourCache = cacheFor(db);
+        long stamp = SectionStamp.current(db, sectionId);
+        Majority found;
+        synchronized (ourCache) {
+            found = ourCache.get(sectionId);
+        }
+        if (found == null || found.stamp != stamp) {
+            Majority built;
+            if (found != null && SectionStamp.onlyReadingsChangedSince(db, sectionId, found.stamp)) {
+                // No sequences have changed, so neither has the majority text.
+                built = new Majority(stamp, found.winners);
+            } else {
+                rebuilt.incrementAndGet();
+                AlignmentModel am = AlignmentCache.getAlignment(sectionNode, false);
+                long[] winners = new long[(int) am.getLength()];
+                findWinners(am, winners);
+                built = new Majority(stamp, winners);
+            }
+            // Only keep it if the section wasn't changed in the meantime.
+            if (SectionStamp.current(db, sectionId) == stamp) {
+                synchronized (ourCache) {
+                    ourCache.put(sectionId, built);
+                }
+            }
+            found = built;
+        }
+        return asNodes(sectionNode, found.winners);
+    }
+
+    /**
+     * Return the majority text according to the given alignment of a section, without caching it.
+     *
+     * @param sectionNode - the section in question
+     * @param am          - an alignment table of the section, e.g. a normalized one
+     * @return an ordered List of READING nodes that make up the majority text, from the start
+     *         node to the end node
+     */
+    public static List<Node> fromAlignment(Node sectionNode, AlignmentModel am) {
+        long[] winners = new long[(int) am.getLength()];
+        findWinners(am, winners);
+        return asNodes(sectionNode, winners);
+    }
+
+    /**
+     * Return the number of times a majority text was worked out for a whole section.
+     *
+     * @return the count
+     */
+    public static long getRebuildCount() {
+        return rebuilt.get();
+    }
+
+    // Go through the alignment table rank by rank, finding the majority reading for each rank
+    private static void findWinners(AlignmentModel am, long[] winners) {
+        for (int rank = 1; rank <= winners.length; rank++) {
+            int numNulls = 0;
+            ArrayList<ReadingModel> rankReadings = new ArrayList<>();
+            for (WitnessTokensModel wtm : am.getAlignment()) {
+                ReadingModel rdgAtRank = wtm.getTokens().get(rank - 1);
+                if (rdgAtRank == null)
+                    numNulls++;
+                else
+                    rankReadings.add(rdgAtRank);
+            }
+            // Now find the winner
+            Optional<ReadingModel> winner = rankReadings.stream().max(Comparator.comparingInt(x -> x.getWitnesses().size()));
+            if (winner.isPresent() && winner.get().getWitnesses().size() >= numNulls)
+                winners[rank - 1] = Long.valueOf(winner.get().getId());
+            else
+                winners[rank - 1] = -1;
+        }
+    }
+
+    private static List<Node> asNodes(Node sectionNode, long[] winners) {
+        GraphDatabaseService db = sectionNode.getGraphDatabase();
+        ArrayList<Node> result = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            String sectionId = String.valueOf(sectionNode.getId());
+            result.add(VariantGraphService.getStartNode(sectionId, db));
+            for (long x : winners)
+                if (x >= 0) result.add(db.getNodeById(x));
+            result.add(VariantGraphService.getEndNode(sectionId, db));
+            tx.success();
+        }
+        return result;
+    }
+
+    private static Map<Long, Majority> cacheFor(GraphDatabaseService db) {
+        return cache.computeIfAbsent(db, x -> new LinkedHashMap<Long, Majority>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Majority> eldest) {
+                return size() > MAX_SECTIONS;
+            }
+        });
+    }
+}
@@ -0,0 +1,153 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.model.ReadingModel;
+import net.stemmaweb.rest.ERelations;
+import org.neo4j.graphdb.*;
+
+import java.util.*;
+
+/**
+ * Finds the pairs of readings within a window of ranks that could be merged, i.e. readings
+ * with the same text, close to each other in rank, whose merging would not make the graph
+ * cyclic.
+ *
+ * Readings are bucketed by text, so that only readings with the same text are compared. The
+ * ranks serve as a topological order of the graph: since every sequence goes forward in rank,
+ * two readings at the same rank can never lie on a common path, and a path between two
+ * readings can only pass through the ranks between them. The readings that a candidate can
+ * reach are therefore worked out once, in a single walk that stops at the rank of its furthest
+ * partner, after which checking each partner is a set lookup.
+ */
+public class MergeableReadings {
+
+    private final GraphDatabaseService db;
+    private final Node sectionNode;
+    // The colocated clusters, keyed by the ID of every reading that belongs to one
+    private Map<Long, Set<Node>> clusterLookup = null;
+    private final HashMap<Long, Long> clusterIds = new HashMap<>();
+    private final HashMap<Long, ReadingModel> models = new HashMap<>();
+
+    private MergeableReadings(Node sectionNode) {
+        this.db = sectionNode.getGraphDatabase();
+        this.sectionNode = sectionNode;
+    }
+
+    /**
+     * Return the pairs of readings that could be merged, ordered by the difference in their
+     * ranks. Within each pair, the reading with more witnesses comes first.
+     * NOTE: For use within a transaction
+     *
+     * @param sectionNode - the section in which the readings are found
+     * @param readings    - the readings to consider, in ascending order of rank
+     * @param threshold   - pairs must be less than this many ranks apart
+     * @return a list of reading pairs
+     * @throws Exception - if the colocated clusters of the section can't be collected
+     */
+    public static List<List<ReadingModel>> find(Node sectionNode, List<Node> readings, long threshold)
+            throws Exception {
+        return new MergeableReadings(sectionNode).collect(readings, threshold);
+    }
+
+    private List<List<ReadingModel>> collect(List<Node> readings, long threshold) throws Exception {
+        int size = readings.size();
+        long[] ranks = new long[size];
+        HashMap<Object, List<Integer>> byText = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            Node n = readings.get(i);
+            ranks[i] = Long.parseLong(n.getProperty("rank").toString());
+            byText.computeIfAbsent(n.getProperty("text"), x -> new ArrayList<>()).add(i);
+        }
+
+        List<List<ReadingModel>> result = new ArrayList<>();
+        for (List<Integer> bucket : byText.values()) {
+            for (int a = 0; a < bucket.size(); a++) {
+                int i = bucket.get(a);
+                // Each reading is paired with the later ones in its bucket that are close enough.
+                int last = a;
+                while (last + 1 < bucket.size() && ranks[bucket.get(last + 1)] - ranks[i] < threshold)
+                    last++;
+                if (last == a) continue;
+
+                Node nodeA = readings.get(i);
+                Set<Long> reached = null;
+                for (int b = a + 1; b <= last; b++) {
+                    int j = bucket.get(b);
+                    Node nodeB = readings.get(j);
+                    boolean cyclic = false;
+                    if (ranks[j] != ranks[i] && !clusterOf(nodeA).equals(clusterOf(nodeB))) {
+                        if (reached == null)
+                            reached = reachableClusters(nodeA, ranks[bucket.get(last)]);
+                        cyclic = reached.contains(clusterOf(nodeB));
+                    }
+                    if (!cyclic) {
+                        // Order them by descending number of witnesses
+                        ArrayList<ReadingModel> pair = new ArrayList<>(Arrays.asList(modelOf(nodeA), modelOf(nodeB)));
+                        pair.sort((x, y) -> y.getWitnesses().size() - x.getWitnesses().size());
+                        result.add(pair);
+                    }
+                }
+            }
+        }
+        // Restore the order in which the readings were given before sorting by rank difference.
+        HashMap<String, Integer> position = new HashMap<>();
+        for (int i = 0; i < size; i++)
+            position.put(String.valueOf(readings.get(i).getId()), i);
+        result.sort(Comparator.comparingLong((List<ReadingModel> x) -> Math.abs(x.get(1).getRank() - x.get(0).getRank()))
+                .thenComparingInt(x -> Math.min(position.get(x.get(0).getId()), position.get(x.get(1).getId())))
+                .thenComparingInt(x -> Math.max(position.get(x.get(0).getId()), position.get(x.get(1).getId()))));
+        return result;
+    }
+
+    // Walk forward from the cluster of the given reading, moving through sequences and across
+    // colocations, as far as the given rank. Return the clusters that were reached, by ID.
+    private Set<Long> reachableClusters(Node reading, long stopRank) throws Exception {
+        Set<Long> reached = new HashSet<>();
+        Set<Long> visited = new HashSet<>();
+        ArrayDeque<Node> queue = new ArrayDeque<>();
+        for (Node n : membersOf(reading))
+            if (visited.add(n.getId())) queue.add(n);
+        while (!queue.isEmpty()) {
+            Node current = queue.remove();
+            Object rank = current.getProperty("rank", null);
+            if (rank == null || Long.parseLong(rank.toString()) >= stopRank) continue;
+            for (Relationship r : current.getRelationships(Direction.OUTGOING,
+                    ERelations.SEQUENCE, ERelations.LEMMA_TEXT, ERelations.EMENDED)) {
+                Node next = r.getEndNode();
+                if (visited.contains(next.getId())) continue;
+                reached.add(clusterOf(next));
+                for (Node n : membersOf(next))
+                    if (visited.add(n.getId())) queue.add(n);
+            }
+        }
+        return reached;
+    }
+
+    // Identify the colocated cluster of a reading by its lowest reading ID.
+    private Long clusterOf(Node reading) throws Exception {
+        return clusters().containsKey(reading.getId()) ? clusterIds.get(reading.getId()) : reading.getId();
+    }
+
+    private Collection<Node> membersOf(Node reading) throws Exception {
+        Set<Node> cluster = clusters().get(reading.getId());
+        return cluster == null ? Collections.singletonList(reading) : cluster;
+    }
+
+    private Map<Long, Set<Node>> clusters() throws Exception {
+        if (clusterLookup == null) {
+            clusterLookup = new HashMap<>();
+            String tradId = VariantGraphService.getTraditionNode(sectionNode).getProperty("id").toString();
+            for (Set<Node> cluster : RelationService.getClusters(tradId, String.valueOf(sectionNode.getId()), db, true)) {
+                long clusterId = cluster.stream().mapToLong(Node::getId).min().orElse(-1);
+                for (Node n : cluster) {
+                    clusterLookup.put(n.getId(), cluster);
+                    clusterIds.put(n.getId(), clusterId);
+                }
+            }
+        }
+        return clusterLookup;
+    }
+
+    private ReadingModel modelOf(Node reading) {
+        return models.computeIfAbsent(reading.getId(), x -> new ReadingModel(reading));
+    }
+}
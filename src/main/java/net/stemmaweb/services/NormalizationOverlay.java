@@ -0,0 +1,318 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.model.AlignmentModel;
+import net.stemmaweb.model.ReadingModel;
+import net.stemmaweb.model.RelationTypeModel;
+import net.stemmaweb.model.WitnessTokensModel;
+import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.rest.Nodes;
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.traversal.Uniqueness;
+
+import java.util.*;
+
+/**
+ * An in-memory view of a section normalized on a given relation type. Each cluster of readings
+ * that are related closely enough is represented by one of its readings, and the sequences of the
+ * section are redrawn between the representatives. Unlike {@link VariantGraphService#normalizeGraph},
+ * nothing is written to the database, so any number of normalized views of a section can be
+ * built and read at the same time.
+ *
+ * The models that can work on a normalized view (AlignmentModel, ReadingModel and
+ * VariantListModel) take an overlay as an optional argument.
+ */
+public class NormalizationOverlay {
+
+    /**
+     * A sequence link, carrying the witness classes ("witnesses" and any layers) that pass along
+     * it. This can either be a copy of a SEQUENCE relationship, or a normalized sequence that
+     * exists only in an overlay.
+     */
+    public static class Link {
+        private final long id;
+        private final Node start;
+        private final Node end;
+        private final LinkedHashMap<String, String[]> witnesses = new LinkedHashMap<>();
+
+        private Link(long id, Node start, Node end) {
+            this.id = id;
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * Copy a SEQUENCE relationship. NOTE: For use within a transaction
+         *
+         * @param r          - the relationship
+         * @param dictionary - the witness dictionary of the relationship's tradition
+         */
+        public Link(Relationship r, WitnessSets.Dictionary dictionary) {
+            this(r.getId(), r.getStartNode(), r.getEndNode());
+            witnesses.putAll(dictionary.read(r));
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public Node getStartNode() {
+            return start;
+        }
+
+        public Node getEndNode() {
+            return end;
+        }
+
+        public Set<String> getPropertyKeys() {
+            return witnesses.keySet();
+        }
+
+        public boolean hasProperty(String witClass) {
+            return witnesses.containsKey(witClass);
+        }
+
+        public String[] getProperty(String witClass, String[] defaultValue) {
+            return witnesses.getOrDefault(witClass, defaultValue);
+        }
+
+        public Map<String, String[]> getWitnesses() {
+            return witnesses;
+        }
+
+        // Add a witness the way ReadingService.addWitnessLink does it
+        private void addWitness(String sigil, String witClass) {
+            String[] base = witnesses.get("witnesses");
+            if (witClass.equals("witnesses") || base == null || !WitnessSets.contains(base, sigil))
+                witnesses.put(witClass, WitnessSets.with(witnesses.getOrDefault(witClass, new String[0]), sigil));
+            if (witClass.equals("witnesses")) {
+                Iterator<Map.Entry<String, String[]>> it = witnesses.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<String, String[]> layer = it.next();
+                    if (layer.getKey().equals("witnesses")) continue;
+                    layer.setValue(WitnessSets.without(layer.getValue(), sigil));
+                    if (layer.getValue().length == 0) it.remove();
+                }
+            }
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Link && ((Link) other).id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(id);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("(%d)-[%d]->(%d)", start.getId(), id, end.getId());
+        }
+    }
+
+    private final Node sectionNode;
+    private final String relationType;
+    private final HashMap<Node, Node> representatives = new HashMap<>();
+    private final HashMap<Long, List<Node>> represented = new HashMap<>();
+    private final HashMap<Long, List<Link>> outgoing = new HashMap<>();
+    private final HashMap<Long, List<Link>> incoming = new HashMap<>();
+    private final HashMap<Long, Boolean> common = new HashMap<>();
+    private AlignmentModel alignment;
+
+    private NormalizationOverlay(Node sectionNode, String relationType) {
+        this.sectionNode = sectionNode;
+        this.relationType = relationType;
+    }
+
+    /**
+     * Build the normalized view of a section according to the given relation type.
+     *
+     * @param sectionNode   - the section to be normalized
+     * @param normalizeType - the name of the type on which we are normalizing
+     * @return the overlay
+     * @throws Exception - if clusters cannot be got, or if the requested relation type doesn't exist
+     */
+    public static NormalizationOverlay build(Node sectionNode, String normalizeType) throws Exception {
+        NormalizationOverlay overlay = new NormalizationOverlay(sectionNode, normalizeType);
+        GraphDatabaseService db = sectionNode.getGraphDatabase();
+        // Make sure the relation type exists
+        Node tradition = VariantGraphService.getTraditionNode(sectionNode);
+        Node relType = new RelationTypeModel(normalizeType).lookup(tradition);
+        if (relType == null)
+            throw new Exception("Relation type " + normalizeType + " does not exist in this tradition");
+
+        try (Transaction tx = db.beginTx()) {
+            Node sectionStart = sectionNode.getSingleRelationship(ERelations.COLLATION, Direction.OUTGOING).getEndNode();
+            WitnessSets.Dictionary dictionary = WitnessSets.dictionaryFor(tradition);
+
+            // Find the normalisation clusters and nominate a representative for each
+            String tradId = tradition.getProperty("id").toString();
+            String sectionId = String.valueOf(sectionNode.getId());
+            for (Set<Node> cluster : RelationService.getCloselyRelatedClusters(tradId, sectionId, db, normalizeType)) {
+                if (cluster.size() == 0) continue;
+                Node representative = RelationService.findRepresentative(cluster);
+                if (representative == null)
+                    throw new Exception("No representative found for cluster");
+                for (Node n : cluster) {
+                    if (!n.hasLabel(Nodes.READING) || !sectionId.equals(n.getProperty("section_id", "").toString()))
+                        throw new Exception("Tried to make equivalence for node (" + n.getId()
+                                + ": " + n.getAllProperties().toString()
+                                + ") that was not in the section");
+                    overlay.representatives.put(n, representative);
+                    if (!n.equals(representative))
+                        overlay.represented.computeIfAbsent(representative.getId(), x -> new ArrayList<>()).add(n);
+                }
+            }
+
+            // Now make the normalized sequences, in the order that normalizeGraph would
+            HashMap<String, Link> links = new HashMap<>();
+            for (Relationship r : db.traversalDescription().breadthFirst()
+                    .relationships(ERelations.SEQUENCE, Direction.OUTGOING)
+                    .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL).traverse(sectionStart).relationships()) {
+                Node repstart = overlay.representativeOf(r.getStartNode());
+                Node repend = overlay.representativeOf(r.getEndNode());
+                Link link = links.get(repstart.getId() + "-" + repend.getId());
+                if (link == null) {
+                    link = new Link(-1 - links.size(), repstart, repend);
+                    links.put(repstart.getId() + "-" + repend.getId(), link);
+                    overlay.outgoing.computeIfAbsent(repstart.getId(), x -> new ArrayList<>()).add(link);
+                    overlay.incoming.computeIfAbsent(repend.getId(), x -> new ArrayList<>()).add(link);
+                }
+                for (Map.Entry<String, String[]> witClass : dictionary.read(r).entrySet())
+                    for (String w : witClass.getValue())
+                        link.addWitness(w, witClass.getKey());
+            }
+            tx.success();
+        }
+
+        // Work out the common readings from the normalized alignment. The reading models in the
+        // table are shared between rows, so we can mark them there too.
+        overlay.alignment = new AlignmentModel(sectionNode, false, overlay);
+        for (int i = 0; i < overlay.alignment.getLength(); i++) {
+            HashSet<Long> distinct = new HashSet<>();
+            List<ReadingModel> atRank = new ArrayList<>();
+            for (WitnessTokensModel wtm : overlay.alignment.getAlignment()) {
+                ReadingModel rm = wtm.getTokens().get(i);
+                if (rm == null) distinct.add(0L);
+                else if (!rm.getIs_lacuna()) {
+                    distinct.add(Long.valueOf(rm.getId()));
+                    atRank.add(rm);
+                }
+            }
+            boolean isCommon = distinct.size() == 1;
+            for (ReadingModel rm : atRank) {
+                overlay.common.put(Long.valueOf(rm.getId()), isCommon);
+                rm.setIs_common(isCommon);
+            }
+        }
+        return overlay;
+    }
+
+    /**
+     * @return the section that this overlay normalizes
+     */
+    public Node getSectionNode() {
+        return sectionNode;
+    }
+
+    /**
+     * @return the name of the relation type on which the section was normalized
+     */
+    public String getRelationType() {
+        return relationType;
+    }
+
+    /**
+     * @return a map of each clustered reading to its representative
+     */
+    public HashMap<Node, Node> getRepresentatives() {
+        return representatives;
+    }
+
+    /**
+     * Return the reading that represents the given one in the normalized view.
+     *
+     * @param reading - a reading of the section
+     * @return its representative, which is the reading itself if it isn't clustered
+     */
+    public Node representativeOf(Node reading) {
+        return representatives.getOrDefault(reading, reading);
+    }
+
+    /**
+     * Return the readings that the given reading represents, apart from itself.
+     *
+     * @param reading - a representative reading
+     * @return the represented readings, if any
+     */
+    public List<Node> representedBy(Node reading) {
+        return represented.getOrDefault(reading.getId(), Collections.emptyList());
+    }
+
+    /**
+     * @param reading - a reading of the section
+     * @return the normalized sequences that leave the given reading
+     */
+    public List<Link> getOutgoing(Node reading) {
+        return outgoing.getOrDefault(reading.getId(), Collections.emptyList());
+    }
+
+    /**
+     * @param reading - a reading of the section
+     * @return the normalized sequences that arrive at the given reading
+     */
+    public List<Link> getIncoming(Node reading) {
+        return incoming.getOrDefault(reading.getId(), Collections.emptyList());
+    }
+
+    /**
+     * Return whether the given reading is common in the normalized view.
+     *
+     * @param reading - a reading of the section
+     * @return true or false, or null if the reading is not in the normalized alignment
+     */
+    public Boolean isCommon(Node reading) {
+        return common.get(reading.getId());
+    }
+
+    /**
+     * Return the normalized alignment table of the section.
+     *
+     * @param excludeLayers - if true, leave out the rows for witness layers
+     * @return an AlignmentModel; the caller may rearrange its rows, but should not alter the
+     *         ReadingModels within.
+     */
+    public AlignmentModel getAlignment(boolean excludeLayers) {
+        AlignmentModel am = new AlignmentModel();
+        am.setLength(alignment.getLength());
+        am.setAlignment(new ArrayList<>());
+        for (WitnessTokensModel wtm : alignment.getAlignment()) {
+            if (excludeLayers && wtm.getLayer() != null) continue;
+            WitnessTokensModel row = new WitnessTokensModel();
+            row.setWitness(wtm.getWitness());
+            if (wtm.getLayer() != null) row.setLayer(wtm.getLayer());
+            row.setTokens(new ArrayList<>(wtm.getTokens()));
+            am.addWitness(row);
+        }
+        return am;
+    }
+
+    /**
+     * Return the sequence links that leave a reading, either in the given normalized view or,
+     * if there is none, in the graph itself. NOTE: For use within a transaction
+     *
+     * @param reading - the reading
+     * @param overlay - the normalized view, or null
+     * @param dictionary - the witness dictionary of the reading's tradition
+     * @return a list of links
+     */
+    public static List<Link> outgoingLinks(Node reading, NormalizationOverlay overlay,
+                                           WitnessSets.Dictionary dictionary) {
+        if (overlay != null) return overlay.getOutgoing(reading);
+        List<Link> result = new ArrayList<>();
+        for (Relationship r : reading.getRelationships(Direction.OUTGOING, ERelations.SEQUENCE))
+            result.add(new Link(r, dictionary));
+        return result;
+    }
+}
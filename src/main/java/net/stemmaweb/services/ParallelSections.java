@@ -0,0 +1,138 @@
+package net.stemmaweb.services;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a piece of work over each of a list of sections at the same time, on a bounded pool of
+ * worker threads, and hands back the results in the order of the list, i.e. in NEXT order if
+ * the list came from {@link VariantGraphService#getSectionNodes}. Each section is worked on
+ * in a read transaction of its own, so the work must not write to the database, nor rely on
+ * anything that the calling thread has written but not yet committed.
+ *
+ * The number of workers is the number of available processors, unless STEMMAREST_EXPORT_THREADS
+ * is set in the environment, or the system property stemmarest.export.threads is set. With a
+ * single worker, the sections are simply worked on one after another in the calling thread.
+ */
+public class ParallelSections {
+
+    private static volatile Integer parallelism = null;
+    private static ExecutorService pool = null;
+    private static final ThreadLocal<Boolean> isWorker = ThreadLocal.withInitial(() -> false);
+
+    /**
+     * The work to be done for a single section.
+     *
+     * @param <T> - the type of the result for each section
+     */
+    public interface SectionTask<T> {
+        T apply(Node sectionNode) throws Exception;
+    }
+
+    /**
+     * Return the number of sections that are worked on at the same time.
+     *
+     * @return the configured parallelism, at least 1
+     */
+    public static int getParallelism() {
+        if (parallelism == null) {
+            String configured = System.getProperty("stemmarest.export.threads",
+                    System.getenv("STEMMAREST_EXPORT_THREADS"));
+            int value = Runtime.getRuntime().availableProcessors();
+            if (configured != null) {
+                try {
+                    value = Integer.parseInt(configured.trim());
+                } catch (NumberFormatException e) {
+                    e.printStackTrace();
+                }
+            }
+            parallelism = Math.max(value, 1);
+        }
+        return parallelism;
+    }
+
+    /**
+     * Set the number of sections that are worked on at the same time.
+     *
+     * @param value - the new parallelism; anything below 1 is taken as 1
+     */
+    public static synchronized void setParallelism(int value) {
+        parallelism = Math.max(value, 1);
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    /**
+     * Work on each of the given sections, and return the results in the same order.
+     * If the work for any section fails, the work that hasn't yet started is cancelled,
+     * and the first failure in section order is thrown.
+     *
+     * @param db       - the GraphDatabaseService where the sections live
+     * @param sections - the section nodes, in the order the results are wanted
+     * @param task     - the work to do for each section
+     * @param <T>      - the type of the result for each section
+     * @return the results, one per section
+     * @throws Exception - the exception that the work for a section threw
+     */
+    public static <T> List<T> map(GraphDatabaseService db, List<Node> sections, SectionTask<T> task)
+            throws Exception {
+        List<T> results = new ArrayList<>();
+        // Work in this thread if there is nothing to gain, or if we are already a worker,
+        // since waiting on the pool from within the pool could starve it.
+        if (sections.size() < 2 || getParallelism() < 2 || isWorker.get()) {
+            for (Node sectionNode : sections)
+                results.add(runInTransaction(db, sectionNode, task));
+            return results;
+        }
+
+        ExecutorService executor = executor();
+        List<Future<T>> futures = new ArrayList<>();
+        try {
+            for (Node sectionNode : sections)
+                futures.add(executor.submit(() -> runInTransaction(db, sectionNode, task)));
+            for (Future<T> f : futures)
+                results.add(f.get());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw e;
+        } finally {
+            for (Future<T> f : futures)
+                f.cancel(false);
+        }
+        return results;
+    }
+
+    private static <T> T runInTransaction(GraphDatabaseService db, Node sectionNode, SectionTask<T> task)
+            throws Exception {
+        try (Transaction tx = db.beginTx()) {
+            T result = task.apply(sectionNode);
+            tx.success();
+            return result;
+        }
+    }
+
+    private static synchronized ExecutorService executor() {
+        if (pool == null) {
+            AtomicInteger count = new AtomicInteger();
+            pool = Executors.newFixedThreadPool(getParallelism(), r -> {
+                Thread t = new Thread(() -> {
+                    isWorker.set(true);
+                    r.run();
+                }, "section-worker-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return pool;
+    }
+}
@@ -0,0 +1,200 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.rest.Nodes;
+import org.neo4j.graphdb.*;
+
+import java.util.*;
+
+/**
+ * An in-memory index of the readings in a section by rank, so that the readings within a
+ * window of ranks can be found without traversing the whole section. The index for a section
+ * is kept as a pair of parallel arrays, sorted by rank, and is valid for as long as the
+ * {@link SectionStamp} of its section doesn't change; since every operation that re-ranks a
+ * section touches its stamp, the index is rebuilt on the next query after any change.
+ *
+ * Nothing is persisted; after a restart each index is rebuilt from the section_id schema index
+ * the first time it is needed.
+ */
+public class RankIndex {
+
+    // The number of section indices to keep per database
+    private static final int MAX_SECTIONS = 256;
+
+    private static final Map<GraphDatabaseService, Map<Long, SectionRanks>> cache =
+            Collections.synchronizedMap(new WeakHashMap<>());
+
+    private static class SectionRanks {
+        private final long stamp;
+        private final long[] ranks;
+        private final long[] ids;
+        // The largest rank difference spanned by a SEQUENCE link, worked out on first use
+        private volatile long maxSpan = -1;
+
+        SectionRanks(GraphDatabaseService db, Long sectionId, long stamp) {
+            this.stamp = stamp;
+            ArrayList<long[]> pairs = new ArrayList<>();
+            try (Transaction tx = db.beginTx()) {
+                db.findNodes(Nodes.READING, "section_id", sectionId).forEachRemaining(x -> {
+                    if (x.hasProperty("rank"))
+                        pairs.add(new long[]{Long.parseLong(x.getProperty("rank").toString()), x.getId()});
+                });
+                tx.success();
+            }
+            pairs.sort((a, b) -> a[0] == b[0] ? Long.compare(a[1], b[1]) : Long.compare(a[0], b[0]));
+            ranks = new long[pairs.size()];
+            ids = new long[pairs.size()];
+            for (int i = 0; i < pairs.size(); i++) {
+                ranks[i] = pairs.get(i)[0];
+                ids[i] = pairs.get(i)[1];
+            }
+        }
+
+        // Return the position of the first entry whose rank is at least the given rank.
+        int firstAtOrAfter(long rank) {
+            int lo = 0, hi = ranks.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (ranks[mid] < rank) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        long maxSpan(GraphDatabaseService db) {
+            if (maxSpan < 0) {
+                long span = 0;
+                try (Transaction tx = db.beginTx()) {
+                    for (int i = 0; i < ids.length; i++) {
+                        Node n = db.getNodeById(ids[i]);
+                        for (Relationship r : n.getRelationships(Direction.OUTGOING, ERelations.SEQUENCE)) {
+                            Object endRank = r.getEndNode().getProperty("rank", null);
+                            if (endRank != null)
+                                span = Math.max(span, Long.parseLong(endRank.toString()) - ranks[i]);
+                        }
+                    }
+                    tx.success();
+                }
+                maxSpan = span;
+            }
+            return maxSpan;
+        }
+
+        long footprint() {
+            // The two arrays plus their headers
+            return 16L * ranks.length + 32;
+        }
+    }
+
+    /**
+     * Return the readings of a section whose rank lies between the given ranks, inclusive,
+     * in ascending order of rank.
+     *
+     * @param db        - the GraphDatabaseService where the section lives
+     * @param sectionId - the ID of the section, either as a Long or as a String
+     * @param fromRank  - the lowest rank to return
+     * @param toRank    - the highest rank to return
+     * @return a list of reading nodes
+     */
+    public static List<Node> readingsBetween(GraphDatabaseService db, Object sectionId, long fromRank, long toRank) {
+        Long sid = Long.valueOf(sectionId.toString());
+        SectionRanks index = indexFor(db, sid);
+        ArrayList<Node> result = new ArrayList<>();
+        if (fromRank > toRank) return result;
+        try (Transaction tx = db.beginTx()) {
+            for (int i = index.firstAtOrAfter(fromRank); i < index.ranks.length && index.ranks[i] <= toRank; i++) {
+                // Check each hit against the graph, in case the section changed without being touched.
+                try {
+                    Node n = db.getNodeById(index.ids[i]);
+                    if (sid.equals(n.getProperty("section_id", null))
+                            && Long.parseLong(n.getProperty("rank").toString()) == index.ranks[i])
+                        result.add(n);
+                } catch (NotFoundException e) {
+                    // It was deleted; skip it.
+                }
+            }
+            tx.success();
+        }
+        return result;
+    }
+
+    /**
+     * Return the largest number of ranks spanned by any SEQUENCE link within the section,
+     * so that a caller looking for links that cross a given rank knows how far back to look.
+     *
+     * @param db        - the GraphDatabaseService where the section lives
+     * @param sectionId - the ID of the section, either as a Long or as a String
+     * @return the maximum rank difference between the ends of a SEQUENCE link
+     */
+    public static long maxSequenceSpan(GraphDatabaseService db, Object sectionId) {
+        return indexFor(db, Long.valueOf(sectionId.toString())).maxSpan(db);
+    }
+
+    /**
+     * Return the number of readings held in the rank indices of the given database.
+     *
+     * @param db - the GraphDatabaseService in question
+     * @return the entry count
+     */
+    public static long getEntryCount(GraphDatabaseService db) {
+        Map<Long, SectionRanks> ourCache = cacheFor(db);
+        synchronized (ourCache) {
+            return ourCache.values().stream().mapToLong(x -> x.ranks.length).sum();
+        }
+    }
+
+    /**
+     * Return the number of sections whose rank index is currently held in memory.
+     *
+     * @param db - the GraphDatabaseService in question
+     * @return the section count
+     */
+    public static long getSectionCount(GraphDatabaseService db) {
+        Map<Long, SectionRanks> ourCache = cacheFor(db);
+        synchronized (ourCache) {
+            return ourCache.size();
+        }
+    }
+
+    /**
+     * Return the approximate number of bytes taken up by the rank indices of the given database.
+     *
+     * @param db - the GraphDatabaseService in question
+     * @return the memory footprint in bytes
+     */
+    public static long getMemoryFootprint(GraphDatabaseService db) {
+        Map<Long, SectionRanks> ourCache = cacheFor(db);
+        synchronized (ourCache) {
+            return ourCache.values().stream().mapToLong(SectionRanks::footprint).sum();
+        }
+    }
+
+    private static SectionRanks indexFor(GraphDatabaseService db, Long sectionId) {
+        Map<Long, SectionRanks> ourCache = cacheFor(db);
+        long stamp = SectionStamp.current(db, sectionId);
+        SectionRanks found;
+        synchronized (ourCache) {
+            found = ourCache.get(sectionId);
+        }
+        if (found != null && found.stamp == stamp)
+            return found;
+
+        SectionRanks built = new SectionRanks(db, sectionId, stamp);
+        // Only keep it if the section wasn't changed in the meantime.
+        if (SectionStamp.current(db, sectionId) == stamp) {
+            synchronized (ourCache) {
+                ourCache.put(sectionId, built);
+            }
+        }
+        return built;
+    }
+
+    private static Map<Long, SectionRanks> cacheFor(GraphDatabaseService db) {
+        return cache.computeIfAbsent(db, x -> new LinkedHashMap<Long, SectionRanks>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, SectionRanks> eldest) {
+                return size() > MAX_SECTIONS;
+            }
+        });
+    }
+}
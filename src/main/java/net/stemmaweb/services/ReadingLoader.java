@@ -0,0 +1,106 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.model.ReadingModel;
+import net.stemmaweb.rest.ERelations;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+
+import java.util.*;
+
+/**
+ * Makes ReadingModels for many readings at once. Each reading's properties are read in one go,
+ * and the witnesses of each SEQUENCE or NSEQUENCE link are read only once, even when the
+ * readings at both of its ends are wanted; the link's witnesses are kept only until the
+ * reading at its other end has been loaded. No transaction is opened per reading.
+ *
+ * The readings are loaded as they are in the database; for a reading as seen through a
+ * {@link NormalizationOverlay}, use the ReadingModel constructor instead.
+ */
+public class ReadingLoader {
+
+    /**
+     * Something that takes the loaded readings one at a time.
+     */
+    public interface ReadingSink {
+        void accept(ReadingModel reading) throws Exception;
+    }
+
+    /**
+     * Make ReadingModels for the given readings.
+     * NOTE: For use within a transaction
+     *
+     * @param readings - the READING nodes
+     * @return the models, in the same order as the nodes
+     */
+    public static List<ReadingModel> load(List<Node> readings) {
+        List<ReadingModel> result = new ArrayList<>(readings.size());
+        try {
+            forEach(readings, result::add);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            // Adding to a list throws nothing that is checked
+            throw new RuntimeException(e);
+        }
+        return result;
+    }
+
+    /**
+     * Make a ReadingModel for each of the given readings, and hand it over as soon as it is made,
+     * so that the models need not all be held at once.
+     * NOTE: For use within a transaction
+     *
+     * @param readings - the READING nodes
+     * @param sink     - what to do with each model, in the same order as the nodes
+     * @throws Exception if the sink throws it
+     */
+    public static void forEach(List<Node> readings, ReadingSink sink) throws Exception {
+        HashSet<Long> wanted = new HashSet<>();
+        readings.forEach(x -> wanted.add(x.getId()));
+        HashSet<Long> loaded = new HashSet<>();
+        // The witnesses of the links that we have read, whose other ends still need them
+        HashMap<Long, List<String>> pending = new HashMap<>();
+        WitnessSets.Dictionary dictionary = null;
+
+        for (Node n : readings) {
+            loaded.add(n.getId());
+            // If we are operating under normalization, we need to look at the NSEQUENCE links rather than
+            // the SEQUENCE links, but in this case the SEQUENCE links will be redundant so there is no
+            // harm in looking at them anyway.
+            TreeSet<String> collectedWits = new TreeSet<>();
+            for (Relationship r : n.getRelationships(Direction.BOTH, ERelations.SEQUENCE, ERelations.NSEQUENCE)) {
+                List<String> wits = pending.remove(r.getId());
+                if (wits == null) {
+                    if (dictionary == null)
+                        dictionary = WitnessSets.dictionaryOf(r);
+                    wits = witnessesOf(r, dictionary);
+                    long other = r.getOtherNodeId(n.getId());
+                    if (wanted.contains(other) && !loaded.contains(other))
+                        pending.put(r.getId(), wits);
+                }
+                collectedWits.addAll(wits);
+            }
+            ReadingModel rm = new ReadingModel(n, n.getAllProperties(), collectedWits);
+
+            // Get any represented readings
+            List<Node> represented = new ArrayList<>();
+            for (Relationship r : n.getRelationships(ERelations.REPRESENTS, Direction.OUTGOING))
+                represented.add(r.getEndNode());
+            if (!represented.isEmpty())
+                load(represented).forEach(rm::addRepresented);
+            sink.accept(rm);
+        }
+    }
+
+    // NOTE: For use within a transaction
+    private static List<String> witnessesOf(Relationship r, WitnessSets.Dictionary dictionary) {
+        List<String> wits = new ArrayList<>();
+        for (Map.Entry<String, String[]> prop : dictionary.read(r).entrySet()) {
+            boolean isBase = prop.getKey().equals("witnesses");
+            for (String x : prop.getValue())
+                wits.add(isBase ? x : x + " (" + prop.getKey() + ")");
+        }
+        return wits;
+    }
+}
@@ -41,15 +41,13 @@ public class ReadingService {
      * @param link - the SEQUENCE relationship to test
      * @param sigil - the witness sigil
      * @param witClass - the witness layer
+     * @param dictionary - the witness dictionary of the link's tradition
      *
      */
     @SuppressWarnings("WeakerAccess")
-    public static boolean hasWitness(Relationship link, String sigil, String witClass) {
-        if (link.hasProperty(witClass)) {
-            String[] wits = (String[]) link.getProperty(witClass);
-            return Arrays.asList(wits).contains(sigil);
-        }
-        return false;
+    public static boolean hasWitness(Relationship link, String sigil, String witClass,
+                                     WitnessSets.Dictionary dictionary) {
+        return dictionary.has(link, sigil, witClass);
     }
 
     /**
@@ -61,9 +59,12 @@ public class ReadingService {
      * @param end   - the end node
      * @param sigil - the witness sigil
      * @param witClass - the witness layer class to use
+     * @param seqType - the type of sequence link to use
+     * @param dictionary - the witness dictionary of the readings' tradition
      * @return the SEQUENCE Relationship to which the witness was added
      */
-    public static Relationship addWitnessLink (Node start, Node end, String sigil, String witClass, RelationshipType seqType) {
+    public static Relationship addWitnessLink (Node start, Node end, String sigil, String witClass,
+                                              RelationshipType seqType, WitnessSets.Dictionary dictionary) {
         Relationship link = null;
         for (Relationship r : start.getRelationships(Direction.OUTGOING, seqType))
             if (r.getEndNode().equals(end))
@@ -71,30 +72,22 @@ public class ReadingService {
         if (link == null)
             link = start.createRelationshipTo(end, seqType);
         // First see if we need to add this one
-        if (witClass.equals("witnesses") || !hasWitness(link, sigil, "witnesses")) {
+        if (witClass.equals("witnesses") || !hasWitness(link, sigil, "witnesses", dictionary))
             // This is either a main witness or a layer witness where the main witness isn't.
-            if (link.hasProperty(witClass)) {
-                String[] witList = (String[]) link.getProperty(witClass);
-                HashSet<String> currentWits = new HashSet<>(Arrays.asList(witList));
-                currentWits.add(sigil);
-                link.setProperty(witClass, currentWits.toArray(new String[0]));
-            } else {
-                String[] witList = {sigil};
-                link.setProperty(witClass, witList);
-            }
-        }
+            dictionary.add(link, sigil, witClass);
         // Then see if we need to remove a layer
         if (witClass.equals("witnesses")) {
-            for (String wc : link.getPropertyKeys()) {
+            for (String wc : dictionary.classes(link)) {
                 if (wc.equals(witClass)) continue;
-                removeWitnessLink(start, end, sigil, wc, "none", seqType);
+                removeWitnessLink(start, end, sigil, wc, "none", seqType, dictionary);
             }
         }
         return link;
     }
 
-    public static Relationship addWitnessLink (Node start, Node end, String sigil, String witClass) {
-        return addWitnessLink(start, end, sigil, witClass, ERelations.SEQUENCE);
+    public static Relationship addWitnessLink (Node start, Node end, String sigil, String witClass,
+                                              WitnessSets.Dictionary dictionary) {
+        return addWitnessLink(start, end, sigil, witClass, ERelations.SEQUENCE, dictionary);
     }
 
     /**
@@ -106,12 +99,15 @@ public class ReadingService {
      * @param end   - the end node
      * @param sigil - the witness sigil
      * @param witClass - the witness layer class to use
+     * @param dictionary - the witness dictionary of the readings' tradition
      */
-    public static void removeWitnessLink (Node start, Node end, String sigil, String witClass, String orphanCheck) {
-        removeWitnessLink(start, end, sigil, witClass, orphanCheck, ERelations.SEQUENCE);
+    public static void removeWitnessLink (Node start, Node end, String sigil, String witClass, String orphanCheck,
+                                          WitnessSets.Dictionary dictionary) {
+        removeWitnessLink(start, end, sigil, witClass, orphanCheck, ERelations.SEQUENCE, dictionary);
     }
 
-    private static void removeWitnessLink (Node start, Node end, String sigil, String witClass, String orphanCheck, RelationshipType seqType) {
+    private static void removeWitnessLink (Node start, Node end, String sigil, String witClass, String orphanCheck,
+                                           RelationshipType seqType, WitnessSets.Dictionary dictionary) {
         // If we are removing a base witness link, we need to check whether any layers for
         // that witness end at our start node or start at our end node.
         boolean ocStart = orphanCheck.equals("start") || orphanCheck.equals("both");
@@ -120,17 +116,17 @@ public class ReadingService {
         if (witClass.equals("witnesses")) {
             if (ocStart) {
                 for (Relationship r : start.getRelationships(Direction.INCOMING, ERelations.SEQUENCE)) {
-                    orphans.addAll(findWitLayers(r, sigil));
+                    orphans.addAll(findWitLayers(r, sigil, dictionary));
                 }
             }
             if (ocEnd) {
                 for (Relationship r : end.getRelationships(Direction.OUTGOING, ERelations.SEQUENCE)) {
-                    orphans.addAll(findWitLayers(r, sigil));
+                    orphans.addAll(findWitLayers(r, sigil, dictionary));
                 }
                 // Any outgoing layers of this witness that arrive via another link are not orphans.
                 for (Relationship r : end.getRelationships(Direction.INCOMING, ERelations.SEQUENCE))
                     if (!r.getStartNode().equals(start))
-                        orphans.removeAll(findWitLayers(r, sigil));
+                        orphans.removeAll(findWitLayers(r, sigil, dictionary));
             }
         } // else we are removing a layer explicitly, and needn't worry about orphans.
 
@@ -141,36 +137,28 @@ public class ReadingService {
             if (r.getEndNode().equals(end))
                 link = r;
             else if (witClass.equals("witnesses") && ocStart) {
-                orphans.removeAll(findWitLayers(r, sigil));
+                orphans.removeAll(findWitLayers(r, sigil, dictionary));
             }
         }
         if (link == null) return;
         // Look for the given witness in the given layer
-        if (link.hasProperty(witClass)) {
-            String[] witList = (String[]) link.getProperty(witClass);
-            HashSet<String> currentWits = new HashSet<>(Arrays.asList(witList));
-            currentWits.remove(sigil);
+        if (dictionary.classes(link).contains(witClass)) {
+            dictionary.remove(link, sigil, witClass);
             // Un-orphan any otherwise orphaned sigil layers.
             for (String layer : orphans) {
-                link.setProperty(layer, new String[] {sigil});
+                dictionary.set(link, layer, Collections.singletonList(sigil));
             }
-            // Was this the last witness for the given class?
-            if (currentWits.isEmpty()) {
-                link.removeProperty(witClass);
-                // Was this the last witness class for the given link?
-                if (link.getAllProperties().size() == 0)
-                    link.delete();
-            }
-            else
-                link.setProperty(witClass, currentWits.toArray(new String[0]));
+            // Was this the last witness for the given link?
+            if (WitnessSets.isEmpty(link))
+                link.delete();
         }
     }
 
-    private static ArrayList<String> findWitLayers (Relationship r, String sigil) {
+    private static ArrayList<String> findWitLayers (Relationship r, String sigil, WitnessSets.Dictionary dictionary) {
         ArrayList<String> sigLayers = new ArrayList<>();
-        for (String layer : r.getPropertyKeys()) {
+        for (String layer : dictionary.classes(r)) {
             if (layer.equals("witnesses")) continue;
-            if (Arrays.asList((String[]) r.getProperty(layer)).contains(sigil))
+            if (dictionary.has(r, sigil, layer))
                 sigLayers.add(layer);
         }
         return sigLayers;
@@ -183,15 +171,19 @@ public class ReadingService {
      * @param start - the first node to link
      * @param end   - the second node to link
      * @param copyFrom  - the SEQUENCE relationship whose witnesses to take over
+     * @param seqType - the type of sequence link to use
+     * @param dictionary - the witness dictionary of the readings' tradition
      */
-    public static void transferWitnesses (Node start, Node end, Relationship copyFrom, RelationshipType seqType) {
-        for (String witclass : copyFrom.getPropertyKeys())
-            for (String w : (String[]) copyFrom.getProperty(witclass))
-                addWitnessLink(start, end, w, witclass, seqType);
+    public static void transferWitnesses (Node start, Node end, Relationship copyFrom, RelationshipType seqType,
+                                          WitnessSets.Dictionary dictionary) {
+        for (Map.Entry<String, String[]> witclass : dictionary.read(copyFrom).entrySet())
+            for (String w : witclass.getValue())
+                addWitnessLink(start, end, w, witclass.getKey(), seqType, dictionary);
     }
 
-    public static void transferWitnesses (Node start, Node end, Relationship copyFrom) {
-        transferWitnesses(start, end, copyFrom, ERelations.SEQUENCE);
+    public static void transferWitnesses (Node start, Node end, Relationship copyFrom,
+                                          WitnessSets.Dictionary dictionary) {
+        transferWitnesses(start, end, copyFrom, ERelations.SEQUENCE, dictionary);
     }
 
     /**
@@ -200,8 +192,9 @@ public class ReadingService {
      * NOTE: To be used inside a transaction!
      *
      * @param placeholderNode - the node to be removed
+     * @param dictionary - the witness dictionary of the tradition
      */
-    public static void removePlaceholder(Node placeholderNode) throws Exception {
+    public static void removePlaceholder(Node placeholderNode, WitnessSets.Dictionary dictionary) throws Exception {
         // Check that the node is indeed a placeholder
         if (!placeholderNode.hasProperty("is_placeholder")
                 || !(Boolean) placeholderNode.getProperty("is_placeholder"))
@@ -211,8 +204,9 @@ public class ReadingService {
         HashMap<String, Node> readingWitnessToMap = new HashMap<>();
         HashMap<String, HashMap<String, Node>> readingWitnessExtraMap = new HashMap<>();
         for (Relationship r : placeholderNode.getRelationships(Direction.OUTGOING, ERelations.SEQUENCE)) {
-            for (String prop : r.getPropertyKeys()) {
-                String[] relWits = (String[]) r.getProperty(prop);
+            for (Map.Entry<String, String[]> wc : dictionary.read(r).entrySet()) {
+                String prop = wc.getKey();
+                String[] relWits = wc.getValue();
                 for (String w : relWits)
                     if (prop.equals("witnesses"))
                         readingWitnessToMap.put(w, r.getEndNode());
@@ -232,11 +226,12 @@ public class ReadingService {
         HashMap<String, Node> deferredLinks = new HashMap<>();
         for (Relationship r : placeholderNode.getRelationships(Direction.INCOMING, ERelations.SEQUENCE)) {
             Node priorReading = r.getStartNode();
-            for (String prop : r.getPropertyKeys()) {
-                String[] relWits = (String[]) r.getProperty(prop);
+            for (Map.Entry<String, String[]> wc : dictionary.read(r).entrySet()) {
+                String prop = wc.getKey();
+                String[] relWits = wc.getValue();
                 for (String w : relWits) {
                     if (prop.equals("witnesses")) {
-                        addWitnessLink(priorReading, readingWitnessToMap.get(w), w, prop);
+                        addWitnessLink(priorReading, readingWitnessToMap.get(w), w, prop, dictionary);
 
                         // If there are special (extra, layered) readings for this witness on the
                         // TO side, we will have to deal with it after we have matched corresponding
@@ -248,13 +243,13 @@ public class ReadingService {
                         // Look for a matching layer-witness reading for our layer-witness
                         if (readingWitnessExtraMap.containsKey(w)
                                 && readingWitnessExtraMap.get(w).containsKey(prop)) {
-                            addWitnessLink(priorReading, readingWitnessExtraMap.get(w).get(prop), w, prop);
+                            addWitnessLink(priorReading, readingWitnessExtraMap.get(w).get(prop), w, prop, dictionary);
                             // This witness layer has been matched; remove it from later accounting.
                             readingWitnessExtraMap.get(w).remove(prop);
                         }
                         // If there isn't a match, use the "normal" witness reading on the TO side
                         else
-                            addWitnessLink(priorReading, readingWitnessToMap.get(w), w, prop);
+                            addWitnessLink(priorReading, readingWitnessToMap.get(w), w, prop, dictionary);
                     }
                 }
             }
@@ -265,7 +260,7 @@ public class ReadingService {
             HashMap<String, Node> thisToExtra = readingWitnessExtraMap.get(w);
             for (String extra : thisToExtra.keySet()) {
                 Node priorNode = deferredLinks.get(w);
-                addWitnessLink(priorNode, thisToExtra.get(extra), w, extra);
+                addWitnessLink(priorNode, thisToExtra.get(extra), w, extra, dictionary);
             }
         }
     }
@@ -297,151 +292,265 @@ public class ReadingService {
         return witnessAsText.toString().trim();
     }
 
-    /* Custom evaluator and traverser that modifies reading rank as it goes */
-
-    private static class RankCalcEvaluate implements Evaluator {
-
-        Map<Long, Set<Node>> colocatedNodes;
-        boolean recalculateAll;
-
-        // Constructor - we need to know where we are starting so we can build our list of
-        // equivalences and find our starting point. Throws an exception if we can't get
-        // the related-reading clusters.
-        RankCalcEvaluate(Node startNode, Boolean recalculateAll) throws Exception {
-            // Get the list of colocated nodes in this section.
-            GraphDatabaseService db = startNode.getGraphDatabase();
-            String sectionId = String.valueOf(startNode.getProperty("section_id"));
-            String tradId = db.getNodeById(Long.valueOf(sectionId))
-                    .getSingleRelationship(ERelations.PART, Direction.INCOMING).getStartNode()
-                    .getProperty("id").toString();
-            this.colocatedNodes = buildColocationLookup(tradId, sectionId, startNode.getGraphDatabase());
-            this.recalculateAll = recalculateAll;
+    /* In-memory rank propagation, used by recalculateRank */
+
+    private static class RankPropagation {
+
+        private final GraphDatabaseService db;
+        private final Set<String> colocatedTypes;
+        private final boolean propagateAll;
+        // The ranks worked out so far, by node ID
+        private final HashMap<Long, Long> newRanks = new HashMap<>();
+        // The colocated cluster of each node we have looked at; members share the list
+        private final HashMap<Long, List<Node>> clusters = new HashMap<>();
+        // Clusters, by the ID of their first member, that have been processed or are waiting
+        private final HashSet<Long> processed = new HashSet<>();
+        private final HashSet<Long> queued = new HashSet<>();
+        // Clusters that couldn't be ranked for lack of a ranked predecessor
+        private final HashMap<Long, Node> unresolved = new HashMap<>();
+        private final PriorityQueue<RankEntry> queue = new PriorityQueue<>(
+                Comparator.comparingLong((RankEntry x) -> x.priority));
+        // The highest rank stored on any node we have seen; used to detect cycles
+        private long maxStoredRank = 0;
+        // The lowest and highest ranks that a node was moved from or to
+        private long lowestMoved = Long.MAX_VALUE;
+        private long highestMoved = Long.MIN_VALUE;
+
+        RankPropagation(GraphDatabaseService db, Set<String> colocatedTypes, boolean propagateAll) {
+            this.db = db;
+            this.colocatedTypes = colocatedTypes;
+            this.propagateAll = propagateAll;
         }
 
-        @Override
-        public Evaluation evaluate(Path path) {
-            // Get the last node on the path, check if its parents are ranked yet, and
-            // delete its rank if it is wrong
-            Node thisNode = path.endNode();
-            thisNode.setProperty("touched", true);
-            Long maxParentRank = maxParentRank(thisNode);
-            // If this is the first node in the sequence, then maxParentRank had better not
-            // be null. This should also work for the #START# node.
-            assert path.lastRelationship() != null || (maxParentRank != null);
-
-            // If maxParentRank is null, we remove our rank and stop calculating from here
-            if (maxParentRank == null) {
-                // thisNode.removeProperty("rank");
-                return Evaluation.EXCLUDE_AND_PRUNE;
+        // Rank everything that depends on the start nodes. Each cluster is ranked after the
+        // latest predecessor of any of its members, and its successors are queued if this
+        // changed its rank; the queue is ordered by rank so that predecessors tend to come
+        // first.
+        void run(Collection<Node> startNodes) throws Exception {
+            Set<List<Node>> startClusters = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (Node startNode : startNodes) {
+                List<Node> startCluster = clusterOf(startNode);
+                startClusters.add(startCluster);
+                Long startRank = storedRank(startNode);
+                enqueue(startCluster, startRank == null ? 0 : startRank);
+            }
+            while (!queue.isEmpty()) {
+                List<Node> cluster = queue.poll().cluster;
+                Long key = cluster.get(0).getId();
+                queued.remove(key);
+                boolean firstVisit = processed.add(key);
+                Long rank = rankFromPredecessors(cluster);
+                if (rank == null) {
+                    unresolved.put(key, cluster.get(0));
+                    continue;
+                }
+                unresolved.remove(key);
+                if (rank > maxStoredRank + processed.size() + 1)
+                    throw new Exception(String.format("Cycle in the sequence graph at node %d (%s)",
+                            cluster.get(0).getId(), cluster.get(0).getProperty("text", "")));
+
+                boolean changed = false;
+                for (Node n : cluster) {
+                    if (!rank.equals(currentRank(n))) {
+                        newRanks.put(n.getId(), rank);
+                        changed = true;
+                    }
+                }
+                if (changed || (firstVisit && (propagateAll || startClusters.contains(cluster))))
+                    for (Node n : cluster)
+                        for (Relationship r : n.getRelationships(Direction.OUTGOING,
+                                ERelations.SEQUENCE, ERelations.LEMMA_TEXT, ERelations.EMENDED)) {
+                            Node next = r.getEndNode();
+                            Long nextRank = storedRank(next);
+                            enqueue(clusterOf(next), nextRank == null ? rank + 1 : Math.max(nextRank, rank + 1));
+                        }
+            }
+            if (!unresolved.isEmpty()) {
+                Node n = unresolved.values().iterator().next();
+                throw new Exception (String.format("Node %d (%s) traversed but not re-ranked!",
+                        n.getId(), n.getProperty("text")));
             }
-
-            // Otherwise we set the rank and continue.
-            thisNode.setProperty("newrank", maxParentRank + 1);
-            return Evaluation.INCLUDE_AND_CONTINUE;
         }
 
-        private Long maxParentRank (Node candidate) {
-            // Returns true if the parents of this node, and of all its colocated nodes,
-            // already have a rank.
-            Set<Node> toCheck;
-            Long maxRankFound = -1L;
-            if (colocatedNodes.containsKey(candidate.getId())) {
-                toCheck = colocatedNodes.get(candidate.getId());
-            } else {
-                toCheck = new HashSet<>();
-                toCheck.add(candidate);
+        // Write the new ranks to the nodes, and return the nodes whose rank changed
+        Set<Node> apply() {
+            Set<Node> changed = new HashSet<>();
+            for (Map.Entry<Long, Long> nr : newRanks.entrySet()) {
+                Node n = db.getNodeById(nr.getKey());
+                Object oldRank = n.getProperty("rank", null);
+                if (!nr.getValue().equals(oldRank)) {
+                    n.setProperty("rank", nr.getValue());
+                    changed.add(n);
+                    lowestMoved = Math.min(lowestMoved, nr.getValue());
+                    highestMoved = Math.max(highestMoved, nr.getValue());
+                    if (oldRank != null) {
+                        lowestMoved = Math.min(lowestMoved, (Long) oldRank);
+                        highestMoved = Math.max(highestMoved, (Long) oldRank);
+                    }
+                }
             }
-            for (Node n : toCheck) {
-                ArrayList<Node> parents = new ArrayList<>();
-                n.getRelationships(ERelations.SEQUENCE, Direction.INCOMING)
-                        .forEach(x -> parents.add(x.getStartNode()));
-                n.getRelationships(ERelations.EMENDED, Direction.INCOMING)
-                        .forEach(x -> parents.add(x.getStartNode()));
-                for (Node p: parents) {
-                    String rankprop = p.hasProperty("touched") ? "newrank" : "rank";
-                    if (!p.hasProperty(rankprop))
+            return changed;
+        }
+
+        private void enqueue(List<Node> cluster, long priority) {
+            if (queued.add(cluster.get(0).getId()))
+                queue.add(new RankEntry(cluster, priority));
+        }
+
+        private Long rankFromPredecessors(List<Node> cluster) {
+            long maxRankFound = -1L;
+            for (Node n : cluster)
+                for (Relationship r : n.getRelationships(Direction.INCOMING, ERelations.SEQUENCE, ERelations.EMENDED)) {
+                    Long pr = currentRank(r.getStartNode());
+                    if (pr == null)
                         return null;
-                    Long thisRank = (Long) p.getProperty(rankprop);
-                    maxRankFound = thisRank > maxRankFound ? thisRank : maxRankFound;
+                    maxRankFound = Math.max(maxRankFound, pr);
                 }
-            }
-            return maxRankFound;
+            return maxRankFound + 1;
+        }
+
+        private Long currentRank(Node n) {
+            Long nr = newRanks.get(n.getId());
+            return nr != null ? nr : storedRank(n);
+        }
+
+        private Long storedRank(Node n) {
+            Object rank = n.getProperty("rank", null);
+            if (rank == null) return null;
+            maxStoredRank = Math.max(maxStoredRank, (Long) rank);
+            return (Long) rank;
+        }
+
+        // Find the nodes that are linked to the given one by colocated relations
+        private List<Node> clusterOf(Node n) {
+            List<Node> cluster = clusters.get(n.getId());
+            if (cluster != null) return cluster;
+            cluster = new ArrayList<>();
+            cluster.add(n);
+            clusters.put(n.getId(), cluster);
+            for (int i = 0; i < cluster.size(); i++)
+                for (Relationship r : cluster.get(i).getRelationships(Direction.BOTH, ERelations.RELATED)) {
+                    if (!colocatedTypes.contains(r.getProperty("type").toString())) continue;
+                    Node other = r.getOtherNode(cluster.get(i));
+                    if (!clusters.containsKey(other.getId())) {
+                        cluster.add(other);
+                        clusters.put(other.getId(), cluster);
+                    }
+                }
+            return cluster;
+        }
+    }
+
+    private static class RankEntry {
+        private final List<Node> cluster;
+        private final long priority;
+
+        RankEntry(List<Node> cluster, long priority) {
+            this.cluster = cluster;
+            this.priority = priority;
         }
     }
 
     /**
      * Recalculates ranks, starting from startNode, until the ranks stop changing. Note that
-     * the rank on startNode needs to be correct before this is run.
+     * the rank on startNode needs to be correct before this is run. Rank changes are
+     * propagated forward along the sequence and colocated relations, and the new ranks are
+     * only written once they have all been worked out.
      *
      * @param startNode - the reading from which to begin the recalculation
+     * @param recalculateAll - if true, visit everything after startNode even where the ranks
+     *                       have stopped changing
      * @return list of nodes whose ranks were changed
-     * @throws Exception, if the RankCalcEvaluate initialisation fails
+     * @throws Exception, if the relation types can't be read or the graph can't be ranked
      */
 
     public static Set<Node> recalculateRank (Node startNode, boolean recalculateAll) throws Exception {
-        RankCalcEvaluate e = new RankCalcEvaluate(startNode, recalculateAll);
-        AlignmentTraverse a = new AlignmentTraverse(startNode);
-        GraphDatabaseService db = startNode.getGraphDatabase();
+        return recalculateRank(startNode, recalculateAll, false);
+    }
 
-        // Traverse the sequence graph from our start node, putting a mark on
-        // all the nodes we expect to visit
-        db.traversalDescription().depthFirst()
-                .expand(a)
-                .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL)
-                .traverse(startNode).nodes().stream().forEach(x -> x.setProperty("touched", true));
-
-        // At this point we can start to reassign ranks
-        ResourceIterable<Node> touched = db.traversalDescription().depthFirst()
-                .expand(a)
-                .evaluator(e)
-                .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL)
-                .traverse(startNode).nodes();
-        // Run the traverser and commit the updated ranks
-        Set<Node> changed = new HashSet<>();
-        for (Node n : touched.stream().collect(Collectors.toSet())) {
-            n.removeProperty("touched");
-            if (!n.hasProperty("newrank"))
-                throw new Exception (String.format("Node %d (%s) traversed but not re-ranked!",
-                        n.getId(), n.getProperty("text")));
-            Long nr = (Long) n.removeProperty("newrank");
-            if (!n.hasProperty("rank") || !n.getProperty("rank").equals(nr)) {
-                changed.add(n);
-                n.setProperty("rank", nr);
+    /**
+     * Recalculates ranks as above, and optionally brings the is_common flags up to date on the
+     * ranks that were affected, i.e. the rank of startNode and every rank that a node was moved
+     * from or to. The caller is responsible for touching the section.
+     *
+     * @param startNode - the reading from which to begin the recalculation
+     * @param recalculateAll - if true, visit everything after startNode even where the ranks
+     *                       have stopped changing
+     * @param updateCommon - if true, recalculate the is_common flags of the affected ranks
+     * @return list of nodes whose ranks were changed
+     * @throws Exception, if the relation types can't be read or the graph can't be ranked
+     */
+    public static Set<Node> recalculateRank (Node startNode, boolean recalculateAll, boolean updateCommon)
+            throws Exception {
+        return recalculateRank(Collections.singletonList(startNode), recalculateAll, updateCommon);
+    }
+
+    /**
+     * Recalculates ranks as above, starting from several nodes of the same section at once,
+     * so that the readings that depend on more than one of them are only ranked once.
+     *
+     * @param startNodes - the readings from which to begin the recalculation
+     * @param recalculateAll - if true, visit everything after the start nodes even where the
+     *                       ranks have stopped changing
+     * @param updateCommon - if true, recalculate the is_common flags of the affected ranks
+     * @return list of nodes whose ranks were changed
+     * @throws Exception, if the relation types can't be read or the graph can't be ranked
+     */
+    public static Set<Node> recalculateRank (Collection<Node> startNodes, boolean recalculateAll, boolean updateCommon)
+            throws Exception {
+        if (startNodes.isEmpty()) return new HashSet<>();
+        Node startNode = startNodes.iterator().next();
+        GraphDatabaseService db = startNode.getGraphDatabase();
+        Set<String> colocatedTypes = RelationService.ourRelationTypes(startNode).stream()
+                .filter(RelationTypeModel::getIs_colocation).map(RelationTypeModel::getName)
+                .collect(Collectors.toSet());
+        RankPropagation propagation = new RankPropagation(db, colocatedTypes, recalculateAll);
+        propagation.run(startNodes);
+        Set<Node> changed = propagation.apply();
+        if (DebugChecks.enabled())
+            verifyRanks(startNode);
+        if (updateCommon) {
+            long fromRank = propagation.lowestMoved;
+            long toRank = propagation.highestMoved;
+            for (Node n : startNodes) {
+                fromRank = Math.min(fromRank, (Long) n.getProperty("rank"));
+                toRank = Math.max(toRank, (Long) n.getProperty("rank"));
             }
+            CommonReadings.recalculate(db, startNode.getProperty("section_id"), fromRank, toRank);
         }
+        return changed;
+    }
+
+    public static Set<Node> recalculateRank (Node startNode) throws Exception {
+        return recalculateRank(startNode, false);
+    }
 
-        // TEMPORARY: Make sure that we did visit all expected nodes
-        Node sectionStart = VariantGraphService.getStartNode(startNode.getProperty("section_id").toString(), db);
+    // Check the ranks of the whole section that the node belongs to: every reading must be
+    // ranked, every sequence must go forward in rank, and colocated readings must share a rank.
+    private static void verifyRanks (Node startNode) throws Exception {
+        GraphDatabaseService db = startNode.getGraphDatabase();
+        String sectionId = startNode.getProperty("section_id").toString();
+        Node sectionStart = VariantGraphService.getStartNode(sectionId, db);
         for (Node n : db.traversalDescription().depthFirst()
                 .expand(new AlignmentTraverse())
-                .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL)
+                .uniqueness(Uniqueness.NODE_GLOBAL)
                 .traverse(sectionStart).nodes()) {
-            if (n.hasProperty("touched"))
-                throw new Exception ("End node not reached during recalculation!");
+            if (!n.hasProperty("rank"))
+                throw new Exception(String.format("Node %d (%s) has no rank after recalculation",
+                        n.getId(), n.getProperty("text", "")));
+            Long rank = (Long) n.getProperty("rank");
+            for (Relationship r : n.getRelationships(Direction.OUTGOING, ERelations.SEQUENCE, ERelations.EMENDED))
+                if ((Long) r.getEndNode().getProperty("rank", Long.MAX_VALUE) <= rank)
+                    throw new Exception(String.format("Sequence from node %d goes backward in rank", n.getId()));
         }
 
-
-        // TEMPORARY: Test that our colocated groups are actually colocated
-        Node ourSection = db.getNodeById((Long) startNode.getProperty("section_id"));
+        Node ourSection = db.getNodeById(Long.valueOf(sectionId));
         String tradId = VariantGraphService.getTraditionNode(ourSection).getProperty("id").toString();
-        List<Set<Node>> clusters = RelationService.getClusters(tradId, String.valueOf(ourSection.getId()), db, true);
-        for (Set<Node> cluster : clusters) {
-            Long clusterRank = null;
-            for (Node n : cluster) {
-                if (clusterRank == null)
-                    clusterRank = (Long) n.getProperty("rank");
-                else
-                    assert(clusterRank.equals(n.getProperty("rank")));
-                // else if (!clusterRank.equals(n.getProperty("rank")))
-                //     throw new Exception("Ranks diverge in cluster around rank " + clusterRank);
-            }
+        for (Set<Node> cluster : RelationService.getClusters(tradId, sectionId, db, true)) {
+            Set<Object> clusterRanks = cluster.stream().map(x -> x.getProperty("rank")).collect(Collectors.toSet());
+            if (clusterRanks.size() > 1)
+                throw new Exception("Ranks diverge in cluster around rank " + clusterRanks.iterator().next());
         }
-        // END TEMPORARY
-        return changed;
-    }
-
-    public static Set<Node> recalculateRank (Node startNode) throws Exception {
-        return recalculateRank(startNode, false);
     }
 
     /**
@@ -0,0 +1,119 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.rest.Nodes;
+import org.neo4j.graphdb.*;
+
+import java.util.*;
+
+/**
+ * An in-memory index of the readings in a section by their text, and by their normal form, so
+ * that the readings that match a given one can be found without crawling the tradition. As with
+ * the {@link RankIndex}, the index of a section is valid for as long as its {@link SectionStamp}
+ * doesn't change; since creating, changing, merging or splitting a reading touches the section,
+ * its index is rebuilt on the next lookup after any such change, and the indices of the other
+ * sections of the tradition are kept.
+ */
+public class ReadingTextIndex {
+
+    // The number of section indices to keep per database
+    private static final int MAX_SECTIONS = 256;
+
+    private static final Map<GraphDatabaseService, Map<Long, SectionTexts>> cache =
+            Collections.synchronizedMap(new WeakHashMap<>());
+
+    private static class SectionTexts {
+        private final long stamp;
+        // The reading IDs for each text, and for each normal form (or text, where there is none)
+        private final HashMap<Object, long[]> byText = new HashMap<>();
+        private final HashMap<Object, long[]> byNormal = new HashMap<>();
+
+        SectionTexts(GraphDatabaseService db, Long sectionId, long stamp) {
+            this.stamp = stamp;
+            HashMap<Object, List<Long>> texts = new HashMap<>();
+            HashMap<Object, List<Long>> normals = new HashMap<>();
+            try (Transaction tx = db.beginTx()) {
+                db.findNodes(Nodes.READING, "section_id", sectionId).forEachRemaining(x -> {
+                    texts.computeIfAbsent(keyOf(x, false), k -> new ArrayList<>()).add(x.getId());
+                    normals.computeIfAbsent(keyOf(x, true), k -> new ArrayList<>()).add(x.getId());
+                });
+                tx.success();
+            }
+            texts.forEach((k, v) -> byText.put(k, v.stream().mapToLong(Long::longValue).toArray()));
+            normals.forEach((k, v) -> byNormal.put(k, v.stream().mapToLong(Long::longValue).toArray()));
+        }
+    }
+
+    /**
+     * Return the key under which a reading is indexed: its normal form if one is asked for and
+     * it has one, and otherwise its text.
+     *
+     * @param reading   - the reading
+     * @param useNormal - whether to prefer the normal form
+     * @return the text or normal form, or an empty string if the reading has neither
+     */
+    public static Object keyOf(Node reading, boolean useNormal) {
+        if (useNormal && reading.hasProperty("normal_form"))
+            return reading.getProperty("normal_form");
+        return reading.getProperty("text", "");
+    }
+
+    /**
+     * Return the readings of a section that have the given text, or normal form.
+     *
+     * @param db        - the GraphDatabaseService where the section lives
+     * @param sectionId - the ID of the section, either as a Long or as a String
+     * @param key       - the text or normal form to look for
+     * @param useNormal - if true, match readings by their normal form where they have one
+     * @return a list of reading nodes
+     */
+    public static List<Node> readingsMatching(GraphDatabaseService db, Object sectionId, Object key, boolean useNormal) {
+        Long sid = Long.valueOf(sectionId.toString());
+        SectionTexts index = indexFor(db, sid);
+        long[] ids = (useNormal ? index.byNormal : index.byText).get(key);
+        ArrayList<Node> result = new ArrayList<>();
+        if (ids == null) return result;
+        try (Transaction tx = db.beginTx()) {
+            for (long id : ids) {
+                // Check each hit against the graph, in case the section changed without being touched.
+                try {
+                    Node n = db.getNodeById(id);
+                    if (sid.equals(n.getProperty("section_id", null)) && key.equals(keyOf(n, useNormal)))
+                        result.add(n);
+                } catch (NotFoundException e) {
+                    // It was deleted; skip it.
+                }
+            }
+            tx.success();
+        }
+        return result;
+    }
+
+    private static SectionTexts indexFor(GraphDatabaseService db, Long sectionId) {
+        Map<Long, SectionTexts> ourCache = cacheFor(db);
+        long stamp = SectionStamp.current(db, sectionId);
+        SectionTexts found;
+        synchronized (ourCache) {
+            found = ourCache.get(sectionId);
+        }
+        if (found != null && found.stamp == stamp)
+            return found;
+
+        SectionTexts built = new SectionTexts(db, sectionId, stamp);
+        // Only keep it if the section wasn't changed in the meantime.
+        if (SectionStamp.current(db, sectionId) == stamp) {
+            synchronized (ourCache) {
+                ourCache.put(sectionId, built);
+            }
+        }
+        return built;
+    }
+
+    private static Map<Long, SectionTexts> cacheFor(GraphDatabaseService db) {
+        return cache.computeIfAbsent(db, x -> new LinkedHashMap<Long, SectionTexts>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, SectionTexts> eldest) {
+                return size() > MAX_SECTIONS;
+            }
+        });
+    }
+}
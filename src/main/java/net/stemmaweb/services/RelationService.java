@@ -123,9 +123,9 @@ public class RelationService {
         Node traditionNode = VariantGraphService.getTraditionNode(tradId, db);
         for (RelationTypeModel rtm : ourRelationTypes(traditionNode))
             if (rtm.getIs_colocation() == colocations)
-                useRelationTypes.add(String.format("\"%s\"", rtm.getName()));
+                useRelationTypes.add(rtm.getName());
 
-        // Now run the unionFind algorithm on the relevant subset of relation types
+        // Now cluster the readings on the relevant subset of relation types
         return collectSpecifiedClusters(sectionId, db, useRelationTypes);
     }
 
@@ -154,37 +154,39 @@ public class RelationService {
             bindlevel = thresholdModel.get().getBindlevel();
         for (RelationTypeModel rtm : rtmlist)
             if (rtm.getBindlevel() <= bindlevel)
-                closeRelations.add(String.format("\"%s\"", rtm.getName()));
+                closeRelations.add(rtm.getName());
 
         return collectSpecifiedClusters(sectionId, db, closeRelations);
     }
 
+    // Cluster the readings of the section that are connected by relations of the given types.
     private static List<Set<Node>> collectSpecifiedClusters(
             String sectionId, GraphDatabaseService db, Set<String> relatedTypes)
             throws Exception {
-        // Now run the unionFind algorithm on the relevant subset of relation types
         List<Set<Node>> result = new ArrayList<>();
         try (Transaction tx = db.beginTx()) {
-            // Make the arguments
-            String cypherNodes = String.format("MATCH (n:READING {section_id:%s}) RETURN id(n) AS id", sectionId);
-            String cypherRels = String.format("MATCH (n:READING)-[r:RELATED]-(m) WHERE r.type IN [%s] RETURN id(n) AS source, id(m) AS target",
-                    String.join(",", relatedTypes));
-            // A struct to store the results
-            Map<Long, Set<Long>> clusters = new HashMap<>();
-            // Stream the results and collect the clusters
-            Result r = db.execute(String.format("CALL algo.unionFind.stream('%s', '%s', {graph:'cypher'}) YIELD nodeId, setId", cypherNodes, cypherRels));
-            while(r.hasNext()) {
-                Map<String, Object> row = r.next();
-                Long setId = (Long) row.get("setId");
-                Set<Long> cl = clusters.getOrDefault(setId, new HashSet<>());
-                Long nodeId = (Long) row.get("nodeId");
-                cl.add(nodeId);
-                clusters.put(setId, cl);
-            }
+            // Collect the section's readings
+            List<Node> sectionReadings = new ArrayList<>();
+            db.findNodes(Nodes.READING, "section_id", Long.valueOf(sectionId)).forEachRemaining(sectionReadings::add);
+            LongDisjointSet clusters = new LongDisjointSet(sectionReadings.size());
+            for (Node n : sectionReadings)
+                clusters.add(n.getId());
+
+            // Join up the readings along each relation of the right type. Each relation is
+            // seen from its start node, so this covers them all.
+            if (!relatedTypes.isEmpty())
+                for (Node n : sectionReadings)
+                    for (Relationship r : n.getRelationships(ERelations.RELATED, Direction.OUTGOING))
+                        if (relatedTypes.contains(r.getProperty("type", "").toString()))
+                            clusters.union(n.getId(), r.getEndNode().getId());
 
-            // Convert the map of setID -> set of nodeIDs into a list of nodesets
-            clusters.keySet().stream().filter(x -> clusters.get(x).size() > 1)
-                    .forEach(x -> result.add(clusters.get(x).stream().map(db::getNodeById).collect(Collectors.toSet())));
+            // Convert the sets of node IDs into sets of nodes
+            for (long[] cluster : clusters.nonTrivialSets()) {
+                Set<Node> nodes = new HashSet<>();
+                for (long nid : cluster)
+                    nodes.add(db.getNodeById(nid));
+                result.add(nodes);
+            }
             tx.success();
         } catch (Exception e) {
             e.printStackTrace();
@@ -0,0 +1,100 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.model.SchemaIndexModel;
+import net.stemmaweb.rest.Nodes;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.schema.ConstraintDefinition;
+import org.neo4j.graphdb.schema.IndexDefinition;
+import org.neo4j.graphdb.schema.Schema;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes sure that the indexes and constraints our lookups depend on exist in the database,
+ * and reports on their state.
+ */
+public class SchemaService {
+
+    // How long to wait at startup for the indexes to be populated
+    private static final long ONLINE_TIMEOUT_SECONDS = 300;
+
+    /**
+     * Creates any missing uniqueness constraints and indexes, and waits for them to come online.
+     * Each schema change runs in its own transaction, since Neo4j doesn't allow schema and data
+     * changes to be mixed. A uniqueness constraint that can't be created (e.g. because the
+     * existing data violates it) is replaced by a plain index.
+     *
+     * @param db - the GraphDatabaseService to set up
+     */
+    public static void ensureSchema(GraphDatabaseService db) {
+        ensureUnique(db, Nodes.TRADITION, "id");
+        ensureUnique(db, Nodes.USER, "id");
+        ensureIndex(db, Nodes.READING, "section_id");
+        ensureIndex(db, Nodes.READING, "rank");
+        ensureIndex(db, Nodes.RELATION_TYPE, "name");
+
+        try (Transaction tx = db.beginTx()) {
+            db.schema().awaitIndexesOnline(ONLINE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            tx.success();
+        } catch (IllegalStateException e) {
+            // Not all of them made it; the status can be checked later.
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Lists the indexes in the database along with their population state.
+     *
+     * @param db - the GraphDatabaseService to query
+     * @return a list of SchemaIndexModels, one per index
+     */
+    public static List<SchemaIndexModel> getIndexStatus(GraphDatabaseService db) {
+        List<SchemaIndexModel> result = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            Schema schema = db.schema();
+            for (IndexDefinition idx : schema.getIndexes())
+                result.add(new SchemaIndexModel(schema, idx));
+            tx.success();
+        }
+        return result;
+    }
+
+    private static void ensureUnique(GraphDatabaseService db, Label label, String property) {
+        try (Transaction tx = db.beginTx()) {
+            for (ConstraintDefinition cd : db.schema().getConstraints(label))
+                if (isOnlyKey(cd.getPropertyKeys(), property))
+                    return;
+            db.schema().constraintFor(label).assertPropertyIsUnique(property).create();
+            tx.success();
+        } catch (Exception e) {
+            e.printStackTrace();
+            ensureIndex(db, label, property);
+        }
+    }
+
+    private static void ensureIndex(GraphDatabaseService db, Label label, String property) {
+        try (Transaction tx = db.beginTx()) {
+            for (IndexDefinition idx : db.schema().getIndexes(label))
+                if (isOnlyKey(idx.getPropertyKeys(), property))
+                    return;
+            db.schema().indexFor(label).on(property).create();
+            tx.success();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static boolean isOnlyKey(Iterable<String> keys, String property) {
+        int count = 0;
+        boolean found = false;
+        for (String k : keys) {
+            count++;
+            if (k.equals(property)) found = true;
+        }
+        return found && count == 1;
+    }
+}
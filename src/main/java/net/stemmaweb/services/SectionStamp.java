@@ -0,0 +1,105 @@
+package net.stemmaweb.services;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a modification stamp for each section, so that anything derived from a section's
+ * variant graph (e.g. a cached alignment table) can tell whether it is still current.
+ * Any operation that changes the readings or sequences of a section should call
+ * {@link #touch(GraphDatabaseService, Object)} once its transaction has been committed.
+ * Operations that changed only reading properties can say so with {@link #touchReadings}, so
+ * that anything that depends only on the witness paths of the section can be carried over
+ * rather than rebuilt; see {@link #onlyReadingsChangedSince}.
+ *
+ * Stamps are kept in memory only, per database; a section that has not been touched since
+ * the database was opened carries the stamp of the database itself.
+ */
+public class SectionStamp {
+
+    private static final Map<GraphDatabaseService, SectionStamps> stamps =
+            Collections.synchronizedMap(new WeakHashMap<>());
+
+    private static class SectionStamps {
+        private final AtomicLong counter = new AtomicLong(System.currentTimeMillis());
+        private final long base = counter.get();
+        private final ConcurrentHashMap<Long, Long> bySection = new ConcurrentHashMap<>();
+        // The stamp of each section's last change that wasn't confined to reading properties.
+        // It is always written before the section's stamp, so that whoever sees the new stamp
+        // also sees the change that made it. Both only ever move forward, even if two touches
+        // of a section overtake each other.
+        private final ConcurrentHashMap<Long, Long> unconfined = new ConcurrentHashMap<>();
+    }
+
+    private static SectionStamps stampsFor(GraphDatabaseService db) {
+        return stamps.computeIfAbsent(db, x -> new SectionStamps());
+    }
+
+    private static Long asSectionId(Object sectionId) {
+        return sectionId instanceof Long ? (Long) sectionId : Long.valueOf(sectionId.toString());
+    }
+
+    /**
+     * Mark a section as changed, invalidating anything that was computed from its earlier state.
+     * This should also be called for sections that are deleted.
+     *
+     * @param db        - the GraphDatabaseService where the section lives
+     * @param sectionId - the ID of the section, either as a Long (e.g. a reading's section_id) or as a String
+     * @return the new stamp for the section
+     */
+    public static long touch(GraphDatabaseService db, Object sectionId) {
+        SectionStamps ours = stampsFor(db);
+        Long sid = asSectionId(sectionId);
+        long stamp = ours.counter.incrementAndGet();
+        ours.unconfined.merge(sid, stamp, Math::max);
+        ours.bySection.merge(sid, stamp, Math::max);
+        return stamp;
+    }
+
+    /**
+     * Mark a section as changed, where only the properties of some readings were changed; no
+     * sequences, witnesses or ranks, and none of the properties that the alignment of the
+     * section depends on (rank, is_lacuna, is_start, is_end, section_id).
+     *
+     * @param db        - the GraphDatabaseService where the section lives
+     * @param sectionId - the ID of the section, either as a Long or as a String
+     * @return the new stamp for the section
+     */
+    public static long touchReadings(GraphDatabaseService db, Object sectionId) {
+        SectionStamps ours = stampsFor(db);
+        long stamp = ours.counter.incrementAndGet();
+        ours.bySection.merge(asSectionId(sectionId), stamp, Math::max);
+        return stamp;
+    }
+
+    /**
+     * Return the current modification stamp of a section.
+     *
+     * @param db        - the GraphDatabaseService where the section lives
+     * @param sectionId - the ID of the section, either as a Long or as a String
+     * @return the stamp; it changes whenever the section is touched
+     */
+    public static long current(GraphDatabaseService db, Object sectionId) {
+        SectionStamps ours = stampsFor(db);
+        return ours.bySection.getOrDefault(asSectionId(sectionId), ours.base);
+    }
+
+    /**
+     * Test whether all the changes to a section since the given stamp were confined to
+     * reading properties, i.e. whether its sequences, witnesses and ranks are as they were.
+     *
+     * @param db        - the GraphDatabaseService where the section lives
+     * @param sectionId - the ID of the section, either as a Long or as a String
+     * @param since     - a stamp that the section carried earlier
+     * @return true if only reading properties may have changed since then
+     */
+    public static boolean onlyReadingsChangedSince(GraphDatabaseService db, Object sectionId, long since) {
+        SectionStamps ours = stampsFor(db);
+        return since >= ours.unconfined.getOrDefault(asSectionId(sectionId), ours.base);
+    }
+}
@@ -1,155 +1,280 @@
 package net.stemmaweb.services;
 
 import org.neo4j.graphdb.*;
-import org.neo4j.graphdb.traversal.BranchState;
-import org.neo4j.graphdb.traversal.Evaluation;
-import org.neo4j.graphdb.traversal.Evaluator;
 
 import java.util.*;
-import java.util.stream.Collectors;
-import java.util.stream.StreamSupport;
 
+/**
+ * Walks the sequences of a section away from a base text, collecting the paths that diverge from
+ * it and rejoin it, along with the witnesses that follow each path. The walk runs over sequence
+ * links rather than relationships, so that it can follow the normalized sequences of a
+ * {@link NormalizationOverlay} as well as the graph itself.
+ *
+ * The walk is depth-first, and each path is identified by its place on the walk's stack: the
+ * witnesses that follow a path are kept in the stack frame for its last link, and are worked
+ * out from the witnesses of its parent when the parent is expanded. Witness sigla and layer
+ * names are numbered as they are first seen, so that the witnesses of a path are a bitset of
+ * sigla per layer, and no keys or strings need to be built as the walk goes on.
+ */
 public class VariantCrawler {
-    private final Set<String> lemmaLinks;
+    private static final String BASE = "witnesses";
+
+    private final Set<Long> lemmaLinks;
     private final Set<Long> lemmaNodes;
-    private final RelationshipType followType;
+    private final NormalizationOverlay overlay;
+    private final WitnessSets.Dictionary dictionary;
     private final Set<String> excludeWitnesses;
-    // Hash by path string rather than path itself, in case the objects aren't equal
-    private final Map<String, Map<String,Set<String>>> pathWitnesses;
 
-    public VariantCrawler(List<Relationship> lp, RelationshipType rt, List<String> excludeWitnesses) {
-        this.lemmaLinks = lp.stream().map(Relationship::toString).collect(Collectors.toSet());
-        this.lemmaNodes = lp.stream().map(x -> x.getEndNode().getId()).collect(Collectors.toSet());
+    // The numbering of sigla and of witness classes; the base witness class is always 0
+    private final HashMap<String, Integer> siglumIds = new HashMap<>();
+    private final ArrayList<String> sigla = new ArrayList<>();
+    private final HashMap<String, Integer> layerIds = new HashMap<>();
+    private final ArrayList<String> layers = new ArrayList<>();
+    // The links leaving each node, and the witnesses of each link, as they are first needed
+    private final HashMap<Long, List<NormalizationOverlay.Link>> outgoing = new HashMap<>();
+    private final HashMap<Long, BitSet[]> linkWitnesses = new HashMap<>();
+
+    /**
+     * A path that leaves the base text and rejoins it.
+     */
+    public static class Variant {
+        private final List<Node> nodes;
+        private final Map<String, Set<String>> witnesses;
+
+        Variant(List<Node> nodes, Map<String, Set<String>> witnesses) {
+            this.nodes = nodes;
+            this.witnesses = witnesses;
+        }
+
+        // The readings along the path, including the base readings on either end
+        public List<Node> getNodes() {
+            return nodes;
+        }
+
+        // The witnesses that follow the path, keyed by witness class
+        public Map<String, Set<String>> getWitnesses() {
+            return witnesses;
+        }
+    }
+
+    // A step of the walk: the link by which it was reached, the witnesses that follow the path
+    // as far as here, and the steps that can come next.
+    private static class Step {
+        private final NormalizationOverlay.Link link;
+        private final BitSet[] witnesses;
+        private List<Step> next;
+        private int tried = 0;
+
+        Step(NormalizationOverlay.Link link, BitSet[] witnesses) {
+            this.link = link;
+            this.witnesses = witnesses;
+        }
+    }
+
+    public VariantCrawler(List<NormalizationOverlay.Link> lp, NormalizationOverlay overlay,
+                          WitnessSets.Dictionary dictionary, List<String> excludeWitnesses) {
+        this.lemmaLinks = new HashSet<>();
+        this.lemmaNodes = new HashSet<>();
+        for (NormalizationOverlay.Link l : lp) {
+            lemmaLinks.add(l.getId());
+            lemmaNodes.add(l.getEndNode().getId());
+        }
         this.excludeWitnesses = new HashSet<>(excludeWitnesses);
-        this.followType = rt;
-        this.pathWitnesses = new HashMap<>();
+        this.overlay = overlay;
+        this.dictionary = dictionary;
+        layerIds.put(BASE, 0);
+        layers.add(BASE);
     }
 
-    public Evaluator variantListEvaluator() {
-        return path -> {
-            // We don't want to return zero-length paths
-            if (path.length() == 0)
-                return Evaluation.EXCLUDE_AND_CONTINUE;
-            // Are we on the lemma path? If so, truncate before.
-            if (this.lemmaLinks.contains(path.lastRelationship().toString()))
-                return Evaluation.EXCLUDE_AND_PRUNE;
+    /**
+     * Return the variant paths that start at the given node, in depth-first order.
+     * NOTE: For use within a transaction
+     *
+     * @param start - a node on the base text
+     * @return the variant paths
+     */
+    public List<Variant> variantsFrom(Node start) {
+        List<Variant> result = new ArrayList<>();
+        ArrayDeque<Step> stack = new ArrayDeque<>();
+        ArrayList<Node> nodes = new ArrayList<>();
+        HashSet<Long> onPath = new HashSet<>();
+
+        Step root = new Step(null, null);
+        root.next = startingSteps(start);
+        stack.push(root);
+        nodes.add(start);
+        while (!stack.isEmpty()) {
+            Step current = stack.peek();
+            if (current.tried == current.next.size()) {
+                // We are done here; back up a step.
+                stack.pop();
+                nodes.remove(nodes.size() - 1);
+                if (current.link != null) onPath.remove(current.link.getId());
+                continue;
+            }
+            Step step = current.next.get(current.tried++);
+            NormalizationOverlay.Link r = step.link;
+            // Are we on the lemma path, or have we been along this link already? If so, truncate before.
+            if (lemmaLinks.contains(r.getId()) || onPath.contains(r.getId()))
+                continue;
+            nodes.add(r.getEndNode());
             // Have we hit a lemma node again? If so, truncate after.
-            if (this.lemmaNodes.contains(path.endNode().getId()))
-                return Evaluation.INCLUDE_AND_PRUNE;
+            if (lemmaNodes.contains(r.getEndNode().getId())) {
+                result.add(new Variant(new ArrayList<>(nodes), asSigla(step.witnesses)));
+                nodes.remove(nodes.size() - 1);
+                continue;
+            }
             // Otherwise keep going, but don't return the path yet.
-            return Evaluation.EXCLUDE_AND_CONTINUE;
-        };
+            step.next = continuingSteps(step.witnesses, r.getEndNode());
+            onPath.add(r.getId());
+            stack.push(step);
+        }
+        return result;
     }
 
-    private static String pathKey(Iterable<Relationship> pathRels, Relationship extraRel) {
-        String result = StreamSupport.stream(pathRels.spliterator(), false).map(Relationship::toString)
-                .collect(Collectors.joining(":"));
-        if (extraRel != null)
-            result = String.format("%s:%s", result, extraRel);
+    // From the start node, every link is followed by the witnesses that it carries.
+    private List<Step> startingSteps(Node start) {
+        List<Step> result = new ArrayList<>();
+        for (NormalizationOverlay.Link r : outgoingLinks(start)) {
+            BitSet[] linkWits = witnessesOf(r);
+            BitSet[] pathWits = new BitSet[linkWits.length];
+            for (int layer = 0; layer < linkWits.length; layer++) {
+                if (linkWits[layer] == null) continue;
+                BitSet followWits = (BitSet) linkWits[layer].clone();
+                for (String excluded : excludeWitnesses) {
+                    Integer id = siglumIds.get(excluded);
+                    if (id != null) followWits.clear(id);
+                }
+                if (!followWits.isEmpty())
+                    pathWits[layer] = followWits;
+            }
+            result.add(new Step(r, pathWits));
+        }
         return result;
     }
 
-    public PathExpander variantListExpander () {
-        return new PathExpander() {
-            @Override
-            public Iterable<Relationship> expand(Path path, BranchState branchState) {
-                // If the path is zero-length, try all continuing paths and record their witnesses
-                if (path.length() == 0) {
-                    Iterable<Relationship> result = path.endNode().getRelationships(Direction.OUTGOING, followType);
-                    for (Relationship r: result) {
-                        Map<String,Set<String>> pathWits = new HashMap<>();
-                        for (String layer : r.getPropertyKeys()) {
-                            List<String> followWits = Arrays.stream((String[]) r.getProperty(layer)).filter(
-                                    x -> !excludeWitnesses.contains(x)).collect(Collectors.toList());
-                            if (!followWits.isEmpty())
-                                pathWits.put(layer, new HashSet<>(followWits));
-                        }
-                        pathWitnesses.put(r.toString(), pathWits);
-                    }
-                    return result;
-                }
+    // Beyond the start node, each witness of the path so far continues along one of the links.
+    private List<Step> continuingSteps(BitSet[] witsSoFar, Node endNode) {
+        List<Step> result = new ArrayList<>();
+        if (isEmpty(witsSoFar))
+            // We have no "through" witnesses for this path, so don't go any farther.
+            return result;
 
-                // If not, we have some work to do
-                String key = pathKey(path.relationships(), null);
-                Map<String,Set<String>> witsSoFar = pathWitnesses.getOrDefault(key, null);
-                if (witsSoFar == null || witsSoFar.isEmpty())
-                    // We have no "through" witnesses for this path, so don't go any farther.
-                    return new ArrayList<>();
-
-                // Now for each witness sigil in witsSoFar, find the relationship that continues it.
-                Map<String, Relationship> continuations = new HashMap<>();
-                Set<String> baseWits = witsSoFar.getOrDefault("witnesses", new HashSet<>());
-                for (Relationship r : path.endNode().getRelationships(Direction.OUTGOING, followType)) {
-                    // Do the base layer first.
-                    Set<String> relBaseWits = new HashSet<>(Arrays.asList(
-                            (String[]) r.getProperty("witnesses", new String[0])));
-                    for (String sig : baseWits.stream().filter(relBaseWits::contains).collect(Collectors.toList())) {
-                        continuations.put(sig, r);
-                    }
-                    // Now check whether this relationship continues any non-base witness paths.
-                    for (String layer : witsSoFar.keySet()) {
-                        if (layer.equals("witnesses")) continue;
-                        if (r.hasProperty(layer)) {
-                            // Get any layer witnesses that are directly continued
-                            Set<String> relLayerWits = new HashSet<>(Arrays.asList((String[]) r.getProperty(layer)));
-                            for (String sig : witsSoFar.get(layer).stream().filter(relLayerWits::contains)
-                                    .collect(Collectors.toList())) {
-                                continuations.put(String.format("%s|%s", sig, layer), r);
-                            }
-                        }
-                        // Get any layer witnesses that have reverted to the base witness, assuming a direct layer
-                        // continuation has not been found
-                        for (String sig : witsSoFar.get(layer).stream().filter(relBaseWits::contains)
-                                .collect(Collectors.toList())) {
-                            String contKey = String.format("%s|%s", sig, layer);
-                            if (!continuations.containsKey(contKey)) continuations.put(contKey, r);
-                        }
-                    }
-
-                    // Now get any witnesses that have diverged into some layer from a base witness
-                    for (String layer : r.getPropertyKeys()) {
-                        if (layer.equals("witnesses")) continue;
-                        Set<String> relLayerWits = new HashSet<>(Arrays.asList((String[]) r.getProperty(layer)));
-                        for (String sig : relLayerWits.stream().filter(baseWits::contains).collect(Collectors.toList())) {
-                            String contKey = String.format("%s|%s", sig, layer);
-                            if (!continuations.containsKey(contKey)) continuations.put(contKey, r);
-                        }
-                    }
-                }
-                // We now have all our path continuations; note them in the state variable and return the
-                // relevant relationships.
-                for (String contKey : continuations.keySet()) {
-                    String[] parts = contKey.split("\\|"); // witness, layer
-                    String sigil = parts[0];
-                    String layer = parts.length == 1 ? "witnesses" : parts[1];
-                    String pKey = pathKey(path.relationships(), continuations.get(contKey));
-                    Map<String,Set<String>> m;
-                    if (pathWitnesses.containsKey(pKey)) {
-                        m = pathWitnesses.get(pKey);
-                    } else {
-                        m = new HashMap<>();
-                        pathWitnesses.put(pKey, m);
-                    }
-                    if (m.containsKey(layer)) {
-                        m.get(layer).add(sigil);
-                    } else {
-                        Set<String> w = new HashSet<>();
-                        w.add(sigil);
-                        m.put(layer, w);
-                    }
-                }
-                return continuations.values();
+        List<NormalizationOverlay.Link> candidates = outgoingLinks(endNode);
+        BitSet[][] candidateWits = new BitSet[candidates.size()][];
+        for (int i = 0; i < candidates.size(); i++)
+            candidateWits[i] = witnessesOf(candidates.get(i));
+        int numLayers = layers.size();
+        BitSet baseWits = layerOf(witsSoFar, 0);
+        // For each witness class and siglum, the position of the link that continues it. A base
+        // witness follows the last link that carries it. A layer witness follows the last link
+        // that carries it in that layer, or failing that, the first link by which it reverts to
+        // the base text, or by which it diverges from the base text into the layer.
+        int[][] owner = new int[numLayers][];
+        BitSet[] assigned = new BitSet[numLayers];
+        for (int i = 0; i < candidates.size(); i++) {
+            BitSet[] relWits = candidateWits[i];
+            BitSet relBaseWits = layerOf(relWits, 0);
+            // Do the base layer first.
+            assign(owner, assigned, 0, baseWits, relBaseWits, i, true);
+            // Now check whether this link continues any non-base witness paths, either directly
+            // or by reverting to the base witness.
+            for (int layer = 1; layer < witsSoFar.length; layer++) {
+                if (witsSoFar[layer] == null) continue;
+                assign(owner, assigned, layer, witsSoFar[layer], layerOf(relWits, layer), i, true);
+                assign(owner, assigned, layer, witsSoFar[layer], relBaseWits, i, false);
             }
+            // Now get any witnesses that have diverged into some layer from a base witness
+            for (int layer = 1; layer < relWits.length; layer++)
+                assign(owner, assigned, layer, layerOf(relWits, layer), baseWits, i, false);
+        }
 
-            @Override
-            public PathExpander reverse() {
-                return null;
+        // We now have all our path continuations; gather the witnesses for each link.
+        Step[] steps = new Step[candidates.size()];
+        for (int layer = 0; layer < numLayers; layer++) {
+            if (assigned[layer] == null) continue;
+            for (int sig = assigned[layer].nextSetBit(0); sig >= 0; sig = assigned[layer].nextSetBit(sig + 1)) {
+                int i = owner[layer][sig];
+                if (steps[i] == null) steps[i] = new Step(candidates.get(i), new BitSet[numLayers]);
+                if (steps[i].witnesses[layer] == null) steps[i].witnesses[layer] = new BitSet();
+                steps[i].witnesses[layer].set(sig);
             }
-        };
+        }
+        for (Step s : steps)
+            if (s != null) result.add(s);
+        return result;
+    }
+
+    // Record the given link position as the continuation of the witnesses that are in both of
+    // the given sets, either in any case or only where no continuation has been found yet.
+    private void assign(int[][] owner, BitSet[] assigned, int layer, BitSet wits, BitSet relWits,
+                        int position, boolean replace) {
+        if (!wits.intersects(relWits)) return;
+        if (owner[layer] == null) {
+            owner[layer] = new int[sigla.size()];
+            assigned[layer] = new BitSet();
+        }
+        for (int sig = wits.nextSetBit(0); sig >= 0; sig = wits.nextSetBit(sig + 1)) {
+            if (relWits.get(sig) && (replace || !assigned[layer].get(sig))) {
+                owner[layer][sig] = position;
+                assigned[layer].set(sig);
+            }
+        }
+    }
+
+    private List<NormalizationOverlay.Link> outgoingLinks(Node n) {
+        return outgoing.computeIfAbsent(n.getId(), x -> NormalizationOverlay.outgoingLinks(n, overlay, dictionary));
+    }
+
+    // The witnesses of a link as an array of sigla bitsets, indexed by witness class
+    private BitSet[] witnessesOf(NormalizationOverlay.Link r) {
+        BitSet[] found = linkWitnesses.get(r.getId());
+        if (found != null) return found;
+        HashMap<Integer, BitSet> byLayer = new HashMap<>();
+        int maxLayer = 0;
+        for (String layer : r.getPropertyKeys()) {
+            int layerId = layerIds.computeIfAbsent(layer, x -> {
+                layers.add(x);
+                return layers.size() - 1;
+            });
+            BitSet wits = new BitSet();
+            for (String sigil : r.getProperty(layer, new String[0])) {
+                wits.set(siglumIds.computeIfAbsent(sigil, x -> {
+                    sigla.add(x);
+                    return sigla.size() - 1;
+                }));
+            }
+            byLayer.put(layerId, wits);
+            maxLayer = Math.max(maxLayer, layerId);
+        }
+        found = new BitSet[maxLayer + 1];
+        for (Map.Entry<Integer, BitSet> e : byLayer.entrySet())
+            found[e.getKey()] = e.getValue();
+        linkWitnesses.put(r.getId(), found);
+        return found;
+    }
+
+    private Map<String, Set<String>> asSigla(BitSet[] witnesses) {
+        Map<String, Set<String>> result = new HashMap<>();
+        for (int layer = 0; layer < witnesses.length; layer++) {
+            if (witnesses[layer] == null || witnesses[layer].isEmpty()) continue;
+            Set<String> wits = new HashSet<>();
+            for (int sig = witnesses[layer].nextSetBit(0); sig >= 0; sig = witnesses[layer].nextSetBit(sig + 1))
+                wits.add(sigla.get(sig));
+            result.put(layers.get(layer), wits);
+        }
+        return result;
+    }
+
+    private static final BitSet NONE = new BitSet();
+
+    private static BitSet layerOf(BitSet[] witnesses, int layer) {
+        return layer < witnesses.length && witnesses[layer] != null ? witnesses[layer] : NONE;
     }
 
-    public Map<String, Set<String>> getWitnessesForPath (Path p) {
-        String pKey = pathKey(p.relationships(), null);
-        return pathWitnesses.get(pKey);
+    private static boolean isEmpty(BitSet[] witnesses) {
+        for (BitSet b : witnesses)
+            if (b != null && !b.isEmpty()) return false;
+        return true;
     }
 }
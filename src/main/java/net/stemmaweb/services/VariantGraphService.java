@@ -10,7 +10,6 @@ import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.traversal.*;
 
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 public class VariantGraphService {
@@ -163,7 +162,9 @@ public class VariantGraphService {
     }
 
     /**
-     * Calculate the common readings within a section, either in normalized view or not
+     * Calculate the common readings within a section, either in normalized view or not.
+     * This works from the alignment of the whole section; edits that affect only some ranks
+     * keep the flags up to date with {@link CommonReadings}, and this serves to repair them.
      *
      * @param sectionNode - The section for which to perform the calculation
      */
@@ -171,27 +172,39 @@ public class VariantGraphService {
         GraphDatabaseService db = sectionNode.getGraphDatabase();
         // Get an AlignmentModel for the given section, and go rank by rank to find
         // the common nodes.
-        AlignmentModel am = new AlignmentModel(sectionNode);
+        AlignmentModel am = AlignmentCache.getAlignment(sectionNode, false);
         Node startNode = VariantGraphService.getStartNode(String.valueOf(sectionNode.getId()), db);
+        boolean changed = false;
+        String propName;
         try (Transaction tx = db.beginTx()) {
             // See which kind of flag we are setting
-            String propName = startNode.hasRelationship(ERelations.NSEQUENCE, Direction.OUTGOING) ? "ncommon" : "is_common";
+            propName = startNode.hasRelationship(ERelations.NSEQUENCE, Direction.OUTGOING) ? "ncommon" : "is_common";
             // Go through the table rank by rank - if a given rank has only a single reading
             // apart from lacunae, and no gaps, it is common
-            for (AtomicInteger i = new AtomicInteger(0); i.get() < am.getLength(); i.getAndIncrement()) {
-                List<ReadingModel> readingsAtRank = am.getAlignment().stream()
-                        .map(x -> x.getTokens().get(i.get())).collect(Collectors.toList());
+            for (int i = 0; i < am.getLength(); i++) {
                 HashSet<Long> distinct = new HashSet<>();
-                for (ReadingModel rm : readingsAtRank) {
+                for (WitnessTokensModel wtm : am.getAlignment()) {
+                    ReadingModel rm = wtm.getTokens().get(i);
                     if (rm == null) distinct.add(0L);
                     else if (!rm.getIs_lacuna()) distinct.add(Long.valueOf(rm.getId()));
                 }
                 // Set the commonality property. It is true if the size of the 'distinct' set is 1.
-                distinct.stream().filter(x -> x > 0)
-                        .forEach(x -> db.getNodeById(x).setProperty(propName, distinct.size() == 1));
+                Boolean isCommon = distinct.size() == 1;
+                for (Long x : distinct) {
+                    if (x == 0) continue;
+                    Node n = db.getNodeById(x);
+                    if (!isCommon.equals(n.getProperty(propName, null))) {
+                        n.setProperty(propName, isCommon);
+                        changed = true;
+                    }
+                }
             }
             tx.success();
         }
+        // The reading flags are part of the cached alignment, so if we changed any of them
+        // we have to invalidate it.
+        if (changed && propName.equals("is_common"))
+            SectionStamp.touchReadings(db, sectionNode.getId());
     }
 
 
@@ -258,12 +271,13 @@ public class VariantGraphService {
             }
 
             // Now that we have done this, make the shadow sequence
+            WitnessSets.Dictionary dictionary = WitnessSets.dictionaryOfSection(sectionNode);
             for (Relationship r : db.traversalDescription().breadthFirst()
                     .relationships(ERelations.SEQUENCE,Direction.OUTGOING)
                     .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL).traverse(sectionStart).relationships()) {
                 Node repstart = representatives.getOrDefault(r.getStartNode(), r.getStartNode());
                 Node repend = representatives.getOrDefault(r.getEndNode(), r.getEndNode());
-                ReadingService.transferWitnesses(repstart, repend, r, ERelations.NSEQUENCE);
+                ReadingService.transferWitnesses(repstart, repend, r, ERelations.NSEQUENCE, dictionary);
             }
             // and calculate the common readings.
             calculateCommon(sectionNode);
@@ -311,38 +325,21 @@ public class VariantGraphService {
      * @return an ordered List of READING nodes that make up the majority text
      */
     public static List<Node> calculateMajorityText(Node sectionNode) {
-        // Get the IDs of our majority readings by going through the alignment table rank by rank
-        AlignmentModel am = new AlignmentModel(sectionNode);
-        ArrayList<Long> majorityReadings = new ArrayList<>();
-        for (int rank = 1; rank <= am.getLength(); rank++) {
-            int numNulls = 0;
-            ArrayList<ReadingModel> rankReadings = new ArrayList<>();
-            for (WitnessTokensModel wtm : am.getAlignment()) {
-                ReadingModel rdgAtRank = wtm.getTokens().get(rank - 1);
-                if (rdgAtRank == null)
-                    numNulls++;
-                else
-                    rankReadings.add(rdgAtRank);
-            }
-            // Now find the winner
-            Optional<ReadingModel> winner = rankReadings.stream().max(Comparator.comparingInt(x -> x.getWitnesses().size()));
-            if (winner.isPresent() && winner.get().getWitnesses().size() >= numNulls) {
-                majorityReadings.add(Long.valueOf(winner.get().getId()));
-            }
-        }
+        return calculateMajorityText(sectionNode, null);
+    }
 
-        // Now make the relations between them
-        GraphDatabaseService db = sectionNode.getGraphDatabase();
-        ArrayList<Node> result = new ArrayList<>();
-        try (Transaction tx = db.beginTx()) {
-            // Go through the alignment model rank by rank, finding the majority reading for each rank
-            String sectionId = String.valueOf(sectionNode.getId());
-            result.add(getStartNode(sectionId, db));
-            majorityReadings.forEach(x -> result.add(db.getNodeById(x)));
-            result.add(getEndNode(sectionId, db));
-            tx.success();
-        }
-        return result;
+    /**
+     * Return a list of nodes which constitutes the majority text for a section, optionally
+     * in a normalized view of the section.
+     *
+     * @param  sectionNode - The section to calculate
+     * @param  overlay     - The normalized view of the section, or null
+     * @return an ordered List of READING nodes that make up the majority text
+     */
+    public static List<Node> calculateMajorityText(Node sectionNode, NormalizationOverlay overlay) {
+        if (overlay == null)
+            return MajorityText.getMajorityText(sectionNode);
+        return MajorityText.fromAlignment(sectionNode, overlay.getAlignment(false));
     }
 
     /*
@@ -8,8 +8,7 @@ import org.neo4j.graphdb.RelationshipType;
 import org.neo4j.graphdb.traversal.Evaluation;
 import org.neo4j.graphdb.traversal.Evaluator;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
 
 /**
  * Generalized path evaluator for traversing a witness.
@@ -19,6 +18,8 @@ public class WitnessPath {
     private final String sigil;
     private final List<String> alternative;
     private final RelationshipType seqType;
+    // The witness dictionary of the tradition, looked up from the first link we see
+    private WitnessSets.Dictionary dictionary;
 
     public WitnessPath (String sigil, List<String> alternative, RelationshipType seqType) {
         this.sigil = sigil;
@@ -54,7 +55,7 @@ public class WitnessPath {
             for (String layer : alternative) {
                 Node priorNode = path.lastRelationship().getStartNode();
                 for (Relationship r : priorNode.getRelationships(Direction.OUTGOING, seqType))
-                    if (r.hasProperty(layer) && witnessIn(r.getProperty(layer)))
+                    if (witnessIn(r, layer))
                         if (correct != null) // There is more than one relevant path; cut the tree off.
                             return Evaluation.EXCLUDE_AND_PRUNE;
                         else
@@ -66,21 +67,53 @@ public class WitnessPath {
                         ? Evaluation.INCLUDE_AND_CONTINUE : Evaluation.EXCLUDE_AND_PRUNE;
 
             // Follow the main path in the absence of an alternative
-            if (path.lastRelationship().hasProperty("witnesses")
-                    && witnessIn(path.lastRelationship().getProperty("witnesses")))
+            if (witnessIn(path.lastRelationship(), "witnesses"))
                 return Evaluation.INCLUDE_AND_CONTINUE;
 
             return Evaluation.EXCLUDE_AND_PRUNE;
         };
     }
 
-    private Boolean witnessIn (Object property) {
-        String[] arr = (String []) property;
-        for (String str : arr) {
-            if (str.equals(sigil)) {
-                return true;
+    /**
+     * Collect every sequence link that carries this witness in any of its layers, by walking
+     * out from the given node along those links only. Every link of the witness in the section
+     * is found this way, since a layer always branches off from some reading of the witness.
+     * NOTE: For use within a transaction
+     *
+     * @param startNode - the start node of a section
+     * @return the links, in the order they were reached
+     */
+    public List<Relationship> collectLinks (Node startNode) {
+        List<Relationship> result = new ArrayList<>();
+        Set<Long> seen = new HashSet<>();
+        ArrayDeque<Node> toVisit = new ArrayDeque<>();
+        toVisit.push(startNode);
+        seen.add(startNode.getId());
+        while (!toVisit.isEmpty()) {
+            Node n = toVisit.pop();
+            for (Relationship r : n.getRelationships(Direction.OUTGOING, seqType)) {
+                boolean ours = false;
+                for (String[] wits : dictionaryFor(r).read(r).values())
+                    if (WitnessSets.contains(wits, sigil)) {
+                        ours = true;
+                        break;
+                    }
+                if (!ours) continue;
+                result.add(r);
+                if (seen.add(r.getEndNode().getId()))
+                    toVisit.push(r.getEndNode());
             }
         }
-        return false;
+        return result;
+    }
+
+    private Boolean witnessIn (Relationship link, String witClass) {
+        return !WitnessSets.isEmpty(link) && dictionaryFor(link).has(link, sigil, witClass);
+    }
+
+    private WitnessSets.Dictionary dictionaryFor (Relationship link) {
+        if (dictionary == null)
+            dictionary = WitnessSets.dictionaryOf(link);
+        return dictionary;
     }
 }
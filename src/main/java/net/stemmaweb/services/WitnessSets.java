@@ -0,0 +1,525 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.rest.Nodes;
+import org.neo4j.graphdb.*;
+
+import java.util.*;
+
+/**
+ * Reads and writes the witnesses of SEQUENCE and NSEQUENCE relationships. To the rest of the
+ * code, the witnesses of a link are a set of sigla per witness class, where the class is either
+ * "witnesses" for the base witnesses or the name of a layer (e.g. "a.c.").
+ *
+ * In the database, each tradition keeps a dictionary of the (class, sigil) pairs that occur in
+ * it, on its tradition node; entries are only ever appended to it. Each link stores the pairs
+ * that it carries as a bitset over that dictionary, in a single long[] property, so the sigla of
+ * a link are read back in the order in which they were first added to the tradition. Dictionaries
+ * are cached under a version that is renewed with every append, so a cached dictionary is only
+ * ever used for the state of the tradition node that it was read from.
+ *
+ * Looking up a dictionary takes a few steps through the graph, so code that reads many links
+ * should look it up once and keep it for the duration of the operation.
+ *
+ * Databases that still have the witnesses of their links stored as String[] properties, one per
+ * class, are converted once at startup by {@link #migrate(GraphDatabaseService)}.
+ */
+public class WitnessSets {
+
+    public static final String BASE = "witnesses";
+
+    private static final String BITS = "witness_bits";
+    private static final String DICT_VERSION = "witness_dict";
+    private static final String DICT_CLASSES = "witness_classes";
+    private static final String DICT_SIGLA = "witness_sigla";
+    // Set on a tradition node while its links are being converted
+    private static final String CONVERTING = "witness_conversion";
+    // The number of dictionary versions to keep in memory
+    private static final int MAX_CACHED = 256;
+
+    private static final Map<Long, Entries> cache = Collections.synchronizedMap(
+            new LinkedHashMap<Long, Entries>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Entries> eldest) {
+                    return size() > MAX_CACHED;
+                }
+            });
+    private static final Random versions = new Random();
+    private static final Entries NO_ENTRIES = new Entries(new String[0], new String[0]);
+    private static final long[] NO_BITS = new long[0];
+
+    // One version of a dictionary; entry i is the pair (classes[i], sigla[i]).
+    private static class Entries {
+        private final String[] classes;
+        private final String[] sigla;
+        private final HashMap<String, HashMap<String, Integer>> index = new HashMap<>();
+
+        Entries(String[] classes, String[] sigla) {
+            this.classes = classes;
+            this.sigla = sigla;
+            for (int i = 0; i < sigla.length; i++)
+                index.computeIfAbsent(classes[i], k -> new HashMap<>()).put(sigla[i], i);
+        }
+
+        int indexOf(String witClass, String sigil) {
+            HashMap<String, Integer> ofClass = index.get(witClass);
+            Integer found = ofClass == null ? null : ofClass.get(sigil);
+            return found == null ? -1 : found;
+        }
+
+        int size() {
+            return sigla.length;
+        }
+    }
+
+    /**
+     * The witness dictionary of one tradition, through which the witnesses of the tradition's
+     * links are read and written. A dictionary is meant to be used within the transaction it
+     * was looked up in; it picks up any entries that other transactions have added meanwhile.
+     * All of its methods are for use within a transaction.
+     */
+    public static class Dictionary {
+        private final Node tradition;
+        private Entries entries;
+
+        private Dictionary(Node tradition) {
+            this.tradition = tradition;
+            this.entries = load(tradition);
+        }
+
+        /**
+         * Return the witnesses of a link.
+         *
+         * @param link - the SEQUENCE or NSEQUENCE relationship
+         * @return a map of witness class to sigla, with the base witnesses first and the sigla
+         *         of each class in dictionary order; classes without witnesses are left out
+         */
+        public Map<String, String[]> read(Relationship link) {
+            LinkedHashMap<String, List<String>> byClass = new LinkedHashMap<>();
+            long[] bits = bitsOf(link);
+            if (bits.length == 0)
+                return new LinkedHashMap<>();
+            checkKnown(link, bits);
+            byClass.put(BASE, new ArrayList<>());
+            for (int i = nextBit(bits, 0); i >= 0; i = nextBit(bits, i + 1))
+                byClass.computeIfAbsent(entries.classes[i], k -> new ArrayList<>()).add(entries.sigla[i]);
+            LinkedHashMap<String, String[]> result = new LinkedHashMap<>();
+            byClass.forEach((k, v) -> {
+                if (!v.isEmpty())
+                    result.put(k, v.toArray(new String[0]));
+            });
+            return result;
+        }
+
+        /**
+         * Return the witnesses of one class on a link.
+         *
+         * @param link     - the SEQUENCE or NSEQUENCE relationship
+         * @param witClass - the witness class
+         * @return the sigla, in order; empty if the link has no witnesses of that class
+         */
+        public String[] get(Relationship link, String witClass) {
+            return read(link).getOrDefault(witClass, new String[0]);
+        }
+
+        /**
+         * Return the witness classes that a link has any witnesses of.
+         *
+         * @param link - the SEQUENCE or NSEQUENCE relationship
+         * @return the classes, with the base witnesses first
+         */
+        public Set<String> classes(Relationship link) {
+            return read(link).keySet();
+        }
+
+        /**
+         * Test whether a link has a witness of the given class.
+         *
+         * @param link     - the SEQUENCE or NSEQUENCE relationship
+         * @param sigil    - the witness sigil
+         * @param witClass - the witness class
+         * @return true if the link carries that witness in that class
+         */
+        public boolean has(Relationship link, String sigil, String witClass) {
+            long[] bits = bitsOf(link);
+            if (bits.length == 0)
+                return false;
+            int i = entries.indexOf(witClass, sigil);
+            if (i < 0 && lastBit(bits) >= entries.size()) {
+                // Someone else may have added the entry since we looked.
+                refresh();
+                i = entries.indexOf(witClass, sigil);
+            }
+            return i >= 0 && isSet(bits, i);
+        }
+
+        /**
+         * Test whether the dictionary has any entries outside the base witnesses, i.e. whether
+         * any link of the tradition may carry a layer. Entries are never removed, so a tradition
+         * whose layer links have all been deleted still answers true.
+         *
+         * @return true if the dictionary has any layer entries
+         */
+        public boolean hasLayers() {
+            refresh();
+            return entries.index.keySet().stream().anyMatch(x -> !x.equals(BASE));
+        }
+
+        /**
+         * Replace all the witnesses of a link.
+         *
+         * @param link      - the SEQUENCE or NSEQUENCE relationship
+         * @param witnesses - a map of witness class to sigla
+         */
+        public void write(Relationship link, Map<String, String[]> witnesses) {
+            long[] bits = NO_BITS;
+            for (Map.Entry<String, String[]> wc : witnesses.entrySet())
+                for (String sigil : wc.getValue())
+                    bits = withBit(bits, entry(wc.getKey(), sigil));
+            store(link, bits);
+        }
+
+        /**
+         * Replace the witnesses of one class on a link, leaving the other classes alone.
+         *
+         * @param link     - the SEQUENCE or NSEQUENCE relationship
+         * @param witClass - the witness class
+         * @param sigla    - the sigla that the class should have; none removes the class
+         */
+        public void set(Relationship link, String witClass, Collection<String> sigla) {
+            Map<String, String[]> witnesses = read(link);
+            witnesses.remove(witClass);
+            if (!sigla.isEmpty())
+                witnesses.put(witClass, sigla.toArray(new String[0]));
+            write(link, witnesses);
+        }
+
+        /**
+         * Add a witness of the given class to a link.
+         *
+         * @param link     - the SEQUENCE or NSEQUENCE relationship
+         * @param sigil    - the witness sigil
+         * @param witClass - the witness class
+         * @return true if the link didn't already carry the witness
+         */
+        public boolean add(Relationship link, String sigil, String witClass) {
+            long[] bits = bitsOf(link);
+            int i = entry(witClass, sigil);
+            if (isSet(bits, i))
+                return false;
+            store(link, withBit(bits, i));
+            return true;
+        }
+
+        /**
+         * Remove a witness of the given class from a link. A link that has no witnesses left
+         * is not deleted; see {@link WitnessSets#isEmpty(Relationship)}.
+         *
+         * @param link     - the SEQUENCE or NSEQUENCE relationship
+         * @param sigil    - the witness sigil
+         * @param witClass - the witness class
+         * @return true if the link carried the witness
+         */
+        public boolean remove(Relationship link, String sigil, String witClass) {
+            if (!has(link, sigil, witClass))
+                return false;
+            long[] bits = bitsOf(link).clone();
+            int i = entries.indexOf(witClass, sigil);
+            bits[i >>> 6] &= ~(1L << (i & 63));
+            store(link, bits);
+            return true;
+        }
+
+        // Return the index of the given pair, adding it to the dictionary if it isn't there yet.
+        private int entry(String witClass, String sigil) {
+            int i = entries.indexOf(witClass, sigil);
+            if (i >= 0)
+                return i;
+            try (Transaction tx = tradition.getGraphDatabase().beginTx()) {
+                // Nobody else can add to the dictionary while we hold the lock, so whatever we
+                // read now is the latest version.
+                tx.acquireWriteLock(tradition);
+                entries = load(tradition);
+                i = entries.indexOf(witClass, sigil);
+                if (i < 0) {
+                    i = entries.size();
+                    String[] classes = Arrays.copyOf(entries.classes, i + 1);
+                    String[] sigla = Arrays.copyOf(entries.sigla, i + 1);
+                    classes[i] = witClass;
+                    sigla[i] = sigil;
+                    entries = save(tradition, classes, sigla);
+                }
+                tx.success();
+            }
+            return i;
+        }
+
+        private void checkKnown(Relationship link, long[] bits) {
+            if (lastBit(bits) < entries.size())
+                return;
+            refresh();
+            if (lastBit(bits) >= entries.size())
+                throw new IllegalStateException(String.format(
+                        "Link %d refers to witness entry %d, which tradition node %d doesn't have",
+                        link.getId(), lastBit(bits), tradition.getId()));
+        }
+
+        private void refresh() {
+            entries = load(tradition);
+        }
+    }
+
+    /**
+     * Return the witness dictionary of a tradition.
+     * NOTE: For use within a transaction
+     *
+     * @param traditionNode - the tradition node
+     * @return the dictionary
+     */
+    public static Dictionary dictionaryFor(Node traditionNode) {
+        return new Dictionary(traditionNode);
+    }
+
+    /**
+     * Return the witness dictionary of the tradition that a section belongs to.
+     * NOTE: For use within a transaction
+     *
+     * @param sectionNode - the section node
+     * @return the dictionary
+     */
+    public static Dictionary dictionaryOfSection(Node sectionNode) {
+        Relationship part = sectionNode.getSingleRelationship(ERelations.PART, Direction.INCOMING);
+        if (part == null)
+            throw new IllegalStateException("Section " + sectionNode.getId() + " belongs to no tradition");
+        return new Dictionary(part.getStartNode());
+    }
+
+    /**
+     * Return the witness dictionary of the tradition that a reading belongs to.
+     * NOTE: For use within a transaction
+     *
+     * @param reading - a reading node with a section_id
+     * @return the dictionary
+     */
+    public static Dictionary dictionaryOfReading(Node reading) {
+        Object sectionId = reading.getProperty("section_id");
+        return dictionaryOfSection(reading.getGraphDatabase().getNodeById(Long.valueOf(sectionId.toString())));
+    }
+
+    /**
+     * Return the witness dictionary that applies to a link, i.e. that of the tradition that
+     * the link's readings belong to.
+     * NOTE: For use within a transaction
+     *
+     * @param link - the SEQUENCE or NSEQUENCE relationship
+     * @return the dictionary
+     */
+    public static Dictionary dictionaryOf(Relationship link) {
+        return dictionaryOfReading(link.getStartNode());
+    }
+
+    /**
+     * Test whether a link carries no witnesses at all.
+     * NOTE: For use within a transaction
+     *
+     * @param link - the SEQUENCE or NSEQUENCE relationship
+     * @return true if the link has no witnesses
+     */
+    public static boolean isEmpty(Relationship link) {
+        return !link.hasProperty(BITS);
+    }
+
+    /**
+     * Test whether a tradition node property belongs to the witness dictionary, and so is
+     * neither part of the tradition's own metadata nor to be exported or restored.
+     *
+     * @param key - the property key
+     * @return true if the property is managed here
+     */
+    public static boolean isDictionaryProperty(String key) {
+        return key.equals(DICT_VERSION) || key.equals(DICT_CLASSES) || key.equals(DICT_SIGLA)
+                || key.equals(CONVERTING);
+    }
+
+    /**
+     * Test whether the given sigil is in a list of witnesses.
+     *
+     * @param wits  - the witness list
+     * @param sigil - the sigil to look for
+     * @return true if the sigil is in the list
+     */
+    public static boolean contains(String[] wits, String sigil) {
+        for (String w : wits)
+            if (w.equals(sigil))
+                return true;
+        return false;
+    }
+
+    /**
+     * Return a witness list with the given sigil added, or the same list if it was already there.
+     *
+     * @param wits  - the witness list
+     * @param sigil - the sigil to add
+     * @return the resulting list
+     */
+    public static String[] with(String[] wits, String sigil) {
+        if (contains(wits, sigil)) return wits;
+        String[] result = Arrays.copyOf(wits, wits.length + 1);
+        result[wits.length] = sigil;
+        return result;
+    }
+
+    /**
+     * Return a witness list with the given sigil removed, or the same list if it wasn't there.
+     *
+     * @param wits  - the witness list
+     * @param sigil - the sigil to remove
+     * @return the resulting list, which may be empty
+     */
+    public static String[] without(String[] wits, String sigil) {
+        if (!contains(wits, sigil)) return wits;
+        String[] result = new String[wits.length - 1];
+        int i = 0;
+        for (String w : wits)
+            if (!w.equals(sigil) && i < result.length)
+                result[i++] = w;
+        return i == result.length ? result : Arrays.copyOf(result, i);
+    }
+
+    /**
+     * Convert the links of any tradition whose witnesses are still stored as String[] properties
+     * (one per witness class) to the dictionary and bitset storage. Each section is converted in
+     * its own transaction; a tradition stays marked as being converted until all of its sections
+     * are, so that the conversion is done only once and picks up where it left off if interrupted.
+     *
+     * @param db - the GraphDatabaseService to convert
+     */
+    public static void migrate(GraphDatabaseService db) {
+        List<Node> traditions = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            db.findNodes(Nodes.TRADITION).forEachRemaining(x -> {
+                if (!x.hasProperty(DICT_VERSION) || x.hasProperty(CONVERTING))
+                    traditions.add(x);
+            });
+            tx.success();
+        }
+        for (Node tradition : traditions) {
+            List<Node> sections = new ArrayList<>();
+            try (Transaction tx = db.beginTx()) {
+                if (!tradition.hasProperty(DICT_VERSION))
+                    save(tradition, new String[0], new String[0]);
+                tradition.setProperty(CONVERTING, true);
+                tradition.getRelationships(ERelations.PART, Direction.OUTGOING)
+                        .forEach(x -> sections.add(x.getEndNode()));
+                tx.success();
+            }
+            for (Node section : sections) {
+                try (Transaction tx = db.beginTx()) {
+                    Dictionary dict = dictionaryFor(tradition);
+                    db.findNodes(Nodes.READING, "section_id", section.getId()).forEachRemaining(x -> {
+                        for (Relationship r : x.getRelationships(Direction.OUTGOING,
+                                ERelations.SEQUENCE, ERelations.NSEQUENCE))
+                            convert(dict, r);
+                    });
+                    tx.success();
+                }
+            }
+            try (Transaction tx = db.beginTx()) {
+                tradition.removeProperty(CONVERTING);
+                tx.success();
+            }
+        }
+    }
+
+    // NOTE: For use within a transaction
+    private static void convert(Dictionary dict, Relationship link) {
+        Map<String, String[]> old = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> prop : link.getAllProperties().entrySet())
+            if (prop.getValue() instanceof String[])
+                old.put(prop.getKey(), (String[]) prop.getValue());
+        if (old.isEmpty())
+            return;
+        Map<String, String[]> witnesses = dict.read(link);
+        old.forEach((k, v) -> {
+            LinkedHashSet<String> merged = new LinkedHashSet<>(Arrays.asList(v));
+            merged.addAll(Arrays.asList(witnesses.getOrDefault(k, new String[0])));
+            witnesses.put(k, merged.toArray(new String[0]));
+            link.removeProperty(k);
+        });
+        dict.write(link, witnesses);
+    }
+
+    // NOTE: For use within a transaction
+    private static Entries load(Node tradition) {
+        Object version = tradition.getProperty(DICT_VERSION, null);
+        if (version == null)
+            return NO_ENTRIES;
+        Entries found = cache.get(version);
+        if (found == null) {
+            found = new Entries((String[]) tradition.getProperty(DICT_CLASSES),
+                    (String[]) tradition.getProperty(DICT_SIGLA));
+            cache.put((Long) version, found);
+        }
+        return found;
+    }
+
+    // NOTE: For use within a transaction
+    private static Entries save(Node tradition, String[] classes, String[] sigla) {
+        long version = versions.nextLong();
+        Entries saved = new Entries(classes, sigla);
+        tradition.setProperty(DICT_CLASSES, classes);
+        tradition.setProperty(DICT_SIGLA, sigla);
+        tradition.setProperty(DICT_VERSION, version);
+        cache.put(version, saved);
+        return saved;
+    }
+
+    // NOTE: For use within a transaction
+    private static long[] bitsOf(Relationship link) {
+        return (long[]) link.getProperty(BITS, NO_BITS);
+    }
+
+    // NOTE: For use within a transaction
+    private static void store(Relationship link, long[] bits) {
+        int words = bits.length;
+        while (words > 0 && bits[words - 1] == 0)
+            words--;
+        if (words > 0)
+            link.setProperty(BITS, words == bits.length ? bits : Arrays.copyOf(bits, words));
+        else if (link.hasProperty(BITS))
+            link.removeProperty(BITS);
+    }
+
+    private static boolean isSet(long[] bits, int i) {
+        return (i >>> 6) < bits.length && (bits[i >>> 6] & (1L << (i & 63))) != 0;
+    }
+
+    private static long[] withBit(long[] bits, int i) {
+        long[] result = Arrays.copyOf(bits, Math.max(bits.length, (i >>> 6) + 1));
+        result[i >>> 6] |= 1L << (i & 63);
+        return result;
+    }
+
+    // Return the index of the first set bit at or after the given one, or -1 if there is none
+    private static int nextBit(long[] bits, int from) {
+        int w = from >>> 6;
+        if (w >= bits.length)
+            return -1;
+        long word = bits[w] & (-1L << (from & 63));
+        while (true) {
+            if (word != 0)
+                return w * 64 + Long.numberOfTrailingZeros(word);
+            if (++w == bits.length)
+                return -1;
+            word = bits[w];
+        }
+    }
+
+    // Return the index of the last set bit, or -1 if there is none
+    private static int lastBit(long[] bits) {
+        for (int w = bits.length - 1; w >= 0; w--)
+            if (bits[w] != 0)
+                return w * 64 + 63 - Long.numberOfLeadingZeros(bits[w]);
+        return -1;
+    }
+}
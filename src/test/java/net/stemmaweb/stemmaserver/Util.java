@@ -26,6 +26,7 @@ import javax.ws.rs.client.Entity;
 import javax.ws.rs.core.GenericType;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
@@ -218,6 +219,17 @@ public class Util {
                 tDir, empty, fType, input, fdcd);
     }
 
+    // Run a streamed response entity and return what it writes, as a string
+    public static String getStreamedEntity(Response response) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            ((StreamingOutput) response.getEntity()).write(out);
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
     public static Response createTraditionFromFileOrString(JerseyTest jerseyTest, String tName, String tDir,
                                                                  String userId, String fName, String fType) {
         FormDataMultiPart form = new FormDataMultiPart();
@@ -263,6 +275,41 @@ public class Util {
         return result;
     }
 
+    /**
+     * Generates a CSV collation table of the given size, for use with the tabular parser. Every
+     * twentieth witness also gets an "a.c." layer that sometimes differs from its main text.
+     *
+     * @param numWitnesses - the number of witness columns
+     * @param numRanks     - the number of collation rows
+     * @param seed         - the seed for the random variation, so that the table is reproducible
+     * @return the CSV content as a string
+     */
+    public static String generateCollationCSV(int numWitnesses, int numRanks, long seed) {
+        Random rnd = new Random(seed);
+        List<String> header = new ArrayList<>();
+        for (int w = 1; w <= numWitnesses; w++) {
+            header.add(String.format("W%03d", w));
+            if (w % 20 == 0) header.add(String.format("W%03d (a.c.)", w));
+        }
+        StringBuilder csv = new StringBuilder(String.join(",", header)).append("\n");
+        for (int r = 1; r <= numRanks; r++) {
+            int numVariants = 1 + rnd.nextInt(3);
+            List<String> row = new ArrayList<>();
+            for (int w = 1; w <= numWitnesses; w++) {
+                String reading = "";
+                if (rnd.nextInt(100) >= 4) {
+                    int v = numVariants == 1 || rnd.nextInt(100) < 70 ? 0 : 1 + rnd.nextInt(numVariants - 1);
+                    reading = String.format("r%dv%d", r, v);
+                }
+                row.add(reading);
+                if (w % 20 == 0)
+                    row.add(rnd.nextInt(100) < 20 ? String.format("r%dv%d", r, numVariants) : reading);
+            }
+            csv.append(String.join(",", row)).append("\n");
+        }
+        return csv.toString();
+    }
+
     public static HashMap<String, String> makeReadingLookup (JerseyTest jerseyTest, String tradId) {
         HashMap<String, String> result = new HashMap<>();
         List<ReadingModel> readings = jerseyTest
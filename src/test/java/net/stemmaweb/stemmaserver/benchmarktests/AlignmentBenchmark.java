@@ -0,0 +1,166 @@
+package net.stemmaweb.stemmaserver.benchmarktests;
+
+import com.carrotsearch.junitbenchmarks.BenchmarkOptions;
+import com.carrotsearch.junitbenchmarks.BenchmarkRule;
+import net.stemmaweb.model.AlignmentModel;
+import net.stemmaweb.model.ReadingModel;
+import net.stemmaweb.model.WitnessTokensModel;
+import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.services.DatabaseService;
+import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.VariantGraphService;
+import net.stemmaweb.services.WitnessPath;
+import net.stemmaweb.services.WitnessSets;
+import net.stemmaweb.stemmaserver.Util;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.traversal.Evaluator;
+import org.neo4j.graphdb.traversal.Evaluators;
+import org.neo4j.graphdb.traversal.Traverser;
+import org.neo4j.graphdb.traversal.Uniqueness;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import javax.ws.rs.core.Response;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the single-sweep alignment table builder with the former approach of one
+ * witness path traversal per witness layer, on a generated section with 200 witnesses.
+ * Run with {@code mvn test -Dtest=AlignmentBenchmark}.
+ */
+@BenchmarkOptions(benchmarkRounds = 10, warmupRounds = 2)
+public class AlignmentBenchmark {
+
+    @Rule
+    public TestRule benchmarkRun = new BenchmarkRule();
+
+    private static GraphDatabaseService db;
+    private static Node sectionNode;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        db = new GraphDatabaseServiceProvider(new TestGraphDatabaseFactory().newImpermanentDatabase()).getDatabase();
+        Util.setupTestDB(db, "1");
+        Response result = Util.createTraditionDirectly("Benchmark", "LR", "1",
+                Util.generateCollationCSV(200, 300, 42L), "csv");
+        assertEquals(Response.Status.CREATED.getStatusCode(), result.getStatus());
+        String tradId = Util.getValueFromJson(result, "tradId");
+        sectionNode = VariantGraphService.getSectionNodes(tradId, db).get(0);
+    }
+
+    @Test
+    @BenchmarkOptions(benchmarkRounds = 1, warmupRounds = 0)
+    public void sameAlignment() {
+        for (boolean excludeLayers : new boolean[] {false, true}) {
+            AlignmentModel expected = alignByWitnessPaths(sectionNode, excludeLayers);
+            AlignmentModel actual = new AlignmentModel(sectionNode, excludeLayers);
+            assertEquals(expected.getLength(), actual.getLength());
+            assertEquals(expected.getAlignment().size(), actual.getAlignment().size());
+            for (int i = 0; i < expected.getAlignment().size(); i++) {
+                WitnessTokensModel ew = expected.getAlignment().get(i);
+                WitnessTokensModel aw = actual.getAlignment().get(i);
+                assertEquals(ew.constructSigil(), aw.constructSigil());
+                assertEquals(ew.getTokens().size(), aw.getTokens().size());
+                for (int j = 0; j < ew.getTokens().size(); j++) {
+                    ReadingModel er = ew.getTokens().get(j);
+                    ReadingModel ar = aw.getTokens().get(j);
+                    assertEquals(er == null ? null : er.getId(), ar == null ? null : ar.getId());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void singleSweep() {
+        new AlignmentModel(sectionNode, false);
+    }
+
+    @Test
+    public void perWitnessTraversal() {
+        alignByWitnessPaths(sectionNode, false);
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        db.shutdown();
+    }
+
+    // The former AlignmentModel constructor, which traverses the graph once per witness layer.
+    private static AlignmentModel alignByWitnessPaths(Node sectionNode, boolean excludeLayers) {
+        AlignmentModel result = new AlignmentModel();
+        try (Transaction tx = db.beginTx()) {
+            String sectId = String.valueOf(sectionNode.getId());
+            Node traditionNode = VariantGraphService.getTraditionNode(sectionNode);
+            WitnessSets.Dictionary dictionary = WitnessSets.dictionaryFor(traditionNode);
+            Node startNode = VariantGraphService.getStartNode(sectId, db);
+            Node endNode = VariantGraphService.getEndNode(sectId, db);
+            long length = (long) endNode.getProperty("rank") - 1;
+            result.setLength(length);
+            result.setAlignment(new ArrayList<>());
+
+            RelationshipType seqType = ERelations.SEQUENCE;
+            if (startNode.hasRelationship(ERelations.NSEQUENCE, Direction.OUTGOING))
+                seqType = ERelations.NSEQUENCE;
+            Traverser traversedTradition = db.traversalDescription().depthFirst()
+                    .relationships(seqType, Direction.OUTGOING)
+                    .evaluator(Evaluators.all())
+                    .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL).traverse(startNode);
+
+            for (Node w : DatabaseService.getRelated(traditionNode, ERelations.HAS_WITNESS)) {
+                String sigil = w.getProperty("sigil").toString();
+                HashSet<String> layers = new HashSet<>();
+                layers.add("base");
+                if (!excludeLayers) {
+                    for (Relationship seq : traversedTradition.relationships()) {
+                        Map<String, String[]> seqWits = dictionary.read(seq);
+                        for (String layer : seqWits.keySet()) {
+                            if (!layer.equals("witnesses")) {
+                                ArrayList<String> layerwits = new ArrayList<>(Arrays.asList(seqWits.get(layer)));
+                                if (layerwits.contains(sigil)) layers.add(layer);
+                            }
+                        }
+                    }
+                }
+                for (String layer : layers) {
+                    WitnessTokensModel witnessRow = new WitnessTokensModel();
+                    witnessRow.setWitness(sigil);
+                    if (!layer.equals("base")) witnessRow.setLayer(layer);
+                    ArrayList<ReadingModel> tokens = new ArrayList<>();
+                    ArrayList<String> alternatives = new ArrayList<>();
+                    if (!layer.equals("base")) alternatives.add(layer);
+                    Evaluator e = new WitnessPath(sigil, alternatives, seqType).getEvalForWitness();
+                    ReadingModel filler;
+                    for (Node r : db.traversalDescription().depthFirst()
+                            .relationships(seqType, Direction.OUTGOING)
+                            .evaluator(e)
+                            .uniqueness(Uniqueness.NODE_PATH)
+                            .traverse(startNode)
+                            .nodes()) {
+                        if (r.hasProperty("is_end"))
+                            continue;
+                        ReadingModel readingToken = new ReadingModel(r);
+                        filler = readingToken.getIs_lacuna() ? readingToken : null;
+                        long currRankIndex = (long) r.getProperty("rank") - 1;
+                        for (int i = tokens.size(); i < currRankIndex; i++)
+                            tokens.add(filler);
+                        tokens.add(readingToken);
+                    }
+                    if (tokens.size() == 0) continue;
+                    for (int i = tokens.size(); i < length; i++)
+                        tokens.add(null);
+                    witnessRow.setTokens(tokens);
+                    result.addWitness(witnessRow);
+                }
+            }
+            result.getAlignment().sort(Comparator.comparing(WitnessTokensModel::constructSigil));
+            tx.success();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,115 @@
+package net.stemmaweb.stemmaserver.benchmarktests;
+
+import com.carrotsearch.junitbenchmarks.BenchmarkOptions;
+import com.carrotsearch.junitbenchmarks.BenchmarkRule;
+import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.rest.Nodes;
+import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.RelationService;
+import net.stemmaweb.services.VariantGraphService;
+import net.stemmaweb.stemmaserver.Util;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+import org.neo4j.graphdb.*;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import javax.ws.rs.core.Response;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the in-process reading clustering with the former algo.unionFind procedure call,
+ * on a generated section where the variants at every other rank are related by spelling.
+ * Run with {@code mvn test -Dtest=ClusterBenchmark}.
+ */
+@BenchmarkOptions(benchmarkRounds = 10, warmupRounds = 2)
+public class ClusterBenchmark {
+
+    @Rule
+    public TestRule benchmarkRun = new BenchmarkRule();
+
+    private static GraphDatabaseService db;
+    private static String tradId;
+    private static String sectionId;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        db = new GraphDatabaseServiceProvider(new TestGraphDatabaseFactory().newImpermanentDatabase()).getDatabase();
+        Util.setupTestDB(db, "1");
+        Response result = Util.createTraditionDirectly("Benchmark", "LR", "1",
+                Util.generateCollationCSV(100, 300, 42L), "csv");
+        assertEquals(Response.Status.CREATED.getStatusCode(), result.getStatus());
+        tradId = Util.getValueFromJson(result, "tradId");
+        sectionId = String.valueOf(VariantGraphService.getSectionNodes(tradId, db).get(0).getId());
+        RelationService.returnRelationType(tradId, "spelling");
+
+        // Relate the readings at every other rank
+        try (Transaction tx = db.beginTx()) {
+            Map<Long, List<Node>> byRank = new HashMap<>();
+            db.findNodes(Nodes.READING, "section_id", Long.valueOf(sectionId)).forEachRemaining(
+                    n -> byRank.computeIfAbsent((Long) n.getProperty("rank"), x -> new ArrayList<>()).add(n));
+            for (Long rank : byRank.keySet()) {
+                if (rank % 2 == 1) continue;
+                List<Node> readings = byRank.get(rank);
+                for (int i = 1; i < readings.size(); i++) {
+                    Relationship rel = readings.get(i - 1).createRelationshipTo(readings.get(i), ERelations.RELATED);
+                    rel.setProperty("type", "spelling");
+                }
+            }
+            tx.success();
+        }
+    }
+
+    @Test
+    @BenchmarkOptions(benchmarkRounds = 1, warmupRounds = 0)
+    public void sameClusters() throws Exception {
+        Set<Set<Long>> expected = asIdSets(clustersByProcedure());
+        Set<Set<Long>> actual = asIdSets(RelationService.getClusters(tradId, sectionId, db, true));
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void inProcess() throws Exception {
+        RelationService.getClusters(tradId, sectionId, db, true);
+    }
+
+    @Test
+    public void unionFindProcedure() {
+        clustersByProcedure();
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        db.shutdown();
+    }
+
+    private static Set<Set<Long>> asIdSets(List<Set<Node>> clusters) {
+        return clusters.stream().map(x -> x.stream().map(Node::getId).collect(Collectors.toSet()))
+                .collect(Collectors.toSet());
+    }
+
+    // The former implementation, which projects a Cypher graph for the union-find procedure.
+    private static List<Set<Node>> clustersByProcedure() {
+        List<Set<Node>> result = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            String cypherNodes = String.format("MATCH (n:READING {section_id:%s}) RETURN id(n) AS id", sectionId);
+            String cypherRels = "MATCH (n:READING)-[r:RELATED]-(m) WHERE r.type IN [\"spelling\"] RETURN id(n) AS source, id(m) AS target";
+            Map<Long, Set<Long>> clusters = new HashMap<>();
+            Result r = db.execute(String.format("CALL algo.unionFind.stream('%s', '%s', {graph:'cypher'}) YIELD nodeId, setId", cypherNodes, cypherRels));
+            while (r.hasNext()) {
+                Map<String, Object> row = r.next();
+                clusters.computeIfAbsent((Long) row.get("setId"), x -> new HashSet<>()).add((Long) row.get("nodeId"));
+            }
+            clusters.values().stream().filter(x -> x.size() > 1)
+                    .forEach(x -> result.add(x.stream().map(db::getNodeById).collect(Collectors.toSet())));
+            tx.success();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,142 @@
+package net.stemmaweb.stemmaserver.benchmarktests;
+
+import com.carrotsearch.junitbenchmarks.BenchmarkOptions;
+import com.carrotsearch.junitbenchmarks.BenchmarkRule;
+import net.stemmaweb.model.ReadingModel;
+import net.stemmaweb.rest.Nodes;
+import net.stemmaweb.services.*;
+import net.stemmaweb.stemmaserver.Util;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+import org.neo4j.graphdb.*;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import javax.ws.rs.core.Response;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the bucketed search for mergeable readings with the former pairwise comparison,
+ * which runs a cycle check traversal for every candidate pair, over windows of 100, 1000 and
+ * 10000 ranks of a generated section whose readings share a small vocabulary. The pairwise
+ * comparison is only run on the smallest window, since it collects the clusters of the whole
+ * section for every pair.
+ * Run with {@code mvn test -Dtest=MergeableReadingsBenchmark}.
+ */
+@BenchmarkOptions(benchmarkRounds = 5, warmupRounds = 1)
+public class MergeableReadingsBenchmark {
+
+    @Rule
+    public TestRule benchmarkRun = new BenchmarkRule();
+
+    private static GraphDatabaseService db;
+    private static Node sectionNode;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        db = new GraphDatabaseServiceProvider(new TestGraphDatabaseFactory().newImpermanentDatabase()).getDatabase();
+        Util.setupTestDB(db, "1");
+        Response result = Util.createTraditionDirectly("Benchmark", "LR", "1",
+                Util.generateCollationCSV(5, 10000, 42L), "csv");
+        assertEquals(Response.Status.CREATED.getStatusCode(), result.getStatus());
+        String tradId = Util.getValueFromJson(result, "tradId");
+        sectionNode = VariantGraphService.getSectionNodes(tradId, db).get(0);
+
+        // Give the readings a small vocabulary, so that there is something to merge
+        try (Transaction tx = db.beginTx()) {
+            db.findNodes(Nodes.READING, "section_id", sectionNode.getId()).forEachRemaining(n -> {
+                if (!n.hasProperty("is_start") && !n.hasProperty("is_end"))
+                    n.setProperty("text", String.format("w%d", (n.getId() * 7 + (Long) n.getProperty("rank")) % 15));
+            });
+            tx.success();
+        }
+    }
+
+    @Test
+    @BenchmarkOptions(benchmarkRounds = 1, warmupRounds = 0)
+    public void samePairs() throws Exception {
+        List<List<String>> expected = asIdPairs(pairwise(100));
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, asIdPairs(bucketed(100)));
+    }
+
+    @Test
+    public void bucketed100() throws Exception {
+        bucketed(100);
+    }
+
+    @Test
+    public void bucketed1000() throws Exception {
+        bucketed(1000);
+    }
+
+    @Test
+    @BenchmarkOptions(benchmarkRounds = 2, warmupRounds = 1)
+    public void bucketed10000() throws Exception {
+        bucketed(10000);
+    }
+
+    @Test
+    public void pairwise100() throws Exception {
+        pairwise(100);
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        db.shutdown();
+    }
+
+    private static List<List<String>> asIdPairs(List<List<ReadingModel>> pairs) {
+        return pairs.stream().map(x -> x.stream().map(ReadingModel::getId).collect(Collectors.toList()))
+                .collect(Collectors.toList());
+    }
+
+    private static List<List<ReadingModel>> bucketed(long window) throws Exception {
+        List<List<ReadingModel>> result;
+        try (Transaction tx = db.beginTx()) {
+            List<Node> readings = RankIndex.readingsBetween(db, sectionNode.getId(), 1, window);
+            result = MergeableReadings.find(sectionNode, readings, 10);
+            tx.success();
+        }
+        return result;
+    }
+
+    // The former implementation, which compares every reading with every other and checks
+    // each same-text pair for cycles with its own traversal.
+    private static List<List<ReadingModel>> pairwise(long window) throws Exception {
+        long threshold = 10;
+        List<List<ReadingModel>> couldBeIdenticalReadings = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            List<Node> questionedReadings = RankIndex.readingsBetween(db, sectionNode.getId(), 1, window);
+            HashSet<Long> processed = new HashSet<>();
+            for (Node nodeA : questionedReadings) {
+                if (processed.contains(nodeA.getId()))
+                    continue;
+                long aRank = Long.parseLong(nodeA.getProperty("rank").toString());
+                List<Node> sameText = questionedReadings.stream().filter(x -> !x.equals(nodeA)
+                        && x.getProperty("text").equals(nodeA.getProperty("text"))
+                        && Math.abs(Long.parseLong(x.getProperty("rank").toString()) - aRank) < threshold)
+                        .collect(Collectors.toList());
+                for (Node n : sameText) {
+                    if (processed.contains(n.getId()))
+                        continue;
+                    if (!ReadingService.wouldGetCyclic(nodeA, n)) {
+                        ArrayList<ReadingModel> pair = new ArrayList<>(Arrays.asList(new ReadingModel(nodeA), new ReadingModel(n)));
+                        pair.sort((a, b) -> b.getWitnesses().size() - a.getWitnesses().size());
+                        couldBeIdenticalReadings.add(pair);
+                    }
+                }
+                processed.add(nodeA.getId());
+            }
+            tx.success();
+        }
+        return couldBeIdenticalReadings.stream()
+                .sorted(Comparator.comparingLong(x -> Math.abs(x.get(1).getRank() - x.get(0).getRank())))
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,118 @@
+package net.stemmaweb.stemmaserver.benchmarktests;
+
+import com.carrotsearch.junitbenchmarks.BenchmarkOptions;
+import com.carrotsearch.junitbenchmarks.BenchmarkRule;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import net.stemmaweb.model.ReadingModel;
+import net.stemmaweb.rest.Nodes;
+import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.ReadingLoader;
+import net.stemmaweb.services.VariantGraphService;
+import net.stemmaweb.stemmaserver.Util;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+import org.neo4j.graphdb.*;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import javax.ws.rs.core.Response;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the bulk reading loader with making a ReadingModel for each reading on its own,
+ * over all the readings of a generated section with 50 witnesses. The loadRate test prints
+ * the number of readings loaded per second by each.
+ * Run with {@code mvn test -Dtest=ReadingLoaderBenchmark}.
+ */
+@BenchmarkOptions(benchmarkRounds = 10, warmupRounds = 2)
+public class ReadingLoaderBenchmark {
+
+    @Rule
+    public TestRule benchmarkRun = new BenchmarkRule();
+
+    private static GraphDatabaseService db;
+    private static List<Node> readings;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        db = new GraphDatabaseServiceProvider(new TestGraphDatabaseFactory().newImpermanentDatabase()).getDatabase();
+        Util.setupTestDB(db, "1");
+        Response result = Util.createTraditionDirectly("Benchmark", "LR", "1",
+                Util.generateCollationCSV(50, 2000, 42L), "csv");
+        assertEquals(Response.Status.CREATED.getStatusCode(), result.getStatus());
+        String tradId = Util.getValueFromJson(result, "tradId");
+        Node sectionNode = VariantGraphService.getSectionNodes(tradId, db).get(0);
+        readings = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            db.findNodes(Nodes.READING, "section_id", sectionNode.getId()).forEachRemaining(readings::add);
+            tx.success();
+        }
+    }
+
+    @Test
+    @BenchmarkOptions(benchmarkRounds = 1, warmupRounds = 0)
+    public void sameModels() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        List<String> expected = new ArrayList<>();
+        for (ReadingModel rm : perReading())
+            expected.add(mapper.writeValueAsString(rm));
+        List<String> actual = new ArrayList<>();
+        for (ReadingModel rm : bulk())
+            actual.add(mapper.writeValueAsString(rm));
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void perReadingLoad() {
+        perReading();
+    }
+
+    @Test
+    public void bulkLoad() {
+        bulk();
+    }
+
+    @Test
+    @BenchmarkOptions(benchmarkRounds = 1, warmupRounds = 0)
+    public void loadRate() {
+        // Warm up both before timing them
+        perReading();
+        bulk();
+        long start = System.nanoTime();
+        perReading();
+        long perReadingNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        bulk();
+        long bulkNanos = System.nanoTime() - start;
+        System.out.println(String.format("Readings loaded per second: %.0f one at a time, %.0f in bulk",
+                readings.size() * 1e9 / perReadingNanos, readings.size() * 1e9 / bulkNanos));
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        db.shutdown();
+    }
+
+    private static List<ReadingModel> perReading() {
+        List<ReadingModel> result;
+        try (Transaction tx = db.beginTx()) {
+            result = readings.stream().map(ReadingModel::new).collect(Collectors.toList());
+            tx.success();
+        }
+        return result;
+    }
+
+    private static List<ReadingModel> bulk() {
+        List<ReadingModel> result;
+        try (Transaction tx = db.beginTx()) {
+            result = ReadingLoader.load(readings);
+            tx.success();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,312 @@
+package net.stemmaweb.stemmaserver.benchmarktests;
+
+import com.carrotsearch.junitbenchmarks.BenchmarkOptions;
+import com.carrotsearch.junitbenchmarks.BenchmarkRule;
+import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.NormalizationOverlay;
+import net.stemmaweb.services.VariantCrawler;
+import net.stemmaweb.services.VariantCrawler.Variant;
+import net.stemmaweb.services.VariantGraphService;
+import net.stemmaweb.services.WitnessSets;
+import net.stemmaweb.stemmaserver.Util;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+import org.neo4j.graphdb.*;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import javax.ws.rs.core.Response;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the bitset variant crawler with the former crawler, which identified each path by
+ * a string of all its links and kept the witnesses of every path in a map under that key, on a
+ * generated section in which two witnesses carry a long transposed passage, and the first
+ * correction layer of one of them departs from it here and there.
+ * Run with {@code mvn test -Dtest=VariantCrawlerBenchmark}.
+ */
+@BenchmarkOptions(benchmarkRounds = 5, warmupRounds = 1)
+public class VariantCrawlerBenchmark {
+
+    // The length of the transposed passage
+    private static final int TRANSPOSED = 1000;
+
+    @Rule
+    public TestRule benchmarkRun = new BenchmarkRule();
+
+    private static GraphDatabaseService db;
+    private static List<NormalizationOverlay.Link> baseText;
+    private static WitnessSets.Dictionary dictionary;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        db = new GraphDatabaseServiceProvider(new TestGraphDatabaseFactory().newImpermanentDatabase()).getDatabase();
+        Util.setupTestDB(db, "1");
+        Response result = Util.createTraditionDirectly("Benchmark", "LR", "1", transposedCSV(), "csv");
+        assertEquals(Response.Status.CREATED.getStatusCode(), result.getStatus());
+        String tradId = Util.getValueFromJson(result, "tradId");
+        Node sectionNode = VariantGraphService.getSectionNodes(tradId, db).get(0);
+
+        // Take the majority text as the base, as the variant list does
+        baseText = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            dictionary = WitnessSets.dictionaryOfSection(sectionNode);
+            List<Node> baseReadings = VariantGraphService.calculateMajorityText(sectionNode);
+            Node prior = baseReadings.remove(0);
+            for (Node curr : baseReadings) {
+                for (NormalizationOverlay.Link l : NormalizationOverlay.outgoingLinks(prior, null, dictionary))
+                    if (l.getEndNode().equals(curr)) baseText.add(l);
+                prior = curr;
+            }
+            tx.success();
+        }
+    }
+
+    // Four witnesses read the passage in its place; E and F read it after the place where the
+    // others end it, and the first hand of F differs from the correction every 100 words.
+    private static String transposedCSV() {
+        StringBuilder csv = new StringBuilder("A,B,C,D,E,F,F (a.c.)\n");
+        csv.append("in,in,in,in,in,in,in\n");
+        for (int i = 1; i <= TRANSPOSED; i++)
+            csv.append(String.format("t%d,t%d,t%d,t%d,,,\n", i, i, i, i));
+        for (int i = 1; i <= TRANSPOSED; i++)
+            csv.append(String.format(",,,,t%d,t%d,%s%d\n", i, i, i % 100 == 0 ? "u" : "t", i));
+        csv.append("fin,fin,fin,fin,fin,fin,fin\n");
+        return csv.toString();
+    }
+
+    @Test
+    @BenchmarkOptions(benchmarkRounds = 1, warmupRounds = 0)
+    public void sameVariants() {
+        Set<String> expected = describe(crawlLegacy());
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, describe(crawl()));
+    }
+
+    @Test
+    public void bitsetCrawler() {
+        crawl();
+    }
+
+    @Test
+    @BenchmarkOptions(benchmarkRounds = 2, warmupRounds = 1)
+    public void stringKeyCrawler() {
+        crawlLegacy();
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        db.shutdown();
+    }
+
+    private static List<Crawled> crawl() {
+        List<Crawled> result = new ArrayList<>();
+        VariantCrawler crawler = new VariantCrawler(baseText, null, dictionary, new ArrayList<>());
+        try (Transaction tx = db.beginTx()) {
+            for (Node n : baseChain())
+                for (Variant v : crawler.variantsFrom(n))
+                    result.add(new Crawled(v.getNodes(), v.getWitnesses()));
+            tx.success();
+        }
+        return result;
+    }
+
+    private static List<Crawled> crawlLegacy() {
+        List<Crawled> result = new ArrayList<>();
+        LegacyCrawler crawler = new LegacyCrawler(baseText, null, new ArrayList<>());
+        try (Transaction tx = db.beginTx()) {
+            for (Node n : baseChain())
+                result.addAll(crawler.variantsFrom(n));
+            tx.success();
+        }
+        return result;
+    }
+
+    private static List<Node> baseChain() {
+        List<Node> chain = baseText.stream().map(NormalizationOverlay.Link::getEndNode).collect(Collectors.toList());
+        chain.add(0, baseText.get(0).getStartNode());
+        return chain;
+    }
+
+    // The former crawler may return a path more than once, so compare the distinct paths.
+    private static Set<String> describe(List<Crawled> variants) {
+        Set<String> result = new HashSet<>();
+        for (Crawled v : variants) {
+            String nodes = v.nodes.stream().map(x -> String.valueOf(x.getId())).collect(Collectors.joining(","));
+            String wits = new TreeMap<>(v.witnesses).entrySet().stream()
+                    .map(x -> x.getKey() + "=" + new TreeSet<>(x.getValue()))
+                    .collect(Collectors.joining(";"));
+            result.add(nodes + " " + wits);
+        }
+        return result;
+    }
+
+    // A path as returned by either crawler
+    private static class Crawled {
+        private final List<Node> nodes;
+        private final Map<String, Set<String>> witnesses;
+
+        Crawled(List<Node> nodes, Map<String, Set<String>> witnesses) {
+            this.nodes = nodes;
+            this.witnesses = witnesses;
+        }
+    }
+
+    // The former crawler, which keys the witnesses of each path by the string of its links.
+    private static class LegacyCrawler {
+        private final Set<String> lemmaLinks;
+        private final Set<Long> lemmaNodes;
+        private final NormalizationOverlay overlay;
+        private final Set<String> excludeWitnesses;
+        // Hash by path string rather than path itself, in case the objects aren't equal
+        private final Map<String, Map<String,Set<String>>> pathWitnesses;
+
+        LegacyCrawler(List<NormalizationOverlay.Link> lp, NormalizationOverlay overlay, List<String> excludeWitnesses) {
+            this.lemmaLinks = lp.stream().map(NormalizationOverlay.Link::toString).collect(Collectors.toSet());
+            this.lemmaNodes = lp.stream().map(x -> x.getEndNode().getId()).collect(Collectors.toSet());
+            this.excludeWitnesses = new HashSet<>(excludeWitnesses);
+            this.overlay = overlay;
+            this.pathWitnesses = new HashMap<>();
+        }
+
+        /**
+         * Return the variant paths that start at the given node, in depth-first order.
+         * NOTE: For use within a transaction
+         *
+         * @param start - a node on the base text
+         * @return the variant paths
+         */
+        List<Crawled> variantsFrom(Node start) {
+            List<Crawled> result = new ArrayList<>();
+            ArrayList<NormalizationOverlay.Link> path = new ArrayList<>();
+            ArrayList<Node> nodes = new ArrayList<>();
+            nodes.add(start);
+            crawl(path, nodes, result);
+            return result;
+        }
+
+        private void crawl(ArrayList<NormalizationOverlay.Link> path, ArrayList<Node> nodes, List<Crawled> result) {
+            if (!path.isEmpty()) {
+                NormalizationOverlay.Link last = path.get(path.size() - 1);
+                // Are we on the lemma path? If so, truncate before.
+                if (this.lemmaLinks.contains(last.toString()))
+                    return;
+                // Have we hit a lemma node again? If so, truncate after.
+                if (this.lemmaNodes.contains(last.getEndNode().getId())) {
+                    result.add(new Crawled(new ArrayList<>(nodes), pathWitnesses.get(pathKey(path, null))));
+                    return;
+                }
+            }
+            // Otherwise keep going, but don't return the path yet.
+            for (NormalizationOverlay.Link r : expand(path, nodes.get(nodes.size() - 1))) {
+                if (path.contains(r)) continue;
+                path.add(r);
+                nodes.add(r.getEndNode());
+                crawl(path, nodes, result);
+                path.remove(path.size() - 1);
+                nodes.remove(nodes.size() - 1);
+            }
+        }
+
+        private static String pathKey(List<NormalizationOverlay.Link> pathRels, NormalizationOverlay.Link extraRel) {
+            String result = pathRels.stream().map(NormalizationOverlay.Link::toString)
+                    .collect(Collectors.joining(":"));
+            if (extraRel != null)
+                result = String.format("%s:%s", result, extraRel);
+            return result;
+        }
+
+        private Collection<NormalizationOverlay.Link> expand(List<NormalizationOverlay.Link> path, Node endNode) {
+            // If the path is zero-length, try all continuing paths and record their witnesses
+            if (path.isEmpty()) {
+                List<NormalizationOverlay.Link> result = NormalizationOverlay.outgoingLinks(endNode, overlay, dictionary);
+                for (NormalizationOverlay.Link r: result) {
+                    Map<String,Set<String>> pathWits = new HashMap<>();
+                    for (String layer : r.getPropertyKeys()) {
+                        List<String> followWits = Arrays.stream(r.getProperty(layer, new String[0])).filter(
+                                x -> !excludeWitnesses.contains(x)).collect(Collectors.toList());
+                        if (!followWits.isEmpty())
+                            pathWits.put(layer, new HashSet<>(followWits));
+                    }
+                    pathWitnesses.put(r.toString(), pathWits);
+                }
+                return result;
+            }
+
+            // If not, we have some work to do
+            String key = pathKey(path, null);
+            Map<String,Set<String>> witsSoFar = pathWitnesses.getOrDefault(key, null);
+            if (witsSoFar == null || witsSoFar.isEmpty())
+                // We have no "through" witnesses for this path, so don't go any farther.
+                return new ArrayList<>();
+
+            // Now for each witness sigil in witsSoFar, find the relationship that continues it.
+            Map<String, NormalizationOverlay.Link> continuations = new HashMap<>();
+            Set<String> baseWits = witsSoFar.getOrDefault("witnesses", new HashSet<>());
+            for (NormalizationOverlay.Link r : NormalizationOverlay.outgoingLinks(endNode, overlay, dictionary)) {
+                // Do the base layer first.
+                Set<String> relBaseWits = new HashSet<>(Arrays.asList(r.getProperty("witnesses", new String[0])));
+                for (String sig : baseWits.stream().filter(relBaseWits::contains).collect(Collectors.toList())) {
+                    continuations.put(sig, r);
+                }
+                // Now check whether this relationship continues any non-base witness paths.
+                for (String layer : witsSoFar.keySet()) {
+                    if (layer.equals("witnesses")) continue;
+                    if (r.hasProperty(layer)) {
+                        // Get any layer witnesses that are directly continued
+                        Set<String> relLayerWits = new HashSet<>(Arrays.asList(r.getProperty(layer, new String[0])));
+                        for (String sig : witsSoFar.get(layer).stream().filter(relLayerWits::contains)
+                                .collect(Collectors.toList())) {
+                            continuations.put(String.format("%s|%s", sig, layer), r);
+                        }
+                    }
+                    // Get any layer witnesses that have reverted to the base witness, assuming a direct layer
+                    // continuation has not been found
+                    for (String sig : witsSoFar.get(layer).stream().filter(relBaseWits::contains)
+                            .collect(Collectors.toList())) {
+                        String contKey = String.format("%s|%s", sig, layer);
+                        if (!continuations.containsKey(contKey)) continuations.put(contKey, r);
+                    }
+                }
+
+                // Now get any witnesses that have diverged into some layer from a base witness
+                for (String layer : r.getPropertyKeys()) {
+                    if (layer.equals("witnesses")) continue;
+                    Set<String> relLayerWits = new HashSet<>(Arrays.asList(r.getProperty(layer, new String[0])));
+                    for (String sig : relLayerWits.stream().filter(baseWits::contains).collect(Collectors.toList())) {
+                        String contKey = String.format("%s|%s", sig, layer);
+                        if (!continuations.containsKey(contKey)) continuations.put(contKey, r);
+                    }
+                }
+            }
+            // We now have all our path continuations; note them in the state variable and return the
+            // relevant relationships.
+            for (String contKey : continuations.keySet()) {
+                String[] parts = contKey.split("\\|"); // witness, layer
+                String sigil = parts[0];
+                String layer = parts.length == 1 ? "witnesses" : parts[1];
+                String pKey = pathKey(path, continuations.get(contKey));
+                Map<String,Set<String>> m;
+                if (pathWitnesses.containsKey(pKey)) {
+                    m = pathWitnesses.get(pKey);
+                } else {
+                    m = new HashMap<>();
+                    pathWitnesses.put(pKey, m);
+                }
+                if (m.containsKey(layer)) {
+                    m.get(layer).add(sigil);
+                } else {
+                    Set<String> w = new HashSet<>();
+                    w.add(sigil);
+                    m.put(layer, w);
+                }
+            }
+            return continuations.values();
+        }
+    }
+}
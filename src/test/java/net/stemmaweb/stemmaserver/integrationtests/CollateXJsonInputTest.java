@@ -7,6 +7,7 @@ import net.stemmaweb.model.WitnessModel;
 import net.stemmaweb.rest.ERelations;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
 import net.stemmaweb.services.VariantGraphService;
+import net.stemmaweb.services.WitnessSets;
 import net.stemmaweb.stemmaserver.Util;
 
 import org.glassfish.jersey.media.multipart.FormDataMultiPart;
@@ -27,6 +28,7 @@ import javax.ws.rs.core.Response;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 public class CollateXJsonInputTest extends TestCase {
@@ -85,12 +87,15 @@ public class CollateXJsonInputTest extends TestCase {
         try (Transaction tx = db.beginTx()) {
             List<Relationship> sequences = VariantGraphService.returnTraditionSection(sectId, db).relationships()
                     .stream().filter(x -> x.getType().toString().equals("SEQUENCE")).collect(Collectors.toList());
+            WitnessSets.Dictionary dictionary = WitnessSets.dictionaryFor(
+                    VariantGraphService.getTraditionNode(tradId, db));
             for (Relationship r : sequences) {
-                if (r.hasProperty("witnesses")) {
-                    ArrayList<String> mainwits = new ArrayList<>(Arrays.asList((String[]) r.getProperty("witnesses")));
-                    for (String p : r.getPropertyKeys()) {
+                Map<String, String[]> witnesses = dictionary.read(r);
+                if (witnesses.containsKey("witnesses")) {
+                    ArrayList<String> mainwits = new ArrayList<>(Arrays.asList(witnesses.get("witnesses")));
+                    for (String p : witnesses.keySet()) {
                         if (p.equals("witnesses")) continue;
-                        for (String w : (String[]) r.getProperty(p)) {
+                        for (String w : witnesses.get(p)) {
                             if (mainwits.contains(w)) fail();
                         }
                     }
@@ -166,13 +171,15 @@ public class CollateXJsonInputTest extends TestCase {
     public void testNoRedundantWitnesses() {
         Traverser sTrav = VariantGraphService.returnTraditionSection(sectId, db);
         try (Transaction tx = db.beginTx()) {
+            WitnessSets.Dictionary dictionary = WitnessSets.dictionaryFor(
+                    VariantGraphService.getTraditionNode(tradId, db));
             for (Relationship r : sTrav.relationships())
-                if (r.getType().equals(ERelations.SEQUENCE) && r.hasProperty("witnesses")) {
-                    Iterable<String> layers = r.getPropertyKeys();
-                    for (String w : (String[]) r.getProperty("witnesses"))
-                        for (String l : layers)
+                if (r.getType().equals(ERelations.SEQUENCE) && dictionary.read(r).containsKey("witnesses")) {
+                    Map<String, String[]> layers = dictionary.read(r);
+                    for (String w : layers.get("witnesses"))
+                        for (String l : layers.keySet())
                             if (!l.equals("witnesses")) {
-                                ArrayList<String> ew = new ArrayList<>(Arrays.asList((String[]) r.getProperty(l)));
+                                ArrayList<String> ew = new ArrayList<>(Arrays.asList(layers.get(l)));
                                 assertFalse(ew.contains(w));
                             }
                 }
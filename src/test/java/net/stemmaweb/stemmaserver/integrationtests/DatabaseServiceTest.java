@@ -1,12 +1,18 @@
 package net.stemmaweb.stemmaserver.integrationtests;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
+import net.stemmaweb.model.SchemaIndexModel;
 import net.stemmaweb.rest.ERelations;
 import net.stemmaweb.services.DatabaseService;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.SchemaService;
 
 import net.stemmaweb.services.VariantGraphService;
+import net.stemmaweb.services.WitnessSets;
 import net.stemmaweb.stemmaserver.Util;
 
 import org.junit.After;
@@ -14,6 +20,8 @@ import org.junit.Before;
 import org.junit.Test;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
 import org.neo4j.test.TestGraphDatabaseFactory;
 
 import javax.ws.rs.core.Response;
@@ -62,6 +70,74 @@ public class DatabaseServiceTest {
         assertTrue(DatabaseService.userExists(userId, db));
     }
 
+    @Test
+    public void witnessMigrationTest() {
+        // Put the sequence witnesses back the way they were stored before the witness dictionary
+        HashMap<Long, Map<String, String[]>> expected = new HashMap<>();
+        try (Transaction tx = db.beginTx()) {
+            Node tradition = VariantGraphService.getTraditionNode(traditionId, db);
+            WitnessSets.Dictionary dictionary = WitnessSets.dictionaryFor(tradition);
+            for (Relationship r : db.getAllRelationships()) {
+                if (!r.isType(ERelations.SEQUENCE)) continue;
+                Map<String, String[]> witnesses = dictionary.read(r);
+                expected.put(r.getId(), witnesses);
+                r.removeProperty("witness_bits");
+                witnesses.forEach(r::setProperty);
+            }
+            for (String key : tradition.getPropertyKeys())
+                if (WitnessSets.isDictionaryProperty(key))
+                    tradition.removeProperty(key);
+            tx.success();
+        }
+        assertFalse(expected.isEmpty());
+
+        WitnessSets.migrate(db);
+        try (Transaction tx = db.beginTx()) {
+            WitnessSets.Dictionary dictionary = WitnessSets.dictionaryFor(
+                    VariantGraphService.getTraditionNode(traditionId, db));
+            for (Relationship r : db.getAllRelationships()) {
+                if (!r.isType(ERelations.SEQUENCE)) continue;
+                for (String key : r.getPropertyKeys())
+                    assertFalse(r.getProperty(key) instanceof String[]);
+                Map<String, String[]> witnesses = dictionary.read(r);
+                assertEquals(expected.get(r.getId()).keySet(), witnesses.keySet());
+                for (String witClass : witnesses.keySet())
+                    assertArrayEquals(expected.get(r.getId()).get(witClass), witnesses.get(witClass));
+            }
+            tx.success();
+        }
+
+        // Migrating again should change nothing
+        WitnessSets.migrate(db);
+        try (Transaction tx = db.beginTx()) {
+            WitnessSets.Dictionary dictionary = WitnessSets.dictionaryFor(
+                    VariantGraphService.getTraditionNode(traditionId, db));
+            for (Relationship r : db.getAllRelationships())
+                if (r.isType(ERelations.SEQUENCE))
+                    assertEquals(expected.get(r.getId()).keySet(), dictionary.read(r).keySet());
+            tx.success();
+        }
+    }
+
+    @Test
+    public void schemaIndexTest() {
+        List<SchemaIndexModel> indexes = SchemaService.getIndexStatus(db);
+        assertEquals(5, indexes.size());
+        for (SchemaIndexModel sim : indexes) {
+            assertEquals("ONLINE", sim.getState());
+            assertEquals(1, sim.getProperties().size());
+            if (sim.getLabel().equals("TRADITION") || sim.getLabel().equals("USER")) {
+                assertEquals("id", sim.getProperties().get(0));
+                assertTrue(sim.getUnique());
+            } else
+                assertFalse(sim.getUnique());
+        }
+
+        // Setting up the schema again should change nothing
+        SchemaService.ensureSchema(db);
+        assertEquals(5, SchemaService.getIndexStatus(db).size());
+    }
+
     /*
      * Shut down the database
      */
@@ -2,12 +2,14 @@ package net.stemmaweb.stemmaserver.integrationtests;
 
 import junit.framework.TestCase;
 import net.stemmaweb.model.*;
+import net.stemmaweb.parser.GraphMLParser;
 import net.stemmaweb.rest.Nodes;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
 import net.stemmaweb.services.ReadingService;
 import net.stemmaweb.services.VariantGraphService;
 import net.stemmaweb.stemmaserver.Util;
 
+import org.apache.commons.io.IOUtils;
 import org.glassfish.jersey.test.JerseyTest;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
@@ -21,12 +23,17 @@ import javax.ws.rs.core.Response;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.ws.rs.core.GenericType;
 import javax.ws.rs.core.MediaType;
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
 import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
 
 import static org.junit.Assert.assertNotEquals;
 
@@ -70,6 +77,21 @@ public class GraphMLInputOutputTest extends TestCase {
                 .contains("<key attr.name=\"neolabel\" attr.type=\"string\" for=\"node\" id=\"dn0\"/>"));
     }
 
+    public void testGzippedXMLOutput() throws Exception {
+        Response r = jerseyTest.target("/tradition/" + tradId + "/graphml")
+                .request(MediaType.APPLICATION_XML_TYPE).header("Accept-Encoding", "gzip").get();
+        assertEquals(Response.Status.OK.getStatusCode(), r.getStatus());
+        assertEquals("gzip", r.getHeaderString("Content-Encoding"));
+        String graphML = IOUtils.toString(new GZIPInputStream(r.readEntity(InputStream.class)), StandardCharsets.UTF_8);
+        assertTrue(graphML.contains("<key attr.name=\"neolabel\" attr.type=\"string\" for=\"node\" id=\"dn0\"/>"));
+
+        // It should be the same as what we get without compression
+        r = jerseyTest.target("/tradition/" + tradId + "/graphml")
+                .request(MediaType.APPLICATION_XML_TYPE).get();
+        assertNull(r.getHeaderString("Content-Encoding"));
+        assertEquals(r.readEntity(String.class), graphML);
+    }
+
     public void testXMLInputExistingTradition() {
         Response r = jerseyTest.target("/tradition/" + tradId + "/graphml")
                 .request(MediaType.APPLICATION_XML_TYPE).get();
@@ -353,6 +375,105 @@ public class GraphMLInputOutputTest extends TestCase {
         assertEquals(expected, actual);
     }
 
+    public void testXMLInputSmallBatches() throws Exception {
+        // Import a file with annotations, committing every few entities
+        String emptyId = Util.getValueFromJson(Util.createTraditionDirectly("Matthew 401", "LR",
+                "me@example.org", null, null), "tradId");
+        Response r;
+        try (InputStream xml = new FileInputStream("src/TestFiles/m401-annotated.xml")) {
+            r = new GraphMLParser(7).parseGraphML(xml, getTraditionNode(emptyId));
+        }
+        assertEquals(Response.Status.CREATED.getStatusCode(), r.getStatus());
+        // The file holds a single section, which goes into the tradition we made
+        assertEquals("section", Util.getValueFromJson(r, "parentLabel"));
+        String mattId = emptyId;
+
+        // It should come out the same as the import in a single batch
+        r = Util.createTraditionFromFileOrString(jerseyTest, "Matthew 401", "LR",
+                "me@example.org", "src/TestFiles/m401-annotated.xml", "graphml");
+        assertEquals(Response.Status.CREATED.getStatusCode(), r.getStatus());
+        String compareId = Util.getValueFromJson(r, "tradId");
+        assertNotEquals(mattId, compareId);
+        for (String id : new String[] {mattId, compareId}) {
+            List<AnnotationModel> annos = jerseyTest.target("/tradition/" + id + "/annotations")
+                    .request().get(new GenericType<List<AnnotationModel>>() {});
+            assertEquals(24, annos.size());
+        }
+        List<WitnessModel> wits = jerseyTest.target("/tradition/" + mattId + "/witnesses")
+                .request().get(new GenericType<List<WitnessModel>>() {});
+        assertFalse(wits.isEmpty());
+        for (WitnessModel wit : wits) {
+            String expected = Util.getValueFromJson(jerseyTest
+                    .target("/tradition/" + compareId + "/witness/" + wit.getSigil() + "/text")
+                    .request().get(), "text");
+            String actual = Util.getValueFromJson(jerseyTest
+                    .target("/tradition/" + mattId + "/witness/" + wit.getSigil() + "/text")
+                    .request().get(), "text");
+            assertEquals(expected, actual);
+        }
+    }
+
+    public void testXMLInputFailureCleanup() throws Exception {
+        Response r = jerseyTest.target("/tradition/" + tradId + "/graphml")
+                .request(MediaType.APPLICATION_XML_TYPE).get();
+        String graphML = r.readEntity(String.class);
+        // Add an edge without a label at the very end, so that the import fails only after
+        // everything else has been created
+        String broken = graphML.replace("</graph>", "<edge id=\"0\" source=\"0\" target=\"0\"></edge></graph>");
+
+        long nodesBefore = countNodes();
+        r = Util.createTraditionFromFileOrString(jerseyTest, "Broken tradition", "LR",
+                "me@example.org", broken, "graphml");
+        assertNotEquals(Response.Status.CREATED.getStatusCode(), r.getStatus());
+        assertEquals(nodesBefore, countNodes());
+
+        // The same should be true if several batches have already been committed
+        String emptyId = Util.getValueFromJson(Util.createTraditionDirectly("Broken tradition", "LR",
+                "me@example.org", null, null), "tradId");
+        nodesBefore = countNodes();
+        r = new GraphMLParser(5).parseGraphML(
+                new ByteArrayInputStream(broken.getBytes(StandardCharsets.UTF_8)), getTraditionNode(emptyId));
+        assertNotEquals(Response.Status.CREATED.getStatusCode(), r.getStatus());
+        assertEquals(nodesBefore, countNodes());
+        TraditionModel t = jerseyTest.target("/tradition/" + emptyId).request().get(TraditionModel.class);
+        assertEquals("Broken tradition", t.getName());
+        assertEquals("LR", t.getDirection());
+
+        // A failed section upload should leave the rest of the tradition alone
+        String sectId = Util.getSingleSection(jerseyTest, tradId).getId();
+        r = jerseyTest.target("/tradition/" + tradId + "/section/" + sectId + "/graphml")
+                .request(MediaType.APPLICATION_XML_TYPE).get();
+        broken = r.readEntity(String.class)
+                .replace("</graph>", "<edge id=\"0\" source=\"0\" target=\"0\"></edge></graph>");
+        List<WitnessModel> witsBefore = jerseyTest.target("/tradition/" + tradId + "/witnesses")
+                .request().get(new GenericType<List<WitnessModel>>() {});
+        nodesBefore = countNodes();
+        r = new GraphMLParser(5).parseGraphML(
+                new ByteArrayInputStream(broken.getBytes(StandardCharsets.UTF_8)), getTraditionNode(tradId));
+        assertNotEquals(Response.Status.CREATED.getStatusCode(), r.getStatus());
+        assertEquals(nodesBefore, countNodes());
+        assertEquals(sectId, Util.getSingleSection(jerseyTest, tradId).getId());
+        List<WitnessModel> witsAfter = jerseyTest.target("/tradition/" + tradId + "/witnesses")
+                .request().get(new GenericType<List<WitnessModel>>() {});
+        assertEquals(witsBefore.size(), witsAfter.size());
+    }
+
+    private Node getTraditionNode(String id) {
+        try (Transaction tx = db.beginTx()) {
+            Node n = db.findNode(Nodes.TRADITION, "id", id);
+            tx.success();
+            return n;
+        }
+    }
+
+    private long countNodes() {
+        try (Transaction tx = db.beginTx()) {
+            long count = db.getAllNodes().stream().count();
+            tx.success();
+            return count;
+        }
+    }
+
     // testXMLUserNodes
 
     // testXMLDataTypes
@@ -14,8 +14,10 @@ import javax.ws.rs.core.Response.Status;
 import net.stemmaweb.model.*;
 import net.stemmaweb.rest.*;
 import net.stemmaweb.services.DatabaseService;
+import net.stemmaweb.services.DebugChecks;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
 import net.stemmaweb.services.VariantGraphService;
+import net.stemmaweb.services.WitnessSets;
 import net.stemmaweb.stemmaserver.JerseyTestServerFactory;
 
 import net.stemmaweb.stemmaserver.Util;
@@ -680,7 +682,7 @@ public class ReadingTest {
         try (Transaction tx = db.beginTx()) {
             for (Relationship inbound : db.getNodeById(Long.parseLong(following)).getRelationships(ERelations.SEQUENCE, Direction.INCOMING)) {
                 if (inbound.getStartNode().getId() == Long.parseLong(Legei)) {
-                    List<String> sigla = Arrays.asList((String []) inbound.getProperty("witnesses"));
+                    List<String> sigla = Arrays.asList(WitnessSets.dictionaryOf(inbound).get(inbound, "witnesses"));
                     assertEquals(5, sigla.size());
                     assertTrue(sigla.contains("w11"));
                     assertTrue(sigla.contains("w2"));
@@ -893,7 +895,7 @@ public class ReadingTest {
             int numberOfPaths = 0;
             for (Relationship incoming : node.getRelationships(ERelations.SEQUENCE,
                     Direction.INCOMING)) {
-                assertEquals("B", ((String[]) incoming.getProperty("witnesses"))[0]);
+                assertEquals("B", WitnessSets.dictionaryOf(incoming).get(incoming, "witnesses")[0]);
                 numberOfPaths++;
             }
             assertEquals(1, numberOfPaths);
@@ -901,7 +903,7 @@ public class ReadingTest {
             numberOfPaths = 0;
             for (Relationship outgoing : node.getRelationships(ERelations.SEQUENCE,
                     Direction.OUTGOING)) {
-                assertEquals("B", ((String[]) outgoing.getProperty("witnesses"))[0]);
+                assertEquals("B", WitnessSets.dictionaryOf(outgoing).get(outgoing, "witnesses")[0]);
                 numberOfPaths++;
             }
             assertEquals(1, numberOfPaths);
@@ -918,8 +920,8 @@ public class ReadingTest {
             numberOfPaths = 0;
             for (Relationship outgoing : duplicatedOf.getRelationships(ERelations.SEQUENCE,
                     Direction.OUTGOING)) {
-                assertEquals("A", ((String[]) outgoing.getProperty("witnesses"))[0]);
-                assertEquals("C", ((String[]) outgoing.getProperty("witnesses"))[1]);
+                assertEquals("A", WitnessSets.dictionaryOf(outgoing).get(outgoing, "witnesses")[0]);
+                assertEquals("C", WitnessSets.dictionaryOf(outgoing).get(outgoing, "witnesses")[1]);
                 numberOfPaths++;
             }
             assertEquals(1, numberOfPaths);
@@ -978,8 +980,8 @@ public class ReadingTest {
             int numberOfPaths = 0;
             for (Relationship incoming : originalOf.getRelationships(ERelations.SEQUENCE,
                     Direction.INCOMING)) {
-                assertEquals("A", ((String[]) incoming.getProperty("witnesses"))[0]);
-                assertEquals("C", ((String[]) incoming.getProperty("witnesses"))[1]);
+                assertEquals("A", WitnessSets.dictionaryOf(incoming).get(incoming, "witnesses")[0]);
+                assertEquals("C", WitnessSets.dictionaryOf(incoming).get(incoming, "witnesses")[1]);
                 numberOfPaths++;
             }
             assertEquals(1, numberOfPaths);
@@ -987,7 +989,7 @@ public class ReadingTest {
             numberOfPaths = 0;
             for (Relationship incoming : duplicatedOf.getRelationships(ERelations.SEQUENCE,
                     Direction.INCOMING)) {
-                assertEquals("B", ((String[]) incoming.getProperty("witnesses"))[0]);
+                assertEquals("B", WitnessSets.dictionaryOf(incoming).get(incoming, "witnesses")[0]);
                 numberOfPaths++;
             }
             assertEquals(1, numberOfPaths);
@@ -995,8 +997,8 @@ public class ReadingTest {
             numberOfPaths = 0;
             for (Relationship outgoing : originalOf.getRelationships(ERelations.SEQUENCE,
                     Direction.OUTGOING)) {
-                assertEquals("A", ((String[]) outgoing.getProperty("witnesses"))[0]);
-                assertEquals("C", ((String[]) outgoing.getProperty("witnesses"))[1]);
+                assertEquals("A", WitnessSets.dictionaryOf(outgoing).get(outgoing, "witnesses")[0]);
+                assertEquals("C", WitnessSets.dictionaryOf(outgoing).get(outgoing, "witnesses")[1]);
                 numberOfPaths++;
             }
             assertEquals(1, numberOfPaths);
@@ -1004,7 +1006,7 @@ public class ReadingTest {
             numberOfPaths = 0;
             for (Relationship outgoing : duplicatedOf.getRelationships(ERelations.SEQUENCE,
                     Direction.OUTGOING)) {
-                assertEquals("B", ((String[]) outgoing.getProperty("witnesses"))[0]);
+                assertEquals("B", WitnessSets.dictionaryOf(outgoing).get(outgoing, "witnesses")[0]);
                 numberOfPaths++;
             }
             assertEquals(1, numberOfPaths);
@@ -1298,20 +1300,20 @@ public class ReadingTest {
             // test witnesses
             Relationship incoming = stayingNode.getSingleRelationship(
                     ERelations.SEQUENCE, Direction.INCOMING);
-            assertEquals("A", ((String[]) incoming.getProperty("witnesses"))[0]);
-            assertEquals("B", ((String[]) incoming.getProperty("witnesses"))[1]);
-            assertEquals("C", ((String[]) incoming.getProperty("witnesses"))[2]);
+            assertEquals("A", WitnessSets.dictionaryOf(incoming).get(incoming, "witnesses")[0]);
+            assertEquals("B", WitnessSets.dictionaryOf(incoming).get(incoming, "witnesses")[1]);
+            assertEquals("C", WitnessSets.dictionaryOf(incoming).get(incoming, "witnesses")[2]);
 
             int counter = 0;
             for (Relationship outgoing : stayingNode.getRelationships(
                     ERelations.SEQUENCE, Direction.OUTGOING)) {
                 counter++;
                 if (outgoing.getOtherNode(stayingNode).getProperty("text").equals("the")) {
-                    assertEquals("A", ((String[]) outgoing.getProperty("witnesses"))[0]);
-                    assertEquals("B", ((String[]) outgoing.getProperty("witnesses"))[1]);
+                    assertEquals("A", WitnessSets.dictionaryOf(outgoing).get(outgoing, "witnesses")[0]);
+                    assertEquals("B", WitnessSets.dictionaryOf(outgoing).get(outgoing, "witnesses")[1]);
                 }
                 if (outgoing.getOtherNode(stayingNode).getProperty("text").equals("to")) {
-                    assertEquals("C", ((String[]) outgoing.getProperty("witnesses"))[0]);
+                    assertEquals("C", WitnessSets.dictionaryOf(outgoing).get(outgoing, "witnesses")[0]);
                 }
             }
             assertEquals(2, counter);
@@ -1334,6 +1336,94 @@ public class ReadingTest {
         }
     }
 
+    @Test
+    public void mergeReadingsWithDebugChecksTest() {
+        // With the consistency checks switched on, the whole path of each affected witness is checked
+        boolean debugging = DebugChecks.enabled();
+        DebugChecks.setEnabled(true);
+        try (Transaction tx = db.beginTx()) {
+            Result result = db.execute("match (w:READING {text:'fruit'}) return w");
+            Iterator<Node> nodes = result.columnAs("w");
+            Node firstNode = nodes.next();
+            Node secondNode = nodes.next();
+            Response response = jerseyTest
+                    .target("/reading/" + firstNode.getId()
+                            + "/merge/" + secondNode.getId())
+                    .request(MediaType.APPLICATION_JSON)
+                    .post(Entity.text(null));
+            assertEquals(Status.OK.getStatusCode(), response.getStatusInfo().getStatusCode());
+            testNumberOfReadingsAndWitnesses(28);
+            tx.success();
+        } finally {
+            DebugChecks.setEnabled(debugging);
+        }
+    }
+
+    @Test
+    public void mergeReadingIntoLayerTest() {
+        // The a.c. layer of A departs from A at 'quack'; when that reading is merged into 'quick',
+        // the layer rejoins its base witness and is no longer recorded on the links.
+        String csv = "A,A (a.c.),B\nthe,the,the\nquick,quack,quick\nfox,fox,fox\n";
+        Response jerseyResult = Util.createTraditionFromFileOrString(jerseyTest, "Layered", "LR", "1",
+                csv, "csv");
+        assertEquals(Status.CREATED.getStatusCode(), jerseyResult.getStatus());
+        String layeredId = Util.getValueFromJson(jerseyResult, "tradId");
+        HashMap<String, String> lookup = Util.makeReadingLookup(jerseyTest, layeredId);
+
+        Response response = jerseyTest
+                .target("/reading/" + lookup.get("quick/2") + "/merge/" + lookup.get("quack/2"))
+                .request(MediaType.APPLICATION_JSON)
+                .post(Entity.text(null));
+        assertEquals(Status.OK.getStatusCode(), response.getStatusInfo().getStatusCode());
+
+        TextSequenceModel text = jerseyTest
+                .target("/tradition/" + layeredId + "/witness/A/text")
+                .queryParam("layer", "a.c.")
+                .request()
+                .get(TextSequenceModel.class);
+        assertEquals("the quick fox", text.getText());
+        text = jerseyTest
+                .target("/tradition/" + layeredId + "/witness/B/text")
+                .request()
+                .get(TextSequenceModel.class);
+        assertEquals("the quick fox", text.getText());
+    }
+
+    @Test
+    public void commonReadingUnderLayerGapTest() {
+        // The a.c. layer of A skips from 'the' to 'fox', so neither 'quick' nor 'brown' is common,
+        // even though every base witness passes through both.
+        String csv = "A,A (a.c.),B\nthe,the,the\nquick,,quick\nbrown,,brown\nfox,fox,fox\n";
+        Response jerseyResult = Util.createTraditionFromFileOrString(jerseyTest, "Layered", "LR", "1",
+                csv, "csv");
+        assertEquals(Status.CREATED.getStatusCode(), jerseyResult.getStatus());
+        String layeredId = Util.getValueFromJson(jerseyResult, "tradId");
+        HashMap<String, String> lookup = Util.makeReadingLookup(jerseyTest, layeredId);
+        String brownId = lookup.get("brown/3");
+
+        // Split B off 'brown' and merge it back; the flag must come out as it was.
+        DuplicateModel dm = new DuplicateModel();
+        dm.setReadings(Collections.singletonList(brownId));
+        dm.setWitnesses(Collections.singletonList("B"));
+        Response response = jerseyTest
+                .target("/reading/" + brownId + "/duplicate")
+                .request(MediaType.APPLICATION_JSON)
+                .post(Entity.json(dm));
+        assertEquals(Status.OK.getStatusCode(), response.getStatusInfo().getStatusCode());
+        String duplicateId = response.readEntity(GraphModel.class).getReadings().iterator().next().getId();
+        response = jerseyTest
+                .target("/reading/" + brownId + "/merge/" + duplicateId)
+                .request(MediaType.APPLICATION_JSON)
+                .post(Entity.text(null));
+        assertEquals(Status.OK.getStatusCode(), response.getStatusInfo().getStatusCode());
+
+        ReadingModel brown = jerseyTest
+                .target("/reading/" + brownId)
+                .request()
+                .get(ReadingModel.class);
+        assertFalse(brown.getIs_common());
+    }
+
     @Test
     public void mergeRelatedReadingsTest() {
         // Find the 'april' nodes, make sure they can be merged
@@ -2385,11 +2475,13 @@ public class ReadingTest {
         String first_id = null;
         String second_id = null;
         try (Transaction tx = db.beginTx()) {
-            Result tomerge = db.execute("MATCH (a:READING {rank:3})-[:SEQUENCE {witnesses:['D']}]->(b:READING {rank:4}) RETURN id(a), id(b)");
+            Result tomerge = db.execute("MATCH (a:READING {rank:3})-[s:SEQUENCE]->(b:READING {rank:4}) RETURN s");
             while (tomerge.hasNext()) {
-                Map<String,Object> row = tomerge.next();
-                first_id = String.valueOf(row.get("id(a)"));
-                second_id = String.valueOf(row.get("id(b)"));
+                Relationship s = (Relationship) tomerge.next().get("s");
+                if (Arrays.equals(new String[]{"D"}, WitnessSets.dictionaryOf(s).get(s, "witnesses"))) {
+                    first_id = String.valueOf(s.getStartNodeId());
+                    second_id = String.valueOf(s.getEndNodeId());
+                }
             }
             tx.success();
         }
@@ -9,12 +9,14 @@ import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
+import net.stemmaweb.model.DuplicateModel;
 import net.stemmaweb.model.GraphModel;
 import net.stemmaweb.model.ReadingModel;
 import net.stemmaweb.model.RelationModel;
 import net.stemmaweb.model.TextSequenceModel;
 import net.stemmaweb.rest.*;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.VariantGraphService;
 import net.stemmaweb.stemmaserver.JerseyTestServerFactory;
 
 import net.stemmaweb.stemmaserver.Util;
@@ -319,6 +321,52 @@ public class RelationTest {
         assertEquals(existingRels, secondRels.size());
     }
 
+    @Test
+    public void createRelationshipSectionWideSameRankTest() {
+        // Make a tradition where 'colour' occurs twice, and then split it at the second place, so
+        // that there are two readings of 'colour' at the same rank as one of 'color'.
+        String csv = "A,B,C\nthe,the,the\ncolour,colour,color\nand,and,and\ncolour,colour,color\n";
+        Response jerseyResponse = Util.createTraditionFromFileOrString(jerseyTest, "Colours", "LR", "1",
+                csv, "csv");
+        assertEquals(Status.CREATED.getStatusCode(), jerseyResponse.getStatus());
+        String colourId = Util.getValueFromJson(jerseyResponse, "tradId");
+        HashMap<String, String> lookup = Util.makeReadingLookup(jerseyTest, colourId);
+        DuplicateModel dm = new DuplicateModel();
+        dm.setReadings(Collections.singletonList(lookup.get("colour/4")));
+        dm.setWitnesses(Collections.singletonList("B"));
+        jerseyResponse = jerseyTest
+                .target("/reading/" + lookup.get("colour/4") + "/duplicate")
+                .request(MediaType.APPLICATION_JSON)
+                .post(Entity.json(dm));
+        assertEquals(Status.OK.getStatusCode(), jerseyResponse.getStatus());
+        String splitId = jerseyResponse.readEntity(GraphModel.class).getReadings().iterator().next().getId();
+
+        // Relate the first pair with section scope
+        RelationModel r = new RelationModel();
+        r.setSource(lookup.get("colour/2"));
+        r.setTarget(lookup.get("color/2"));
+        r.setType("spelling");
+        r.setScope("section");
+        jerseyResponse = jerseyTest
+                .target("/tradition/" + colourId + "/relation")
+                .request(MediaType.APPLICATION_JSON)
+                .post(Entity.json(r));
+        assertEquals(Status.CREATED.getStatusCode(), jerseyResponse.getStatus());
+
+        // Both readings of 'colour' at the second place should have been related to 'color'
+        // (and, as spelling relations are transitive, to each other)
+        GraphModel newRels = jerseyResponse.readEntity(new GenericType<GraphModel>() {});
+        HashSet<String> related = new HashSet<>();
+        for (RelationModel rm : newRels.getRelations()) {
+            assertEquals("spelling", rm.getType());
+            if (rm.getSource().equals(lookup.get("color/4")))
+                related.add(rm.getTarget());
+            else if (rm.getTarget().equals(lookup.get("color/4")))
+                related.add(rm.getSource());
+        }
+        assertEquals(new HashSet<>(Arrays.asList(lookup.get("colour/4"), splitId)), related);
+    }
+
     @Test(expected=NotFoundException.class)
     public void deleteRelationshipDocumentWideTest() {
         /*
@@ -439,6 +487,82 @@ public class RelationTest {
         }
     }
 
+    @Test
+    public void createRelationBatchTest() {
+        RelationModel colocated = new RelationModel();
+        colocated.setSource(readingLookup.getOrDefault("root/18", "17"));
+        colocated.setTarget(readingLookup.getOrDefault("teh/16", "25"));
+        colocated.setType("grammatical");
+        colocated.setAlters_meaning(0L);
+        colocated.setIs_significant("yes");
+        RelationModel crossing = new RelationModel();
+        crossing.setSource(readingLookup.getOrDefault("root/18", "17"));
+        crossing.setTarget(readingLookup.getOrDefault("the/17", "25"));
+        crossing.setType("grammatical");
+        RelationModel repetition = new RelationModel();
+        repetition.setSource(readingLookup.getOrDefault("april/2", "17"));
+        repetition.setTarget(readingLookup.getOrDefault("showers/5", "25"));
+        repetition.setType("repetition");
+        int relationCount = jerseyTest.target("/tradition/" + tradId + "/relations")
+                .request()
+                .get(new GenericType<List<RelationModel>>() {}).size();
+
+        // The second relation crosses the first, so none of them should be made
+        Response response = jerseyTest
+                .target("/tradition/" + tradId + "/relation/batch")
+                .request(MediaType.APPLICATION_JSON)
+                .post(Entity.json(Arrays.asList(colocated, crossing, repetition)));
+        assertEquals(Status.CONFLICT.getStatusCode(), response.getStatus());
+        List<RelationModel> allRels = jerseyTest.target("/tradition/" + tradId + "/relations")
+                .request()
+                .get(new GenericType<List<RelationModel>>() {});
+        assertEquals(relationCount, allRels.size());
+        try (Transaction tx = db.beginTx()) {
+            assertEquals(16L, db.getNodeById(Long.valueOf(colocated.getTarget())).getProperty("rank"));
+            tx.success();
+        }
+
+        // Without it, both of the others are made, and the graph is re-ranked as for a single call
+        response = jerseyTest
+                .target("/tradition/" + tradId + "/relation/batch")
+                .request(MediaType.APPLICATION_JSON)
+                .post(Entity.json(Arrays.asList(colocated, repetition)));
+        assertEquals(Status.CREATED.getStatusCode(), response.getStatus());
+        GraphModel result = response.readEntity(new GenericType<GraphModel>(){});
+        assertEquals(2, result.getRelations().size());
+        HashMap<String, Long> rankChange = new HashMap<>();
+        rankChange.put("teh", 18L);
+        rankChange.put("rood", 19L);
+        rankChange.put("#END#", 20L);
+        assertEquals(3, result.getReadings().size());
+        for (ReadingModel r : result.getReadings())
+            assertEquals(rankChange.get(r.getText()), r.getRank());
+        // and the common readings are flagged as a full recalculation would flag them
+        Node sectionNode = VariantGraphService.getSectionNodes(tradId, db).get(0);
+        HashMap<Long, Object> flags = commonFlags(sectionNode);
+        VariantGraphService.calculateCommon(sectionNode);
+        assertEquals(commonFlags(sectionNode), flags);
+
+        // Sending them again changes nothing
+        response = jerseyTest
+                .target("/tradition/" + tradId + "/relation/batch")
+                .request(MediaType.APPLICATION_JSON)
+                .post(Entity.json(Arrays.asList(colocated, repetition)));
+        assertEquals(Status.CREATED.getStatusCode(), response.getStatus());
+        result = response.readEntity(new GenericType<GraphModel>(){});
+        assertEquals(0, result.getRelations().size());
+    }
+
+    private HashMap<Long, Object> commonFlags(Node sectionNode) {
+        HashMap<Long, Object> result = new HashMap<>();
+        try (Transaction tx = db.beginTx()) {
+            db.findNodes(Nodes.READING, "section_id", sectionNode.getId())
+                    .forEachRemaining(x -> result.put(x.getId(), x.getProperty("is_common", null)));
+            tx.success();
+        }
+        return result;
+    }
+
     @Test
     public void createRelationshipTestWithCrossRelationConstraintNotDirectlyCloseToEachOther() {
         RelationModel relationship = new RelationModel();
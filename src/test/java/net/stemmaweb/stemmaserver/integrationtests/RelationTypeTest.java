@@ -2,7 +2,10 @@ package net.stemmaweb.stemmaserver.integrationtests;
 
 import junit.framework.TestCase;
 import net.stemmaweb.model.*;
+import net.stemmaweb.services.DebugChecks;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.ReadingService;
+import net.stemmaweb.services.VariantGraphService;
 import net.stemmaweb.stemmaserver.Util;
 
 import org.glassfish.jersey.test.JerseyTest;
@@ -20,6 +23,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 
 public class RelationTypeTest extends TestCase {
     private GraphDatabaseService db;
@@ -417,6 +421,21 @@ public class RelationTypeTest extends TestCase {
             }
             tx.success();
         }
+
+        // A full recalculation, with the consistency checks switched on, should find nothing
+        // that the incremental ones missed.
+        String sectId = Util.getSingleSection(jerseyTest, tradId).getId();
+        boolean debugging = DebugChecks.enabled();
+        DebugChecks.setEnabled(true);
+        try (Transaction tx = db.beginTx()) {
+            Set<Node> changed = ReadingService.recalculateRank(VariantGraphService.getStartNode(sectId, db), true);
+            assertTrue(changed.isEmpty());
+            tx.success();
+        } catch (Exception e) {
+            fail(e.getMessage());
+        } finally {
+            DebugChecks.setEnabled(debugging);
+        }
     }
 
     public void testRelTypeDelete() {
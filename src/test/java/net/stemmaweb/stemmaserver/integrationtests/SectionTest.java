@@ -5,6 +5,7 @@ import net.stemmaweb.model.*;
 import net.stemmaweb.rest.Nodes;
 import net.stemmaweb.rest.Root;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.RankIndex;
 import net.stemmaweb.services.VariantGraphService;
 import net.stemmaweb.stemmaserver.JerseyTestServerFactory;
 import net.stemmaweb.stemmaserver.Util;
@@ -19,6 +20,7 @@ import org.neo4j.graphdb.Transaction;
 import org.neo4j.test.TestGraphDatabaseFactory;
 
 import javax.ws.rs.client.Entity;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.GenericType;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.MultivaluedHashMap;
@@ -140,6 +142,56 @@ public class SectionTest extends TestCase {
         assertEquals(77, allRdgs.size());
     }
 
+    public void testSectionGraph() {
+        String newSectId = Util.getValueFromJson(Util.addSectionToTradition(jerseyTest, tradId, "src/TestFiles/lf2.xml",
+                "stemmaweb", "section 2"), "parentId");
+        Response response = jerseyTest.target("/tradition/" + tradId + "/section/" + newSectId + "/graph")
+                .request()
+                .get();
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        EntityTag etag = response.getEntityTag();
+        assertNotNull(etag);
+        GraphModel graph = response.readEntity(GraphModel.class);
+        assertEquals(47, graph.getReadings().size());
+        assertEquals(9, graph.getRelations().size());
+        Set<String> readingIds = graph.getReadings().stream().map(ReadingModel::getId).collect(Collectors.toSet());
+        assertEquals(47, readingIds.size());
+        assertFalse(graph.getSequences().isEmpty());
+        for (SequenceModel link : graph.getSequences()) {
+            assertTrue(readingIds.contains(link.getSource()));
+            assertTrue(readingIds.contains(link.getTarget()));
+        }
+
+        // Ask again with the tag; nothing has changed
+        response = jerseyTest.target("/tradition/" + tradId + "/section/" + newSectId + "/graph")
+                .request()
+                .header("If-None-Match", etag.toString())
+                .get();
+        assertEquals(Response.Status.NOT_MODIFIED.getStatusCode(), response.getStatus());
+        assertEquals(etag, response.getEntityTag());
+
+        // Change a reading, and the tag should no longer match
+        KeyPropertyModel keyModel = new KeyPropertyModel();
+        keyModel.setKey("text");
+        keyModel.setProperty("snerf");
+        ReadingChangePropertyModel chgModel = new ReadingChangePropertyModel();
+        chgModel.setProperties(Collections.singletonList(keyModel));
+        String changed = graph.getReadings().stream()
+                .filter(x -> !x.getIs_start() && !x.getIs_end()).findFirst().get().getId();
+        response = jerseyTest.target("/reading/" + changed)
+                .request(MediaType.APPLICATION_JSON)
+                .put(Entity.json(chgModel));
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        response = jerseyTest.target("/tradition/" + tradId + "/section/" + newSectId + "/graph")
+                .request()
+                .header("If-None-Match", etag.toString())
+                .get();
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        assertNotEquals(etag, response.getEntityTag());
+        graph = response.readEntity(GraphModel.class);
+        assertTrue(graph.getReadings().stream().anyMatch(x -> x.getText().equals("snerf")));
+    }
+
     public void testSectionWitnesses() {
         List<SectionModel> tSections = jerseyTest.target("/tradition/" + tradId + "/sections")
                 .request()
@@ -716,6 +768,61 @@ public class SectionTest extends TestCase {
         return cnt;
     }
 
+    public void testRankIndex() {
+        List<String> florIds = importFlorilegium();
+        String florId = florIds.remove(0);
+        String targetSectionId = florIds.get(1);
+        checkRankIndex(florId, targetSectionId);
+
+        // Split the section, which changes the ranks in the second half
+        ReadingModel targetReading = jerseyTest
+                .target("/tradition/" + florId + "/witness/B/readings")
+                .request()
+                .get(new GenericType<List<ReadingModel>>() {}).get(0);
+        Response jerseyResult = jerseyTest
+                .target("/tradition/" + florId + "/section/" + targetSectionId + "/splitAtRank/" + targetReading.getRank())
+                .request(MediaType.APPLICATION_JSON)
+                .post(null);
+        assertEquals(Response.Status.OK.getStatusCode(), jerseyResult.getStatus());
+        String newSectionId = Util.getValueFromJson(jerseyResult, "sectionId");
+
+        // Both halves should be indexed correctly
+        checkRankIndex(florId, targetSectionId);
+        checkRankIndex(florId, newSectionId);
+
+        // The index should report its size
+        jerseyResult = jerseyTest.target("/admin/rankindex").request().get();
+        assertEquals(Response.Status.OK.getStatusCode(), jerseyResult.getStatus());
+        Map<String, Long> status = jerseyResult.readEntity(new GenericType<Map<String, Long>>() {});
+        assertTrue(status.get("sections") >= 2);
+        assertTrue(status.get("readings") > 0);
+        assertTrue(status.get("bytes") >= 16 * status.get("readings"));
+    }
+
+    // Compare the rank index of a section against a traversal of its readings
+    private void checkRankIndex(String tradId, String sectId) {
+        List<ReadingModel> sectRdgs = jerseyTest.target("/tradition/" + tradId + "/section/" + sectId + "/readings")
+                .request()
+                .get(new GenericType<List<ReadingModel>>() {});
+        long maxRank = sectRdgs.stream().mapToLong(ReadingModel::getRank).max().orElse(0);
+        for (long from = 0; from <= maxRank; from += 3) {
+            final long f = from;
+            Set<Long> expected = sectRdgs.stream().filter(x -> x.getRank() >= f && x.getRank() <= f + 4)
+                    .map(x -> Long.valueOf(x.getId())).collect(Collectors.toSet());
+            List<Node> found = RankIndex.readingsBetween(db, sectId, from, from + 4);
+            assertEquals(expected, found.stream().map(Node::getId).collect(Collectors.toSet()));
+            try (Transaction tx = db.beginTx()) {
+                long prior = -1;
+                for (Node n : found) {
+                    long rank = Long.parseLong(n.getProperty("rank").toString());
+                    assertTrue(rank >= prior);
+                    prior = rank;
+                }
+                tx.success();
+            }
+        }
+    }
+
     public void testEmendation() {
         // Get the section ID
         List<SectionModel> tradSections = jerseyTest
@@ -136,7 +136,7 @@ public class StemmawebInputOutputTest {
         Response actualResponse = exportStemmawebResource.writeNeo4J(traditionId);
         assertEquals(Response.ok().build().getStatus(), actualResponse.getStatus());
 
-        String xmlOutput = actualResponse.getEntity().toString();
+        String xmlOutput = Util.getStreamedEntity(actualResponse);
         response = Util.createTraditionFromFileOrString(jerseyTest, "Tradition 2", "BI", "1", xmlOutput, "stemmaweb");
         assertEquals(Response.status(Response.Status.CREATED).build().getStatus(),
                 response.getStatus());
@@ -357,7 +357,7 @@ public class StemmawebInputOutputTest {
 
         // Re-import and test the result
         response = Util.createTraditionFromFileOrString(jerseyTest, "Tradition 2", "LR", "1",
-                parseResponse.getEntity().toString(), "stemmaweb");
+                Util.getStreamedEntity(parseResponse), "stemmaweb");
         // Check for success and get the tradition id
         assertEquals(Response.status(Response.Status.CREATED).build().getStatus(),
                 response.getStatus());
@@ -872,7 +872,10 @@ public class TabularInputOutputTest extends TestCase {
         assertEquals("B         XXXAABBBAA", matrixLines[2]);
         assertEquals("C         XXXABAACBX", matrixLines[3]);
 
-        // Now restrict the maximum number of divergences to two
+        // Now restrict the maximum number of divergences to two; the section's columns should
+        // come from the cache this time
+        long hits = CharacterMatrix.getHits();
+        long misses = CharacterMatrix.getMisses();
         result = jerseyTest.target("/tradition/" + traditionId + "/matrix")
                 .queryParam("maxVars", "2")
                 .request()
@@ -885,6 +888,48 @@ public class TabularInputOutputTest extends TestCase {
         assertEquals("A         AAAXAAAAA", matrixLines[1]);
         assertEquals("B         XXXAABBAA", matrixLines[2]);
         assertEquals("C         XXXABAABX", matrixLines[3]);
+        assertEquals(hits + 1, CharacterMatrix.getHits());
+        assertEquals(misses, CharacterMatrix.getMisses());
+    }
+
+    public void testParallelExport() {
+        Response response = Util.createTraditionFromFileOrString(jerseyTest, "Florilegium", "LR", "1",
+                "src/TestFiles/florilegium_tei_ps.xml", "teips");
+        assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+        String tradId = Util.getValueFromJson(response, "tradId");
+
+        // Split this into four sections
+        List<SectionModel> allSections = jerseyTest.target("/tradition/" + tradId + "/sections/")
+                .request()
+                .get(new GenericType<List<SectionModel>>() {});
+        String section1 = allSections.get(0).getId();
+        for (String rank : Arrays.asList("228", "156", "38")) {
+            Response jerseyResponse = jerseyTest.target("/tradition/" + tradId + "/section/" + section1
+                    + "/splitAtRank/" + rank)
+                    .request()
+                    .post(Entity.json(null));
+            assertEquals(Response.Status.OK.getStatusCode(), jerseyResponse.getStatus());
+        }
+
+        // Each export should come out the same whether the sections are done in turn or in parallel
+        List<String> exports = Arrays.asList("json", "csv", "tsv", "matrix", "dot", "readings");
+        HashMap<String, String> serial = new HashMap<>();
+        int parallelism = ParallelSections.getParallelism();
+        try {
+            ParallelSections.setParallelism(1);
+            for (String export : exports)
+                serial.put(export, jerseyTest.target("/tradition/" + tradId + "/" + export)
+                        .request().get(String.class));
+            ParallelSections.setParallelism(4);
+            for (String export : exports)
+                assertEquals(serial.get(export), jerseyTest.target("/tradition/" + tradId + "/" + export)
+                        .request().get(String.class));
+        } finally {
+            ParallelSections.setParallelism(parallelism);
+        }
+        // Sanity check that we got something
+        assertTrue(serial.get("json").length() > 0);
+        assertTrue(serial.get("dot").startsWith("digraph"));
     }
 
     public void tearDown() throws Exception {
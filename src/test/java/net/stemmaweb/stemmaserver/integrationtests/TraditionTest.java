@@ -19,6 +19,7 @@ import net.stemmaweb.model.*;
 import net.stemmaweb.rest.ERelations;
 import net.stemmaweb.rest.Nodes;
 import net.stemmaweb.rest.Root;
+import net.stemmaweb.services.DeletionService;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
 import net.stemmaweb.services.VariantGraphService;
 import net.stemmaweb.stemmaserver.JerseyTestServerFactory;
@@ -29,6 +30,7 @@ import org.glassfish.jersey.test.JerseyTest;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
@@ -639,6 +641,112 @@ public class TraditionTest {
         assertEquals(originalNodeCount, numNodes.get());
     }
 
+    /**
+     * Test that a tradition deleted in the background disappears at once, and is then
+     * removed completely, a batch at a time
+     */
+    @Test
+    public void deleteTraditionInBackgroundTest() throws InterruptedException {
+        // count the total number of nodes
+        AtomicInteger numNodes = new AtomicInteger(0);
+        try (Transaction tx = db.beginTx()) {
+            db.execute("match (n) return n").forEachRemaining(x -> numNodes.getAndIncrement());
+            tx.success();
+        }
+        int originalNodeCount = numNodes.get();
+
+        String florId = createTraditionFromFile("Florilegium", "src/TestFiles/florilegium_graphml.xml", "1");
+        int batchSize = DeletionService.getBatchSize();
+        DeletionService.setBatchSize(100);
+        try {
+            Response jerseyResponse = jerseyTest
+                    .target("/tradition/" + florId)
+                    .queryParam("background", "true")
+                    .request()
+                    .delete();
+            assertEquals(Status.ACCEPTED.getStatusCode(), jerseyResponse.getStatus());
+            DeletionJobModel job = jerseyResponse.readEntity(DeletionJobModel.class);
+            assertEquals("tradition", job.getType());
+            assertEquals(florId, job.getTarget());
+
+            // The tradition should already be gone from view
+            jerseyResponse = jerseyTest.target("/tradition/" + florId).request().get();
+            assertEquals(Status.NOT_FOUND.getStatusCode(), jerseyResponse.getStatus());
+            List<TraditionModel> userTraditions = jerseyTest.target("/user/1/traditions").request()
+                    .get(new GenericType<List<TraditionModel>>() {});
+            assertFalse(userTraditions.stream().anyMatch(x -> x.getId().equals(florId)));
+
+            // Wait for the deletion to finish
+            for (int i = 0; i < 600 && !job.getStatus().equals("done"); i++) {
+                assertNotEquals("failed", job.getStatus());
+                Thread.sleep(100);
+                jerseyResponse = jerseyTest.target("/deletion/" + job.getId()).request().get();
+                assertEquals(Status.OK.getStatusCode(), jerseyResponse.getStatus());
+                job = jerseyResponse.readEntity(DeletionJobModel.class);
+            }
+            assertEquals("done", job.getStatus());
+            assertTrue(job.getDeleted() > 100);
+        } finally {
+            DeletionService.setBatchSize(batchSize);
+        }
+
+        // nodes should be back to original number
+        numNodes.set(0);
+        try (Transaction tx = db.beginTx()) {
+            db.execute("match (n) return n").forEachRemaining(x -> numNodes.getAndIncrement());
+            tx.success();
+        }
+        assertEquals(originalNodeCount, numNodes.get());
+
+        // An unknown job should not be found
+        Response jerseyResponse = jerseyTest.target("/deletion/nonsense").request().get();
+        assertEquals(Status.NOT_FOUND.getStatusCode(), jerseyResponse.getStatus());
+    }
+
+    /**
+     * Test that a tradition that was detached for deletion, but never deleted, is deleted
+     * when the pending deletions are resumed
+     */
+    @Test
+    public void resumePendingDeletionTest() throws InterruptedException {
+        AtomicInteger numNodes = new AtomicInteger(0);
+        try (Transaction tx = db.beginTx()) {
+            db.execute("match (n) return n").forEachRemaining(x -> numNodes.getAndIncrement());
+            tx.success();
+        }
+        int originalNodeCount = numNodes.get();
+
+        // Detach the tradition as the delete request does, and then stop as if the server had
+        String florId = createTraditionFromFile("Florilegium", "src/TestFiles/florilegium_graphml.xml", "1");
+        try (Transaction tx = db.beginTx()) {
+            Node florNode = db.findNode(Nodes.TRADITION, "id", florId);
+            florNode.getRelationships(ERelations.OWNS_TRADITION, Direction.INCOMING).forEach(Relationship::delete);
+            florNode.removeLabel(Nodes.TRADITION);
+            DeletionService.markPending(florNode);
+            tx.success();
+        }
+
+        List<DeletionJobModel> jobs = DeletionService.resumePending(db);
+        assertEquals(1, jobs.size());
+        DeletionJobModel job = jobs.get(0);
+        assertEquals("tradition", job.getType());
+        assertEquals(florId, job.getTarget());
+        for (int i = 0; i < 600 && !job.getStatus().equals("done"); i++) {
+            assertNotEquals("failed", job.getStatus());
+            Thread.sleep(100);
+        }
+        assertEquals("done", job.getStatus());
+
+        // nodes should be back to original number, and nothing is left to resume
+        numNodes.set(0);
+        try (Transaction tx = db.beginTx()) {
+            db.execute("match (n) return n").forEachRemaining(x -> numNodes.getAndIncrement());
+            tx.success();
+        }
+        assertEquals(originalNodeCount, numNodes.get());
+        assertTrue(DeletionService.resumePending(db).isEmpty());
+    }
+
     /**
      * Test do delete a Tradition with an invalid id deletTraditionById
      */
@@ -1,10 +1,20 @@
 package net.stemmaweb.stemmaserver.integrationtests;
 
+import net.stemmaweb.model.AlignmentModel;
+import net.stemmaweb.model.DuplicateModel;
+import net.stemmaweb.model.GraphModel;
+import net.stemmaweb.model.KeyPropertyModel;
+import net.stemmaweb.model.ReadingChangePropertyModel;
+import net.stemmaweb.model.ReadingModel;
 import net.stemmaweb.model.RelationModel;
+import net.stemmaweb.model.WitnessTokensModel;
 import net.stemmaweb.rest.ERelations;
 import net.stemmaweb.rest.Nodes;
+import net.stemmaweb.rest.Reading;
 import net.stemmaweb.rest.Relation;
+import net.stemmaweb.services.AlignmentCache;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.MajorityText;
 import net.stemmaweb.services.VariantGraphService;
 import net.stemmaweb.stemmaserver.Util;
 import org.junit.After;
@@ -16,6 +26,7 @@ import org.neo4j.test.TestGraphDatabaseFactory;
 import javax.ws.rs.core.Response;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -188,6 +199,183 @@ public class VariantGraphServiceTest {
         }
     }
 
+    @Test
+    public void alignmentCacheTest() {
+        Node sectionNode = VariantGraphService.getSectionNodes(traditionId, db).get(0);
+        AlignmentModel direct = new AlignmentModel(sectionNode);
+        long hits = AlignmentCache.getHits();
+        long misses = AlignmentCache.getMisses();
+
+        // The first request builds the table, the second comes from the cache
+        AlignmentCache.getAlignment(sectionNode, false);
+        AlignmentModel cached = AlignmentCache.getAlignment(sectionNode, false);
+        assertEquals(misses + 1, AlignmentCache.getMisses());
+        assertEquals(hits + 1, AlignmentCache.getHits());
+
+        // The cached table should be the same as the one built directly
+        assertEquals(direct.getLength(), cached.getLength());
+        assertEquals(direct.getAlignment().size(), cached.getAlignment().size());
+        for (int i = 0; i < direct.getAlignment().size(); i++) {
+            WitnessTokensModel dw = direct.getAlignment().get(i);
+            WitnessTokensModel cw = cached.getAlignment().get(i);
+            assertEquals(dw.constructSigil(), cw.constructSigil());
+            for (int j = 0; j < direct.getLength(); j++) {
+                ReadingModel dr = dw.getTokens().get(j);
+                ReadingModel cr = cw.getTokens().get(j);
+                assertEquals(dr == null ? null : dr.getId(), cr == null ? null : cr.getId());
+            }
+        }
+
+        // The readings should be shared between witnesses
+        HashMap<String, ReadingModel> seen = new HashMap<>();
+        for (WitnessTokensModel wtm : cached.getAlignment())
+            for (ReadingModel rm : wtm.getTokens())
+                if (rm != null) assertSame(seen.computeIfAbsent(rm.getId(), x -> rm), rm);
+
+        // A change to the section should invalidate the table
+        String roodId;
+        try (Transaction tx = db.beginTx()) {
+            roodId = String.valueOf(db.findNode(Nodes.READING, "text", "rood").getId());
+            tx.success();
+        }
+        KeyPropertyModel keyModel = new KeyPropertyModel();
+        keyModel.setKey("normal_form");
+        keyModel.setProperty("rod");
+        ReadingChangePropertyModel chgModel = new ReadingChangePropertyModel();
+        chgModel.addProperty(keyModel);
+        Response r = new Reading(roodId).changeReadingProperties(chgModel);
+        assertEquals(Response.Status.OK.getStatusCode(), r.getStatus());
+        AlignmentModel changed = AlignmentCache.getAlignment(sectionNode, true);
+        assertEquals(misses + 2, AlignmentCache.getMisses());
+        assertEquals(hits + 1, AlignmentCache.getHits());
+        assertTrue(changed.getAlignment().stream().flatMap(x -> x.getTokens().stream())
+                .anyMatch(x -> x != null && x.getId().equals(roodId) && x.getNormal_form().equals("rod")));
+    }
+
+    @Test
+    public void majorityTextCacheTest() {
+        Node sectionNode = VariantGraphService.getSectionNodes(traditionId, db).get(0);
+        long rebuilds = MajorityText.getRebuildCount();
+        List<Node> majority = VariantGraphService.calculateMajorityText(sectionNode);
+        assertEquals(rebuilds + 1, MajorityText.getRebuildCount());
+        assertEquals(MajorityText.fromAlignment(sectionNode, new AlignmentModel(sectionNode)), majority);
+
+        // Asking again, or after a change to reading properties only, should not recalculate anything
+        assertEquals(majority, VariantGraphService.calculateMajorityText(sectionNode));
+        String roodId;
+        try (Transaction tx = db.beginTx()) {
+            roodId = String.valueOf(db.findNode(Nodes.READING, "text", "rood").getId());
+            tx.success();
+        }
+        KeyPropertyModel keyModel = new KeyPropertyModel();
+        keyModel.setKey("normal_form");
+        keyModel.setProperty("rod");
+        ReadingChangePropertyModel chgModel = new ReadingChangePropertyModel();
+        chgModel.addProperty(keyModel);
+        Response r = new Reading(roodId).changeReadingProperties(chgModel);
+        assertEquals(Response.Status.OK.getStatusCode(), r.getStatus());
+        assertEquals(majority, VariantGraphService.calculateMajorityText(sectionNode));
+        assertEquals(rebuilds + 1, MajorityText.getRebuildCount());
+
+        // Duplicating a reading changes the witness paths, so the text is worked out again
+        String toSplit = null;
+        String witness = null;
+        try (Transaction tx = db.beginTx()) {
+            for (Node n : majority) {
+                if (n.hasProperty("is_start") || n.hasProperty("is_end") || n.hasRelationship(ERelations.RELATED))
+                    continue;
+                ReadingModel rm = new ReadingModel(n);
+                if (rm.getWitnesses().size() > 1 && rm.getWitnesses().stream().noneMatch(x -> x.contains("("))) {
+                    toSplit = rm.getId();
+                    witness = rm.getWitnesses().get(0);
+                    break;
+                }
+            }
+            tx.success();
+        }
+        assertNotNull(toSplit);
+        DuplicateModel dm = new DuplicateModel();
+        dm.setReadings(Collections.singletonList(toSplit));
+        dm.setWitnesses(Collections.singletonList(witness));
+        r = new Reading(toSplit).duplicateReading(dm);
+        assertEquals(Response.Status.OK.getStatusCode(), r.getStatus());
+        majority = VariantGraphService.calculateMajorityText(sectionNode);
+        assertEquals(rebuilds + 2, MajorityText.getRebuildCount());
+        assertEquals(MajorityText.fromAlignment(sectionNode, new AlignmentModel(sectionNode)), majority);
+
+        // So does any change to a property that the alignment depends on
+        try (Transaction tx = db.beginTx()) {
+            roodId = String.valueOf(db.findNode(Nodes.READING, "text", "rood").getId());
+            tx.success();
+        }
+        keyModel.setKey("rank");
+        r = new Reading(roodId).getReading();
+        assertEquals(Response.Status.OK.getStatusCode(), r.getStatus());
+        keyModel.setProperty(((ReadingModel) r.getEntity()).getRank());
+        r = new Reading(roodId).changeReadingProperties(chgModel);
+        assertEquals(Response.Status.OK.getStatusCode(), r.getStatus());
+        assertEquals(majority, VariantGraphService.calculateMajorityText(sectionNode));
+        assertEquals(rebuilds + 3, MajorityText.getRebuildCount());
+    }
+
+    @Test
+    public void incrementalCommonTest() {
+        Node sectionNode = VariantGraphService.getSectionNodes(traditionId, db).get(0);
+        String commonId = null;
+        String witness = null;
+        try (Transaction tx = db.beginTx()) {
+            for (Node n : VariantGraphService.calculateMajorityText(sectionNode)) {
+                if (!n.getProperty("is_common", false).equals(true) || n.hasRelationship(ERelations.RELATED))
+                    continue;
+                ReadingModel rm = new ReadingModel(n);
+                if (rm.getWitnesses().stream().noneMatch(x -> x.contains("("))) {
+                    commonId = rm.getId();
+                    witness = rm.getWitnesses().get(0);
+                    break;
+                }
+            }
+            tx.success();
+        }
+        assertNotNull(commonId);
+
+        // Duplicating a common reading makes neither copy common
+        DuplicateModel dm = new DuplicateModel();
+        dm.setReadings(Collections.singletonList(commonId));
+        dm.setWitnesses(Collections.singletonList(witness));
+        Response r = new Reading(commonId).duplicateReading(dm);
+        assertEquals(Response.Status.OK.getStatusCode(), r.getStatus());
+        String duplicateId = ((GraphModel) r.getEntity()).getReadings().iterator().next().getId();
+        try (Transaction tx = db.beginTx()) {
+            assertEquals(false, db.getNodeById(Long.parseLong(commonId)).getProperty("is_common"));
+            assertEquals(false, db.getNodeById(Long.parseLong(duplicateId)).getProperty("is_common"));
+            tx.success();
+        }
+        HashMap<Long, Object> flags = commonFlags(sectionNode);
+        VariantGraphService.calculateCommon(sectionNode);
+        assertEquals(commonFlags(sectionNode), flags);
+
+        // Merging them again makes the reading common again
+        r = new Reading(commonId).mergeReadings(Long.parseLong(duplicateId));
+        assertEquals(Response.Status.OK.getStatusCode(), r.getStatus());
+        try (Transaction tx = db.beginTx()) {
+            assertEquals(true, db.getNodeById(Long.parseLong(commonId)).getProperty("is_common"));
+            tx.success();
+        }
+        flags = commonFlags(sectionNode);
+        VariantGraphService.calculateCommon(sectionNode);
+        assertEquals(commonFlags(sectionNode), flags);
+    }
+
+    private HashMap<Long, Object> commonFlags(Node sectionNode) {
+        HashMap<Long, Object> result = new HashMap<>();
+        try (Transaction tx = db.beginTx()) {
+            db.findNodes(Nodes.READING, "section_id", sectionNode.getId())
+                    .forEachRemaining(x -> result.put(x.getId(), x.getProperty("is_common", null)));
+            tx.success();
+        }
+        return result;
+    }
+
     // clearMajorityTest()
 
     // returnEntireTraditionTest()
@@ -3,9 +3,15 @@ package net.stemmaweb.stemmaserver.integrationtests;
 import junit.framework.TestCase;
 import net.stemmaweb.model.*;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.NormalizationOverlay;
+import net.stemmaweb.services.VariantGraphService;
 import net.stemmaweb.stemmaserver.Util;
 import org.glassfish.jersey.test.JerseyTest;
 import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
 import org.neo4j.test.TestGraphDatabaseFactory;
 
 import javax.ws.rs.client.Entity;
@@ -47,9 +53,16 @@ public class VariantLocationTest extends TestCase {
         return textinfo;
     }
 
+    // The reading IDs of each row of an alignment, with the common readings starred
+    private static List<String> alignmentIds(AlignmentModel am) {
+        return am.getAlignment().stream().map(x -> x.constructSigil() + ": " + x.getTokens().stream()
+                .map(t -> t == null ? "-" : t.getId() + (t.getIs_common() ? "*" : ""))
+                .collect(Collectors.joining(" "))).collect(Collectors.toList());
+    }
+
     // To test: Plätzchen, Chaucer, Legend, Florilegium
 
-    public void testPlaetzchen() {
+    public void testPlaetzchen() throws Exception {
         Map<String,String> textinfo = setupText("plaetzchen_cx.xml", "collatex");
         String restPath = String.format("/tradition/%s/section/%s/", textinfo.get("tradId"), textinfo.get("sectId"));
 
@@ -88,9 +101,26 @@ public class VariantLocationTest extends TestCase {
                 .post(Entity.json(rm));
         assertEquals(Response.Status.CREATED.getStatusCode(), rsp.getStatus());
 
-        rsp = jerseyTest.target(restPath + "variants")
-                .queryParam("normalize", "spelling")
-                .request().get();
+        // The normalization should be done without writing anything to the graph
+        List<TransactionData> writes = new ArrayList<>();
+        TransactionEventHandler<Object> watcher = new TransactionEventHandler.Adapter<Object>() {
+            @Override
+            public Object beforeCommit(TransactionData data) {
+                if (data.createdRelationships().iterator().hasNext() || data.deletedRelationships().iterator().hasNext()
+                        || data.createdNodes().iterator().hasNext() || data.assignedNodeProperties().iterator().hasNext())
+                    writes.add(data);
+                return null;
+            }
+        };
+        db.registerTransactionEventHandler(watcher);
+        try {
+            rsp = jerseyTest.target(restPath + "variants")
+                    .queryParam("normalize", "spelling")
+                    .request().get();
+        } finally {
+            db.unregisterTransactionEventHandler(watcher);
+        }
+        assertTrue(writes.isEmpty());
         assertEquals(Response.Status.OK.getStatusCode(), rsp.getStatus());
         vlist = rsp.readEntity(VariantListModel.class);
         vlocs = vlist.getVariantlist();
@@ -100,7 +130,18 @@ public class VariantLocationTest extends TestCase {
         assertTrue(vlocs.stream().noneMatch(x -> x.toString().contains("Plä")));
         HashSet<String> expected = new HashSet<>();
         vlocs.forEach(x -> expected.add(x.toString()));
-
+        // and it should come out as the normalization written into the graph does
+        Node sectionNode;
+        try (Transaction tx = db.beginTx()) {
+            sectionNode = db.getNodeById(Long.valueOf(textinfo.get("sectId")));
+            tx.success();
+        }
+        AlignmentModel inMemory = new AlignmentModel(sectionNode, false,
+                NormalizationOverlay.build(sectionNode, "spelling"));
+        VariantGraphService.normalizeGraph(sectionNode, "spelling");
+        AlignmentModel written = new AlignmentModel(sectionNode);
+        VariantGraphService.clearNormalization(sectionNode);
+        assertEquals(alignmentIds(written), alignmentIds(inMemory));
 
         // Now try combining the transpositions. Here it won't work, since they are symmetrical and
         // that makes things complicated.
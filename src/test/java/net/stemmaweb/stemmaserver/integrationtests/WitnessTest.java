@@ -1,5 +1,7 @@
 package net.stemmaweb.stemmaserver.integrationtests;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -13,6 +15,8 @@ import net.stemmaweb.model.TextSequenceModel;
 import net.stemmaweb.model.WitnessModel;
 import net.stemmaweb.rest.*;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.VariantGraphService;
+import net.stemmaweb.services.WitnessSets;
 import net.stemmaweb.stemmaserver.JerseyTestServerFactory;
 
 import net.stemmaweb.stemmaserver.Util;
@@ -196,6 +200,37 @@ public class WitnessTest {
         assertEquals(expectedText, response);
     }
 
+    @Test
+    public void witnessBetweenRanksBrokenPathTest() {
+        // Take witness A off the link that leads into its reading at rank 4
+        try (Transaction tx = db.beginTx()) {
+            String sectId = Util.getSingleSection(jerseyTest, tradId).getId();
+            Node sectionNode = db.getNodeById(Long.valueOf(sectId));
+            WitnessSets.Dictionary dictionary = WitnessSets.dictionaryOfSection(sectionNode);
+            boolean removed = false;
+            for (Node n : VariantGraphService.returnTraditionSection(sectionNode).nodes()) {
+                if (!n.hasLabel(Nodes.READING) || !n.getProperty("rank").toString().equals("4")) continue;
+                for (Relationship r : n.getRelationships(Direction.INCOMING, ERelations.SEQUENCE))
+                    if (dictionary.has(r, "A", "witnesses"))
+                        removed = dictionary.remove(r, "A", "witnesses");
+            }
+            assertTrue(removed);
+            tx.success();
+        }
+
+        // The path no longer reaches the end, within the range or outside it
+        Response response = jerseyTest.target("/tradition/" + tradId + "/witness/A/text")
+                .queryParam("start", "2")
+                .queryParam("end", "5")
+                .request()
+                .get();
+        assertEquals(Response.Status.CONFLICT.getStatusCode(), response.getStatus());
+        response = jerseyTest.target("/tradition/" + tradId + "/witness/A/text")
+                .request()
+                .get();
+        assertEquals(Response.Status.CONFLICT.getStatusCode(), response.getStatus());
+    }
+
     @Test
     public void getWitnessTest() {
         // Get a witness
@@ -287,6 +322,25 @@ public class WitnessTest {
                 .get(new GenericType<List<ReadingModel>>() {}))
             if (!rm.getIs_end() && !rm.getIs_start())
                 assertTrue(remaining.contains(rm.getId()));
+        // Check that no sequence still carries the witness, and that the common readings were
+        // worked out as they would be from scratch
+        HashMap<Long, Object> commonFlags = new HashMap<>();
+        try (Transaction tx = db.beginTx()) {
+            WitnessSets.Dictionary dictionary = WitnessSets.dictionaryFor(
+                    VariantGraphService.getTraditionNode(tradId, db));
+            for (Relationship r : db.getAllRelationships())
+                if (r.isType(ERelations.SEQUENCE))
+                    for (String[] wits : dictionary.read(r).values())
+                        assertFalse(Arrays.asList(wits).contains("A"));
+            db.findNodes(Nodes.READING).forEachRemaining(x -> commonFlags.put(x.getId(), x.getProperty("is_common", null)));
+            tx.success();
+        }
+        VariantGraphService.getSectionNodes(tradId, db).forEach(VariantGraphService::calculateCommon);
+        try (Transaction tx = db.beginTx()) {
+            db.findNodes(Nodes.READING).forEachRemaining(x ->
+                    assertEquals(x.getProperty("is_common", null), commonFlags.get(x.getId())));
+            tx.success();
+        }
 
         // Now add a witness out-of-band, that doesn't have any particular data, to make sure we can
         // delete errant witnesses